@@ -16,9 +16,8 @@
 
 package org.powertac.accounting;
 
-import static org.powertac.util.MessageDispatcher.dispatch;
-
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -36,6 +35,7 @@ import org.powertac.common.repo.BrokerRepo;
 import org.powertac.common.repo.RandomSeedRepo;
 import org.powertac.common.repo.TariffRepo;
 import org.powertac.common.repo.TimeslotRepo;
+import org.powertac.util.HandlerTable;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -76,6 +76,15 @@ public class AccountingService
   private ServerConfiguration serverProps;
 
   private ArrayList<BrokerTransaction> pendingTransactions;
+  private TariffLedger tariffLedger;
+
+  // per-thread buffers for tariff transactions posted by customer models
+  // stepping in parallel
+  private ThreadLocal<List<Runnable>> transactionBuffer =
+      new ThreadLocal<List<Runnable>>();
+  // processTransaction() handles by transaction class
+  private HandlerTable transactionHandlers =
+      new HandlerTable("processTransaction");
   private DistributionReport distributionReport;
   private double totalConsumption;
   private double totalProduction;
@@ -102,6 +111,7 @@ public class AccountingService
   {
     super();
     pendingTransactions = new ArrayList<BrokerTransaction>();
+    tariffLedger = new TariffLedger();
     pendingMarketTransactions =
             new HashMap<Timeslot, ArrayList<MarketTransaction>>();
   }
@@ -110,6 +120,7 @@ public class AccountingService
   public String initialize (Competition competition, List<String> completedInits)
   {
     pendingTransactions.clear();
+    tariffLedger.clear();
     pendingMarketTransactions.clear();
     super.init();
     bankInterest = null;
@@ -155,13 +166,31 @@ public class AccountingService
   }
 
   @Override
-  public synchronized TariffTransaction 
+  public TariffTransaction 
   addTariffTransaction(TariffTransaction.Type txType,
                        Tariff tariff,
                        CustomerInfo customer,
                        int customerCount,
                        double kWh,
                        double charge) 
+  {
+    List<Runnable> buffer = transactionBuffer.get();
+    if (null != buffer) {
+      buffer.add(() -> addTariffTransaction(txType, tariff, customer,
+                                            customerCount, kWh, charge));
+      return null;
+    }
+    return postTariffTransaction(txType, tariff, customer,
+                                 customerCount, kWh, charge);
+  }
+
+  private synchronized TariffTransaction
+  postTariffTransaction (TariffTransaction.Type txType,
+                         Tariff tariff,
+                         CustomerInfo customer,
+                         int customerCount,
+                         double kWh,
+                         double charge)
   {
     TariffTransaction ttx =
             txFactory.makeTariffTransaction(tariff.getBroker(), txType, 
@@ -171,13 +200,28 @@ public class AccountingService
     if (null == ttx.getTariffSpec())
       log.error("Null tariff spec in addTariffTx()");
     pendingTransactions.add(ttx);
+    tariffLedger.add(ttx);
     return ttx;
   }
 
   @Override
-  public synchronized TariffTransaction
+  public TariffTransaction
   addRegulationTransaction (Tariff tariff, CustomerInfo customer,
                             int customerCount, double kWh, double charge)
+  {
+    List<Runnable> buffer = transactionBuffer.get();
+    if (null != buffer) {
+      buffer.add(() -> addRegulationTransaction(tariff, customer,
+                                                customerCount, kWh, charge));
+      return null;
+    }
+    return postRegulationTransaction(tariff, customer,
+                                     customerCount, kWh, charge);
+  }
+
+  private synchronized TariffTransaction
+  postRegulationTransaction (Tariff tariff, CustomerInfo customer,
+                             int customerCount, double kWh, double charge)
   {
     TariffTransaction.Type txType = TariffTransaction.Type.CONSUME;
     if (kWh > 0.0)
@@ -190,9 +234,28 @@ public class AccountingService
     if (null == ttx.getTariffSpec())
       log.error("Null tariff spec in addTariffTx()");
     pendingTransactions.add(ttx);
+    tariffLedger.add(ttx);
     return ttx;
   }
 
+  @Override
+  public void startTransactionBuffer ()
+  {
+    transactionBuffer.set(new ArrayList<Runnable>());
+  }
+
+  @Override
+  public List<Runnable> stopTransactionBuffer ()
+  {
+    List<Runnable> result = transactionBuffer.get();
+    transactionBuffer.remove();
+    if (null == result) {
+      log.warn("stopTransactionBuffer() without startTransactionBuffer()");
+      result = new ArrayList<Runnable>();
+    }
+    return result;
+  }
+
   @Override
   public synchronized DistributionTransaction
   addDistributionTransaction (Broker broker, int nSmall, int nLarge,
@@ -247,18 +310,7 @@ public class AccountingService
   @Override
   public synchronized double getCurrentNetLoad (Broker broker) 
   {
-    double netLoad = 0.0;
-    for (BrokerTransaction btx : pendingTransactions) {
-      if (btx instanceof TariffTransaction) {
-        TariffTransaction ttx = (TariffTransaction)btx;
-        if (ttx.getBroker().getUsername().equals(broker.getUsername())) {
-          if (ttx.getTxType() == TariffTransaction.Type.CONSUME ||
-              ttx.getTxType() == TariffTransaction.Type.PRODUCE) {
-            netLoad += ttx.getKWh();
-          }
-        }
-      }
-    }
+    double netLoad = tariffLedger.getNetLoad(broker);
     log.info("net load for " + broker.getUsername() + ": " + netLoad);
     return netLoad;
   }
@@ -268,28 +320,10 @@ public class AccountingService
    * customers.
    */
   @Override
-  public Map<Broker, Map<Type, Double>> getCurrentSupplyDemandByBroker ()
-  {
-    HashMap<Broker, Map<Type, Double>> result =
-            new HashMap<Broker, Map<Type, Double>>();
-    for (BrokerTransaction btx : pendingTransactions) {
-      if (btx instanceof TariffTransaction) {
-        TariffTransaction ttx = (TariffTransaction)btx;
-        Broker broker = ttx.getBroker();
-        Map<Type, Double> record = result.get(broker);
-        if (null == record) {
-          record = new HashMap<Type, Double>();
-          result.put(broker, record);
-          record.put(Type.CONSUME, 0.0);
-          record.put(Type.PRODUCE, 0.0);
-        }
-        if (ttx.getTxType() == Type.CONSUME)
-          record.put(Type.CONSUME, record.get(Type.CONSUME) + ttx.getKWh());
-        else if (ttx.getTxType() == Type.PRODUCE)
-          record.put(Type.PRODUCE, record.get(Type.PRODUCE) + ttx.getKWh());
-      }
-    }
-    return result;
+  public synchronized Map<Broker, Map<Type, Double>>
+  getCurrentSupplyDemandByBroker ()
+  {
+    return tariffLedger.getSupplyDemandByBroker();
   }
 
   /**
@@ -344,8 +378,7 @@ public class AccountingService
       }
       brokerMsg.get(tx.getBroker()).add(tx);
       // process transactions by method lookup
-      dispatch(this, "processTransaction", 
-               tx, brokerMsg.get(tx.getBroker()));
+      transactionHandlers.dispatch(this, tx, brokerMsg.get(tx.getBroker()));
     }
     // handle the backed-up mkt transactions for this timeslot
     handleMarketTransactionsForTimeslot(timeslotRepo.currentTimeslot());
@@ -387,6 +420,7 @@ public class AccountingService
     ArrayList<BrokerTransaction> result = 
       new ArrayList<BrokerTransaction>(pendingTransactions);
     pendingTransactions.clear();
+    tariffLedger.clear();
     return result;
   }
 
@@ -554,4 +588,83 @@ public class AccountingService
   {
     bankInterest = interest;
   }
+
+  /**
+   * Running per-broker totals of consumption and production among the
+   * pending tariff transactions. Brokers are assigned slots in the order
+   * their first tariff transaction arrives, and the totals are accumulated
+   * in the same order as a scan of the pending list, so the results match
+   * a full scan exactly.
+   */
+  static class TariffLedger
+  {
+    private HashMap<String, Integer> slots = new HashMap<String, Integer>();
+    private Broker[] brokers = new Broker[8];
+    private double[] consume = new double[8];
+    private double[] produce = new double[8];
+    private double[] net = new double[8];
+    private int size = 0;
+
+    void add (TariffTransaction ttx)
+    {
+      Broker broker = ttx.getBroker();
+      Integer slot = slots.get(broker.getUsername());
+      if (null == slot) {
+        slot = addSlot(broker);
+      }
+      if (ttx.getTxType() == Type.CONSUME) {
+        consume[slot] += ttx.getKWh();
+        net[slot] += ttx.getKWh();
+      }
+      else if (ttx.getTxType() == Type.PRODUCE) {
+        produce[slot] += ttx.getKWh();
+        net[slot] += ttx.getKWh();
+      }
+    }
+
+    private int addSlot (Broker broker)
+    {
+      if (size == brokers.length) {
+        brokers = Arrays.copyOf(brokers, size * 2);
+        consume = Arrays.copyOf(consume, size * 2);
+        produce = Arrays.copyOf(produce, size * 2);
+        net = Arrays.copyOf(net, size * 2);
+      }
+      int slot = size++;
+      slots.put(broker.getUsername(), slot);
+      brokers[slot] = broker;
+      consume[slot] = 0.0;
+      produce[slot] = 0.0;
+      net[slot] = 0.0;
+      return slot;
+    }
+
+    double getNetLoad (Broker broker)
+    {
+      Integer slot = slots.get(broker.getUsername());
+      if (null == slot)
+        return 0.0;
+      return net[slot];
+    }
+
+    Map<Broker, Map<Type, Double>> getSupplyDemandByBroker ()
+    {
+      HashMap<Broker, Map<Type, Double>> result =
+          new HashMap<Broker, Map<Type, Double>>();
+      for (int slot = 0; slot < size; slot++) {
+        Map<Type, Double> record = new HashMap<Type, Double>();
+        record.put(Type.CONSUME, consume[slot]);
+        record.put(Type.PRODUCE, produce[slot]);
+        result.put(brokers[slot], record);
+      }
+      return result;
+    }
+
+    void clear ()
+    {
+      slots.clear();
+      Arrays.fill(brokers, 0, size, null);
+      size = 0;
+    }
+  }
 }
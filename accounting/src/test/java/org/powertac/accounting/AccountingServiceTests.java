@@ -28,10 +28,13 @@ import java.util.Map;
 import java.util.TreeMap;
 
 import org.apache.commons.configuration2.MapConfiguration;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.Instant;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -60,6 +63,9 @@ import org.springframework.test.context.support.DirtiesContextTestExecutionListe
 })
 public class AccountingServiceTests
 {
+  static private Logger log =
+      LogManager.getLogger(AccountingServiceTests.class.getName());
+
   @Autowired
   private TimeService timeService; // dependency injection
   
@@ -319,8 +325,47 @@ public class AccountingServiceTests
       tariffJ1, customerInfo2, 12, -120.0, 8.4);
     assertEquals((-77.0 - 83.0 + 55.0), accountingService.getCurrentNetLoad(bob), 1e-6, "correct net load for Bob");
     assertEquals(-120.0, accountingService.getCurrentNetLoad(jim), 1e-6, "correct net load for Jim");
+    // regulation counts toward net load
+    accountingService.addRegulationTransaction(tariffJ1, customerInfo2,
+                                               12, 20.0, -1.4);
+    assertEquals(-100.0, accountingService.getCurrentNetLoad(jim), 1e-6, "regulation included for Jim");
+  }
+
+  @Test
+  public void testCurrentNetLoadReset ()
+  {
+    initializeService();
+    accountingService.setBankInterest(0.12);
+    accountingService.addTariffTransaction(TariffTransaction.Type.CONSUME,
+      tariffB1, customerInfo1, 7, -77.0, 7.7);
+    assertEquals(0.0, accountingService.getCurrentNetLoad(jim), 1e-6, "no load for Jim");
+    assertEquals(1, accountingService.getCurrentSupplyDemandByBroker().size(), "one broker in map");
+    accountingService.activate(timeService.getCurrentTime(), 3);
+    assertEquals(0.0, accountingService.getCurrentNetLoad(bob), 1e-6, "no load for Bob after activation");
+    assertEquals(0, accountingService.getCurrentSupplyDemandByBroker().size(), "empty map after activation");
   }
   
+  @Test
+  public void testTransactionBuffer ()
+  {
+    initializeService();
+    accountingService.startTransactionBuffer();
+    assertNull(accountingService.addTariffTransaction(TariffTransaction.Type.CONSUME,
+      tariffB1, customerInfo1, 7, -77.0, 7.7), "buffered tx not created");
+    accountingService.addRegulationTransaction(tariffB1, customerInfo1,
+                                               7, 10.0, -1.0);
+    assertEquals(0, accountingService.getPendingTransactions().size(), "nothing pending");
+    List<Runnable> postings = accountingService.stopTransactionBuffer();
+    assertEquals(2, postings.size(), "two postings");
+    for (Runnable posting : postings)
+      posting.run();
+    List<BrokerTransaction> pending = accountingService.getPendingTransactions();
+    assertEquals(2, pending.size(), "two pending");
+    assertEquals(-77.0, ((TariffTransaction)pending.get(0)).getKWh(), 1e-6, "consumption first");
+    assertTrue(((TariffTransaction)pending.get(1)).isRegulation(), "regulation second");
+    assertEquals(-67.0, accountingService.getCurrentNetLoad(bob), 1e-6, "net load for Bob");
+  }
+
   @Test
   public void testCurrentSupplyDemand ()
   {
@@ -347,6 +392,144 @@ public class AccountingServiceTests
     assertEquals(-120.0, bsd.get(TariffTransaction.Type.CONSUME), 1e-6, "correct consumption for Jim");
     assertEquals(0.0, bsd.get(TariffTransaction.Type.PRODUCE), 1e-6, "correct production for Jim");
   }
+
+  // Times the balancing-market queries for one timeslot, a
+  // getCurrentNetLoad() for each of 20 brokers plus
+  // getCurrentSupplyDemandByBroker(), with 10k customers spread across the
+  // brokers' tariffs. The TariffLedger is compared with the scan of the
+  // pending transactions it replaced; the ledger's upkeep as transactions
+  // arrive is reported separately. The first half of the rounds are
+  // warm-up. Run with -Pbenchmark.
+  @Test
+  @Tag("benchmark")
+  public void benchmarkNetLoad ()
+  {
+    initializeService();
+    int brokerCount = 20;
+    int customerCount = 10000;
+    Broker[] brokers = new Broker[brokerCount];
+    Tariff[] tariffs = new Tariff[brokerCount];
+    for (int b = 0; b < brokerCount; b++) {
+      brokers[b] = new Broker("broker" + b);
+      brokerRepo.add(brokers[b]);
+      TariffSpecification spec =
+          new TariffSpecification(brokers[b], PowerType.CONSUMPTION)
+              .addRate(new Rate().withValue(0.1 + b * 0.001));
+      tariffRepo.addSpecification(spec);
+      tariffs[b] = new Tariff(spec);
+      tariffs[b].init();
+      tariffRepo.addTariff(tariffs[b]);
+    }
+    // one usage transaction per customer, every fifth one a producer
+    for (int c = 0; c < customerCount; c++) {
+      CustomerInfo info = new CustomerInfo("customer" + c, 10)
+          .withPowerType(PowerType.CONSUMPTION);
+      if (0 == c % 5)
+        accountingService.addTariffTransaction(TariffTransaction.Type.PRODUCE,
+          tariffs[c % brokerCount], info, 10, 5.0 + c % 7, -0.5);
+      else
+        accountingService.addTariffTransaction(TariffTransaction.Type.CONSUME,
+          tariffs[c % brokerCount], info, 10, -10.0 - c % 11, 1.2);
+    }
+    List<TariffTransaction> pending =
+        accountingService.getPendingTariffTransactions();
+    assertEquals(customerCount, pending.size(), "all pending");
+
+    int rounds = 20;
+    int timeslots = 10;
+    long upkeepNanos = 0l;
+    long ledgerNanos = 0l;
+    long scanNanos = 0l;
+    double ledgerSum = 0.0;
+    double scanSum = 0.0;
+    for (int round = 0; round < rounds; round++) {
+      long start = System.nanoTime();
+      AccountingService.TariffLedger ledger = null;
+      for (int t = 0; t < timeslots; t++) {
+        ledger = new AccountingService.TariffLedger();
+        for (TariffTransaction ttx : pending) {
+          ledger.add(ttx);
+        }
+      }
+      long filled = System.nanoTime();
+      for (int t = 0; t < timeslots; t++) {
+        for (Broker broker : brokers) {
+          ledgerSum += ledger.getNetLoad(broker);
+        }
+        ledgerSum += ledger.getSupplyDemandByBroker()
+            .get(brokers[t]).get(TariffTransaction.Type.PRODUCE);
+      }
+      long queried = System.nanoTime();
+      for (int t = 0; t < timeslots; t++) {
+        for (Broker broker : brokers) {
+          scanSum += scanNetLoad(pending, broker);
+        }
+        scanSum += scanSupplyDemand(pending)
+            .get(brokers[t]).get(TariffTransaction.Type.PRODUCE);
+      }
+      long end = System.nanoTime();
+      if (round >= rounds / 2) {
+        upkeepNanos += filled - start;
+        ledgerNanos += queried - filled;
+        scanNanos += end - queried;
+      }
+    }
+    // using the results also keeps the work from being optimized away;
+    // the ledger adds in list order, so the totals match exactly
+    assertEquals(scanSum, ledgerSum, 0.0, "same totals");
+    for (Broker broker : brokers) {
+      assertEquals(scanNetLoad(pending, broker),
+                   accountingService.getCurrentNetLoad(broker), 0.0,
+                   "service net load");
+    }
+    double count = rounds / 2 * (double) timeslots;
+    log.info(String.format("net load for %d customers, %d brokers:"
+                           + " scan %.1f us, ledger %.1f us per timeslot,"
+                           + " ledger upkeep %.1f us per timeslot",
+                           customerCount, brokerCount,
+                           scanNanos / count / 1000.0,
+                           ledgerNanos / count / 1000.0,
+                           upkeepNanos / count / 1000.0));
+  }
+
+  // net load by scanning the pending list, as before the ledger
+  private double scanNetLoad (List<TariffTransaction> pending, Broker broker)
+  {
+    double netLoad = 0.0;
+    for (TariffTransaction ttx : pending) {
+      if (ttx.getBroker().getUsername().equals(broker.getUsername())) {
+        if (ttx.getTxType() == TariffTransaction.Type.CONSUME ||
+            ttx.getTxType() == TariffTransaction.Type.PRODUCE) {
+          netLoad += ttx.getKWh();
+        }
+      }
+    }
+    return netLoad;
+  }
+
+  // supply and demand by scanning the pending list, as before the ledger
+  private Map<Broker, Map<TariffTransaction.Type, Double>>
+  scanSupplyDemand (List<TariffTransaction> pending)
+  {
+    HashMap<Broker, Map<TariffTransaction.Type, Double>> result =
+        new HashMap<Broker, Map<TariffTransaction.Type, Double>>();
+    for (TariffTransaction ttx : pending) {
+      Map<TariffTransaction.Type, Double> record = result.get(ttx.getBroker());
+      if (null == record) {
+        record = new HashMap<TariffTransaction.Type, Double>();
+        result.put(ttx.getBroker(), record);
+        record.put(TariffTransaction.Type.CONSUME, 0.0);
+        record.put(TariffTransaction.Type.PRODUCE, 0.0);
+      }
+      if (ttx.getTxType() == TariffTransaction.Type.CONSUME)
+        record.put(TariffTransaction.Type.CONSUME,
+                   record.get(TariffTransaction.Type.CONSUME) + ttx.getKWh());
+      else if (ttx.getTxType() == TariffTransaction.Type.PRODUCE)
+        record.put(TariffTransaction.Type.PRODUCE,
+                   record.get(TariffTransaction.Type.PRODUCE) + ttx.getKWh());
+    }
+    return result;
+  }
   
   // create and test market transactions
   @Test
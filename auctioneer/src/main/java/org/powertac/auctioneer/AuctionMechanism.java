@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.auctioneer;
+
+/**
+ * Clearing rule for the wholesale market. The AuctionService files orders
+ * in price-priority order as they arrive and hands each timeslot's books,
+ * already in that order, to its mechanism, which matches bids with asks
+ * and sets the clearing price. The service then posts the resulting trades
+ * and sends the orderbook and cleared trade, so a mechanism has no side
+ * effects outside the MarketClearing it is given. Mechanisms may be called concurrently for
+ * different timeslots.
+ * <p>
+ * Mechanisms are found with java.util.ServiceLoader, and the one whose
+ * name matches the auctioneer's auctionMechanism setting is used.</p>
+ */
+public interface AuctionMechanism
+{
+  /**
+   * Returns the name used to select this mechanism in the server
+   * configuration.
+   */
+  public String getName ();
+
+  /**
+   * Matches the bids and asks in the given clearing, recording executions
+   * in its order lists, its trades, its clearing price, and the first bid
+   * and ask that are not fully executed. Pricing parameters are taken from
+   * the auctioneer.
+   */
+  public void clear (MarketClearing clearing, AuctionService auctioneer);
+}
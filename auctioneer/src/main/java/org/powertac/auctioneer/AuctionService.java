@@ -40,9 +40,13 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * This is the wholesale day-ahead market. Energy is traded in future timeslots by
@@ -65,6 +69,23 @@ import java.util.List;
  * to the limit order. If there are no limit orders in the match, then the
  * market clears at a fixed default clearing price. It's probably best if brokers
  * do not allow this to happen.</p>
+ * <p>
+ * Each timeslot's orders are matched independently of the others. When
+ * parallelClearing is enabled, the timeslots are matched concurrently, and
+ * the resulting transactions, orderbooks, and cleared trades are posted in
+ * timeslot order once all are done, so the results are the same as
+ * sequential clearing.</p>
+ * <p>
+ * The matching and pricing rule is supplied by an AuctionMechanism, chosen
+ * by name through the auctionMechanism setting. The standard mechanism,
+ * "uniform", implements the rule described above.</p>
+ * <p>
+ * Incoming orders are validated and filed in per-timeslot books as they
+ * arrive. Each book has its own lock, so orders for different timeslots do
+ * not contend, and keeps its bids and asks in price-priority order, so
+ * filing an order takes logarithmic time under the lock. When a book is
+ * closed for clearing, its orders are laid out in that order in linear time,
+ * and clearing only has to match them.</p>
  * @author John Collins
  */
 @Service
@@ -125,25 +146,62 @@ public class AuctionService
       description = "maximum market position at minimum leadtime")
   private double mktPosnLimitFinal = 143.0;
 
+  @ConfigurableValue(valueType = "Boolean",
+      description = "Match the orders for open timeslots in parallel")
+  private boolean parallelClearing = false;
+
+  @ConfigurableValue(valueType = "Integer",
+      description = "Maximum threads for parallel clearing, 0 for one per processor")
+  private int clearingThreads = 0;
+
+  private ForkJoinPool clearingPool = null;
+
+  @ConfigurableValue(valueType = "String",
+      description = "Name of the AuctionMechanism used to clear the market")
+  private String auctionMechanism = "uniform";
+
+  private AuctionMechanism mechanism = null;
+
   private double epsilon = 1e-6; // position balance less than this is ignored
 
-  private List<Order> incoming;
+  // books of orders received since the last clearing
+  private ConcurrentHashMap<Timeslot, TimeslotBook> books;
 
-  private HashMap<Timeslot, ArrayList<OrderWrapper>> sortedBids;
-  private HashMap<Timeslot, ArrayList<OrderWrapper>> sortedAsks;
+  // brokers that have sent orders; order lists refer to them by index
+  private volatile Broker[] brokerTable;
+  private ConcurrentHashMap<Broker, Integer> brokerIndex;
+
+  private HashMap<Timeslot, OrderList> sortedBids;
+  private HashMap<Timeslot, OrderList> sortedAsks;
   private List<Timeslot> enabledTimeslots = null;
 
   public AuctionService ()
   {
     super();
-    incoming = new ArrayList<Order>();
+    books = new ConcurrentHashMap<Timeslot, TimeslotBook>();
+    brokerTable = new Broker[0];
+    brokerIndex = new ConcurrentHashMap<Broker, Integer>();
   }
 
   @Override
   public String initialize (Competition competition, List<String> completedInits)
   {
-    incoming.clear();
+    books.clear();
+    brokerTable = new Broker[0];
+    brokerIndex.clear();
     serverProps.configureMe(this);
+    if (null != clearingPool) {
+      clearingPool.shutdown();
+      clearingPool = null;
+    }
+    if (parallelClearing) {
+      int threads = clearingThreads;
+      if (threads <= 0)
+        threads = Runtime.getRuntime().availableProcessors();
+      log.info("Parallel clearing with {} threads", threads);
+      clearingPool = new ForkJoinPool(threads);
+    }
+    mechanism = findMechanism(auctionMechanism);
     brokerProxyService.registerBrokerMessageListener(this, Order.class);
     super.init();
     serverProps.publishConfiguration(this);
@@ -165,22 +223,80 @@ public class AuctionService
     return defaultClearingPrice;
   }
 
+  public double getSellerMaxMargin ()
+  {
+    return sellerMaxMargin;
+  }
+
+  /**
+   * Returns the quantity below which an order is considered fully
+   * executed.
+   */
+  public double getEpsilon ()
+  {
+    return epsilon;
+  }
+
+  /**
+   * Returns the mechanism used to clear the market.
+   */
+  public AuctionMechanism getAuctionMechanism ()
+  {
+    return mechanism;
+  }
+
+  // Finds the mechanism with the given name among those available to
+  // the ServiceLoader, falling back to the standard one.
+  private AuctionMechanism findMechanism (String name)
+  {
+    for (AuctionMechanism candidate :
+         ServiceLoader.load(AuctionMechanism.class)) {
+      if (candidate.getName().equals(name)) {
+        log.info("Using auction mechanism {}", name);
+        return candidate;
+      }
+    }
+    log.error("Auction mechanism {} not found, using uniform", name);
+    return new UniformPriceMechanism();
+  }
+
+  // test support -- orders received since the last clearing
   List<Order> getIncoming ()
   {
-    return incoming;
+    List<Order> result = new ArrayList<Order>();
+    for (TimeslotBook book : books.values()) {
+      synchronized(book) {
+        for (int i = 0; i < book.bids.size(); i++)
+          result.add(book.bids.orders[i]);
+        for (int i = 0; i < book.asks.size(); i++)
+          result.add(book.asks.orders[i]);
+      }
+    }
+    return result;
   }
 
   // ----------------- Broker message API --------------------
   /**
-   * Receives, validates, and queues an incoming Order message. Processing the incoming
-   * marketOrders happens during Phase 2 in each timeslot.
+   * Receives, validates, and files an incoming Order message in the
+   * book for its timeslot. Clearing the books happens during Phase 2 in
+   * each timeslot.
    */
   public void handleMessage (Order msg)
   {
     if (validateOrder(msg)) {
-      // queue incoming message
-      synchronized(incoming) {
-        incoming.add(msg);
+      if (0.0 == msg.getMWh()) {
+        log.info("Ignoring invalid order " + msg.getId() +
+                 " from " + msg.getBroker().getUsername());
+        return;
+      }
+      int index = getBrokerIndex(msg.getBroker());
+      // a book that is closed for clearing takes no more orders; retry
+      // with the fresh book for the next clearing
+      boolean added = false;
+      while (!added) {
+        TimeslotBook book =
+            books.computeIfAbsent(msg.getTimeslot(), ts -> new TimeslotBook());
+        added = book.add(msg, index);
       }
       log.info("Received " + msg.toString());
     }
@@ -223,38 +339,19 @@ public class AuctionService
   public void activate (Instant time, int phaseNumber)
   {
     log.info("Activate");
-    // Grab all the incoming marketOrders and sort them by price and timeslot
-    ArrayList<OrderWrapper> orders;
-    synchronized(incoming) {
-      orders = new ArrayList<OrderWrapper>();
-      for (Order order : incoming) {
-        OrderWrapper sw = new OrderWrapper(order);
-        if (sw.isValid()) {
-          // ignore invalid orders
-          orders.add(new OrderWrapper(order));
-        }
-        else {
-          log.info("Ignoring invalid order " + order.getId() +
-                   " from " + order.getBroker().getUsername());
-        }
-      }
-      incoming.clear();
-    }
-    sortedAsks = new HashMap<Timeslot, ArrayList<OrderWrapper>>();
-    sortedBids = new HashMap<Timeslot, ArrayList<OrderWrapper>>();
-    // add bids and asks to the appropriate lists
-    for (OrderWrapper sw : orders) {
-      if (sw.isBuyOrder())
-        addBid(sw);
-      else
-        addAsk(sw);
-    }
-    // then sort the lists
-    for (ArrayList<OrderWrapper> list : sortedAsks.values()) {
-      Collections.sort(list);
-    }
-    for (ArrayList<OrderWrapper> list : sortedBids.values()) {
-      Collections.sort(list);
+    // Take and close the books received since the last clearing. Orders
+    // arriving from here on go into new books for the next clearing.
+    sortedAsks = new HashMap<Timeslot, OrderList>();
+    sortedBids = new HashMap<Timeslot, OrderList>();
+    for (Timeslot timeslot : books.keySet()) {
+      TimeslotBook book = books.remove(timeslot);
+      if (null == book)
+        continue;
+      book.close();
+      if (!book.bids.isEmpty())
+        sortedBids.put(timeslot, book.bids);
+      if (!book.asks.isEmpty())
+        sortedAsks.put(timeslot, book.asks);
     }
     log.debug("activate: asks in " + sortedAsks.size() + " timeslots, bids in " +
         sortedBids.size() + " timeslots");
@@ -265,8 +362,23 @@ public class AuctionService
       enabledTimeslots = timeslotRepo.enabledTimeslots();
     }
     collectAskRanges();
-    for (Timeslot timeslot : enabledTimeslots) {
-      clearTimeslot(timeslot);
+    if (null == clearingPool || enabledTimeslots.size() < 2) {
+      for (Timeslot timeslot : enabledTimeslots) {
+        clearTimeslot(timeslot);
+      }
+    }
+    else {
+      List<ForkJoinTask<MarketClearing>> tasks =
+          new ArrayList<ForkJoinTask<MarketClearing>>();
+      for (Timeslot timeslot : enabledTimeslots) {
+        tasks.add(clearingPool.submit(() -> matchTimeslot(timeslot)));
+      }
+      // post results in timeslot order
+      for (ForkJoinTask<MarketClearing> task : tasks) {
+        MarketClearing result = task.join();
+        if (null != result)
+          postClearing(result);
+      }
     }
 
     // save a copy of the current set of enabled timeslots for the next clearing
@@ -275,171 +387,136 @@ public class AuctionService
 
   private void clearTimeslot (Timeslot timeslot)
   {
-    List<OrderWrapper> bids = sortedBids.get(timeslot);
-    List<OrderWrapper> asks = sortedAsks.get(timeslot);
+    MarketClearing result = matchTimeslot(timeslot);
+    if (null != result)
+      postClearing(result);
+  }
+
+  // Matches the bids and asks for a single timeslot and computes the
+  // clearing price. This touches nothing outside the timeslot's own orders,
+  // so timeslots can be matched concurrently. Returns null if the timeslot
+  // has no orders.
+  private MarketClearing matchTimeslot (Timeslot timeslot)
+  {
+    OrderList bids = sortedBids.get(timeslot);
+    OrderList asks = sortedAsks.get(timeslot);
+    if (null == bids && null == asks)
+      return null;
     if (null != bids)
       constrainMarketPositions(bids, timeslot.getSerialNumber());
-    if (null != bids || null != asks) {
-      // we have bids and/or asks to match up
-      if (bids != null && asks != null)
-        log.info("Timeslot " + timeslot.getSerialNumber() + 
-                 ": Clearing " + asks.size() + " asks and " +
-                 bids.size() + " bids");
-      Double bidPrice = 0.0;
-      Double askPrice = 0.0;
-      double totalMWh = 0.0;
-      ArrayList<PendingTrade> pendingTrades = new ArrayList<PendingTrade>();
-      while (bids != null && !bids.isEmpty() &&
-             asks != null && !asks.isEmpty() &&
-             (bids.get(0).isMarketOrder() ||
-                 asks.get(0).isMarketOrder() ||
-                 -bids.get(0).getLimitPrice() >= asks.get(0).getLimitPrice())) {
-        // transfer from ask to bid, keep track of qty
-        OrderWrapper bid = bids.get(0);
-        bidPrice = bid.getLimitPrice();
-        OrderWrapper ask = asks.get(0);
-        askPrice = ask.getLimitPrice();
-        // amount to transfer is minimum of remaining bid qty and remaining ask qty
-        log.debug("ask: " + ask.executionMWh + " used out of " + ask.getMWh() +
-                  "; bid: " + bid.executionMWh + " used out of " + bid.getMWh());
-        double transfer = Math.min(bid.getMWh() - bid.executionMWh,
-                                   -ask.getMWh() + ask.executionMWh);
-        if (transfer > 0.0) {
-          log.debug("transfer " + transfer + " from " + 
-                    ask.getBroker().getUsername() + " at " + askPrice + " to " +
-                    bid.getBroker().getUsername() + " at " + bidPrice);
-          totalMWh += transfer;
-          pendingTrades.add(new PendingTrade(ask.getBroker(), bid.getBroker(), transfer));
-          bid.executionMWh += transfer;
-          ask.executionMWh -= transfer;
-        }
-        log.debug("bid remaining=" + (bid.getMWh() - bid.executionMWh));
-        log.debug("ask remaining=" + (ask.getMWh() - ask.executionMWh));
-        if (Math.abs(bid.getMWh() - bid.executionMWh) <= epsilon)
-          bids.remove(bid);
-        if (Math.abs(ask.getMWh() - ask.executionMWh) <= epsilon)
-          asks.remove(ask);
-      }
-      double clearingPrice;
-      if (bidPrice != null) {
-        if (askPrice != null) {
-          clearingPrice =
-              askPrice + sellerSurplusRatio * (-bidPrice - askPrice);
-          clearingPrice =
-              Math.min(clearingPrice, askPrice * (1.0 + sellerMaxMargin));
-        }
-        else {
-          // ask price is null
-          clearingPrice = -bidPrice / (1.0 + defaultMargin);
-          log.info("market clears at " + clearingPrice + " with null ask price");
-        }
-      }
-      else {
-        // bid price is null
-        if (askPrice != null) {
-          clearingPrice = askPrice * (1.0 + defaultMargin);
-          log.info("market clears at " + clearingPrice + " with null bid price");
-        }
-        else {
-          // both bid and ask are null
-          clearingPrice = defaultClearingPrice;
-          log.info("market clears at default clearing price"  + clearingPrice);
-        }
-      }
-      for (PendingTrade trade : pendingTrades) {
-        accountingService.addMarketTransaction(trade.from, timeslot,
-                                               -trade.mWh, clearingPrice);
-        accountingService.addMarketTransaction(trade.to, timeslot,
-                                               trade.mWh, -clearingPrice);
-      }
-      // create the orderbook and cleared-trade, send to brokers
-      Orderbook orderbook = 
-          orderbookRepo.makeOrderbook(timeslot,
-                                      (pendingTrades.size() > 0
-                                          ? clearingPrice : null));
-      if (bids != null) {
-        for (OrderWrapper bid : bids) {
-          orderbook.addBid(new OrderbookOrder(bid.getMWh() - bid.executionMWh,
-                                              bid.getLimitPrice()));
-        }
-      }
-      if (asks != null) {
-        for (OrderWrapper ask : asks) {
-          orderbook.addAsk(new OrderbookOrder(ask.getMWh() - ask.executionMWh,
-                                              ask.getLimitPrice()));
-        }
-      }
-      brokerProxyService.broadcastMessage(orderbook);
-      if (totalMWh > 0.0) {
-        ClearedTrade trade = new ClearedTrade(timeslot, totalMWh, clearingPrice,
-                                              timeService.getCurrentTime());
-        log.info(trade.toString());
-        brokerProxyService.broadcastMessage(trade);
-      }
+    if (bids != null && asks != null)
+      log.info("Timeslot " + timeslot.getSerialNumber() + 
+               ": Clearing " + asks.size() + " asks and " +
+               bids.size() + " bids");
+    MarketClearing result =
+        new MarketClearing(timeslot,
+                           (null == bids) ? new OrderList(0) : bids,
+                           (null == asks) ? new OrderList(0) : asks);
+    mechanism.clear(result, this);
+    return result;
+  }
+
+  // Posts the transactions for a matched timeslot, and sends the orderbook
+  // and cleared trade to brokers.
+  private void postClearing (MarketClearing result)
+  {
+    Timeslot timeslot = result.getTimeslot();
+    double clearingPrice = result.getClearingPrice();
+    Broker[] brokers = brokerTable;
+    for (int i = 0; i < result.getTradeCount(); i++) {
+      double mWh = result.getTradeMWh(i);
+      accountingService.addMarketTransaction(brokers[result.getSeller(i)],
+                                             timeslot, -mWh, clearingPrice);
+      accountingService.addMarketTransaction(brokers[result.getBuyer(i)],
+                                             timeslot, mWh, -clearingPrice);
+    }
+    // create the orderbook and cleared-trade, send to brokers
+    Orderbook orderbook = 
+        orderbookRepo.makeOrderbook(timeslot,
+                                    (result.getTradeCount() > 0
+                                        ? clearingPrice : null));
+    OrderList bids = result.getBids();
+    for (int i = result.getFirstBid(); i < bids.size(); i++) {
+      orderbook.addBid(new OrderbookOrder(bids.remaining(i),
+                                          bids.getLimitPrice(i)));
+    }
+    OrderList asks = result.getAsks();
+    for (int i = result.getFirstAsk(); i < asks.size(); i++) {
+      orderbook.addAsk(new OrderbookOrder(asks.remaining(i),
+                                          asks.getLimitPrice(i)));
+    }
+    brokerProxyService.broadcastMessage(orderbook);
+    if (result.getTotalMWh() > 0.0) {
+      ClearedTrade trade = new ClearedTrade(timeslot, result.getTotalMWh(),
+                                            clearingPrice,
+                                            timeService.getCurrentTime());
+      log.info(trade.toString());
+      brokerProxyService.broadcastMessage(trade);
     }
   }
 
   // Walks through a sorted list of bids, modifying quantities as necessary
   // to impose market position limits.
-  private void constrainMarketPositions (List<OrderWrapper> bids, int ts)
+  private void constrainMarketPositions (OrderList bids, int ts)
   {
-    HashMap<Broker, Double>remainingPosn = new HashMap<>();
-    for (OrderWrapper bid: bids) {
-      if (bid.getBroker().isWholesale())
+    Broker[] brokers = brokerTable;
+    // remaining position by broker index, NaN until computed
+    double[] remainingPosn = new double[brokers.length];
+    Arrays.fill(remainingPosn, Double.NaN);
+    for (int i = 0; i < bids.size(); i++) {
+      int index = bids.broker[i];
+      Broker broker = brokers[index];
+      if (broker.isWholesale())
         // Don't limit wholesale entities
         continue;
-      double remaining = getRemaining(bid.getBroker(), remainingPosn, ts);
-      remaining -= bid.getMWh();
+      if (Double.isNaN(remainingPosn[index]))
+        remainingPosn[index] = getRemaining(broker, ts);
+      double remaining = remainingPosn[index];
+      remaining -= bids.mWh[i];
       if (remaining < 0.0) {
         // adjust bid
-        double qty = bid.getMWh() + remaining;
+        double qty = bids.mWh[i] + remaining;
         remaining = 0.0;
         log.info("Adjusting bid of {} from {} to {}",
-                 bid.getBroker().getUsername(),
-                 bid.getMWh(), qty);
-        bid.setMWh(qty);
+                 broker.getUsername(), bids.mWh[i], qty);
+        bids.mWh[i] = qty;
       }
-      remainingPosn.put(bid.getBroker(), remaining);
+      remainingPosn[index] = remaining;
     }
   }
 
   // Returns remaining position for broker/timeslot
-  private double getRemaining (Broker broker,
-                               HashMap<Broker, Double> posns,
-                               int ts)
-  {
-    Double result = posns.get(broker);
-    if (null == result) {
-      MarketPosition posn = broker.findMarketPositionByTimeslot(ts);
-      // offset is zero for final ts
-      int offset = ts - timeslotRepo.currentSerialNumber();
-      double limit = mktPosnLimitFinal;
-      if (enabledTimeslots.size() > 1) {
-        limit -= (offset * (mktPosnLimitFinal - mktPosnLimitInitial)
-                  / (enabledTimeslots.size() - 1));
-      }
-      result = Math.max(0.0, limit - posn.getOverallBalance());
-      posns.put(broker, result);
-    }
-    return result;
-  }
-
-  private void addAsk (OrderWrapper marketOrder)
+  private double getRemaining (Broker broker, int ts)
   {
-    Timeslot timeslot = marketOrder.getTimeslot();
-    if (sortedAsks.get(timeslot) == null) {
-      sortedAsks.put(timeslot, new ArrayList<OrderWrapper>());
+    MarketPosition posn = broker.findMarketPositionByTimeslot(ts);
+    // offset is zero for final ts
+    int offset = ts - timeslotRepo.currentSerialNumber();
+    double limit = mktPosnLimitFinal;
+    if (enabledTimeslots.size() > 1) {
+      limit -= (offset * (mktPosnLimitFinal - mktPosnLimitInitial)
+                / (enabledTimeslots.size() - 1));
     }
-    sortedAsks.get(timeslot).add(marketOrder);
+    return Math.max(0.0, limit - posn.getOverallBalance());
   }
 
-  private void addBid (OrderWrapper marketOrder)
+  // Returns the index of a broker in the broker table, adding it if needed.
+  // The table is replaced rather than modified, so readers need no lock.
+  private int getBrokerIndex (Broker broker)
   {
-    Timeslot timeslot = marketOrder.getTimeslot();
-    if (sortedBids.get(timeslot) == null) {
-      sortedBids.put(timeslot, new ArrayList<OrderWrapper>());
+    Integer result = brokerIndex.get(broker);
+    if (null == result) {
+      synchronized(brokerIndex) {
+        result = brokerIndex.get(broker);
+        if (null == result) {
+          result = brokerTable.length;
+          Broker[] table = Arrays.copyOf(brokerTable, result + 1);
+          table[result] = broker;
+          brokerTable = table;
+          brokerIndex.put(broker, result);
+        }
+      }
     }
-    sortedBids.get(timeslot).add(marketOrder);
+    return result;
   }
 
   // Collect min/max ask price ranges
@@ -450,26 +527,14 @@ public class AuctionService
     Double[] maxPriceArray = new Double[enabledTimeslots.size()];
     int timeslotIndex = 0;
     for (Timeslot timeslot : enabledTimeslots) {
-      if (null == sortedAsks || null == sortedAsks.get(timeslot)) {
+      OrderList asks = (null == sortedAsks) ? null : sortedAsks.get(timeslot);
+      if (null == asks) {
         minPriceArray[timeslotIndex] = null;
         maxPriceArray[timeslotIndex] = null;
       }
       else {
-        int lastIndex = sortedAsks.get(timeslot).size() - 1;
-        OrderWrapper minAsk = sortedAsks.get(timeslot).get(0);
-        OrderWrapper maxAsk = sortedAsks.get(timeslot).get(lastIndex);
-        if (null == minAsk || minAsk.isMarketOrder()) {
-          minPriceArray[timeslotIndex] = null;
-        }
-        else {
-          minPriceArray[timeslotIndex] = minAsk.getLimitPrice();
-        }
-        if (null == maxAsk || maxAsk.isMarketOrder()) {
-          maxPriceArray[timeslotIndex] = null;
-        }
-        else {
-          maxPriceArray[timeslotIndex] = maxAsk.getLimitPrice();
-        }                  
+        minPriceArray[timeslotIndex] = asks.getLimitPrice(0);
+        maxPriceArray[timeslotIndex] = asks.getLimitPrice(asks.size() - 1);
       }
       timeslotIndex++;
     }
@@ -484,114 +549,34 @@ public class AuctionService
     enabledTimeslots = null;
   }
 
-  class PendingTrade
+  // Bids and asks for one timeslot, kept in priority order as they arrive
+  // and laid out for clearing when the book is closed. The book's monitor guards it until it is
+  // closed; after that it is read only by the clearing thread.
+  class TimeslotBook
   {
-    Broker from;
-    Broker to;
-    double mWh;
-    
-    PendingTrade (Broker from, Broker to, double mWh)
-    {
-      super();
-      this.from = from;
-      this.to = to;
-      this.mWh = mWh;
-    }
-  }
+    OrderList bids = new OrderList();
+    OrderList asks = new OrderList();
+    boolean closed = false;
 
-  class OrderWrapper implements Comparable<OrderWrapper>
-  {
-    Order order;
-    double executionMWh = 0.0;
-    double adjustedMWh = 0.0;
-
-    OrderWrapper(Order order)
+    // Files an order in the bid or ask list. Returns false if the book has
+    // been closed.
+    synchronized boolean add (Order order, int brokerIndex)
     {
-      super();
-      this.order = order;
-      this.adjustedMWh = order.getMWh();
-    }
-
-    // delegation API
-    Broker getBroker ()
-    {
-      return order.getBroker();
-    }
-
-    // valid if qty is non-zero
-    boolean isValid ()
-    {
-      return (adjustedMWh != 0.0);
-    }
-
-    boolean isMarketOrder ()
-    {
-      return (order.getLimitPrice() == null);
-    }
-
-    Double getLimitPrice ()
-    {
-      return order.getLimitPrice();
-    }
-
-    double getMWh ()
-    {
-      return adjustedMWh;
-    }
-
-    void setMWh (double newValue)
-    {
-      adjustedMWh = newValue;
-    }
-
-    Timeslot getTimeslot ()
-    {
-      return order.getTimeslot();
-    }
-
-    boolean isBuyOrder ()
-    {
-      return (order.getMWh() > 0.0);
-    }
-
-    @Override
-    public int compareTo(OrderWrapper o) {
-      OrderWrapper other = (OrderWrapper) o;
-      // negative qty is ask
-      double sign = Math.signum(this.getMWh());
-      Double thisQty = sign * this.getMWh();
-      Double otherQty = sign * other.getMWh();
-      if (this.isMarketOrder())
-        if (other.isMarketOrder())
-          return compareQty(thisQty, otherQty);
-        else
-          return -1;
-      else if (other.isMarketOrder())
-        return 1;
+      if (closed)
+        return false;
+      if (order.getMWh() > 0.0)
+        bids.add(order, brokerIndex);
       else
-        if (this.getLimitPrice().equals(other.getLimitPrice())) {
-          // qty is ascending for negative values, descending for positive values
-          return compareQty(thisQty, otherQty);
-        }
-        else {
-          // price is always ascending
-          return (this.getLimitPrice() > other.getLimitPrice() ? 1 : -1);
-        }
+        asks.add(order, brokerIndex);
+      return true;
     }
 
-    public boolean equals (OrderWrapper other) {
-      if (this.isMarketOrder())
-        if (other.isMarketOrder())
-          return (this.getMWh() == other.getMWh());
-        else
-          return false;
-      return (this.getLimitPrice().equals(other.getLimitPrice())
-              && (this.getMWh() == other.getMWh()));
+    // Takes no more orders, and lays out the bids and asks for clearing.
+    synchronized void close ()
+    {
+      closed = true;
+      bids.close();
+      asks.close();
     }
   }
-
-  private int compareQty (Double thisQty, Double otherQty)
-  {
-    return -thisQty.compareTo(otherQty);
-  }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.auctioneer;
+
+import java.util.Arrays;
+
+import org.powertac.common.Timeslot;
+
+/**
+ * Matching state and outcome for one timeslot: the sorted bids and asks,
+ * the trades found by the AuctionMechanism, and the clearing price. Trades
+ * are held as parallel arrays of broker indices and quantities. Orders
+ * before the first unexecuted bid and ask are fully executed; the rest
+ * are reported in the timeslot's orderbook.
+ */
+public class MarketClearing
+{
+  private Timeslot timeslot;
+  private OrderList bids;
+  private OrderList asks;
+
+  private int[] sellers = new int[8];
+  private int[] buyers = new int[8];
+  private double[] quantities = new double[8];
+  private int tradeCount = 0;
+  private double totalMWh = 0.0;
+
+  private double clearingPrice = 0.0;
+  private int lastBid = -1;
+  private int lastAsk = -1;
+  private int firstBid = 0;
+  private int firstAsk = 0;
+
+  MarketClearing (Timeslot timeslot, OrderList bids, OrderList asks)
+  {
+    super();
+    this.timeslot = timeslot;
+    this.bids = bids;
+    this.asks = asks;
+  }
+
+  public Timeslot getTimeslot ()
+  {
+    return timeslot;
+  }
+
+  /** Bids in priority order. Never null. */
+  public OrderList getBids ()
+  {
+    return bids;
+  }
+
+  /** Asks in priority order. Never null. */
+  public OrderList getAsks ()
+  {
+    return asks;
+  }
+
+  /**
+   * Records a transfer of mWh from the seller to the buyer, given by broker
+   * index.
+   */
+  public void addTrade (int seller, int buyer, double mWh)
+  {
+    if (tradeCount == quantities.length) {
+      int capacity = tradeCount * 2;
+      sellers = Arrays.copyOf(sellers, capacity);
+      buyers = Arrays.copyOf(buyers, capacity);
+      quantities = Arrays.copyOf(quantities, capacity);
+    }
+    sellers[tradeCount] = seller;
+    buyers[tradeCount] = buyer;
+    quantities[tradeCount] = mWh;
+    tradeCount += 1;
+    totalMWh += mWh;
+  }
+
+  public int getTradeCount ()
+  {
+    return tradeCount;
+  }
+
+  public int getSeller (int trade)
+  {
+    return sellers[trade];
+  }
+
+  public int getBuyer (int trade)
+  {
+    return buyers[trade];
+  }
+
+  public double getTradeMWh (int trade)
+  {
+    return quantities[trade];
+  }
+
+  /** Total quantity traded. */
+  public double getTotalMWh ()
+  {
+    return totalMWh;
+  }
+
+  public double getClearingPrice ()
+  {
+    return clearingPrice;
+  }
+
+  public void setClearingPrice (double price)
+  {
+    clearingPrice = price;
+  }
+
+  /**
+   * Index of the last bid that took part in matching, or -1 if there was
+   * none. Its price, with that of the last ask, sets the clearing price.
+   */
+  public int getLastBid ()
+  {
+    return lastBid;
+  }
+
+  /**
+   * Index of the last ask that took part in matching, or -1 if there was
+   * none.
+   */
+  public int getLastAsk ()
+  {
+    return lastAsk;
+  }
+
+  public void setLastOrders (int bid, int ask)
+  {
+    lastBid = bid;
+    lastAsk = ask;
+  }
+
+  /** Index of the first bid that is not fully executed. */
+  public int getFirstBid ()
+  {
+    return firstBid;
+  }
+
+  /** Index of the first ask that is not fully executed. */
+  public int getFirstAsk ()
+  {
+    return firstAsk;
+  }
+
+  public void setFirstUnexecuted (int bid, int ask)
+  {
+    firstBid = bid;
+    firstAsk = ask;
+  }
+}
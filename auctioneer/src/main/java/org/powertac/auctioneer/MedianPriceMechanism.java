@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.auctioneer;
+
+/**
+ * Uniform-price auction priced from the whole book rather than from the
+ * marginal orders alone. Matching is the same as in UniformPriceMechanism.
+ * The clearing price is taken from the competitive price interval: the
+ * prices at which supply and demand balance. With total supply S and
+ * demand D, the ends of the interval are the pooled limit prices at which
+ * the S asks meet the D bids, the pooled median when S equals D. The price
+ * is placed in the interval by sellerSurplusRatio, capped by
+ * sellerMaxMargin, as in the standard rule.
+ * <p>
+ * The books come from the auctioneer in price order, so each end of the
+ * interval is found by merging the bids with the asks from one end of the
+ * books, stopping at the first price that clears. This takes time linear in
+ * the size of the books, and allocates nothing; the cost of ordering them
+ * is paid as orders arrive, as for every mechanism.</p>
+ * <p>
+ * The interval lies within the last matched ask and bid, and is narrower
+ * when an unmatched order would trade at the standard price, so no order
+ * left out of the match would have been willing to trade at the clearing
+ * price. Prices are compared exactly; quantities are compared within the
+ * auctioneer's epsilon, as in matching. When the last match involves a
+ * market order, the standard rule is used.</p>
+ */
+public class MedianPriceMechanism extends UniformPriceMechanism
+{
+  @Override
+  public String getName ()
+  {
+    return "median";
+  }
+
+  @Override
+  protected double computePrice (MarketClearing clearing,
+                                 AuctionService auctioneer)
+  {
+    OrderList bids = clearing.getBids();
+    OrderList asks = clearing.getAsks();
+    int lastBid = clearing.getLastBid();
+    int lastAsk = clearing.getLastAsk();
+    if (lastBid < 0 || bids.isMarketOrder(lastBid)
+        || asks.isMarketOrder(lastAsk))
+      return super.computePrice(clearing, auctioneer);
+
+    double epsilon = auctioneer.getEpsilon();
+    double low = lowestClearingPrice(bids, asks, epsilon);
+    double high = highestClearingPrice(bids, asks, epsilon);
+    if (Double.isNaN(low) || Double.isNaN(high))
+      return super.computePrice(clearing, auctioneer);
+
+    // within the last match, whatever the rounding of the quantities
+    double askPrice = asks.getPrice(lastAsk);
+    low = Math.max(askPrice, low);
+    high = Math.max(low, Math.min(-bids.getPrice(lastBid), high));
+    double clearingPrice =
+        low + auctioneer.getSellerSurplusRatio() * (high - low);
+    return Math.min(clearingPrice,
+                    askPrice * (1.0 + auctioneer.getSellerMaxMargin()));
+  }
+
+  /**
+   * Returns the lowest limit price p in the books at which the supply
+   * offered at or below p is at least the demand bid above p, within
+   * epsilon, or NaN if there is none. Bid prices are negated, so both sides
+   * are in the same terms; market orders have no price, and always count.
+   * The books must be in priority order.
+   */
+  static double lowestClearingPrice (OrderList bids, OrderList asks,
+                                     double epsilon)
+  {
+    // market orders come first in each book
+    double supply = 0.0;
+    int ask = 0;
+    while (ask < asks.size() && asks.isMarketOrder(ask))
+      supply -= asks.getMWh(ask++);
+    double demand = 0.0;
+    int firstBid = 0;
+    for (int i = 0; i < bids.size(); i++) {
+      demand += bids.getMWh(i);
+      if (bids.isMarketOrder(i))
+        firstBid = i + 1;
+    }
+    // walk up in price: asks from the front, bids from the back
+    int bid = bids.size() - 1;
+    while (ask < asks.size() || bid >= firstBid) {
+      double price = Math.min(
+          (ask < asks.size()) ? asks.getPrice(ask) : Double.MAX_VALUE,
+          (bid >= firstBid) ? -bids.getPrice(bid) : Double.MAX_VALUE);
+      while (ask < asks.size() && asks.getPrice(ask) == price)
+        supply -= asks.getMWh(ask++);
+      while (bid >= firstBid && -bids.getPrice(bid) == price)
+        demand -= bids.getMWh(bid--);
+      if (supply >= demand - epsilon)
+        return price;
+    }
+    return Double.NaN;
+  }
+
+  /**
+   * Returns the highest limit price p in the books at which the supply
+   * offered below p is at most the demand bid at or above p, within
+   * epsilon, or NaN if there is none. Terms are as for
+   * lowestClearingPrice().
+   */
+  static double highestClearingPrice (OrderList bids, OrderList asks,
+                                      double epsilon)
+  {
+    double demand = 0.0;
+    int bid = 0;
+    while (bid < bids.size() && bids.isMarketOrder(bid))
+      demand += bids.getMWh(bid++);
+    double supply = 0.0;
+    int firstAsk = 0;
+    for (int i = 0; i < asks.size(); i++) {
+      supply -= asks.getMWh(i);
+      if (asks.isMarketOrder(i))
+        firstAsk = i + 1;
+    }
+    // walk down in price: bids from the front, asks from the back
+    int ask = asks.size() - 1;
+    while (bid < bids.size() || ask >= firstAsk) {
+      double price = Math.max(
+          (bid < bids.size()) ? -bids.getPrice(bid) : -Double.MAX_VALUE,
+          (ask >= firstAsk) ? asks.getPrice(ask) : -Double.MAX_VALUE);
+      while (bid < bids.size() && -bids.getPrice(bid) == price)
+        demand += bids.getMWh(bid++);
+      while (ask >= firstAsk && asks.getPrice(ask) == price)
+        supply += asks.getMWh(ask--);
+      if (supply <= demand + epsilon)
+        return price;
+    }
+    return Double.NaN;
+  }
+}
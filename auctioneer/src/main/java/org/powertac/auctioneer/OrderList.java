@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.auctioneer;
+
+import java.util.Arrays;
+
+import org.powertac.common.Order;
+
+/**
+ * One side of a timeslot's order book, held as parallel primitive arrays.
+ * Orders are kept in price-priority order as they arrive: market orders
+ * first, then limit orders by ascending price, then larger quantities
+ * before smaller ones, with ties in order of arrival. The order is kept by
+ * a balanced (AVL) binary tree whose links are int arrays alongside the
+ * order arrays, so adding an order takes logarithmic time, moves no
+ * entries, and needs neither wrapper objects nor a comparator. When the
+ * book is closed for clearing, close() lays the arrays out in priority
+ * order with one walk of the tree, in linear time, so the clearing phase
+ * does no sorting. Brokers are referred to by their index in the
+ * auctioneer's broker table.
+ * <p>
+ * Until the list is closed, index i refers to the i-th order to arrive;
+ * after that, to the i-th order in priority order. Quantities may be
+ * adjusted after closing (to impose position limits) without re-ordering,
+ * as the auctioneer has always done. Instances are not thread-safe.
+ * AuctionMechanisms read the closed lists, and record executions, through
+ * the public methods.</p>
+ */
+public class OrderList
+{
+  Order[] orders;
+  boolean[] market;
+  double[] price;      // limit price, unused for market orders
+  double[] mWh;        // quantity, possibly adjusted
+  double[] executed;   // quantity executed so far
+  int[] broker;
+  int size = 0;
+
+  // the tree, by arrival index; null once the list is closed
+  private int[] left;
+  private int[] right;
+  private byte[] height;
+  private int root = -1;
+
+  OrderList ()
+  {
+    this(16);
+  }
+
+  OrderList (int capacity)
+  {
+    super();
+    orders = new Order[capacity];
+    market = new boolean[capacity];
+    price = new double[capacity];
+    mWh = new double[capacity];
+    executed = new double[capacity];
+    broker = new int[capacity];
+    left = new int[capacity];
+    right = new int[capacity];
+    height = new byte[capacity];
+  }
+
+  public int size ()
+  {
+    return size;
+  }
+
+  public boolean isEmpty ()
+  {
+    return 0 == size;
+  }
+
+  /** Returns the order at index i. */
+  public Order getOrder (int i)
+  {
+    return orders[i];
+  }
+
+  /** Returns true if the order at index i has no limit price. */
+  public boolean isMarketOrder (int i)
+  {
+    return market[i];
+  }
+
+  /**
+   * Returns the limit price of the order at index i. Not meaningful for
+   * market orders.
+   */
+  public double getPrice (int i)
+  {
+    return price[i];
+  }
+
+  /**
+   * Returns the quantity of the order at index i, as adjusted for position
+   * limits. Positive for bids, negative for asks.
+   */
+  public double getMWh (int i)
+  {
+    return mWh[i];
+  }
+
+  /** Returns the quantity executed so far for the order at index i. */
+  public double getExecuted (int i)
+  {
+    return executed[i];
+  }
+
+  /**
+   * Adds to the executed quantity of the order at index i; mWh is positive
+   * for bids and negative for asks.
+   */
+  public void execute (int i, double mWh)
+  {
+    executed[i] += mWh;
+  }
+
+  /** Returns the broker-table index of the broker for the order at i. */
+  public int getBrokerIndex (int i)
+  {
+    return broker[i];
+  }
+
+  /**
+   * Adds an order in its place in priority order. Returns the order's
+   * index, which holds until the list is closed.
+   */
+  int add (Order order, int brokerIndex)
+  {
+    if (null == left)
+      throw new IllegalStateException("order list is closed");
+    Double limit = order.getLimitPrice();
+    if (size == orders.length)
+      grow();
+    int i = size++;
+    orders[i] = order;
+    market[i] = (null == limit);
+    price[i] = (null == limit) ? 0.0 : limit;
+    mWh[i] = order.getMWh();
+    executed[i] = 0.0;
+    broker[i] = brokerIndex;
+    left[i] = -1;
+    right[i] = -1;
+    height[i] = 1;
+    root = insert(root, i);
+    return i;
+  }
+
+  /**
+   * Lays the orders out in priority order, by an in-order walk of the
+   * tree, and drops the tree. No orders may be added after this.
+   */
+  void close ()
+  {
+    if (null == left)
+      return;
+    // rank[r] is the arrival index of the order that goes to place r
+    int[] rank = new int[size];
+    int[] stack = new int[maxHeight() + 1];
+    int depth = 0;
+    int count = 0;
+    int node = root;
+    while (node >= 0 || depth > 0) {
+      while (node >= 0) {
+        stack[depth++] = node;
+        node = left[node];
+      }
+      node = stack[--depth];
+      rank[count++] = node;
+      node = right[node];
+    }
+    left = null;
+    right = null;
+    height = null;
+    permute(rank);
+  }
+
+  /**
+   * Compares the orders at indices i and j, without regard to arrival.
+   */
+  int compare (int i, int j)
+  {
+    if (market[i] != market[j])
+      return market[i] ? -1 : 1;
+    if (!market[i]) {
+      // equal prices tie, including -0.0 and 0.0
+      if (price[i] < price[j])
+        return -1;
+      if (price[i] > price[j])
+        return 1;
+    }
+    // larger quantities first
+    return -Double.compare(Math.abs(mWh[i]), Math.abs(mWh[j]));
+  }
+
+  /**
+   * Returns the unexecuted quantity of the order at index i.
+   */
+  public double remaining (int i)
+  {
+    return mWh[i] - executed[i];
+  }
+
+  /**
+   * Returns the limit price of the order at index i, or null for a market
+   * order.
+   */
+  public Double getLimitPrice (int i)
+  {
+    return market[i] ? null : price[i];
+  }
+
+  // Inserts order i, which arrived after all others in the tree, into the
+  // subtree at node, and returns the new root of the subtree. Ties go to
+  // the right, after the orders that arrived first.
+  private int insert (int node, int i)
+  {
+    if (node < 0)
+      return i;
+    if (compare(i, node) < 0)
+      left[node] = insert(left[node], i);
+    else
+      right[node] = insert(right[node], i);
+    return rebalance(node);
+  }
+
+  private int rebalance (int node)
+  {
+    int balance = height(left[node]) - height(right[node]);
+    if (balance > 1) {
+      int child = left[node];
+      if (height(left[child]) < height(right[child]))
+        left[node] = rotateLeft(child);
+      return rotateRight(node);
+    }
+    if (balance < -1) {
+      int child = right[node];
+      if (height(right[child]) < height(left[child]))
+        right[node] = rotateRight(child);
+      return rotateLeft(node);
+    }
+    update(node);
+    return node;
+  }
+
+  private int rotateRight (int node)
+  {
+    int pivot = left[node];
+    left[node] = right[pivot];
+    right[pivot] = node;
+    update(node);
+    update(pivot);
+    return pivot;
+  }
+
+  private int rotateLeft (int node)
+  {
+    int pivot = right[node];
+    right[node] = left[pivot];
+    left[pivot] = node;
+    update(node);
+    update(pivot);
+    return pivot;
+  }
+
+  private int height (int node)
+  {
+    return (node < 0) ? 0 : height[node];
+  }
+
+  private void update (int node)
+  {
+    height[node] =
+        (byte) (1 + Math.max(height(left[node]), height(right[node])));
+  }
+
+  private int maxHeight ()
+  {
+    return height(root);
+  }
+
+  // Moves the order arriving as rank[r] to place r, for all r, following
+  // the cycles of the permutation so nothing is copied twice. Consumes
+  // rank.
+  private void permute (int[] rank)
+  {
+    for (int start = 0; start < size; start++) {
+      if (rank[start] < 0 || rank[start] == start)
+        continue;
+      Order order = orders[start];
+      boolean isMarket = market[start];
+      double limit = price[start];
+      double quantity = mWh[start];
+      double done = executed[start];
+      int brokerIndex = broker[start];
+      int to = start;
+      while (true) {
+        int from = rank[to];
+        rank[to] = -1;
+        if (from == start) {
+          orders[to] = order;
+          market[to] = isMarket;
+          price[to] = limit;
+          mWh[to] = quantity;
+          executed[to] = done;
+          broker[to] = brokerIndex;
+          break;
+        }
+        orders[to] = orders[from];
+        market[to] = market[from];
+        price[to] = price[from];
+        mWh[to] = mWh[from];
+        executed[to] = executed[from];
+        broker[to] = broker[from];
+        to = from;
+      }
+    }
+  }
+
+  private void grow ()
+  {
+    int capacity = Math.max(16, orders.length * 2);
+    orders = Arrays.copyOf(orders, capacity);
+    market = Arrays.copyOf(market, capacity);
+    price = Arrays.copyOf(price, capacity);
+    mWh = Arrays.copyOf(mWh, capacity);
+    executed = Arrays.copyOf(executed, capacity);
+    broker = Arrays.copyOf(broker, capacity);
+    left = Arrays.copyOf(left, capacity);
+    right = Arrays.copyOf(right, capacity);
+    height = Arrays.copyOf(height, capacity);
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.auctioneer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The auctioneer's standard mechanism, a uniform-price call auction. Bids
+ * are matched with asks in price order, transferring quantity from the best
+ * remaining ask to the best remaining bid while their prices cross. All
+ * trades clear at a price that splits the difference between the last
+ * matched bid and ask according to sellerSurplusRatio, capped at
+ * sellerMaxMargin above the ask. When one side of the last match is a
+ * market order, the other side's price is adjusted by defaultMargin; when
+ * both are, the market clears at defaultClearingPrice.
+ */
+public class UniformPriceMechanism implements AuctionMechanism
+{
+  static private Logger log =
+      LogManager.getLogger(UniformPriceMechanism.class.getName());
+
+  @Override
+  public String getName ()
+  {
+    return "uniform";
+  }
+
+  @Override
+  public void clear (MarketClearing clearing, AuctionService auctioneer)
+  {
+    match(clearing, auctioneer.getEpsilon());
+    clearing.setClearingPrice(computePrice(clearing, auctioneer));
+  }
+
+  /**
+   * Matches bids with asks in priority order. Filled orders are passed over
+   * by advancing a cursor into each list, so matching is linear in the
+   * number of orders.
+   */
+  protected void match (MarketClearing clearing, double epsilon)
+  {
+    OrderList bids = clearing.getBids();
+    OrderList asks = clearing.getAsks();
+    int bidCount = bids.size();
+    int askCount = asks.size();
+    int bid = 0;
+    int ask = 0;
+    int lastBid = -1;
+    int lastAsk = -1;
+    while (bid < bidCount && ask < askCount &&
+           (bids.isMarketOrder(bid) || asks.isMarketOrder(ask) ||
+               -bids.getPrice(bid) >= asks.getPrice(ask))) {
+      // transfer from ask to bid
+      lastBid = bid;
+      lastAsk = ask;
+      // amount to transfer is minimum of remaining bid qty and remaining ask qty
+      log.debug("ask: " + asks.getExecuted(ask) + " used out of " +
+                asks.getMWh(ask) + "; bid: " + bids.getExecuted(bid) +
+                " used out of " + bids.getMWh(bid));
+      double transfer = Math.min(bids.remaining(bid), -asks.remaining(ask));
+      if (transfer > 0.0) {
+        log.debug("transfer " + transfer + " from " + 
+                  asks.getOrder(ask).getBroker().getUsername() + " at " +
+                  asks.getLimitPrice(ask) + " to " +
+                  bids.getOrder(bid).getBroker().getUsername() + " at " +
+                  bids.getLimitPrice(bid));
+        clearing.addTrade(asks.getBrokerIndex(ask), bids.getBrokerIndex(bid),
+                          transfer);
+        bids.execute(bid, transfer);
+        asks.execute(ask, -transfer);
+      }
+      log.debug("bid remaining=" + bids.remaining(bid));
+      log.debug("ask remaining=" + asks.remaining(ask));
+      if (Math.abs(bids.remaining(bid)) <= epsilon)
+        bid += 1;
+      if (Math.abs(asks.remaining(ask)) <= epsilon)
+        ask += 1;
+    }
+    clearing.setLastOrders(lastBid, lastAsk);
+    clearing.setFirstUnexecuted(bid, ask);
+  }
+
+  /**
+   * Computes the clearing price from the last matched bid and ask.
+   */
+  protected double computePrice (MarketClearing clearing,
+                                 AuctionService auctioneer)
+  {
+    // with no match, both prices are taken as zero
+    double bidPrice = 0.0;
+    boolean bidMarket = false;
+    double askPrice = 0.0;
+    boolean askMarket = false;
+    if (clearing.getLastBid() >= 0) {
+      OrderList bids = clearing.getBids();
+      bidPrice = bids.getPrice(clearing.getLastBid());
+      bidMarket = bids.isMarketOrder(clearing.getLastBid());
+      OrderList asks = clearing.getAsks();
+      askPrice = asks.getPrice(clearing.getLastAsk());
+      askMarket = asks.isMarketOrder(clearing.getLastAsk());
+    }
+    double clearingPrice;
+    if (!bidMarket) {
+      if (!askMarket) {
+        clearingPrice = askPrice
+            + auctioneer.getSellerSurplusRatio() * (-bidPrice - askPrice);
+        clearingPrice =
+            Math.min(clearingPrice,
+                     askPrice * (1.0 + auctioneer.getSellerMaxMargin()));
+      }
+      else {
+        // ask price is null
+        clearingPrice = -bidPrice / (1.0 + auctioneer.getDefaultMargin());
+        log.info("market clears at " + clearingPrice + " with null ask price");
+      }
+    }
+    else {
+      // bid price is null
+      if (!askMarket) {
+        clearingPrice = askPrice * (1.0 + auctioneer.getDefaultMargin());
+        log.info("market clears at " + clearingPrice + " with null bid price");
+      }
+      else {
+        // both bid and ask are null
+        clearingPrice = auctioneer.getDefaultClearingPrice();
+        log.info("market clears at default clearing price"  + clearingPrice);
+      }
+    }
+    return clearingPrice;
+  }
+}
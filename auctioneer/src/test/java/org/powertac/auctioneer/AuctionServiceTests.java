@@ -24,6 +24,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.joda.time.Instant;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -52,6 +53,7 @@ import org.springframework.test.context.support.DirtiesContextTestExecutionListe
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 import java.util.TreeMap;
 
 
@@ -194,6 +196,8 @@ public class AuctionServiceTests
     map.put("auctioneer.auctionService.defaultMargin", "0.2");
     map.put("auctioneer.auctionService.defaultClearingPrice", "40.0");
     map.put("auctioneer.auctionService.mktPosnLimitInitial", "90.0");
+    map.put("auctioneer.auctionService.parallelClearing", "false");
+    map.put("auctioneer.auctionService.auctionMechanism", "uniform");
     MapConfiguration mapConfig = new MapConfiguration(map);
     config.setConfiguration(mapConfig);
     svc.initialize(competition, new ArrayList<String>());
@@ -258,6 +262,33 @@ public class AuctionServiceTests
     assertFalse(svc.validateOrder(smallBuy), "too small buy");
   }
 
+  // many small asks filled by one large bid
+  @Test
+  public void testManyFills ()
+  {
+    for (int i = 0; i < 100; i++) {
+      svc.handleMessage(new Order(s1, ts1.getSerialNumber(), -0.1,
+                                  20.0 + i * 0.01));
+    }
+    svc.handleMessage(new Order(b1, ts1.getSerialNumber(), 5.0, -30.0));
+    assertEquals(101, svc.getIncoming().size(), "101 orders received");
+    svc.activate(timeService.getCurrentTime(), 2);
+    // 50 asks filled, one tx for each side of each fill
+    assertEquals(100, accountingArgs.size(), "100 transactions");
+    double price = 20.49 * 1.05;
+    Object[] args = accountingArgs.get(98);
+    assertEquals(s1, args[0], "s1");
+    assertEquals(-0.1, (Double) args[2], 1e-6, "last ask mWh");
+    assertEquals(price, (Double) args[3], 1e-6, "last ask price");
+    assertEquals(2, brokerMsgs.size(), "2 messages");
+    Orderbook ob = (Orderbook) brokerMsgs.get(0);
+    assertEquals(50, ob.getAsks().size(), "50 uncleared asks");
+    assertEquals(0, ob.getBids().size(), "no uncleared bids");
+    assertEquals(price, ob.getClearingPrice(), 1e-6, "correct clearing");
+    ClearedTrade ct = (ClearedTrade) brokerMsgs.get(1);
+    assertEquals(5.0, ct.getExecutionMWh(), 1e-6, "correct mWh");
+  }
+
   // one ask, one bid, equal qty, tradeable
   @Test
   public void testActivate1 ()
@@ -409,6 +440,187 @@ public class AuctionServiceTests
     assertEquals(-22.0, ob.getBids().first().getLimitPrice(), 1e-6, "correct price");
   }
 
+  // trades in two timeslots, matched in parallel, posted in timeslot order
+  @Test
+  public void testParallelClearing ()
+  {
+    TreeMap<String, String> map = new TreeMap<String, String>();
+    map.put("auctioneer.auctionService.parallelClearing", "true");
+    map.put("auctioneer.auctionService.clearingThreads", "2");
+    config.setConfiguration(new MapConfiguration(map));
+    svc.initialize(competition, new ArrayList<String>());
+
+    svc.handleMessage(new Order(s2, ts2Num, -2.0, 30.0));
+    svc.handleMessage(new Order(b2, ts2Num, 2.0, -34.0));
+    svc.handleMessage(new Order(s1, ts1Num, -1.0, 20.0));
+    svc.handleMessage(new Order(b1, ts1Num, 1.0, -22.0));
+    svc.activate(timeService.getCurrentTime(), 2);
+    assertEquals(4, accountingArgs.size(), "four transactions");
+    assertEquals(s1, accountingArgs.get(0)[0], "ts1 ask first");
+    assertEquals(21.0, (Double) accountingArgs.get(0)[3], 1e-6, "ts1 price");
+    assertEquals(b1, accountingArgs.get(1)[0], "ts1 bid second");
+    assertEquals(s2, accountingArgs.get(2)[0], "ts2 ask third");
+    assertEquals(31.5, (Double) accountingArgs.get(2)[3], 1e-6, "ts2 price");
+    assertEquals(b2, accountingArgs.get(3)[0], "ts2 bid fourth");
+    assertEquals(4, brokerMsgs.size(), "four messages");
+    assertEquals(ts1, ((Orderbook) brokerMsgs.get(0)).getTimeslot(), "ts1 orderbook");
+    assertEquals(ts1, ((ClearedTrade) brokerMsgs.get(1)).getTimeslot(), "ts1 trade");
+    assertEquals(ts2, ((Orderbook) brokerMsgs.get(2)).getTimeslot(), "ts2 orderbook");
+    ClearedTrade ct = (ClearedTrade) brokerMsgs.get(3);
+    assertEquals(ts2, ct.getTimeslot(), "ts2 trade");
+    assertEquals(2.0, ct.getExecutionMWh(), 1e-6, "ts2 mWh");
+  }
+
+  // Clears 24 timeslots of 5000 orders each, sequentially and in parallel,
+  // and reports the time per clearing. Only activate() is timed; the mocks
+  // are reset each round so they don't accumulate invocations. The first
+  // half of the rounds are warm-up. Run with -Pbenchmark.
+  @Test
+  @Tag("benchmark")
+  public void benchmarkParallelClearing ()
+  {
+    competition.withTimeslotsOpen(24);
+    Instant now = timeService.getCurrentTime();
+    for (int i = 3; i <= 26; i++)
+      timeslotRepo.makeTimeslot(now.plus(TimeService.HOUR * i));
+    List<Timeslot> timeslots = timeslotRepo.enabledTimeslots();
+    assertTrue(timeslots.size() >= 24, "24 open timeslots");
+    timeslots = timeslots.subList(0, 24);
+    Broker[] brokers = new Broker[20];
+    for (int i = 0; i < brokers.length; i++)
+      brokers[i] = new Broker("Broker #" + i);
+    Random random = new Random(11);
+    List<List<Order>> orders = new ArrayList<List<Order>>();
+    for (Timeslot timeslot : timeslots) {
+      List<Order> book = new ArrayList<Order>();
+      for (int i = 0; i < 5000; i++) {
+        Broker broker = brokers[random.nextInt(brokers.length)];
+        double mWh = 0.5 + random.nextInt(100) / 10.0;
+        double price = 20.0 + random.nextInt(4000) / 100.0;
+        int ts = timeslot.getSerialNumber();
+        if (0 == i % 2)
+          book.add(new Order(broker, ts, mWh, -price));
+        else
+          book.add(new Order(broker, ts, -mWh, price));
+      }
+      orders.add(book);
+    }
+
+    String[] modes = {"false", "true"};
+    long[] nanos = new long[modes.length];
+    int trades = 0;
+    int rounds = 10;
+    for (int m = 0; m < modes.length; m++) {
+      TreeMap<String, String> map = new TreeMap<String, String>();
+      map.put("auctioneer.auctionService.parallelClearing", modes[m]);
+      config.setConfiguration(new MapConfiguration(map));
+      svc.initialize(competition, new ArrayList<String>());
+      for (int round = 0; round < rounds; round++) {
+        reset(accountingService);
+        reset(mockProxy);
+        svc.clearEnabledTimeslots();
+        for (List<Order> book : orders) {
+          for (Order order : book)
+            svc.handleMessage(order);
+        }
+        long start = System.nanoTime();
+        svc.activate(timeService.getCurrentTime(), 2);
+        if (round >= rounds / 2)
+          nanos[m] += System.nanoTime() - start;
+      }
+      // using the results also keeps the work from being optimized away
+      trades += mockingDetails(accountingService).getInvocations().size();
+    }
+    assertTrue(trades > 0, "some trades");
+    log.info(String.format("clearing 24 timeslots of 5000 orders:"
+                           + " sequential %.1f ms, parallel %.1f ms",
+                           nanos[0] / (rounds / 2) / 1e6,
+                           nanos[1] / (rounds / 2) / 1e6));
+  }
+
+  // the median mechanism prices within the competitive interval, which an
+  // unmatched ask can narrow below the uniform price
+  @Test
+  public void testMedianMechanism ()
+  {
+    assertEquals("uniform", svc.getAuctionMechanism().getName(), "default");
+    svc.handleMessage(new Order(s1, ts1Num, -1.0, 20.0));
+    svc.handleMessage(new Order(s2, ts1Num, -1.0, 20.4));
+    svc.handleMessage(new Order(b1, ts1Num, 1.0, -40.0));
+    svc.activate(timeService.getCurrentTime(), 2);
+    assertEquals(2, accountingArgs.size(), "two uniform transactions");
+    // halfway to 40, capped at 5% over the ask
+    assertEquals(21.0, (Double) accountingArgs.get(0)[3], 1e-6, "uniform price");
+
+    TreeMap<String, String> map = new TreeMap<String, String>();
+    map.put("auctioneer.auctionService.auctionMechanism", "median");
+    config.setConfiguration(new MapConfiguration(map));
+    svc.initialize(competition, new ArrayList<String>());
+    assertEquals("median", svc.getAuctionMechanism().getName(), "median");
+    svc.handleMessage(new Order(s1, ts1Num, -1.0, 20.0));
+    svc.handleMessage(new Order(s2, ts1Num, -1.0, 20.4));
+    svc.handleMessage(new Order(b1, ts1Num, 1.0, -40.0));
+    svc.activate(timeService.getCurrentTime(), 2);
+    // s2 would sell at any price above 20.4, so the interval is [20, 20.4]
+    assertEquals(4, accountingArgs.size(), "two median transactions");
+    assertEquals(s1, accountingArgs.get(2)[0], "s1 sells");
+    assertEquals(20.2, (Double) accountingArgs.get(2)[3], 1e-6, "median price");
+    assertEquals(b1, accountingArgs.get(3)[0], "b1 buys");
+    assertEquals(-20.2, (Double) accountingArgs.get(3)[3], 1e-6, "median price");
+    ClearedTrade ct = (ClearedTrade) brokerMsgs.get(brokerMsgs.size() - 1);
+    assertEquals(1.0, ct.getExecutionMWh(), 1e-6, "correct mWh");
+    assertEquals(20.2, ct.getExecutionPrice(), 1e-6, "correct price");
+  }
+
+  // with no unmatched orders in the way, both mechanisms agree
+  @Test
+  public void testMedianMechanismMarginal ()
+  {
+    TreeMap<String, String> map = new TreeMap<String, String>();
+    map.put("auctioneer.auctionService.auctionMechanism", "median");
+    config.setConfiguration(new MapConfiguration(map));
+    svc.initialize(competition, new ArrayList<String>());
+    svc.handleMessage(new Order(s1, ts1Num, -1.0, 20.0));
+    svc.handleMessage(new Order(s2, ts1Num, -1.0, 21.0));
+    svc.handleMessage(new Order(b1, ts1Num, 1.0, -30.0));
+    svc.handleMessage(new Order(b2, ts1Num, 1.0, -22.0));
+    svc.activate(timeService.getCurrentTime(), 2);
+    assertEquals(4, accountingArgs.size(), "four transactions");
+    assertEquals(21.5, (Double) accountingArgs.get(0)[3], 1e-6, "uniform price");
+  }
+
+  // ends of the competitive interval, with tied prices
+  @Test
+  public void testClearingInterval ()
+  {
+    // asks of 1 at 20 and 2 at 25, bids of 2 at 25 and 1 at 30
+    OrderList bids = new OrderList();
+    OrderList asks = new OrderList();
+    asks.add(new Order(s1, ts1Num, -2.0, 25.0), 0);
+    asks.add(new Order(s2, ts1Num, -1.0, 20.0), 1);
+    bids.add(new Order(b1, ts1Num, 1.0, -30.0), 2);
+    bids.add(new Order(b2, ts1Num, 2.0, -25.0), 3);
+    bids.close();
+    asks.close();
+    assertEquals(25.0,
+                 MedianPriceMechanism.lowestClearingPrice(bids, asks, 1e-6),
+                 1e-9, "lowest price");
+    assertEquals(25.0,
+                 MedianPriceMechanism.highestClearingPrice(bids, asks, 1e-6),
+                 1e-9, "highest price");
+
+    // no price clears more market demand than there is supply
+    bids = new OrderList();
+    asks = new OrderList();
+    asks.add(new Order(s1, ts1Num, -1.0, 30.0), 0);
+    bids.add(new Order(b1, ts1Num, 2.0, null), 1);
+    bids.close();
+    asks.close();
+    assertTrue(Double.isNaN(
+        MedianPriceMechanism.lowestClearingPrice(bids, asks, 1e-6)),
+               "no clearing price");
+  }
+
   // one ask, two bids, all tradeable
   @Test
   public void testActivate1_2_tradeable ()
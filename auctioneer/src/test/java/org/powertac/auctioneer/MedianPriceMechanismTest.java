@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.auctioneer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.powertac.common.Broker;
+import org.powertac.common.Order;
+
+/**
+ * Clears the order books in orderbooks.csv with the uniform and median
+ * mechanisms.
+ */
+public class MedianPriceMechanismTest
+{
+  static private Logger log =
+      LogManager.getLogger(MedianPriceMechanismTest.class.getName());
+
+  private AuctionService auctioneer;
+  private List<List<Order>> books;
+
+  @BeforeEach
+  public void setUp () throws IOException
+  {
+    auctioneer = new AuctionService();
+    Broker[] brokers = new Broker[7];
+    for (int i = 0; i < brokers.length; i++)
+      brokers[i] = new Broker("broker" + i);
+    books = new ArrayList<List<Order>>();
+    BufferedReader input = new BufferedReader(new InputStreamReader(
+        getClass().getResourceAsStream("/orderbooks.csv")));
+    String line;
+    int count = 0;
+    while (null != (line = input.readLine())) {
+      if (line.startsWith("#") || line.startsWith("book"))
+        continue;
+      String[] fields = line.split(",", -1);
+      int book = Integer.parseInt(fields[0]);
+      while (books.size() <= book)
+        books.add(new ArrayList<Order>());
+      Double price =
+          fields[2].isEmpty() ? null : Double.valueOf(fields[2]);
+      books.get(book).add(new Order(brokers[count++ % brokers.length], 0,
+                                    Double.valueOf(fields[1]), price));
+    }
+    input.close();
+  }
+
+  // the mechanisms match the same quantity, and the median price is within
+  // the last match
+  @Test
+  public void recordedBooks ()
+  {
+    UniformPriceMechanism uniform = new UniformPriceMechanism();
+    MedianPriceMechanism median = new MedianPriceMechanism();
+    for (List<Order> book : books) {
+      MarketClearing standard = clear(uniform, book);
+      MarketClearing clearing = clear(median, book);
+      assertEquals(standard.getTotalMWh(), clearing.getTotalMWh(), 1e-9,
+                   "same quantity");
+      int lastBid = clearing.getLastBid();
+      int lastAsk = clearing.getLastAsk();
+      if (lastBid < 0 || clearing.getBids().isMarketOrder(lastBid)
+          || clearing.getAsks().isMarketOrder(lastAsk))
+        continue;
+      double price = clearing.getClearingPrice();
+      assertTrue(price >= clearing.getAsks().getPrice(lastAsk),
+                 "at or above the last ask");
+      assertTrue(price <= -clearing.getBids().getPrice(lastBid),
+                 "at or below the last bid");
+    }
+  }
+
+  // Clears every book with each mechanism, and reports the time per book.
+  // The books are filed beforehand, so only matching and pricing are timed.
+  // The first half of the rounds are warm-up. Run with -Pbenchmark.
+  @Test
+  @Tag("benchmark")
+  public void benchmarkClearing ()
+  {
+    AuctionMechanism[] mechanisms =
+        {new UniformPriceMechanism(), new MedianPriceMechanism()};
+    long[] nanos = new long[mechanisms.length];
+    double[] prices = new double[mechanisms.length];
+    int rounds = 20;
+    int repeats = 20;
+    for (int round = 0; round < rounds; round++) {
+      for (int m = 0; m < mechanisms.length; m++) {
+        List<MarketClearing> clearings = new ArrayList<MarketClearing>();
+        for (int k = 0; k < repeats; k++) {
+          for (List<Order> book : books)
+            clearings.add(file(book));
+        }
+        long start = System.nanoTime();
+        for (MarketClearing clearing : clearings)
+          mechanisms[m].clear(clearing, auctioneer);
+        if (round >= rounds / 2)
+          nanos[m] += System.nanoTime() - start;
+        prices[m] = 0.0;
+        for (MarketClearing clearing : clearings)
+          prices[m] += clearing.getClearingPrice();
+      }
+    }
+    // using the results also keeps the work from being optimized away
+    assertFalse(Double.isNaN(prices[0] + prices[1]), "prices");
+    double clearings = rounds / 2 * (double) repeats * books.size();
+    log.info(String.format("clearing %d orders in %d books: uniform %.0f ns,"
+                           + " median %.0f ns per book",
+                           orderCount(), books.size(),
+                           nanos[0] / clearings, nanos[1] / clearings));
+  }
+
+  private MarketClearing clear (AuctionMechanism mechanism, List<Order> book)
+  {
+    MarketClearing clearing = file(book);
+    mechanism.clear(clearing, auctioneer);
+    return clearing;
+  }
+
+  // files a book as the auctioneer does, and closes it
+  private MarketClearing file (List<Order> book)
+  {
+    OrderList bids = new OrderList();
+    OrderList asks = new OrderList();
+    int index = 0;
+    for (Order order : book) {
+      if (order.getMWh() > 0.0)
+        bids.add(order, index++);
+      else
+        asks.add(order, index++);
+    }
+    bids.close();
+    asks.close();
+    return new MarketClearing(null, bids, asks);
+  }
+
+  private int orderCount ()
+  {
+    int result = 0;
+    for (List<Order> book : books)
+      result += book.size();
+    return result;
+  }
+}
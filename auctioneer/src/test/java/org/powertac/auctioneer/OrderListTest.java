@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.auctioneer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.powertac.common.Broker;
+import org.powertac.common.Order;
+
+public class OrderListTest
+{
+  static private Logger log =
+      LogManager.getLogger(OrderListTest.class.getName());
+
+  // priority order as a comparator on orders, for a stable sort
+  private static final Comparator<Order> priority = Comparator
+      .comparing((Order o) -> null != o.getLimitPrice())
+      .thenComparingDouble(o -> (null == o.getLimitPrice())
+                                ? 0.0 : o.getLimitPrice())
+      .thenComparingDouble(o -> -Math.abs(o.getMWh()));
+
+  private Broker broker;
+  private OrderList list;
+
+  @BeforeEach
+  public void setUp ()
+  {
+    broker = new Broker("Buyer");
+    list = new OrderList(2);
+  }
+
+  private Order add (double mWh, Double price)
+  {
+    Order order = new Order(broker, 5, mWh, price);
+    list.add(order, 0);
+    return order;
+  }
+
+  @Test
+  public void emptyList ()
+  {
+    list.close();
+    assertTrue(list.isEmpty(), "still empty");
+  }
+
+  @Test
+  public void marketOrdersFirst ()
+  {
+    Order limit = add(1.0, -20.0);
+    Order market1 = add(1.0, null);
+    Order market2 = add(2.0, null);
+    list.close();
+    assertSame(market2, list.getOrder(0), "larger market order first");
+    assertSame(market1, list.getOrder(1), "then smaller");
+    assertSame(limit, list.getOrder(2), "limit order last");
+    assertTrue(list.isMarketOrder(0), "market flag moved");
+    assertNull(list.getLimitPrice(1), "no market price");
+    assertEquals(-20.0, list.getPrice(2), 1e-9, "limit price moved");
+  }
+
+  @Test
+  public void priceThenQuantity ()
+  {
+    Order o1 = add(-1.0, 30.0);
+    Order o2 = add(-3.0, 20.0);
+    Order o3 = add(-2.0, 30.0);
+    Order o4 = add(-1.0, 10.0);
+    list.close();
+    assertSame(o4, list.getOrder(0), "lowest price first");
+    assertSame(o2, list.getOrder(1), "then 20");
+    assertSame(o3, list.getOrder(2), "larger ask first at 30");
+    assertSame(o1, list.getOrder(3), "then smaller");
+    assertEquals(-2.0, list.getMWh(2), 1e-9, "quantity moved");
+  }
+
+  // ties keep their order of arrival
+  @Test
+  public void tiesInArrivalOrder ()
+  {
+    Order[] orders = new Order[40];
+    for (int i = 0; i < orders.length; i++) {
+      // alternate two prices, all the same quantity
+      orders[i] = add(1.0, (0 == i % 2) ? -30.0 : -20.0);
+    }
+    list.close();
+    for (int i = 0; i < orders.length / 2; i++) {
+      assertSame(orders[2 * i], list.getOrder(i), "first price in order");
+      assertSame(orders[2 * i + 1], list.getOrder(orders.length / 2 + i),
+                 "second price in order");
+    }
+  }
+
+  @Test
+  public void marketTiesInArrivalOrder ()
+  {
+    Order m1 = add(1.0, null);
+    Order m2 = add(1.0, null);
+    Order m3 = add(1.0, null);
+    list.close();
+    assertSame(m1, list.getOrder(0), "first");
+    assertSame(m2, list.getOrder(1), "second");
+    assertSame(m3, list.getOrder(2), "third");
+  }
+
+  // -0.0 and 0.0 are the same price, so quantity decides, then arrival
+  @Test
+  public void signedZeroPrices ()
+  {
+    Order plus = add(1.0, 0.0);
+    Order minus = add(2.0, -0.0);
+    Order plus2 = add(2.0, 0.0);
+    list.close();
+    assertSame(minus, list.getOrder(0), "larger quantity first");
+    assertSame(plus2, list.getOrder(1), "tie in arrival order");
+    assertSame(plus, list.getOrder(2), "smaller quantity last");
+  }
+
+  @Test
+  public void brokerIndexAndExecution ()
+  {
+    Order o1 = new Order(broker, 5, 1.0, -10.0);
+    Order o2 = new Order(broker, 5, 1.0, -20.0);
+    assertEquals(0, list.add(o1, 3), "index on arrival");
+    assertEquals(1, list.add(o2, 7), "next index");
+    list.close();
+    assertSame(o2, list.getOrder(0), "in priority order");
+    assertEquals(7, list.getBrokerIndex(0), "broker index moved");
+    assertEquals(3, list.getBrokerIndex(1), "broker index moved");
+    list.execute(0, 0.25);
+    assertEquals(0.75, list.remaining(0), 1e-9, "remaining");
+  }
+
+  // no orders once the list is laid out for clearing
+  @Test
+  public void closedList ()
+  {
+    add(1.0, -10.0);
+    list.close();
+    assertThrows(IllegalStateException.class, () -> add(1.0, -20.0),
+                 "closed");
+  }
+
+  // many orders in random arrival order, with many ties, come out as a
+  // stable sort would put them
+  @Test
+  public void matchesStableSort ()
+  {
+    Random random = new Random(42);
+    List<Order> arrivals = new ArrayList<Order>();
+    for (int i = 0; i < 5000; i++) {
+      Double price =
+          (0 == random.nextInt(20)) ? null : -1.0 * random.nextInt(50);
+      arrivals.add(add(1.0 + random.nextInt(4), price));
+    }
+    List<Order> expected = new ArrayList<Order>(arrivals);
+    expected.sort(priority);
+    list.close();
+    assertEquals(expected.size(), list.size(), "size");
+    for (int i = 0; i < expected.size(); i++) {
+      assertSame(expected.get(i), list.getOrder(i), "order " + i);
+      assertEquals(expected.get(i).getMWh(), list.getMWh(i), 1e-9,
+                   "quantity " + i);
+    }
+  }
+
+  // Files books of 1000 orders in an OrderList and closes them, and does
+  // the same with a list of orders sorted by a comparator, and reports the
+  // time and heap allocation per order for each. The orders themselves are
+  // created beforehand. The first half of the rounds are warm-up. Run with
+  // -Pbenchmark.
+  @Test
+  @Tag("benchmark")
+  public void benchmarkFiling ()
+  {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Random random = new Random(17);
+    Order[] orders = new Order[1000];
+    for (int i = 0; i < orders.length; i++) {
+      Double price = (0 == random.nextInt(20))
+                     ? null : -20.0 - random.nextInt(4000) / 100.0;
+      orders[i] =
+          new Order(broker, 5, 0.5 + random.nextInt(100) / 10.0, price);
+    }
+    int rounds = 20;
+    int books = 200;
+    long listNanos = 0l;
+    long listBytes = 0l;
+    long sortNanos = 0l;
+    long sortBytes = 0l;
+    Order first = null;
+    Order sortedFirst = null;
+    for (int round = 0; round < rounds; round++) {
+      long bytes = threads.getCurrentThreadAllocatedBytes();
+      long start = System.nanoTime();
+      for (int b = 0; b < books; b++) {
+        OrderList book = new OrderList();
+        for (int i = 0; i < orders.length; i++) {
+          book.add(orders[i], i % 7);
+        }
+        book.close();
+        first = book.getOrder(0);
+      }
+      long filed = System.nanoTime();
+      long filedBytes = threads.getCurrentThreadAllocatedBytes();
+      for (int b = 0; b < books; b++) {
+        List<Order> book = new ArrayList<Order>();
+        for (int i = 0; i < orders.length; i++) {
+          book.add(orders[i]);
+        }
+        book.sort(priority);
+        sortedFirst = book.get(0);
+      }
+      long end = System.nanoTime();
+      long endBytes = threads.getCurrentThreadAllocatedBytes();
+      if (round >= rounds / 2) {
+        listNanos += filed - start;
+        listBytes += filedBytes - bytes;
+        sortNanos += end - filed;
+        sortBytes += endBytes - filedBytes;
+      }
+    }
+    // using the results also keeps the work from being optimized away
+    assertSame(sortedFirst, first, "same first order");
+    double filings = rounds / 2 * (double) books * orders.length;
+    log.info(String.format("order filing: OrderList %.1f ns, %.1f bytes;"
+                           + " sorted list %.1f ns, %.1f bytes per order",
+                           listNanos / filings, listBytes / filings,
+                           sortNanos / filings, sortBytes / filings));
+  }
+}
@@ -23,6 +23,7 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
@@ -107,6 +108,19 @@ implements BalancingMarket, SettlementContext, InitializationService
           + " \"dynamic\" for multiple-timeslot processing, of balancing orders")
   private String settlementProcess = "";
 
+  @ConfigurableValue(valueType = "Boolean",
+          description = "Compute per-broker imbalance charges in parallel")
+  private boolean parallelSettlement = false;
+
+  @ConfigurableValue(valueType = "Integer",
+          description = "Maximum threads for parallel settlement, 0 for one per processor")
+  private int settlementThreads = 0;
+
+  private ForkJoinPool settlementPool = null;
+
+  // created on first use after initialization, then kept across timeslots
+  private SettlementProcessor settlementProcessor = null;
+
   // map settlement process to strategy instances
   @SuppressWarnings("serial")
   private Map<String, Class<?>> settlementMap =
@@ -117,6 +131,12 @@ implements BalancingMarket, SettlementContext, InitializationService
 
   private Map<Broker, ChargeInfo> balancingResults = null;
 
+  // extreme wholesale clearing prices for priceTimeslot, computed once per
+  // timeslot; null if there were no clearings
+  private Timeslot priceTimeslot = null;
+  private Double minClearingPrice = null;
+  private Double maxClearingPrice = null;
+
   /**
    * Computes actual distribution and balancing costs by random selection
    */
@@ -125,11 +145,24 @@ implements BalancingMarket, SettlementContext, InitializationService
   {
     super.init();
     balancingCost = null;
+    priceTimeslot = null;
+    settlementProcessor = null;
 
     serverProps.configureMe(this);
 
     if (null == balancingCost)
         balancingCost = 0D;
+    if (null != settlementPool) {
+      settlementPool.shutdown();
+      settlementPool = null;
+    }
+    if (parallelSettlement) {
+      int threads = settlementThreads;
+      if (threads <= 0)
+        threads = Runtime.getRuntime().availableProcessors();
+      log.info("Parallel settlement with " + threads + " threads");
+      settlementPool = new ForkJoinPool(threads);
+    }
     log.info("Configured BM: balancing cost = " + balancingCost
              + ", (pPlus',pMinus') = (" + pPlusPrime + "," + pMinusPrime + ")");
 
@@ -190,6 +223,7 @@ implements BalancingMarket, SettlementContext, InitializationService
     }
 
     // gather up the list of ChargeInfo instances and settle
+    updateClearingPrices();
     log.info("balancing prices: pPlus=" + getPPlus()
              + ", pMinus=" + getPMinus());
     List<ChargeInfo> brokerData = new ArrayList<>(chargeInfoMap.values());
@@ -268,19 +302,8 @@ implements BalancingMarket, SettlementContext, InitializationService
   @Override
   public double getPPlus ()
   {
-    double result = defaultSpotPrice;
-    List<Orderbook> obs =
-        orderbookRepo.findAllByTimeslot(timeslotRepo.currentTimeslot());
-    if (obs != null && obs.size() > 0) {
-      Double max = null;
-      for (Orderbook ob : obs) {
-        Double price = ob.getClearingPrice();
-        if (price != null && (max == null || price > max))
-          max = price;
-      }
-      if (max != null)
-        result = max;
-    }
+    Double max = getMaxClearingPrice();
+    double result = (null == max) ? defaultSpotPrice : max;
     return result * rmPremium / 1000.0;
   }
 
@@ -291,22 +314,48 @@ implements BalancingMarket, SettlementContext, InitializationService
   @Override
   public double getPMinus ()
   {
-    double result = defaultSpotPrice;
-    List<Orderbook> obs =
-        orderbookRepo.findAllByTimeslot(timeslotRepo.currentTimeslot());
-    if (obs != null && obs.size() > 0) {
-      Double min = null;
-      for (Orderbook ob : obs) {
-        Double price = ob.getClearingPrice();
-        if (price != null && (min == null || price < min))
-          min = price;
-      }
-      if (min != null)
-        result = min;
-    }
+    Double min = getMinClearingPrice();
+    double result = (null == min) ? defaultSpotPrice : min;
     return -result / rmPremium / 1000.0;
   }
 
+  // Extreme clearing prices for the current timeslot, null if none
+  private synchronized Double getMaxClearingPrice ()
+  {
+    if (priceTimeslot != timeslotRepo.currentTimeslot())
+      updateClearingPrices();
+    return maxClearingPrice;
+  }
+
+  private synchronized Double getMinClearingPrice ()
+  {
+    if (priceTimeslot != timeslotRepo.currentTimeslot())
+      updateClearingPrices();
+    return minClearingPrice;
+  }
+
+  // Scans the orderbooks for the current timeslot for the minimum and
+  // maximum clearing prices. The current timeslot is no longer open for
+  // trading, so its orderbooks do not change once it is current.
+  private synchronized void updateClearingPrices ()
+  {
+    priceTimeslot = timeslotRepo.currentTimeslot();
+    minClearingPrice = null;
+    maxClearingPrice = null;
+    List<Orderbook> obs = orderbookRepo.findAllByTimeslot(priceTimeslot);
+    if (null == obs)
+      return;
+    for (Orderbook ob : obs) {
+      Double price = ob.getClearingPrice();
+      if (null == price)
+        continue;
+      if (null == maxClearingPrice || price > maxClearingPrice)
+        maxClearingPrice = price;
+      if (null == minClearingPrice || price < minClearingPrice)
+        minClearingPrice = price;
+    }
+  }
+
   /**
    * Returns the slope of up-regulation energy purchased through the
    * wholesale ancillary services market.
@@ -340,6 +389,13 @@ implements BalancingMarket, SettlementContext, InitializationService
   }
 
   private SettlementProcessor getSettlementProcessor ()
+  {
+    if (null == settlementProcessor)
+      settlementProcessor = createSettlementProcessor();
+    return settlementProcessor;
+  }
+
+  private SettlementProcessor createSettlementProcessor ()
   {
     // determine and record settlement process
     if (settlementProcess.equals(""))
@@ -355,6 +411,7 @@ implements BalancingMarket, SettlementContext, InitializationService
               processor.getDeclaredConstructor(TariffRepo.class,
                                                CapacityControl.class);
       result = (SettlementProcessor) constructor.newInstance(tariffRepo, capacityControlService);
+      result.setPool(settlementPool);
     }
     catch (Exception e) {
       log.error("cannot create settlement processor: " + e.toString());
@@ -16,6 +16,7 @@
 package org.powertac.balancemkt;
 
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
@@ -23,7 +24,10 @@ import org.powertac.common.interfaces.CapacityControl;
 import org.powertac.common.repo.TariffRepo;
 
 /**
- * Computes charges to settle broker imbalances.
+ * Computes charges to settle broker imbalances. The BalancingMarketService
+ * creates one processor when it is initialized for a game and uses it for
+ * every timeslot, so a processor may keep state from one timeslot to the
+ * next.
  * @author John Collins
  */
 public abstract class SettlementProcessor
@@ -34,6 +38,9 @@ public abstract class SettlementProcessor
   protected CapacityControl capacityControlService;
   protected double epsilon = 1e-6; // 1 milliwatt-hour
 
+  // pool for settling brokers in parallel, null to settle sequentially
+  protected ForkJoinPool pool = null;
+
   SettlementProcessor (TariffRepo tariffRepo, CapacityControl capacityControl)
   {
     super();
@@ -49,4 +56,14 @@ public abstract class SettlementProcessor
    */
   public abstract void settle(SettlementContext service,
                      List<ChargeInfo> brokerData);
+
+  /**
+   * Sets the pool used by processors that can settle brokers in parallel.
+   * A null pool, the default, means settlement is sequential. Either way
+   * the results are the same.
+   */
+  void setPool (ForkJoinPool pool)
+  {
+    this.pool = pool;
+  }
 }
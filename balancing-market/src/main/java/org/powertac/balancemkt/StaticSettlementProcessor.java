@@ -16,19 +16,22 @@
 package org.powertac.balancemkt;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinTask;
 
 import org.powertac.common.RegulationAccumulator;
 import org.powertac.common.interfaces.CapacityControl;
 import org.powertac.common.msg.BalancingOrder;
 import org.powertac.common.repo.TariffRepo;
-import org.powertac.util.Predicate;
 
 /**
  * DU settlement processor for Scenario 2 - controllable capacities,
@@ -36,6 +39,16 @@ import org.powertac.util.Predicate;
  * 
  * Naming convention: Price is per-unit, Cost is price * qty
  * 
+ * The balancing orders are kept in price order from one timeslot to the
+ * next, and each timeslot only the orders that were added, replaced, or
+ * withdrawn are filed or dropped. Orders at the same price are taken by
+ * broker, in the order of the settlement's broker list, then oldest first.
+ * The capacities of the orders change every timeslot, so they are still
+ * read for every order on the side of the imbalance. In finding each
+ * broker's imbalance cost, the exercise set without the broker's orders
+ * is the one already found up to the first excluded order, so the search
+ * resumes from there.
+ * 
  * @author John Collins, Mathijs de Weerdt
  */
 public class StaticSettlementProcessor extends SettlementProcessor
@@ -45,6 +58,16 @@ public class StaticSettlementProcessor extends SettlementProcessor
   double pPlus, pMinus;
   double pPlusPrime, pMinusPrime;
 
+  // balancing orders from earlier timeslots, in price order for each side
+  // of the imbalance, and their wrappers by order
+  private TreeSet<BOWrapper> upOrders =
+      new TreeSet<BOWrapper>(new BOComparator());
+  private TreeSet<BOWrapper> downOrders =
+      new TreeSet<BOWrapper>(new BOComparator());
+  private IdentityHashMap<BalancingOrder, BOWrapper> filed =
+      new IdentityHashMap<BalancingOrder, BOWrapper>();
+  private int generation = 0;
+
   public StaticSettlementProcessor (TariffRepo tariffRepo,
                                     CapacityControl capacityControl)
   {
@@ -95,6 +118,7 @@ public class StaticSettlementProcessor extends SettlementProcessor
       log.info("tariff " + bo.balancingOrder.getTariffId()
                + ": up=" + cap.getUpRegulationCapacity()
                + ", down=" + cap.getDownRegulationCapacity());
+      bo.exercisedCapacity = 0.0;
       if (sgn < 0.0) {
         // up-regulation
         bo.availableCapacity = cap.getUpRegulationCapacity();
@@ -118,11 +142,10 @@ public class StaticSettlementProcessor extends SettlementProcessor
     SortedSet<BOWrapper> nonExercised = determineNonExercisedSet(candidates);
 
     // compute VCG charges (p_2) by broker.
-    HashSet<ChargeInfo> nonParticipants = new HashSet<ChargeInfo>(); 
+    VcgCalculator vcg =
+        new VcgCalculator(candidates, nonExercised, totalImbalance, epsilon);
     for (ChargeInfo info: brokerData) {
-      info.setBalanceChargeP2(computeVcgCharges(info, totalImbalance,
-                                                candidates, nonExercised,
-                                                nonParticipants));
+      info.setBalanceChargeP2(vcg.getVcgCharge(info));
     }
 
     // Determine imbalance payments (p_1) for each broker.
@@ -163,44 +186,85 @@ public class StaticSettlementProcessor extends SettlementProcessor
   }
 
   // Produces the sorted list of balancing orders that are candidates
-  // to be exercised.
+  // to be exercised. Negative total imbalance means we want to curtail
+  // consumption. This is a copy of the filed orders on that side, since
+  // the dummy orders and the orders without capacity are particular to
+  // the timeslot; copying a sorted set takes linear time.
   private SortedSet<BOWrapper>
     findCandidateOrders (List<ChargeInfo> brokerData, double totalImbalance)
   {
-    TreeSet<BOWrapper> orders =
-            new TreeSet<BOWrapper> (new BOComparator());
-    
-    Predicate<BalancingOrder> tester;
-    if (totalImbalance < 0.0) {
-      tester = new Predicate<BalancingOrder>() {
-        @Override
-        public boolean apply (BalancingOrder bo)
-        {
-          return (bo.getExerciseRatio() > 0.0);
+    updateOrders(brokerData);
+    if (totalImbalance < 0.0)
+      return new TreeSet<BOWrapper>(upOrders);
+    return new TreeSet<BOWrapper>(downOrders);
+  }
+
+  // Brings the filed orders up to date with the brokers' current balancing
+  // orders: new ones, including replacements, are filed, and those no
+  // longer offered are dropped. Orders already filed are just linked to
+  // this timeslot's ChargeInfo, unless the broker list has been reordered.
+  private void updateOrders (List<ChargeInfo> brokerData)
+  {
+    generation += 1;
+    int added = 0;
+    for (int rank = 0; rank < brokerData.size(); rank++) {
+      ChargeInfo info = brokerData.get(rank);
+      List<BalancingOrder> balancingOrders = info.getBalancingOrders();
+      if (null == balancingOrders)
+        continue;
+      for (BalancingOrder bo : balancingOrders) {
+        BOWrapper bow = filed.get(bo);
+        if (null != bow && bow.rank != rank) {
+          unfile(bow);
+          bow = null;
         }
-      };
-    }
-    else {
-      tester = new Predicate<BalancingOrder>() {
-        @Override
-        public boolean apply (BalancingOrder bo)
-        {
-          return (bo.getExerciseRatio() < 0.0);
+        if (null == bow) {
+          bow = new BOWrapper(info, bo);
+          bow.rank = rank;
+          filed.put(bo, bow);
+          TreeSet<BOWrapper> side = sideOf(bo);
+          if (null != side)
+            side.add(bow);
+          added += 1;
         }
-      };
+        bow.info = info;
+        bow.seen = generation;
+      }
     }
-    for (ChargeInfo info : brokerData) {
-      List<BalancingOrder> balancingOrders = info.getBalancingOrders(); 
-      if (null != balancingOrders && balancingOrders.size() > 0) {
-        for (BalancingOrder bo : balancingOrders) {
-          if (tester.apply(bo)) {
-            BOWrapper bow = new BOWrapper(info, bo);
-            orders.add(bow);
-          }
-        }
+    int removed = 0;
+    Iterator<BOWrapper> bows = filed.values().iterator();
+    while (bows.hasNext()) {
+      BOWrapper bow = bows.next();
+      if (bow.seen != generation) {
+        TreeSet<BOWrapper> side = sideOf(bow.balancingOrder);
+        if (null != side)
+          side.remove(bow);
+        bows.remove();
+        removed += 1;
       }
     }
-    return orders;
+    log.info("balancing orders: " + added + " filed, " + removed
+             + " dropped, " + filed.size() + " in all");
+  }
+
+  // Drops a filed order
+  private void unfile (BOWrapper bow)
+  {
+    TreeSet<BOWrapper> side = sideOf(bow.balancingOrder);
+    if (null != side)
+      side.remove(bow);
+    filed.remove(bow.balancingOrder);
+  }
+
+  // Returns the filed orders for the side of the imbalance an order can
+  // relieve, or null if it can relieve neither
+  private TreeSet<BOWrapper> sideOf (BalancingOrder bo)
+  {
+    if (bo.getExerciseRatio() > 0.0)
+      return upOrders;
+    if (bo.getExerciseRatio() < 0.0)
+      return downOrders;
+    return null;
   }
 
   // Inserts orders into the candidate list derived from the regulating
@@ -310,57 +374,6 @@ public class StaticSettlementProcessor extends SettlementProcessor
     return candidates.tailSet(lastExercised);
   }
 
-  // Computes VCG charge (p_2) for a broker represented by target,
-  // by integrating the area under the non-exercised offers up to the
-  // exercised quantity of balancing orders from target.
-  // Offers from the nonParticipants set are excluded
-  private double computeVcgCharges (ChargeInfo target,
-                                    double totalImbalance,
-                                    SortedSet<BOWrapper> candidates,
-                                    SortedSet<BOWrapper> nonExercised,
-                                    Set<ChargeInfo> nonParticipants)
-  {
-    // compute capacity (remainingQty) offered by nonParticipants
-    double targetRemainingQty = 0;
-    double sgn = Math.signum(totalImbalance);
-    for (BOWrapper bow : candidates) {
-      if (bow.availableCapacity != 0.0 && 0.0 == bow.exercisedCapacity)
-        break;
-      if (target == bow.info)
-        targetRemainingQty += bow.exercisedCapacity;
-      if (Math.abs(bow.availableCapacity - bow.exercisedCapacity) > 0.0)
-        // stop on the last one
-        break;
-    }
-    // compute price if this capacity is retrieved from other brokers
-    double price = 0;
-    nonParticipants.add(target);
-    //double rmQty = 0.0;
-    //double rmMarginalPrice = 0.0;
-
-    for (BOWrapper nextNonExercised: nonExercised) {
-      if (Math.abs(targetRemainingQty) < epsilon)
-        break;
-      else if (!(nonParticipants.contains(nextNonExercised.info))) {
-        double avail =
-          (nextNonExercised.availableCapacity
-              - nextNonExercised.exercisedCapacity);
-        double used = sgn * Math.max(sgn * avail, sgn * targetRemainingQty);
-        price += sgn * nextNonExercised.getTotalNECost(used);
-        targetRemainingQty -= used;
-        log.debug("  VCG cost part of "
-                  + nextNonExercised.getTotalNECost(used) + " for " + used
-                  + " kWh at " + nextNonExercised.price);
-      }
-    }
-    //price -= rmQty * rmMarginalPrice;
-    nonParticipants.remove(target);
-    if(Math.abs(targetRemainingQty) > epsilon)
-      log.error("Not enough orders to compute VCG price.");
-    log.debug("VCG price" + " is " + price );
-    return -price; // result is positive for credit to the broker
-  }
-
   // Computes imbalance costs for each broker. This is
   //    VCG(C,X)/X * x
   // where
@@ -375,8 +388,9 @@ public class StaticSettlementProcessor extends SettlementProcessor
                                         double totalImbalance,
                                         SortedSet<BOWrapper> candidates)
   {
-    HashSet<ChargeInfo> contributors = new HashSet<ChargeInfo>();
-    HashSet<ChargeInfo> nonContributors = new HashSet<ChargeInfo>();
+    LinkedHashSet<ChargeInfo> contributors = new LinkedHashSet<ChargeInfo>();
+    LinkedHashSet<ChargeInfo> nonContributors =
+        new LinkedHashSet<ChargeInfo>();
     double sgn = Math.signum(totalImbalance);
 
     // handle the no-imbalance case
@@ -407,62 +421,101 @@ public class StaticSettlementProcessor extends SettlementProcessor
       else
         contributors.add(info);
     }
-    
-    // Do the contributors - the brokers on the imbalance side
-    for (ChargeInfo broker : contributors) {
-      
-      // find a new sequence of non-exercised orders, excluding the
-      // non-contributors and broker
-      nonContributors.add(broker);
-      SortedSet<BOWrapper> remains = filterOrders(candidates, nonContributors);
-      determineExerciseSet(totalImbalance, remains);
-      SortedSet<BOWrapper> nonExercised = determineNonExercisedSet(remains);
-      
-      // get the cost of regulating power
-      double rpCost = findRpCost(remains);
-
-      // imbalanceCost is the cost of regulating power plus the sum of
-      // vcg payments for each of the other brokers. For contributors, we
-      // do not include offers from non-contributors
-      double imbalanceCost = rpCost;
-      // include only the contributors
-      for (ChargeInfo target : contributors) {
-        if (target != broker) {
-          imbalanceCost -= computeVcgCharges(target, totalImbalance,
-                                             remains, nonExercised,
-                                             nonContributors);
-        }
+
+    // Find the imbalance cost of each broker, contributors first. These
+    // are independent of each other, so with a pool they are computed in
+    // parallel. Either way the charges are set in the same order.
+    List<ChargeInfo> brokers = new ArrayList<ChargeInfo>(contributors);
+    brokers.addAll(nonContributors);
+    double[] costs = new double[brokers.size()];
+    if (null == pool || brokers.size() < 2) {
+      for (int i = 0; i < costs.length; i++) {
+        costs[i] = findImbalanceCost(brokers.get(i), brokerData,
+                                     contributors, nonContributors,
+                                     totalImbalance, candidates);
+      }
+    }
+    else {
+      List<ForkJoinTask<Double>> tasks = new ArrayList<ForkJoinTask<Double>>();
+      for (ChargeInfo broker : brokers) {
+        tasks.add(pool.submit(() ->
+            findImbalanceCost(broker, brokerData, contributors,
+                              nonContributors, totalImbalance, candidates)));
       }
-      nonContributors.remove(broker);
-      broker.setBalanceChargeP1(-sgn * imbalanceCost * broker.getNetLoadKWh()
+      for (int i = 0; i < costs.length; i++) {
+        costs[i] = tasks.get(i).join();
+      }
+    }
+    for (int i = 0; i < costs.length; i++) {
+      ChargeInfo broker = brokers.get(i);
+      broker.setBalanceChargeP1(-sgn * costs[i] * broker.getNetLoadKWh()
                                 / totalImbalance);
     }
+  }
 
-    // do the non-contributors
+  // Computes the imbalance cost for one broker: the cost of regulating
+  // power plus the sum of vcg payments to other brokers, with the exercise
+  // set found again without the broker's own orders. For contributors - the
+  // brokers on the imbalance side - we include only the other contributors,
+  // and exclude offers from non-contributors. Does not modify its arguments,
+  // so brokers can be done concurrently.
+  private double findImbalanceCost (ChargeInfo broker,
+                                    List<ChargeInfo> brokerData,
+                                    Set<ChargeInfo> contributors,
+                                    Set<ChargeInfo> nonContributors,
+                                    double totalImbalance,
+                                    SortedSet<BOWrapper> candidates)
+  {
     HashSet<ChargeInfo> excludes = new HashSet<ChargeInfo>();
-    for (ChargeInfo info : nonContributors) {
-      excludes.add(info);
-      SortedSet<BOWrapper> remains = filterOrders(candidates, excludes);
-      determineExerciseSet(totalImbalance, remains);
-      SortedSet<BOWrapper> nonExercised = determineNonExercisedSet(remains);
-      
-      // get the cost of regulating power
-      double imbalanceCost = findRpCost(remains);
-
-      // include all other brokers
-      for (ChargeInfo target : brokerData) {
-        if (target != info) {
-          excludes.add(target);
-          imbalanceCost -= computeVcgCharges(target, totalImbalance,
-                                             remains, nonExercised,
-                                             excludes);
-          excludes.remove(target);
-        }
+    excludes.add(broker);
+    Collection<ChargeInfo> others = brokerData;
+    if (contributors.contains(broker)) {
+      excludes.addAll(nonContributors);
+      others = contributors;
+    }
+
+    // find a new sequence of non-exercised orders, excluding the
+    // broker and possibly the non-contributors. Up to the first excluded
+    // order, the exercise set is the one already found, so the search
+    // resumes from there with what remains of the imbalance.
+    TreeSet<BOWrapper> remains =
+        new TreeSet<BOWrapper>(candidates.comparator());
+    double remainingImbalance = totalImbalance;
+    boolean excluded = false;
+    BOWrapper resume = null;
+    for (BOWrapper bow : candidates) {
+      if (excludes.contains(bow.info)) {
+        excluded = true;
+        continue;
+      }
+      // create a new wrapper for this one so we can recompute exercised qty
+      BOWrapper copy = bow.duplicate();
+      if (!excluded) {
+        remainingImbalance += copy.exercisedCapacity;
+      }
+      else {
+        copy.exercisedCapacity = 0.0;
+        if (null == resume)
+          resume = copy;
+      }
+      remains.add(copy);
+    }
+    if (null != resume)
+      determineExerciseSet(remainingImbalance, remains.tailSet(resume));
+    SortedSet<BOWrapper> nonExercised = determineNonExercisedSet(remains);
+
+    // get the cost of regulating power
+    double imbalanceCost = findRpCost(remains);
+
+    // add the vcg payments for the other brokers
+    VcgCalculator vcg =
+        new VcgCalculator(remains, nonExercised, totalImbalance, epsilon);
+    for (ChargeInfo target : others) {
+      if (target != broker) {
+        imbalanceCost -= vcg.getVcgCharge(target);
       }
-      excludes.remove(info);
-      info.setBalanceChargeP1(-sgn * imbalanceCost * info.getNetLoadKWh()
-                              / totalImbalance);
     }
+    return imbalanceCost;
   }
 
   // gets the regulating cost across the dummy orders in remains
@@ -481,21 +534,6 @@ public class StaticSettlementProcessor extends SettlementProcessor
     return rpCost;
   }
 
-  // filter a list of candidated orders to exclude 
-  private SortedSet<BOWrapper> filterOrders (SortedSet<BOWrapper> candidates,
-                                             HashSet<ChargeInfo> exclude)
-  {
-    TreeSet<BOWrapper> remains =
-            new TreeSet<BOWrapper> (new BOComparator());
-    for (BOWrapper bow : candidates) {
-      if (!(exclude.contains(bow.info))) {
-        // create a new wrapper for this one so we can recompute exercised qty
-        remains.add(bow.duplicate());
-      }
-    }
-    return remains;
-  }
-
   private void exerciseControls (ChargeInfo broker,
                                  SortedSet<BOWrapper> candidates,
                                  double settlementValue)
@@ -532,6 +570,8 @@ public class StaticSettlementProcessor extends SettlementProcessor
     double price = 0.0;
     double slope = 0.0;
     double startX = 0.0;
+    int rank = 0;    // position of the broker in the settlement
+    int seen = 0;    // last update that found the order
 
     // constructs one from a BalancingOrder
     BOWrapper (ChargeInfo info, BalancingOrder bo)
@@ -638,9 +678,16 @@ public class StaticSettlementProcessor extends SettlementProcessor
                         BOWrapper b1) {
       if (b0 == b1)
         return 0;
-      if (b0.price < b1.price)
-        return -1;
-      return 1;
+      if (b0.price != b1.price)
+        return (b0.price < b1.price) ? -1 : 1;
+      // at the same price, dummy orders go last, and balancing orders are
+      // taken by broker, then oldest first
+      if (b0.isDummy() || b1.isDummy())
+        return b0.isDummy() ? 1 : -1;
+      if (b0.rank != b1.rank)
+        return (b0.rank < b1.rank) ? -1 : 1;
+      return Long.compare(b0.balancingOrder.getId(),
+                          b1.balancingOrder.getId());
     }
   }
 }
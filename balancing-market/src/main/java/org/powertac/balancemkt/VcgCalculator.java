@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.balancemkt;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.SortedSet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.powertac.balancemkt.StaticSettlementProcessor.BOWrapper;
+
+/**
+ * Computes VCG charges (p_2) for the brokers in one exercise solution of
+ * the static settlement. A broker's charge is the cost of replacing its
+ * exercised capacity from the non-exercised offers of the other brokers,
+ * taken in price order. Rather than walk the offers once per broker, the
+ * calculator lays the non-exercised tail out in primitive arrays with
+ * prefix sums of remaining capacity and cost, overall and per broker, so
+ * each charge is found with a binary search over those sums. The sums are
+ * extended lazily, only as far down the tail as the largest charge needs,
+ * so brokers with little or no exercised capacity cost next to nothing.
+ * The result is the one the walk produces, up to rounding.
+ * <p>
+ * Offers are expected to have remaining capacity of the sign opposite to
+ * the imbalance. If that is not the case the prefix sums are not monotone,
+ * and the calculator falls back to walking the arrays.</p>
+ */
+class VcgCalculator
+{
+  private static Logger log =
+      LogManager.getLogger(VcgCalculator.class.getName());
+
+  private double epsilon;
+  private double sgn;
+
+  // exercised capacity by broker
+  private IdentityHashMap<ChargeInfo, Double> exercised =
+      new IdentityHashMap<ChargeInfo, Double>();
+
+  // the non-exercised tail, in price order, laid out up to built
+  private Iterator<BOWrapper> tail;
+  private int built = 0;
+  private BOWrapper[] orders = new BOWrapper[16];
+  private ChargeInfo[] owners = new ChargeInfo[16];
+  private double[] available = new double[16];
+
+  // prefix sums over the tail: cumAvailable[j] is the magnitude of the
+  // capacity remaining in orders 0..j-1, cumCost[j] the signed cost of
+  // using all of it, for j up to built
+  private double[] cumAvailable;
+  private double[] cumCost;
+  private IdentityHashMap<ChargeInfo, OwnerSums> ownerSums =
+      new IdentityHashMap<ChargeInfo, OwnerSums>();
+  private boolean monotone = true;
+
+  /**
+   * Builds a calculator from a candidate list whose exercised capacities
+   * have been determined, and its non-exercised tail.
+   */
+  VcgCalculator (SortedSet<BOWrapper> candidates,
+                 SortedSet<BOWrapper> nonExercised,
+                 double totalImbalance, double epsilon)
+  {
+    super();
+    this.epsilon = epsilon;
+    this.sgn = Math.signum(totalImbalance);
+
+    // exercised capacity of each broker, up to the last exercised order
+    for (BOWrapper bow : candidates) {
+      if (bow.availableCapacity != 0.0 && 0.0 == bow.exercisedCapacity)
+        break;
+      if (null != bow.info) {
+        Double qty = exercised.get(bow.info);
+        exercised.put(bow.info, (null == qty ? 0.0 : qty)
+                                + bow.exercisedCapacity);
+      }
+      if (Math.abs(bow.availableCapacity - bow.exercisedCapacity) > 0.0)
+        break;
+    }
+
+    tail = nonExercised.iterator();
+    cumAvailable = new double[orders.length + 1];
+    cumCost = new double[orders.length + 1];
+  }
+
+  // lays out the next offer in the tail, returning false at its end
+  private boolean extend ()
+  {
+    if (!tail.hasNext())
+      return false;
+    if (built == orders.length) {
+      int length = built * 2;
+      orders = Arrays.copyOf(orders, length);
+      owners = Arrays.copyOf(owners, length);
+      available = Arrays.copyOf(available, length);
+      cumAvailable = Arrays.copyOf(cumAvailable, length + 1);
+      cumCost = Arrays.copyOf(cumCost, length + 1);
+    }
+    int j = built;
+    BOWrapper bow = tail.next();
+    orders[j] = bow;
+    owners[j] = bow.info;
+    available[j] = bow.availableCapacity - bow.exercisedCapacity;
+    double magnitude = -sgn * available[j];
+    if (magnitude < 0.0)
+      monotone = false;
+    cumAvailable[j + 1] = cumAvailable[j] + magnitude;
+    cumCost[j + 1] = cumCost[j] + sgn * bow.getTotalNECost(available[j]);
+    if (null != bow.info)
+      ownerSums(bow.info).add(j, magnitude, cumCost[j + 1] - cumCost[j]);
+    built += 1;
+    return true;
+  }
+
+  private OwnerSums ownerSums (ChargeInfo info)
+  {
+    OwnerSums sums = ownerSums.get(info);
+    if (null == sums) {
+      sums = new OwnerSums();
+      ownerSums.put(info, sums);
+    }
+    return sums;
+  }
+
+  /**
+   * Returns the VCG charge for the given broker, positive for a credit to
+   * the broker.
+   */
+  double getVcgCharge (ChargeInfo target)
+  {
+    Double qty = exercised.get(target);
+    double targetQty = (null == qty) ? 0.0 : qty;
+    double quantity = -sgn * targetQty;
+    if (!monotone || quantity < 0.0)
+      return walk(target, targetQty);
+
+    // lay out the tail until the offers of other brokers cover the
+    // target's capacity, or it runs out
+    OwnerSums own = ownerSums(target);
+    while (quantity - eligible(own, built) >= epsilon && extend())
+      ;
+    if (!monotone)
+      return walk(target, targetQty);
+
+    // find the first position at which the capacity remaining in the
+    // preceding offers of other brokers covers the target's capacity
+    int low = 0;
+    int high = built + 1;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (quantity - eligible(own, mid) < epsilon)
+        high = mid;
+      else
+        low = mid + 1;
+    }
+    // all offers before that position are used in full, except that the
+    // last one may be used only in part
+    double price;
+    double remaining;
+    int last = low - 1;
+    if (last >= 0 && last < built && owners[last] != target
+        && -sgn * available[last] > quantity - eligible(own, last)) {
+      double needed = quantity - eligible(own, last);
+      price = cumCost[last] - own.costBefore(last)
+              + sgn * orders[last].getTotalNECost(-sgn * needed);
+      remaining = 0.0;
+    }
+    else {
+      int end = Math.min(low, built);
+      price = cumCost[end] - own.costBefore(end);
+      remaining = quantity - eligible(own, end);
+    }
+    if (Math.abs(remaining) > epsilon)
+      log.error("Not enough orders to compute VCG price.");
+    log.debug("VCG price is " + price);
+    return -price;
+  }
+
+  // capacity remaining in offers 0..j-1 of brokers other than own
+  private double eligible (OwnerSums own, int j)
+  {
+    return cumAvailable[j] - own.availableBefore(j);
+  }
+
+  // walks the tail in order, for inputs the prefix sums cannot handle
+  private double walk (ChargeInfo target, double targetQty)
+  {
+    double remaining = targetQty;
+    double price = 0.0;
+    for (int j = 0;
+         Math.abs(remaining) >= epsilon && (j < built || extend());
+         j++) {
+      if (owners[j] != target) {
+        double used = sgn * Math.max(sgn * available[j], sgn * remaining);
+        price += sgn * orders[j].getTotalNECost(used);
+        remaining -= used;
+      }
+    }
+    if (Math.abs(remaining) > epsilon)
+      log.error("Not enough orders to compute VCG price.");
+    log.debug("VCG price is " + price);
+    return -price;
+  }
+
+  // Prefix sums over the offers of a single broker
+  private static class OwnerSums
+  {
+    int count = 0;
+    int[] positions = new int[4];
+    double[] cumAvailable = new double[5];
+    double[] cumCost = new double[5];
+
+    void add (int position, double magnitude, double cost)
+    {
+      if (count == positions.length) {
+        positions = Arrays.copyOf(positions, count * 2);
+        cumAvailable = Arrays.copyOf(cumAvailable, count * 2 + 1);
+        cumCost = Arrays.copyOf(cumCost, count * 2 + 1);
+      }
+      positions[count] = position;
+      cumAvailable[count + 1] = cumAvailable[count] + magnitude;
+      cumCost[count + 1] = cumCost[count] + cost;
+      count += 1;
+    }
+
+    double availableBefore (int j)
+    {
+      return cumAvailable[countBefore(j)];
+    }
+
+    double costBefore (int j)
+    {
+      return cumCost[countBefore(j)];
+    }
+
+    // number of positions less than j
+    private int countBefore (int j)
+    {
+      int low = 0;
+      int high = count;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (positions[mid] < j)
+          low = mid + 1;
+        else
+          high = mid;
+      }
+      return low;
+    }
+  }
+}
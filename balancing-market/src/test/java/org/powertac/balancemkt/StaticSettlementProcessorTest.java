@@ -20,8 +20,18 @@ import static org.mockito.Mockito.*;
 import static org.mockito.AdditionalMatchers.*;
 
 import java.util.ArrayList;
-
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 import org.powertac.balancemkt.ChargeInfo;
 import org.powertac.balancemkt.SettlementContext;
@@ -42,6 +52,9 @@ import org.powertac.common.repo.TariffRepo;
  */
 public class StaticSettlementProcessorTest
 {
+  static private Logger log =
+      LogManager.getLogger(StaticSettlementProcessorTest.class.getName());
+
   TariffRepo tariffRepo;
   CapacityControl capacityControlService;
   SettlementContext context;
@@ -502,6 +515,16 @@ public class StaticSettlementProcessorTest
     assertEquals(-17.697556, ci3.getBalanceChargeP1(), 1e-4, "b3.p1");
   }
   
+  // Same as ex_prob3, with imbalance charges computed in parallel
+  @Test
+  public void ex_prob3_parallel ()
+  {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    uut.setPool(pool);
+    ex_prob3();
+    pool.shutdown();
+  }
+
   // Simple balancing, no imbalance
   @Test
   public void testSettle0 ()
@@ -876,6 +899,234 @@ public class StaticSettlementProcessorTest
     assertEquals(-0.603, ci2.getBalanceChargeP1(), 1e-6, "b2.p1");
   }
 
+  // A processor kept from one timeslot to the next, which files only the
+  // orders that change, settles each timeslot as a new processor does, as
+  // balancing orders are added, replaced, and withdrawn, with tied prices
+  // and an occasionally reordered broker list
+  @Test
+  public void incrementalSettlement ()
+  {
+    Random random = new Random(5);
+    Broker[] brokers = {b1, b2, b3, b4};
+    TariffSpecification[] specs = {spec1, spec2, spec3, spec4};
+    List<Integer> brokerOrder =
+        new ArrayList<Integer>(Arrays.asList(0, 1, 2, 3));
+    List<BalancingOrder> offered = new ArrayList<BalancingOrder>();
+    for (int step = 0; step < 50; step++) {
+      offered.removeIf(bo -> 0 == random.nextInt(5));
+      for (int k = random.nextInt(6); k > 0; k--) {
+        int b = random.nextInt(brokers.length);
+        double ratio = random.nextBoolean() ? 0.6 : -0.6;
+        double price = Math.signum(ratio) * (1 + random.nextInt(5)) * 0.01;
+        offered.add(new BalancingOrder(brokers[b], specs[b], ratio, price));
+      }
+      if (0 == random.nextInt(10))
+        Collections.shuffle(brokerOrder, random);
+      for (BalancingOrder bo : offered) {
+        when(capacityControlService.getRegulationCapacity(bo))
+            .thenReturn(new RegulationAccumulator(random.nextDouble() * 10.0,
+                                                  -random.nextDouble() * 10.0));
+      }
+      double[] imbalance = new double[brokers.length];
+      for (int b = 0; b < brokers.length; b++)
+        imbalance[b] = (random.nextDouble() - 0.5) * 40.0;
+      pplus = 0.05 + random.nextDouble() * 0.05;
+      pminus = -0.01 - random.nextDouble() * 0.01;
+      pplusPrime = random.nextBoolean() ? 0.0 : 0.0005;
+      pminusPrime = -pplusPrime;
+
+      List<ChargeInfo> kept =
+          chargeInfos(brokers, brokerOrder, imbalance, offered);
+      uut.settle(context, kept);
+      List<ChargeInfo> fresh =
+          chargeInfos(brokers, brokerOrder, imbalance, offered);
+      new StaticSettlementProcessor(tariffRepo, capacityControlService)
+          .settle(context, fresh);
+      for (int i = 0; i < fresh.size(); i++) {
+        assertEquals(fresh.get(i).getBalanceChargeP1(),
+                     kept.get(i).getBalanceChargeP1(), 1e-9,
+                     "p1, step " + step);
+        assertEquals(fresh.get(i).getBalanceChargeP2(),
+                     kept.get(i).getBalanceChargeP2(), 1e-9,
+                     "p2, step " + step);
+        assertEquals(fresh.get(i).getCurtailment(),
+                     kept.get(i).getCurtailment(), 1e-9,
+                     "curtailment, step " + step);
+      }
+    }
+  }
+
+  // ChargeInfos for the brokers in the given order, with their offers
+  private List<ChargeInfo> chargeInfos (Broker[] brokers,
+                                        List<Integer> brokerOrder,
+                                        double[] imbalance,
+                                        List<BalancingOrder> offered)
+  {
+    List<ChargeInfo> result = new ArrayList<ChargeInfo>();
+    for (int b : brokerOrder) {
+      ChargeInfo info = new ChargeInfo(brokers[b], imbalance[b]);
+      for (BalancingOrder bo : offered) {
+        if (bo.getBroker() == brokers[b])
+          info.addBalancingOrder(bo);
+      }
+      result.add(info);
+    }
+    return result;
+  }
+
+  // VCG charges from the prefix-sum calculator match a walk over the
+  // non-exercised orders, on random order sets up to 50 brokers with 200
+  // balancing orders
+  @Test
+  public void testVcgCalculator ()
+  {
+    Random random = new Random(42);
+    for (int trial = 0; trial < 200; trial++) {
+      int brokerCount = (trial == 199) ? 50 : 1 + random.nextInt(8);
+      int orderCount = (trial == 199) ? 200 : random.nextInt(30);
+      VcgInputs inputs = new VcgInputs(random, brokerCount, orderCount);
+      VcgCalculator vcg =
+          new VcgCalculator(inputs.candidates, inputs.nonExercised,
+                            inputs.totalImbalance, 1e-6);
+      for (ChargeInfo info : inputs.infos) {
+        double expected = walkVcgCharge(info, inputs.totalImbalance,
+                                        inputs.candidates, inputs.nonExercised);
+        assertEquals(expected, vcg.getVcgCharge(info),
+                     1e-9 * (1.0 + Math.abs(expected)), "trial " + trial);
+      }
+    }
+  }
+
+  // Times the VCG charges for every broker at 50 brokers with 200 balancing
+  // orders, by the walk the processor used to do and by the calculator,
+  // including building it, and reports ns per broker charge. The first half
+  // of the rounds are warm-up. Run with -Pbenchmark.
+  @Test
+  @Tag("benchmark")
+  public void benchmarkVcgCharges ()
+  {
+    Random random = new Random(17);
+    VcgInputs[] inputs = new VcgInputs[20];
+    for (int i = 0; i < inputs.length; i++) {
+      inputs[i] = new VcgInputs(random, 50, 200);
+    }
+    int rounds = 200;
+    long walkNanos = 0l;
+    long calculatorNanos = 0l;
+    int charges = 0;
+    double difference = 0.0;
+    for (int round = 0; round < rounds; round++) {
+      long start = System.nanoTime();
+      for (VcgInputs input : inputs) {
+        for (ChargeInfo info : input.infos) {
+          difference += walkVcgCharge(info, input.totalImbalance,
+                                      input.candidates, input.nonExercised);
+        }
+      }
+      long middle = System.nanoTime();
+      for (VcgInputs input : inputs) {
+        VcgCalculator vcg =
+            new VcgCalculator(input.candidates, input.nonExercised,
+                              input.totalImbalance, 1e-6);
+        for (ChargeInfo info : input.infos) {
+          difference -= vcg.getVcgCharge(info);
+        }
+      }
+      long end = System.nanoTime();
+      if (round >= rounds / 2) {
+        walkNanos += middle - start;
+        calculatorNanos += end - middle;
+        charges += inputs.length * 50;
+      }
+    }
+    // using the results also keeps the work from being optimized away
+    assertEquals(0.0, difference, 1e-6, "same charges");
+    log.info(String.format("VCG charge, 50 brokers x 200 orders: walk %.0f ns,"
+                           + " calculator %.0f ns, %.0f ns saved",
+                           (double) walkNanos / charges,
+                           (double) calculatorNanos / charges,
+                           (double) (walkNanos - calculatorNanos) / charges));
+  }
+
+  // Random candidate orders for one static settlement, exercised in order
+  // up to a random total imbalance
+  class VcgInputs
+  {
+    ChargeInfo[] infos;
+    TreeSet<StaticSettlementProcessor.BOWrapper> candidates;
+    SortedSet<StaticSettlementProcessor.BOWrapper> nonExercised;
+    double totalImbalance;
+
+    VcgInputs (Random random, int brokerCount, int orderCount)
+    {
+      double sgn = random.nextBoolean() ? 1.0 : -1.0;
+      infos = new ChargeInfo[brokerCount];
+      for (int i = 0; i < brokerCount; i++) {
+        infos[i] = new ChargeInfo(new Broker("R" + i), 0.0);
+      }
+      candidates =
+          new TreeSet<StaticSettlementProcessor.BOWrapper>(uut.new BOComparator());
+      for (int i = 0; i < orderCount; i++) {
+        BalancingOrder bo =
+            new BalancingOrder(b1, spec1, -sgn * 0.5,
+                               Math.round(random.nextDouble() * 20.0) / 200.0);
+        StaticSettlementProcessor.BOWrapper bow =
+            uut.new BOWrapper(infos[random.nextInt(brokerCount)], bo);
+        bow.availableCapacity =
+            (0 == random.nextInt(10)) ? 0.0 : -sgn * random.nextDouble() * 10.0;
+        candidates.add(bow);
+      }
+      double startX = 0.0;
+      int dummies = 1 + random.nextInt(3);
+      for (int i = 0; i < dummies; i++) {
+        double capacity = -sgn * random.nextDouble() * 20.0;
+        double slope = random.nextBoolean() ? 0.0 : random.nextDouble() / 100.0;
+        candidates.add(uut.new BOWrapper(capacity, random.nextDouble() / 10.0,
+                                         slope, startX));
+        startX += capacity;
+      }
+      totalImbalance = sgn * random.nextDouble() * orderCount * 2.0;
+      double remaining = totalImbalance;
+      for (StaticSettlementProcessor.BOWrapper bow : candidates) {
+        if (sgn * remaining <= 0.0)
+          break;
+        double exercise = Math.min(sgn * remaining, -sgn * bow.availableCapacity);
+        bow.exercisedCapacity = -sgn * exercise;
+        remaining -= sgn * exercise;
+      }
+      nonExercised = uut.determineNonExercisedSet(candidates);
+    }
+  }
+
+  // Reference VCG computation, walking the order sets
+  private double walkVcgCharge (ChargeInfo target, double totalImbalance,
+                                SortedSet<StaticSettlementProcessor.BOWrapper> candidates,
+                                SortedSet<StaticSettlementProcessor.BOWrapper> nonExercised)
+  {
+    double sgn = Math.signum(totalImbalance);
+    double remaining = 0.0;
+    for (StaticSettlementProcessor.BOWrapper bow : candidates) {
+      if (bow.availableCapacity != 0.0 && 0.0 == bow.exercisedCapacity)
+        break;
+      if (target == bow.info)
+        remaining += bow.exercisedCapacity;
+      if (Math.abs(bow.availableCapacity - bow.exercisedCapacity) > 0.0)
+        break;
+    }
+    double price = 0.0;
+    for (StaticSettlementProcessor.BOWrapper bow : nonExercised) {
+      if (Math.abs(remaining) < 1e-6)
+        break;
+      if (target != bow.info) {
+        double avail = bow.availableCapacity - bow.exercisedCapacity;
+        double used = sgn * Math.max(sgn * avail, sgn * remaining);
+        price += sgn * bow.getTotalNECost(used);
+        remaining -= used;
+      }
+    }
+    return -price;
+  }
+
   // --------------------------------------------------------
 
   class MockSettlementContext implements SettlementContext
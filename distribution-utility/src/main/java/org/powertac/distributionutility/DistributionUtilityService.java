@@ -33,7 +33,6 @@ import org.powertac.common.Broker;
 import org.powertac.common.Competition;
 import org.powertac.common.CustomerInfo.CustomerClass;
 import org.powertac.common.RandomSeed;
-import org.powertac.common.TariffSubscription;
 import org.powertac.common.TariffTransaction;
 import org.powertac.common.TariffTransaction.Type;
 import org.powertac.common.interfaces.TimeslotPhaseProcessor;
@@ -281,17 +280,11 @@ implements InitializationService
       int nLarge = 0;
       // meter charge is small-customers * mSmall + large customers * mLarge
       if (useMeterFee) {
-        // count up individual customers
-        List<TariffSubscription> subs =
-                tariffSubscriptionRepo.findActiveSubscriptionsForBroker(broker);
-        for (TariffSubscription sub: subs) {
-          if (CustomerClass.LARGE == sub.getCustomer().getCustomerClass()) {
-            nLarge += sub.getCustomersCommitted();
-          }
-          else {
-            nSmall += sub.getCustomersCommitted();
-          }
-        }
+        // individual customers are counted by the subscription repo
+        nLarge = tariffSubscriptionRepo
+                .getCommittedCustomerCount(broker, CustomerClass.LARGE);
+        nSmall = tariffSubscriptionRepo
+                .getCommittedCustomerCount(broker, CustomerClass.SMALL);
         distroCharge += nLarge * mLarge;
         distroCharge += nSmall * mSmall;
         log.info("Meter charges for {}: small={}, large={}, charge={}",
@@ -30,11 +30,9 @@ import org.powertac.common.Broker;
 import org.powertac.common.CapacityTransaction;
 import org.powertac.common.Competition;
 import org.powertac.common.CustomerInfo;
-import org.powertac.common.Rate;
 import org.powertac.common.CustomerInfo.CustomerClass;
 import org.powertac.common.Tariff;
 import org.powertac.common.TariffSpecification;
-import org.powertac.common.TariffSubscription;
 import org.powertac.common.TariffTransaction.Type;
 import org.powertac.common.TimeService;
 import org.powertac.common.repo.BootstrapDataRepo;
@@ -620,57 +618,20 @@ public class DistributionUtilityServiceTests
     setBootRecord();
     initializeService();
 
-    // broker 1 - two tariffs, four subscriptions, 30 small meters, 8 large.
-    TariffSpecification spec1a =
-            new TariffSpecification(broker1, PowerType.CONSUMPTION)
-            .addRate(new Rate().withValue(-0.11));
-    Tariff tariff1a = new Tariff(spec1a);
-    tariff1a.init();
-    TariffSubscription sub1a1 = new TariffSubscription(cust1, tariff1a);
-    sub1a1.setCustomersCommitted(10);
-    TariffSubscription sub1a2 = new TariffSubscription(cust2, tariff1a);
-    sub1a2.setCustomersCommitted(5);
-    TariffSpecification spec1b =
-            new TariffSpecification(broker1, PowerType.CONSUMPTION)
-            .addRate(new Rate().withValue(-0.11));
-    Tariff tariff1b = new Tariff(spec1b);
-    tariff1b.init();
-    TariffSubscription sub1b1 = new TariffSubscription(cust1, tariff1b);
-    sub1b1.setCustomersCommitted(20);
-    TariffSubscription sub1b2 = new TariffSubscription(cust2, tariff1b);
-    sub1b2.setCustomersCommitted(3);
-    List<TariffSubscription> subs1 =
-            Arrays.asList(sub1a1, sub1a2, sub1b1, sub1b2);
-
-    // broker 2, one tariff, 2 subs, 18 small, 7 large
-    TariffSpecification spec2a =
-            new TariffSpecification(broker2, PowerType.CONSUMPTION)
-            .addRate(new Rate().withValue(-0.11));
-    Tariff tariff2a = new Tariff(spec2a);
-    tariff2a.init();
-    TariffSubscription sub2a1 = new TariffSubscription(cust1, tariff2a);
-    sub2a1.setCustomersCommitted(18);
-    TariffSubscription sub2a2 = new TariffSubscription(cust2, tariff2a);
-    sub2a2.setCustomersCommitted(7);
-    List<TariffSubscription> subs2 = Arrays.asList(sub2a1, sub2a2);
-
-    // broker 3, one tariff, 15 large customers
-    TariffSpecification spec3a =
-            new TariffSpecification(broker2, PowerType.CONSUMPTION)
-            .addRate(new Rate().withValue(-0.11));
-    Tariff tariff3a = new Tariff(spec3a);
-    tariff3a.init();
-    TariffSubscription sub3a2 = new TariffSubscription(cust2, tariff3a);
-    sub3a2.setCustomersCommitted(15);
-    List<TariffSubscription> subs3 = Arrays.asList(sub3a2);
-
-    // return the subscriptions when asked
-    when(tariffSubscriptionRepo.findActiveSubscriptionsForBroker(broker1))
-    .thenReturn(subs1);
-    when(tariffSubscriptionRepo.findActiveSubscriptionsForBroker(broker2))
-    .thenReturn(subs2);
-    when(tariffSubscriptionRepo.findActiveSubscriptionsForBroker(broker3))
-    .thenReturn(subs3);
+    // broker 1 - 30 small meters, 8 large; broker 2 - 18 small, 22 large
+    // broker 3 has no subscriptions
+    when(tariffSubscriptionRepo
+         .getCommittedCustomerCount(broker1, CustomerClass.SMALL))
+    .thenReturn(30);
+    when(tariffSubscriptionRepo
+         .getCommittedCustomerCount(broker1, CustomerClass.LARGE))
+    .thenReturn(8);
+    when(tariffSubscriptionRepo
+         .getCommittedCustomerCount(broker2, CustomerClass.SMALL))
+    .thenReturn(18);
+    when(tariffSubscriptionRepo
+         .getCommittedCustomerCount(broker2, CustomerClass.LARGE))
+    .thenReturn(22);
 
     // capture transactions
     Map<Broker, Object[]> answers =
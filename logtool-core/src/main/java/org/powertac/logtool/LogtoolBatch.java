@@ -0,0 +1,489 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.logtool;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.powertac.logtool.ifc.Analyzer;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+/**
+ * Replays a batch of state logs, optionally several at a time. Each game
+ * gets its own Spring context built from logtool.xml, and so its own
+ * LogtoolCore, DomainObjectReader, DomainBuilder and repos, along with its
+ * own instances of the analyzers. Games run as tasks on a ForkJoinPool, so
+ * a thread that finishes a short game takes the next one rather than
+ * waiting for the others.
+ * <p>
+ * Usage: LogtoolBatch [-threads n] [-output dir] [-filter] source analyzer ...
+ * where source is a directory, in which case every state log in it is
+ * read, or a glob pattern in the last path element, such as
+ * logs/finals-*.state. By default games are replayed one at a time; with
+ * -threads 0 there is one thread per processor. Each analyzer is given an
+ * output file in the output directory named after the game and the
+ * analyzer class (see Analyzer.setOutputFile()). Analyzers that do not
+ * implement setOutputFile() write their usual output, which games
+ * replayed at the same time may overwrite. A line per game with its line count, elapsed
+ * time and throughput is written to batch-summary.csv in the output
+ * directory. With -filter, each game is replayed with class filtering on
+ * (see DomainObjectReader.setClassFilter()), so only the lines the
+ * analyzers need are replayed.</p>
+ * <p>
+ * Some state in the common domain classes is static, notably
+ * Competition.currentCompetition() and SpringApplicationContext. With more
+ * than one thread, each game is therefore replayed in a class loader of
+ * its own over the same class path, so that every game has its own copy
+ * of those classes and their statics. Only the JDK and the logging
+ * classes are shared. If the classes cannot be loaded that way, the game
+ * fails rather than share statics with the others.</p>
+ */
+public class LogtoolBatch
+{
+  static private Logger log = LogManager.getLogger(LogtoolBatch.class.getName());
+
+  static final String usage =
+      "Usage: LogtoolBatch [-threads n] [-output dir] [-filter] source analyzer ...\n"
+      + "  Replays one game at a time unless -threads is given, 0 for one per processor.\n"
+      + "  Analyzers that do not implement Analyzer.setOutputFile() write their\n"
+      + "  usual output, which games replayed at the same time may overwrite.";
+  static final String summaryFile = "batch-summary.csv";
+
+  private int threads = 1;
+  private File outputDir = new File(".");
+  private boolean classFilter = false;
+
+  // Spring context and analyzer creation is serialized
+  private Object setupLock = new Object();
+
+  /**
+   * Runs a batch from the command line.
+   */
+  public static void main (String[] args)
+  {
+    LogtoolBatch batch = new LogtoolBatch();
+
+    int exitCode = 0;
+    String error = batch.processCmdLine(args);
+
+    if (error != null) {
+      System.out.println(error);
+      exitCode = -1;
+    }
+    System.exit(exitCode);
+  }
+
+  /**
+   * Processes a command line, then replays the games it names. Returns
+   * null on success, or an error message.
+   */
+  public String processCmdLine (String[] args)
+  {
+    int index = 0;
+    while (index < args.length && args[index].startsWith("-")) {
+      if ("-filter".equals(args[index])) {
+        classFilter = true;
+        index += 1;
+        continue;
+      }
+      if (index + 1 >= args.length) {
+        return usage;
+      }
+      String option = args[index];
+      String value = args[index + 1];
+      if ("-threads".equals(option)) {
+        try {
+          threads = Integer.parseInt(value);
+        }
+        catch (NumberFormatException nfe) {
+          return "Bad thread count " + value;
+        }
+      }
+      else if ("-output".equals(option)) {
+        outputDir = new File(value);
+      }
+      else {
+        return "Unknown option " + option;
+      }
+      index += 2;
+    }
+    if (args.length - index < 2) {
+      return usage;
+    }
+    String source = args[index];
+    String[] tools = Arrays.copyOfRange(args, index + 1, args.length);
+    for (String tool : tools) {
+      try {
+        if (!Analyzer.class.isAssignableFrom(Class.forName(tool))) {
+          return "Class " + tool + " is not an Analyzer";
+        }
+      }
+      catch (ClassNotFoundException e) {
+        return "Cannot find analyzer class " + tool;
+      }
+    }
+    List<File> games = findGames(source);
+    if (games.isEmpty()) {
+      return "No state logs found in " + source;
+    }
+    if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+      return "Cannot create output directory " + outputDir.getPath();
+    }
+    return replayAll(games, tools);
+  }
+
+  /**
+   * Replays the given games with the named analyzers, returning null if
+   * all succeed.
+   */
+  public String replayAll (List<File> games, String... tools)
+  {
+    int poolSize = threads;
+    if (poolSize <= 0) {
+      poolSize = Runtime.getRuntime().availableProcessors();
+    }
+    boolean isolate = poolSize > 1;
+    log.info("Replaying {} games on {} threads", games.size(), poolSize);
+    ForkJoinPool pool = new ForkJoinPool(poolSize);
+    long start = System.nanoTime();
+    ArrayList<ForkJoinTask<GameResult>> tasks = new ArrayList<>();
+    for (File game : games) {
+      tasks.add(pool.submit(() -> isolate ? replayIsolated(game, tools)
+                                          : replay(game, tools)));
+    }
+    ArrayList<GameResult> results = new ArrayList<>();
+    for (ForkJoinTask<GameResult> task : tasks) {
+      results.add(task.join());
+    }
+    pool.shutdown();
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    long lines = 0l;
+    int failures = 0;
+    for (GameResult result : results) {
+      lines += result.lines;
+      if (!result.isOk()) {
+        failures += 1;
+      }
+    }
+    String report =
+        String.format("Read %d lines from %d games in %.1f sec, %.0f lines/sec",
+                      lines, results.size(), seconds,
+                      (seconds > 0.0) ? lines / seconds : 0.0);
+    log.info(report);
+    System.out.println(report);
+
+    try {
+      writeSummary(results, lines, seconds);
+    }
+    catch (FileNotFoundException fnf) {
+      return "Cannot write " + summaryFile + " in " + outputDir.getPath();
+    }
+    if (failures > 0) {
+      return failures + " of " + results.size()
+          + " games failed, see " + summaryFile;
+    }
+    return null;
+  }
+
+  // Replays one game in a fresh context. Errors are recorded in the
+  // result rather than thrown, so one bad log does not stop the batch.
+  GameResult replay (File game, String[] tools)
+  {
+    GameResult result = new GameResult(gameName(game));
+    ClassPathXmlApplicationContext context = null;
+    try {
+      Analyzer[] analyzers = new Analyzer[tools.length];
+      synchronized (setupLock) {
+        context = new ClassPathXmlApplicationContext("logtool.xml");
+        for (int i = 0; i < tools.length; i++) {
+          analyzers[i] = createAnalyzer(tools[i], context, result.game);
+        }
+      }
+      LogtoolCore core = (LogtoolCore) context.getBean("logtoolCore");
+      core.setClassFilter(classFilter);
+      log.info("Replaying {}", game.getPath());
+      long start = System.nanoTime();
+      String error = core.readStateLog(game, analyzers);
+      result.seconds = (System.nanoTime() - start) / 1e9;
+      result.lines = core.getLineCount();
+      if (null != error) {
+        log.error("Game {}: {}", result.game, error);
+        result.status = error;
+      }
+    }
+    catch (Exception ex) {
+      log.error("Game {}: {}", result.game, ex.toString());
+      result.status = ex.toString();
+    }
+    finally {
+      if (null != context) {
+        context.close();
+      }
+    }
+    return result;
+  }
+
+  // Replays one game with a copy of the batch classes in a class loader of
+  // its own, so that the statics of the domain classes, Spring and the
+  // analyzers belong to this game alone.
+  GameResult replayIsolated (File game, String[] tools)
+  {
+    GameResult result = new GameResult(gameName(game));
+    Thread thread = Thread.currentThread();
+    ClassLoader saved = thread.getContextClassLoader();
+    try (GameClassLoader loader =
+        new GameClassLoader(classPath(), LogtoolBatch.class.getClassLoader())) {
+      Class<?> batchClass = loader.loadClass(LogtoolBatch.class.getName());
+      if (batchClass.getClassLoader() != loader) {
+        result.status = "Cannot load a separate copy of the logtool classes,"
+            + " use -threads 1";
+        log.error("Game {}: {}", result.game, result.status);
+        return result;
+      }
+      // Spring loads the context's classes through the context class loader
+      thread.setContextClassLoader(loader);
+      Method replayGame =
+          batchClass.getDeclaredMethod("replayGame", String.class,
+                                       String[].class, String.class,
+                                       boolean.class);
+      replayGame.setAccessible(true);
+      Object[] outcome =
+          (Object[]) replayGame.invoke(null, game.getPath(), tools,
+                                       outputDir.getPath(), classFilter);
+      result.lines = (Long) outcome[0];
+      result.seconds = (Double) outcome[1];
+      result.status = (String) outcome[2];
+    }
+    catch (Exception ex) {
+      log.error("Game {}: {}", result.game, ex.toString());
+      result.status = ex.toString();
+    }
+    finally {
+      thread.setContextClassLoader(saved);
+    }
+    return result;
+  }
+
+  // Entry point for replayIsolated(), called on the copy of this class in
+  // the game's class loader. Returns the line count, time and status, as
+  // JDK types that both class loaders share.
+  static Object[] replayGame (String game, String[] tools, String outputDir,
+                              boolean classFilter)
+  {
+    LogtoolBatch batch = new LogtoolBatch();
+    batch.outputDir = new File(outputDir);
+    batch.classFilter = classFilter;
+    GameResult result = batch.replay(new File(game), tools);
+    return new Object[] {result.lines, result.seconds, result.status};
+  }
+
+  // the class path this class was loaded from
+  static URL[] classPath () throws MalformedURLException
+  {
+    ClassLoader loader = LogtoolBatch.class.getClassLoader();
+    if (loader instanceof URLClassLoader) {
+      return ((URLClassLoader) loader).getURLs();
+    }
+    String[] entries =
+        System.getProperty("java.class.path").split(File.pathSeparator);
+    URL[] result = new URL[entries.length];
+    for (int i = 0; i < entries.length; i++) {
+      result[i] = new File(entries[i]).toURI().toURL();
+    }
+    return result;
+  }
+
+  // Creates an analyzer and binds it to the game's context. Analyzers
+  // that find their context in their constructor, as NoopAnalyzer does,
+  // already have it, since context creation holds the setup lock.
+  private Analyzer createAnalyzer (String className,
+                                   ClassPathXmlApplicationContext context,
+                                   String game)
+  throws ReflectiveOperationException
+  {
+    Analyzer tool =
+        (Analyzer) Class.forName(className).getDeclaredConstructor().newInstance();
+    if (tool instanceof LogtoolContext) {
+      LogtoolContext toolContext = (LogtoolContext) tool;
+      if (toolContext.getContext() != context) {
+        toolContext.setContext(context);
+      }
+    }
+    String output =
+        game + "." + tool.getClass().getSimpleName() + ".data";
+    tool.setOutputFile(new File(outputDir, output).getPath());
+    return tool;
+  }
+
+  private void writeSummary (List<GameResult> results, long lines,
+                             double seconds)
+  throws FileNotFoundException
+  {
+    PrintWriter out = new PrintWriter(new File(outputDir, summaryFile));
+    out.println("game,lines,seconds,lines/sec,status");
+    for (GameResult result : results) {
+      out.format("%s,%d,%.3f,%.0f,%s%n", result.game, result.lines,
+                 result.seconds, result.getLinesPerSecond(),
+                 result.status.replace(',', ';'));
+    }
+    out.format("total,%d,%.3f,%.0f,%n", lines, seconds,
+               (seconds > 0.0) ? lines / seconds : 0.0);
+    out.close();
+  }
+
+  /**
+   * Returns the state logs named by source, sorted by name. If source is
+   * a directory, these are the files in it that look like state logs or
+   * game archives; otherwise the last element of source is taken as a
+   * glob pattern for files in its parent directory.
+   */
+  static List<File> findGames (String source)
+  {
+    ArrayList<File> result = new ArrayList<>();
+    File dir = new File(source);
+    PathMatcher matcher = null;
+    if (!dir.isDirectory()) {
+      matcher = FileSystems.getDefault().getPathMatcher("glob:" + dir.getName());
+      dir = dir.getAbsoluteFile().getParentFile();
+    }
+    File[] files = dir.listFiles();
+    if (null == files) {
+      return result;
+    }
+    for (File file : files) {
+      if (!file.isFile()) {
+        continue;
+      }
+      String name = file.getName();
+      if (null == matcher ? isStateLog(name)
+                          : matcher.matches(Paths.get(name))) {
+        result.add(file);
+      }
+    }
+    Collections.sort(result);
+    return result;
+  }
+
+  // state logs, possibly compressed, or archives that contain one
+  static boolean isStateLog (String name)
+  {
+    if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+      return true;
+    }
+    return name.contains(".state") && !name.contains("init.state");
+  }
+
+  // game name is the file name without its state-log and archive suffixes
+  static String gameName (File game)
+  {
+    return game.getName().replaceFirst("(\\.(state|tar|tgz|gz|bz2|xz))+$", "");
+  }
+
+  /**
+   * Loads classes from its own class path before asking its parent, so
+   * that each game has its own copy of them. The JDK and the logging
+   * classes come from the parent, so that all games log through the same
+   * configuration.
+   */
+  static class GameClassLoader extends URLClassLoader
+  {
+    static final String[] shared =
+        {"java.", "javax.", "jdk.", "sun.", "org.apache.logging.", "org.slf4j."};
+
+    GameClassLoader (URL[] urls, ClassLoader parent)
+    {
+      super(urls, parent);
+    }
+
+    @Override
+    protected Class<?> loadClass (String name, boolean resolve)
+    throws ClassNotFoundException
+    {
+      synchronized (getClassLoadingLock(name)) {
+        Class<?> result = findLoadedClass(name);
+        if (null == result && !isShared(name)) {
+          try {
+            result = findClass(name);
+          }
+          catch (ClassNotFoundException cnf) {
+            // not on our class path, try the parent
+          }
+        }
+        if (null == result) {
+          result = getParent().loadClass(name);
+        }
+        if (resolve) {
+          resolveClass(result);
+        }
+        return result;
+      }
+    }
+
+    static boolean isShared (String name)
+    {
+      for (String prefix : shared) {
+        if (name.startsWith(prefix)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Outcome of one game's replay
+   */
+  static class GameResult
+  {
+    final String game;
+    long lines = 0l;
+    double seconds = 0.0;
+    String status = "ok";
+
+    GameResult (String game)
+    {
+      super();
+      this.game = game;
+    }
+
+    boolean isOk ()
+    {
+      return "ok".equals(status);
+    }
+
+    double getLinesPerSecond ()
+    {
+      return (seconds > 0.0) ? lines / seconds : 0.0;
+    }
+  }
+}
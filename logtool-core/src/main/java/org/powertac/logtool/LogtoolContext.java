@@ -55,6 +55,9 @@ public abstract class LogtoolContext
       log.debug("New context " + context.getClass().getName());
     }
     this.context = context;
+    // beans from the old context no longer apply
+    core = null;
+    dor = null;
     // register handlers
     registerMessageHandlers();
   }
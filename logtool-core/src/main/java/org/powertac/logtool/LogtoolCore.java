@@ -40,17 +40,19 @@ import org.apache.commons.compress.archivers.ArchiveStreamFactory;
 import org.apache.commons.compress.compressors.CompressorException;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
 import org.apache.logging.log4j.LogManager;
+import org.powertac.common.BinaryStateLog;
 import org.powertac.common.Competition;
 import org.powertac.common.msg.SimEnd;
 import org.powertac.common.msg.SimStart;
 import org.powertac.common.repo.DomainRepo;
-import org.powertac.common.spring.SpringApplicationContext;
 import org.powertac.logtool.common.DomainObjectReader;
+import org.powertac.logtool.common.DomainObjectReader.LogLine;
 import org.powertac.logtool.common.MissingDomainObject;
 import org.powertac.logtool.common.DomainBuilder;
 import org.powertac.logtool.common.NewObjectListener;
 import org.powertac.logtool.ifc.Analyzer;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Service;
 
 /**
@@ -69,8 +71,14 @@ public class LogtoolCore
   @Autowired
   private DomainBuilder builder;
 
+  @Autowired
+  private ApplicationContext context;
+
   private boolean simEnd = false;
   private boolean isInterrupted = false;
+  private long lineCount = 0;
+  private LogLine currentLine = null;
+  private boolean pipelined = true;
 
   static private CompressorStreamFactory compressFactory = new CompressorStreamFactory();
   static private ArchiveStreamFactory archiveFactory = new ArchiveStreamFactory();
@@ -98,6 +106,34 @@ public class LogtoolCore
     reader.setTimeslotPause(msec);
   }
 
+  /**
+   * Turns pipelined reading on or off. When it is on, the default, lines
+   * are read and tokenized on their own threads while objects are built
+   * and listeners called on the caller's thread, in log order.
+   */
+  public void setPipelined (boolean value)
+  {
+    pipelined = value;
+  }
+
+  /**
+   * Turns class filtering on or off; see
+   * DomainObjectReader.setClassFilter(). When it is on, lines for classes
+   * that no listener needs are counted but not replayed.
+   */
+  public void setClassFilter (boolean value)
+  {
+    reader.setClassFilter(value);
+  }
+
+  /**
+   * Returns the number of lines read from the most recent state log.
+   */
+  public long getLineCount ()
+  {
+    return lineCount;
+  }
+
   /**
    * Processes a command line, providing a state-log file from the local
    * filesystem, or a remote URL.
@@ -157,10 +193,13 @@ public class LogtoolCore
    */
   public String readStateLog (File inputFile, Analyzer... tools)
   {
-    try{
-      return readStateLog(new FileInputStream(inputFile), tools);
+    // close the file when done, since a batch may read many of them
+    try (InputStream input = new FileInputStream(inputFile)) {
+      return readStateLog(input, tools);
     } catch (FileNotFoundException e) {
       return "Cannot open file " + inputFile.getPath();
+    } catch (IOException e) {
+      return "Error reading from stream";
     }
   }
 
@@ -182,80 +221,56 @@ public class LogtoolCore
   public String readStateLog (InputStream inputStream, Analyzer... tools)
   {
     Reader inputReader;
-    String line = null;
 
     log.info("Reading state log from stream for {}",
              tools[0].getClass().getName());
     simEnd = false;
     isInterrupted = false;
+    lineCount = 0;
+    currentLine = null;
+    reader.resetSkippedLines();
 
     try {
-      // Stack compression logic if appropriate
-      try {
-        if (!inputStream.markSupported()) {
-          inputStream = new BufferedInputStream(inputStream);
-        }
-        inputStream = compressFactory.createCompressorInputStream(inputStream);
-      } catch (CompressorException x) {
-        // Stream not compressed (or unknown compression scheme)
+      inputStream = unwrap(inputStream);
+      if (inputStream == null) {
+        return "Cannot read archive, no valid state log entry";
       }
 
-      // Stack archive logic if appropriate
-      try {
-        if (!inputStream.markSupported()) {
-          inputStream = new BufferedInputStream(inputStream);
-        }
-        ArchiveInputStream archiveStream = archiveFactory.createArchiveInputStream(inputStream);
-        ArchiveEntry entry;
-        inputStream = null;
-        while ((entry = archiveStream.getNextEntry()) != null) {
-          String name = entry.getName();
-          if (entry.isDirectory() || !name.startsWith("log/")
-                  || !name.endsWith(".state") || name.endsWith("init.state")) {
-            continue;
-          }
-          inputStream = archiveStream;
-          break;
-        }
-        if (inputStream == null) {
-          return "Cannot read archive, no valid state log entry";
-        }
-      } catch (ArchiveException x) {
-        // Stream not archived (or unknown archiving scheme)
+      // Recycle repos from previous session. These come from our own
+      // context, which need not be the one SpringApplicationContext holds
+      // when several games are read at once.
+      for (DomainRepo repo :
+           context.getBeansOfType(DomainRepo.class).values()) {
+        repo.recycle();
       }
 
-      // Recycle repos from previous session
-      List<DomainRepo> repos =
-          SpringApplicationContext.listBeansOfType(DomainRepo.class);
-        for (DomainRepo repo : repos) {
-          repo.recycle();
-        }
-
       // Now go read the state-log
-      inputReader = new InputStreamReader(inputStream);
       for (Analyzer tool: tools) {
         log.info("Setting up {}", tool.getClass().getName());
         tool.setup();
       }
-      BufferedReader in = new BufferedReader(inputReader);
-      // extract schema, hand it off to the reader
-      reader.setSchema(extractSchema(in));
-      
-      int lineNumber = 0;
-      while (!simEnd) {
-        synchronized(this) {
-          if (isInterrupted) {
-            in.close();
-            break;
-          }
+      if (BinaryStateLog.isBinary(inputStream)) {
+        log.info("Reading binary state log");
+        StateLogReader in = new StateLogReader(inputStream);
+        reader.setSchema(extractSchema(in));
+        replay(in);
+      }
+      else {
+        inputReader = new InputStreamReader(inputStream);
+        BufferedReader in = new BufferedReader(inputReader);
+        // extract schema, hand it off to the reader
+        reader.setSchema(extractSchema(in));
+
+        if (pipelined) {
+          replayPipelined(in);
         }
-        line = in.readLine();
-        if (null == line) {
-          log.info("Last line " + lineNumber);
-          break;
+        else {
+          replay(in);
         }
-        lineNumber += 1;
-        reader.readObject(line);
+      }
+      if (reader.isClassFilter()) {
+        log.info("Class filter skipped {} of {} lines",
+                 reader.getSkippedLines(), lineCount);
       }
       builder.report();
       for (Analyzer tool: tools) {
@@ -266,11 +281,137 @@ public class LogtoolCore
       return "Error reading from stream";
     }
     catch (MissingDomainObject e) {
-      return "MDO on " + line;
+      return "MDO on " + (null == currentLine ? null : currentLine.getText());
     }
     return null;
   }
 
+  /**
+   * Strips compression from a state-log stream, and if it is a game
+   * archive, finds the state log within it. Returns null for an archive
+   * that has no state log. The result supports mark() and reset().
+   */
+  static InputStream unwrap (InputStream inputStream) throws IOException
+  {
+    // Stack compression logic if appropriate
+    try {
+      if (!inputStream.markSupported()) {
+        inputStream = new BufferedInputStream(inputStream);
+      }
+      inputStream = compressFactory.createCompressorInputStream(inputStream);
+    } catch (CompressorException x) {
+      // Stream not compressed (or unknown compression scheme)
+    }
+
+    // Stack archive logic if appropriate
+    try {
+      if (!inputStream.markSupported()) {
+        inputStream = new BufferedInputStream(inputStream);
+      }
+      ArchiveInputStream archiveStream = archiveFactory.createArchiveInputStream(inputStream);
+      ArchiveEntry entry;
+      inputStream = null;
+      while ((entry = archiveStream.getNextEntry()) != null) {
+        String name = entry.getName();
+        if (entry.isDirectory() || !name.startsWith("log/")
+                || !(name.endsWith(".state") || name.endsWith(BinaryStateLog.SUFFIX))
+                || name.endsWith("init.state")
+                || name.endsWith("init" + BinaryStateLog.SUFFIX)) {
+          continue;
+        }
+        inputStream = archiveStream;
+        break;
+      }
+      if (inputStream == null) {
+        return null;
+      }
+    } catch (ArchiveException x) {
+      // Stream not archived (or unknown archiving scheme)
+    }
+    if (!inputStream.markSupported()) {
+      inputStream = new BufferedInputStream(inputStream);
+    }
+    return inputStream;
+  }
+
+  // Reads and replays lines one at a time until SimEnd
+  private void replay (BufferedReader in)
+  throws IOException, MissingDomainObject
+  {
+    while (!simEnd) {
+      if (interrupted()) {
+        in.close();
+        break;
+      }
+      String line = in.readLine();
+      if (null == line) {
+        log.info("Last line " + lineCount);
+        break;
+      }
+      lineCount += 1;
+      currentLine = reader.tokenize(line);
+      reader.readObject(currentLine);
+    }
+  }
+
+  // Replays the records of a binary state log until SimEnd
+  private void replay (StateLogReader in)
+  throws IOException, MissingDomainObject
+  {
+    while (!simEnd) {
+      if (interrupted()) {
+        in.close();
+        break;
+      }
+      currentLine = in.next();
+      if (null == currentLine) {
+        log.info("Last line " + lineCount);
+        break;
+      }
+      lineCount += 1;
+      reader.readObject(currentLine);
+    }
+  }
+
+  // Replays lines read and tokenized by a StateLogPipeline, stopping at
+  // SimEnd just as replay() does
+  private void replayPipelined (BufferedReader in)
+  throws IOException, MissingDomainObject
+  {
+    StateLogPipeline pipeline = new StateLogPipeline(in, reader);
+    pipeline.start();
+    try {
+      List<LogLine> batch;
+      while (!simEnd && null != (batch = pipeline.next())) {
+        for (LogLine line : batch) {
+          if (simEnd) {
+            return;
+          }
+          if (interrupted()) {
+            // stop reading before closing the input under the reader
+            pipeline.stop();
+            in.close();
+            return;
+          }
+          currentLine = line;
+          lineCount += 1;
+          reader.readObject(line);
+        }
+      }
+      if (!simEnd) {
+        log.info("Last line " + lineCount);
+      }
+    }
+    finally {
+      pipeline.stop();
+    }
+  }
+
+  private synchronized boolean interrupted ()
+  {
+    return isInterrupted;
+  }
+
   public synchronized void interrupt() {
     isInterrupted = true;
   }
@@ -278,20 +419,39 @@ public class LogtoolCore
   private HashMap<String, String[]> extractSchema (BufferedReader input)
   throws IOException
   {
-    HashMap<String, String[]> result = new HashMap<>();
-    BufferedReader schema = input;
-    int offset = 1; // embedded schema has msec field first
-    schema.mark(64);
-    String line = schema.readLine();
+    input.mark(64);
+    String line = input.readLine();
     if (line.indexOf("Domain-schema") == -1) {
       // pull in default schema for older logs
-      schema.reset();
-      InputStream defaultStream =
-              Competition.class.getClassLoader().getResourceAsStream("metadata/domain-default.schema");
-      schema = new BufferedReader(new InputStreamReader(defaultStream));
-      offset = 0;
+      input.reset();
+      return readSchema(defaultSchema()::readLine, 0);
+    }
+    return readSchema(input::readLine, 1); // embedded schema has msec field first
+  }
+
+  private HashMap<String, String[]> extractSchema (StateLogReader input)
+  throws IOException
+  {
+    String line = input.readLine();
+    if (null == line || line.indexOf("Domain-schema") == -1) {
+      input.unread();
+      return readSchema(defaultSchema()::readLine, 0);
     }
-    line = schema.readLine();
+    return readSchema(input::readLine, 1);
+  }
+
+  private BufferedReader defaultSchema ()
+  {
+    InputStream defaultStream =
+            Competition.class.getClassLoader().getResourceAsStream("metadata/domain-default.schema");
+    return new BufferedReader(new InputStreamReader(defaultStream));
+  }
+
+  private HashMap<String, String[]> readSchema (LineSource schema, int offset)
+  throws IOException
+  {
+    HashMap<String, String[]> result = new HashMap<>();
+    String line = schema.readLine();
     if (!line.startsWith("Domain-schema")) {
       log.error("Bad default schema: {}", line);
       return result;
@@ -306,6 +466,12 @@ public class LogtoolCore
     return result;
   }
 
+  // source of schema lines, from a text or binary log
+  interface LineSource
+  {
+    String readLine () throws IOException;
+  }
+
   class SimStartHandler implements NewObjectListener
   {
     @Override
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.logtool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.powertac.common.BinaryStateLog;
+import org.powertac.common.BinaryStateLogWriter;
+
+/**
+ * Converts a text state log to the binary form described in
+ * BinaryStateLog, which LogtoolCore reads in place of the text log. The
+ * input may be compressed, or a game archive, as for Logtool. The output
+ * is compressed with gzip if its name ends in .gz.
+ * <p>
+ * Usage: StateLogConverter input [output]<br>
+ * where the output defaults to the input's name with its state-log and
+ * compression suffixes replaced by .bstate</p>
+ */
+public class StateLogConverter
+{
+  static private Logger log = LogManager.getLogger(StateLogConverter.class.getName());
+
+  private long lines = 0l;
+
+  /**
+   * Converts the log named on the command line.
+   */
+  public static void main (String[] args)
+  {
+    if (args.length < 1 || args.length > 2) {
+      System.out.println("Usage: StateLogConverter input [output]");
+      System.exit(-1);
+    }
+    File input = new File(args[0]);
+    File output = (args.length == 2) ? new File(args[1])
+        : new File(input.getParentFile(),
+                   LogtoolBatch.gameName(input) + BinaryStateLog.SUFFIX);
+    String error = new StateLogConverter().convert(input, output);
+    if (null != error) {
+      System.out.println(error);
+      System.exit(-1);
+    }
+    System.exit(0);
+  }
+
+  /**
+   * Converts input to output. Returns null on success, or an error
+   * message.
+   */
+  public String convert (File input, File output)
+  {
+    lines = 0l;
+    try (InputStream raw = new FileInputStream(input)) {
+      InputStream stream = LogtoolCore.unwrap(raw);
+      if (null == stream) {
+        return "Cannot read archive, no valid state log entry";
+      }
+      if (BinaryStateLog.isBinary(stream)) {
+        return input.getPath() + " is already a binary state log";
+      }
+      OutputStream out = new FileOutputStream(output);
+      if (output.getName().endsWith(".gz")) {
+        out = new GZIPOutputStream(out, 1 << 16);
+      }
+      BufferedReader in = new BufferedReader(new InputStreamReader(stream));
+      try (BinaryStateLogWriter writer = new BinaryStateLogWriter(out)) {
+        String line;
+        while (null != (line = in.readLine())) {
+          writer.writeLine(line);
+          lines += 1;
+        }
+      }
+    }
+    catch (IOException ioe) {
+      return "Error converting " + input.getPath() + ": " + ioe.toString();
+    }
+    String report =
+        String.format("Converted %d lines, %d bytes to %d bytes (%.1f%%)",
+                      lines, input.length(), output.length(),
+                      100.0 * output.length() / Math.max(1l, input.length()));
+    log.info(report);
+    System.out.println(report);
+    return null;
+  }
+
+  /**
+   * Returns the number of lines converted by the last call to convert().
+   */
+  public long getLineCount ()
+  {
+    return lines;
+  }
+}
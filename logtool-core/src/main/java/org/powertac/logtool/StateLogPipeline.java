@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.logtool;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.powertac.logtool.common.DomainObjectReader;
+import org.powertac.logtool.common.DomainObjectReader.LogLine;
+
+/**
+ * Reads and tokenizes state-log lines ahead of the thread that replays
+ * them. One thread reads lines from the (possibly decompressing) input,
+ * a second splits them with DomainObjectReader.tokenize(), and the caller
+ * takes the tokenized lines with next() and builds objects from them.
+ * Stages are connected by bounded queues of line batches, so neither
+ * producer runs far ahead of the caller, and each queue has a single
+ * producer and a single consumer, so lines arrive in log order. Whatever
+ * ends a stage, including an unchecked exception or an Error, it marks
+ * the end of its output, so the stages after it never wait on it.
+ */
+class StateLogPipeline
+{
+  // lines per batch, and batches per queue
+  static final int batchSize = 256;
+  static final int queueDepth = 16;
+
+  private BufferedReader input;
+  private DomainObjectReader reader;
+
+  // an empty batch marks the end of the input
+  private ArrayBlockingQueue<List<String>> lines =
+      new ArrayBlockingQueue<>(queueDepth);
+  private ArrayBlockingQueue<List<LogLine>> tokens =
+      new ArrayBlockingQueue<>(queueDepth);
+
+  private Thread readThread;
+  private Thread tokenizeThread;
+  private volatile boolean stopped = false;
+  private volatile Throwable failure = null;
+  private boolean finished = false;
+
+  StateLogPipeline (BufferedReader input, DomainObjectReader reader)
+  {
+    super();
+    this.input = input;
+    this.reader = reader;
+  }
+
+  /**
+   * Starts the read and tokenize threads.
+   */
+  void start ()
+  {
+    readThread = new Thread(this::readLines, "logtool-read");
+    tokenizeThread = new Thread(this::tokenizeLines, "logtool-tokenize");
+    readThread.setDaemon(true);
+    tokenizeThread.setDaemon(true);
+    readThread.start();
+    tokenizeThread.start();
+  }
+
+  /**
+   * Returns the next batch of tokenized lines, or null at the end of the
+   * input. Rethrows a failure in the read or tokenize stage once the
+   * lines before it have been returned.
+   */
+  List<LogLine> next () throws IOException
+  {
+    if (finished) {
+      return null;
+    }
+    List<LogLine> batch;
+    try {
+      batch = tokens.take();
+    }
+    catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted reading state log");
+    }
+    if (batch.isEmpty()) {
+      finished = true;
+      Throwable thr = failure;
+      if (null == thr) {
+        return null;
+      }
+      if (thr instanceof IOException) {
+        throw (IOException) thr;
+      }
+      if (thr instanceof RuntimeException) {
+        throw (RuntimeException) thr;
+      }
+      if (thr instanceof Error) {
+        throw (Error) thr;
+      }
+      throw new IOException("Failed reading state log", thr);
+    }
+    return batch;
+  }
+
+  /**
+   * Stops the read and tokenize threads, discarding anything they have
+   * not yet handed over. Must be called once the caller stops taking
+   * batches, whether or not the input is exhausted.
+   */
+  void stop ()
+  {
+    stopped = true;
+    readThread.interrupt();
+    tokenizeThread.interrupt();
+  }
+
+  // stage 1: read lines from the input
+  private void readLines ()
+  {
+    ArrayList<String> batch = null;
+    try {
+      batch = new ArrayList<>(batchSize);
+      String line;
+      while (!stopped && null != (line = input.readLine())) {
+        batch.add(line);
+        if (batch.size() == batchSize) {
+          ArrayList<String> full = batch;
+          batch = new ArrayList<>(batchSize);
+          lines.put(full);
+        }
+      }
+    }
+    catch (InterruptedException ie) {
+      // stopped
+    }
+    catch (Throwable thr) {
+      // an IOException after stop() comes from closing the input
+      if (!stopped) {
+        fail(thr);
+      }
+    }
+    finally {
+      // lines read before the end of the input or a failure go first
+      if (null != batch && !batch.isEmpty()) {
+        hand(lines, batch);
+      }
+      finish(lines);
+    }
+  }
+
+  // stage 2: split lines into tokens and parse ids
+  private void tokenizeLines ()
+  {
+    try {
+      while (true) {
+        List<String> batch = lines.take();
+        if (batch.isEmpty()) {
+          break;
+        }
+        ArrayList<LogLine> result = new ArrayList<>(batch.size());
+        for (String line : batch) {
+          result.add(reader.tokenize(line));
+        }
+        tokens.put(result);
+      }
+    }
+    catch (InterruptedException ie) {
+      // stopped
+    }
+    catch (Throwable thr) {
+      fail(thr);
+    }
+    finally {
+      finish(tokens);
+    }
+  }
+
+  // keeps the first failure, which is the one the caller sees
+  private synchronized void fail (Throwable thr)
+  {
+    if (null == failure) {
+      failure = thr;
+    }
+  }
+
+  // marks the end of a stage's output, unless the pipeline is stopped and
+  // nobody will take it. The marker is shared, so this works even when
+  // the stage failed for lack of memory.
+  private <T> void finish (ArrayBlockingQueue<List<T>> queue)
+  {
+    hand(queue, Collections.<T>emptyList());
+  }
+
+  // passes a batch on, unless the pipeline is stopped
+  private <T> void hand (ArrayBlockingQueue<List<T>> queue, List<T> batch)
+  {
+    if (stopped) {
+      return;
+    }
+    try {
+      queue.put(batch);
+    }
+    catch (InterruptedException ie) {
+      // stopped
+    }
+  }
+}
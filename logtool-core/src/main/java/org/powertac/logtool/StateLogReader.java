@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.logtool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.powertac.common.BinaryStateLogReader;
+import org.powertac.logtool.common.DomainObjectReader.LogLine;
+
+/**
+ * Reads a binary state log, written by BinaryStateLogWriter or
+ * StateLogConverter, as a sequence of LogLines for DomainObjectReader.
+ * Numeric fields come out of the log as Longs and Doubles, so they are
+ * not parsed from text again. LogtoolCore.readStateLog() uses this reader
+ * for any stream that starts with the binary header, so analyzers and
+ * listeners see the same objects, in the same order, as they would from
+ * the text log.
+ */
+public class StateLogReader implements Closeable
+{
+  private BinaryStateLogReader records;
+
+  // true if the current record has been put back
+  private boolean unread = false;
+
+  /**
+   * Creates a reader on the given stream, which must start with the
+   * binary state-log header.
+   */
+  public StateLogReader (InputStream input) throws IOException
+  {
+    super();
+    records = new BinaryStateLogReader(input);
+  }
+
+  /**
+   * Returns the next line of the log, or null at the end.
+   */
+  public LogLine next () throws IOException
+  {
+    if (!advance()) {
+      return null;
+    }
+    return LogLine.fromFields(records.getPrefix(), records.getFields());
+  }
+
+  /**
+   * Returns the next line of the log as text, or null at the end. Used for
+   * the schema at the head of the log.
+   */
+  String readLine () throws IOException
+  {
+    if (!advance()) {
+      return null;
+    }
+    return records.getLine();
+  }
+
+  /**
+   * Puts back the line just read, so the next call returns it again.
+   */
+  void unread ()
+  {
+    unread = true;
+  }
+
+  @Override
+  public void close () throws IOException
+  {
+    records.close();
+  }
+
+  private boolean advance () throws IOException
+  {
+    if (unread) {
+      unread = false;
+      return null != records.getFields();
+    }
+    return records.next();
+  }
+}
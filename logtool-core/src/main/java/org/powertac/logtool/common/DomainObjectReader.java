@@ -15,9 +15,8 @@
  */
 package org.powertac.logtool.common;
 
-import static org.powertac.util.MessageDispatcher.dispatch;
-
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -29,10 +28,15 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import org.joda.time.Instant;
+import org.powertac.common.Competition;
+import org.powertac.util.HandlerTable;
 import org.powertac.common.TimeService;
 import org.powertac.common.enumerations.PowerType;
 import org.powertac.common.msg.BalanceReport;
@@ -78,6 +82,31 @@ public class DomainObjectReader
   //per-timeslot pause in msec"
   private int timeslotPause = 0;
 
+  // Decoding state, built as classes are first seen in the log: classes by
+  // name, candidate constructors and methods by class, name and arity,
+  // argument parsers by type, and readResolve fields by class. Later lines
+  // for the same class reuse these rather than repeating the reflective
+  // lookups.
+  private Pattern separator = Pattern.compile("::");
+  private HashMap<String, Class<?>> classes = new HashMap<>();
+  private HashSet<String> unknownClasses = new HashSet<>();
+  private HashMap<CandidateKey, Candidates> candidates = new HashMap<>();
+  private HashMap<Type, ArgParser> parsers = new HashMap<>();
+  private HashMap<Class<?>, Restorer> restorers = new HashMap<>();
+  private HashMap<Class<?>, Method> setIdMethods = new HashMap<>();
+  private HandlerTable messageHandlers = new HandlerTable("handleMessage");
+
+  // Class filtering state. The needed types are worked out from the
+  // listeners when the first line is read after they change; each class
+  // seen in the log is then checked against them once. Names of skipped
+  // classes are shared with tokenize(), which may run on another thread.
+  private boolean classFilter = false;
+  private HashSet<Class<?>> requiredClasses = new HashSet<>();
+  private HashSet<Class<?>> neededTypes = null;
+  private HashMap<Class<?>, Boolean> neededClasses = new HashMap<>();
+  private Set<String> skippedClassNames = ConcurrentHashMap.newKeySet();
+  private long skippedLines = 0l;
+
   /**
    * Default constructor
    */
@@ -118,6 +147,11 @@ public class DomainObjectReader
     noIdTypes.add(SimStart.class);
     noIdTypes.add(SimEnd.class);
 
+    // classes read whatever the listeners need: the clock, and the
+    // competition that analyzers find through Competition.currentCompetition()
+    requiredClasses.add(TimeService.class);
+    requiredClasses.add(Competition.class);
+
     // set up listener list
     newObjectListeners = new HashMap<Class<?>, ArrayList<NewObjectListener>>();
     messageListeners = new HashMap<Class<?>, ArrayList<LogtoolContext>>();
@@ -150,11 +184,12 @@ public class DomainObjectReader
       newObjectListeners.put(type, list);
     }
     list.add(listener);
+    neededTypes = null;
   }
 
   /**
-   * Registers the given LogtoolContext as a messageListener. Incoming messages
-   * must be dispatched using util.MessageDispatcher
+   * Registers the given LogtoolContext as a messageListener. New objects
+   * are dispatched to its handleMessage() methods by exact type.
    */
   public void registerMessageListener (LogtoolContext listener, Class<?> type)
   {
@@ -164,6 +199,7 @@ public class DomainObjectReader
       messageListeners.put(type, list);
     }
     list.add(listener);
+    neededTypes = null;
   }
   
   /**
@@ -172,6 +208,60 @@ public class DomainObjectReader
   public void setSchema (HashMap<String, String[]> schema)
   {
     this.schema = schema;
+    restorers.clear();
+    neededTypes = null;
+  }
+
+  /**
+   * Turns class filtering on or off. When it is on, lines are read only
+   * for classes that listeners need: the types of registered
+   * NewObjectListeners and message listeners, the domain types those refer
+   * to through their constructor and method parameters and their
+   * readResolve fields, transitively, and any classes added with
+   * addRequiredClass(). Lines for other classes are dropped once their
+   * class is known, without splitting the rest of the line or building
+   * anything. A NewObjectListener registered for a null type needs every
+   * class, and turns filtering off.
+   * <p>
+   * Filtering is off by default. It cannot see references that are not in
+   * these signatures, such as lookups in repos or other static state from
+   * within domain classes; an analyzer that depends on objects it reaches
+   * that way should add their classes with addRequiredClass().</p>
+   */
+  public void setClassFilter (boolean value)
+  {
+    classFilter = value;
+    neededTypes = null;
+    skippedClassNames.clear();
+  }
+
+  public boolean isClassFilter ()
+  {
+    return classFilter;
+  }
+
+  /**
+   * Adds a class, and so its subclasses and the types they refer to, to
+   * the classes read when class filtering is on.
+   */
+  public void addRequiredClass (Class<?> type)
+  {
+    requiredClasses.add(type);
+    neededTypes = null;
+  }
+
+  /**
+   * Returns the number of lines dropped by class filtering since the last
+   * call to resetSkippedLines().
+   */
+  public long getSkippedLines ()
+  {
+    return skippedLines;
+  }
+
+  public void resetSkippedLines ()
+  {
+    skippedLines = 0l;
   }
 
   /**
@@ -189,37 +279,64 @@ public class DomainObjectReader
   public Object readObject (String line)
   throws MissingDomainObject
   {
-    log.debug("readObject(" + line + ")");
-    String body = line.substring(line.indexOf(':') + 1);
-    String[] tokens = body.split("::");
-    Class<?> clazz;
-    if (ignores.contains(tokens[0])) {
-      //log.info("ignoring " + tokens[0]);
+    return readObject(tokenize(line));
+  }
+
+  /**
+   * Splits a line from the log into its fields and parses its id, without
+   * constructing anything. Lines of classes that class filtering has
+   * already skipped are only read as far as the class. The only state this
+   * shares with readObject() is the thread-safe set of skipped classes, so
+   * lines may be tokenized on one thread and read on another, as long as
+   * they are read in log order.
+   */
+  public LogLine tokenize (String line)
+  {
+    int start = line.indexOf(':') + 1;
+    if (!skippedClassNames.isEmpty()) {
+      // read just the class, and leave the rest of a skipped line alone
+      int end = line.indexOf("::", start);
+      String className =
+          (end < 0) ? line.substring(start) : line.substring(start, end);
+      if (skippedClassNames.contains(className)) {
+        return new LogLine(line, className);
+      }
+    }
+    return new LogLine(line, null, separator.split(line.substring(start)));
+  }
+
+  /**
+   * Converts a tokenized line from the log to an object.
+   * @see #readObject(String)
+   */
+  public Object readObject (LogLine line)
+  throws MissingDomainObject
+  {
+    log.debug("readObject({})", line.text);
+    String className = line.className;
+    if (ignores.contains(className)) {
+      //log.info("ignoring " + className);
       return null;
     }
-    try {
-      clazz = Class.forName(tokens[0]);
+    Class<?> clazz = findClass(className);
+    if (null == clazz)
+      return null;
+    if (classFilter && !isNeeded(clazz)) {
+      skippedClassNames.add(className);
+      skippedLines += 1;
+      return null;
     }
-    catch (ClassNotFoundException e) {
-      Class<?> subst = substitutes.get(tokens[0]);
-      if (null == subst) {
-        log.warn("class " + tokens[0] + " not found");
-        return null;
-      }
-      else {
-        clazz = subst;
-        //log.info("substituting " + clazz.getName() + " for " + tokens[0]);
-      }
+    if (null == line.fields) {
+      // the class was skipped when the line was tokenized, but is needed now
+      String text = line.text;
+      line.setFields(separator.split(text.substring(text.indexOf(':') + 1)));
     }
 
-    long id = -1;
-    try {
-      id = Long.parseLong(tokens[1]);
-    }
-    catch (NumberFormatException nfe) {
+    long id = line.id;
+    if (!line.hasId) {
       if (clazz == TimeService.class) {
         // normal case - timeService does not have an id
-        updateTime(tokens[3]);
+        updateTime(line.fields[3].toString());
         return null;
       }
       else if (noIdTypes.contains(clazz)) {
@@ -230,8 +347,9 @@ public class DomainObjectReader
         return null;
       }
     }
-    String methodName = tokens[2];
+    String methodName = line.methodName;
     log.debug("methodName=" + methodName);
+    Object[] args = line.args;
     if (methodName.equals("new")) {
       // maybe pause before handling TimeslotUpdate msg
       if (clazz == TimeslotUpdate.class && timeslotPause > 0) {
@@ -243,28 +361,24 @@ public class DomainObjectReader
         }
       }
       // constructor
-      Object newInst =
-              constructInstance(clazz, Arrays.copyOfRange(tokens, 3,
-                                                          tokens.length));
+      Object newInst = constructInstance(clazz, args);
       if (null != newInst) {
         if (!noIdTypes.contains(clazz)) {
           setId(newInst, id);
           idMap.put(id, newInst);
         }
-        log.debug("Created new instance " + id + " of class " + tokens[0]);
+        log.debug("Created new instance " + id + " of class " + className);
         fireNewObjectEvent(newInst);
       }
       return newInst;
     }
     else if (methodName.equals("-rr")) {
       // readResolve
-      Object newInst =
-              restoreInstance(clazz, Arrays.copyOfRange(tokens, 3,
-                                                        tokens.length));
+      Object newInst = restoreInstance(clazz, args);
       if (null != newInst) {
         setId(newInst, id);
         idMap.put(id, newInst);
-        log.debug("Restored instance " + id + " of class " + tokens[0]);
+        log.debug("Restored instance " + id + " of class " + className);
         fireNewObjectEvent(newInst);
       }
       return newInst;      
@@ -277,23 +391,17 @@ public class DomainObjectReader
                  + " of type " + clazz.getCanonicalName());
         return null;
       }
-      Method[] methods = clazz.getMethods();
-      ArrayList<Method> candidates = new ArrayList<>();
-      for (Method method : methods) {
-        if (method.getName().equals(methodName)) {
-          candidates.add(method);
-        }
-      }
+      Candidates candidates = findMethods(clazz, methodName, args.length);
       // We now have a list of candidate methods.
-      if (0 == candidates.size()) {
+      if (0 == candidates.named) {
         log.error("Cannot find method " + methodName
                   + " for class " + clazz.getName());
         return null;
       }
-      if (1 == candidates.size()) {
+      if (1 == candidates.named) {
         // there's one candidate, probably it is the correct one
-        if (!tryMethodCall(inst, candidates.get(0),
-                           Arrays.copyOfRange(tokens, 3, tokens.length))) {
+        if (0 == candidates.decoders.length
+            || !tryMethodCall(inst, candidates.decoders[0], args)) {
           log.error("Failed to invoke method " + methodName
                     + " on instance of " + clazz.getName());
         }
@@ -301,9 +409,8 @@ public class DomainObjectReader
       else {
         // multiple candidates -- try them until we get success
         boolean success = false;
-        for (Method candidate : candidates) {
-          success = tryMethodCall(inst, candidate,
-                                  Arrays.copyOfRange(tokens, 3, tokens.length));
+        for (Decoder candidate : candidates.decoders) {
+          success = tryMethodCall(inst, candidate, args);
           if (success)
             break;
         }
@@ -320,14 +427,175 @@ public class DomainObjectReader
   {
     return idMap.get(id);
   }
-  
+
+  // test support - drops the resolved classes and decoders, so the next
+  // line repeats the reflective lookups as if nothing had been cached
+  void clearDecoders ()
+  {
+    classes.clear();
+    unknownClasses.clear();
+    candidates.clear();
+    parsers.clear();
+    restorers.clear();
+    setIdMethods.clear();
+  }
+
   private void updateTime (String time)
   {
     Instant value = Instant.parse(time);
     timeService.setCurrentTime(value);
     log.debug("time set to " + time);
   }
+
+  // Finds a class by name, or its substitute. Names are resolved once.
+  private Class<?> findClass (String name)
+  {
+    Class<?> clazz = classes.get(name);
+    if (null != clazz)
+      return clazz;
+    if (!unknownClasses.contains(name)) {
+      try {
+        clazz = Class.forName(name);
+      }
+      catch (ClassNotFoundException e) {
+        clazz = substitutes.get(name);
+        //log.info("substituting " + clazz.getName() + " for " + name);
+      }
+      if (null != clazz) {
+        classes.put(name, clazz);
+        return clazz;
+      }
+      unknownClasses.add(name);
+    }
+    log.warn("class " + name + " not found");
+    return null;
+  }
   
+  // True if lines for clazz should be read. A class is needed if it is, or
+  // extends, one of the needed types; its own references are then needed
+  // too, since its lines may refer to subclass-specific types.
+  private boolean isNeeded (Class<?> clazz)
+  {
+    if (null == neededTypes)
+      findNeededTypes();
+    Boolean result = neededClasses.get(clazz);
+    if (null != result)
+      return result;
+    result = isNeededType(clazz);
+    neededClasses.put(clazz, result);
+    boolean added = result && addReferences(clazz);
+    while (added) {
+      // lines for classes already skipped may now be needed
+      added = false;
+      for (Class<?> seen : neededClasses.keySet()) {
+        if (!neededClasses.get(seen) && isNeededType(seen)) {
+          log.warn("Class " + seen.getName() + " needed by " + clazz.getName()
+                   + " was skipped earlier in the log");
+          neededClasses.put(seen, true);
+          skippedClassNames.clear();
+          added |= addReferences(seen);
+        }
+      }
+    }
+    return result;
+  }
+
+  private boolean isNeededType (Class<?> clazz)
+  {
+    for (Class<?> type : neededTypes) {
+      if (type.isAssignableFrom(clazz))
+        return true;
+    }
+    return false;
+  }
+
+  // Starts from the listener types, then adds what they refer to
+  private void findNeededTypes ()
+  {
+    neededTypes = new HashSet<>();
+    neededClasses.clear();
+    skippedClassNames.clear();
+    if (newObjectListeners.containsKey(null)) {
+      // promiscuous listener needs everything
+      neededTypes.add(Object.class);
+      return;
+    }
+    ArrayList<Class<?>> roots = new ArrayList<>(requiredClasses);
+    roots.addAll(newObjectListeners.keySet());
+    roots.addAll(messageListeners.keySet());
+    for (Class<?> root : roots) {
+      if (neededTypes.add(root))
+        addReferences(root);
+    }
+    log.info("Class filter reads " + neededTypes.size() + " types");
+  }
+
+  // Adds the domain types clazz refers to, and theirs in turn, to the
+  // needed types. Returns true if any were added.
+  private boolean addReferences (Class<?> clazz)
+  {
+    boolean added = false;
+    ArrayList<Class<?>> work = new ArrayList<>();
+    work.add(clazz);
+    while (!work.isEmpty()) {
+      Class<?> type = work.remove(work.size() - 1);
+      HashSet<Class<?>> refs = new HashSet<>();
+      for (Constructor<?> cons : type.getDeclaredConstructors()) {
+        addDomainTypes(cons.getGenericParameterTypes(), refs);
+      }
+      for (Method method : type.getMethods()) {
+        addDomainTypes(method.getGenericParameterTypes(), refs);
+      }
+      String[] fieldNames = (null == schema) ? null : schema.get(type.getName());
+      if (null != fieldNames) {
+        for (String name : fieldNames) {
+          Field field = ReflectionUtils.findField(type, resolveDoubleCaps(name));
+          if (null != field)
+            addDomainTypes(new Type[] {field.getGenericType()}, refs);
+        }
+      }
+      for (Class<?> ref : refs) {
+        if (neededTypes.add(ref)) {
+          added = true;
+          work.add(ref);
+        }
+      }
+    }
+    return added;
+  }
+
+  // Collects the domain types in types, including element types of
+  // collections and arrays
+  private void addDomainTypes (Type[] types, HashSet<Class<?>> result)
+  {
+    for (Type type : types) {
+      if (type instanceof ParameterizedType) {
+        addDomainTypes(((ParameterizedType) type).getActualTypeArguments(),
+                       result);
+      }
+      else if (type instanceof Class<?>) {
+        Class<?> clazz = (Class<?>) type;
+        while (clazz.isArray())
+          clazz = clazz.getComponentType();
+        if (isDomainType(clazz))
+          result.add(clazz);
+      }
+    }
+  }
+
+  // Domain types are those looked up by id, as in compileSimpleParser()
+  private boolean isDomainType (Class<?> clazz)
+  {
+    if (!clazz.getName().startsWith("org.powertac"))
+      return false;
+    try {
+      return clazz.getMethod("getId").getReturnType() == long.class;
+    }
+    catch (NoSuchMethodException | SecurityException e) {
+      return false;
+    }
+  }
+
   private void fireNewObjectEvent (Object thing)
   {
     dispatchNewObjectListeners(thing);
@@ -361,50 +629,38 @@ public class DomainObjectReader
         messageListeners.get(thing.getClass());
     if (null != listeners) {
       for (Object target: listeners) {
-        dispatch(target, "handleMessage", thing);
+        messageHandlers.dispatch(target, thing);
       }
     }
   }
 
-  private Object constructInstance (Class<?> clazz, String[] args)
+  private Object constructInstance (Class<?> clazz, Object[] args)
           throws MissingDomainObject
   {
     //if (clazz.getName().equals("org.powertac.common.Order"))
     //  System.out.println("Order");
     //else if (clazz.getName().equals("org.powertac.common.TariffSpecification"))
     //  System.out.println("TariffSpecification");
-    Constructor<?>[] potentials = clazz.getDeclaredConstructors();
-    Constructor<?> target = null;
+    Decoder target = null;
     Object[] params = null;
-    for (Constructor<?> cons : potentials) {
-      Type[] types = cons.getGenericParameterTypes();
-      if (types.length != args.length)
-        // not this one
-        continue;
+    for (Decoder cons : findConstructors(clazz, args.length).decoders) {
       // correct length of parameter list -
       // now try to resolve the types.
       // If we get a MissingDomainObject exception, keep going.
-      
       try {
-        params = resolveArgs(types, args);
+        params = cons.resolveArgs(args);
+        target = cons;
+        break;
       }
       catch (MissingDomainObject mdo) {
         // ignore
       }
-      if (null == params)
-        // no match
-        continue;
-      else {
-        target = cons;
-        break;
-      }
     }
     // if we found one, use it, then update the id value
     if (null != target) {
       Object result = null;
       try {
-        target.setAccessible(true);
-        result = target.newInstance(params);
+        result = ((Constructor<?>) target.executable).newInstance(params);
       }
       catch (InvocationTargetException ite) {
         // arg-constructor mismatch
@@ -425,42 +681,30 @@ public class DomainObjectReader
 
   // restores an instance from a readResolve record.
   // Fields are given in the @Domain annotation.
-  private Object restoreInstance (Class<?> clazz, String[] args)
+  private Object restoreInstance (Class<?> clazz, Object[] args)
           throws MissingDomainObject
   {
-    String[] fieldNames = schema.get(clazz.getName());
-    if (null != fieldNames) {
+    Restorer restorer = findRestorer(clazz);
+    if (null != restorer) {
       // only do this for @Domain classes that are in the recorded schema
       Object thing = null;
+      if (null == restorer.constructor) {
+        log.warn("No default constructor for " + clazz.getName());
+        return null;
+      }
       try {
-        Constructor<?> cons = clazz.getDeclaredConstructor();
-        cons.setAccessible(true);
-        thing = cons.newInstance();
+        thing = restorer.constructor.newInstance();
       }
       catch (Exception e) {
         log.warn("No default constructor for " + clazz.getName()
                   + ": " + e.toString());
         return null;
       }
-      // #1016 -- String[] fieldNames = domain.fields();
-      Field[] fields = new Field[fieldNames.length];
-      Class<?>[] types = new Class<?>[fieldNames.length];
-      for (int i = 0; i < fieldNames.length; i++) {
-        fields[i] = ReflectionUtils.findField(clazz,
-                                              resolveDoubleCaps(fieldNames[i]));
-        if (null == fields[i]) {
-          log.warn("No field in " + clazz.getName()
-                   + " named " + fieldNames[i]);
-          types[i] = null;
-        }
-        else {
-          types[i] = fields[i].getType();
-        }
-      }
-      if (types.length != args.length)
+      Field[] fields = restorer.fields;
+      if (fields.length != args.length)
         log.error("RR arg mismatch class {}, {} fields, args {}",
                   clazz.getName(), fields.length, args);
-      Object[] data = resolveArgs(types, args);
+      Object[] data = resolveArgs(restorer.parsers, args);
       if (null == data) {
         log.error("Could not resolve args for " + clazz.getName());
         return null;
@@ -469,7 +713,6 @@ public class DomainObjectReader
         for (int i = 0; i < fields.length; i++) {
           if (null == fields[i])
             continue;
-          fields[i].setAccessible(true);
           try {
             fields[i].set(thing, data[i]);
           }
@@ -483,6 +726,45 @@ public class DomainObjectReader
     }
     return null;
   }
+
+  // Finds the fields and default constructor used to restore instances of
+  // a class, or null if the class is not in the schema.
+  private Restorer findRestorer (Class<?> clazz)
+  {
+    if (restorers.containsKey(clazz))
+      return restorers.get(clazz);
+    Restorer result = null;
+    String[] fieldNames = schema.get(clazz.getName());
+    if (null != fieldNames) {
+      result = new Restorer();
+      try {
+        result.constructor = clazz.getDeclaredConstructor();
+        result.constructor.setAccessible(true);
+      }
+      catch (Exception e) {
+        // reported when an instance is restored
+        result.constructor = null;
+      }
+      // #1016 -- String[] fieldNames = domain.fields();
+      result.fields = new Field[fieldNames.length];
+      result.parsers = new ArgParser[fieldNames.length];
+      for (int i = 0; i < fieldNames.length; i++) {
+        Field field =
+            ReflectionUtils.findField(clazz, resolveDoubleCaps(fieldNames[i]));
+        if (null == field) {
+          log.warn("No field in " + clazz.getName()
+                   + " named " + fieldNames[i]);
+        }
+        else {
+          field.setAccessible(true);
+        }
+        result.fields[i] = field;
+        result.parsers[i] = findParser(null == field ? null : field.getType());
+      }
+    }
+    restorers.put(clazz, result);
+    return result;
+  }
   
   private String resolveDoubleCaps (String name)
   {
@@ -496,27 +778,61 @@ public class DomainObjectReader
     return name;
   }
 
+  // Returns the declared constructors of clazz that take n arguments
+  private Candidates findConstructors (Class<?> clazz, int n)
+  {
+    CandidateKey key = new CandidateKey(clazz, "new", n);
+    Candidates result = candidates.get(key);
+    if (null == result) {
+      ArrayList<Decoder> decoders = new ArrayList<>();
+      for (Constructor<?> cons : clazz.getDeclaredConstructors()) {
+        Type[] types = cons.getGenericParameterTypes();
+        if (types.length == n) {
+          cons.setAccessible(true);
+          decoders.add(new Decoder(cons, types));
+        }
+      }
+      result = new Candidates(decoders.size(), decoders);
+      candidates.put(key, result);
+    }
+    return result;
+  }
+
+  // Returns the public methods of clazz with the given name that take
+  // n arguments, along with the number of methods with that name
+  private Candidates findMethods (Class<?> clazz, String methodName, int n)
+  {
+    CandidateKey key = new CandidateKey(clazz, methodName, n);
+    Candidates result = candidates.get(key);
+    if (null == result) {
+      ArrayList<Decoder> decoders = new ArrayList<>();
+      int named = 0;
+      for (Method method : clazz.getMethods()) {
+        if (method.getName().equals(methodName)) {
+          named += 1;
+          Type[] types = method.getGenericParameterTypes();
+          if (types.length == n)
+            decoders.add(new Decoder(method, types));
+        }
+      }
+      result = new Candidates(named, decoders);
+      candidates.put(key, result);
+    }
+    return result;
+  }
+
   // attempts to call a method by reconstructing its args and invoking it
-  private boolean tryMethodCall (Object thing, Method method, String[] args)
+  private boolean tryMethodCall (Object thing, Decoder decoder, Object[] args)
   {
-    Type[] argTypes = method.getGenericParameterTypes();
-    if (argTypes.length != args.length)
-      // bail if arglist lengths do not match
-      return false;
+    Method method = (Method) decoder.executable;
     Object[] realArgs;
-    if (0 == argTypes.length) {
+    if (0 == args.length) {
       // no args
       realArgs = null;
     }
     else {
       try {
-        realArgs = resolveArgs(argTypes, args);
-        if (null == realArgs || realArgs.length != args.length) {
-          log.debug("Could not resolve args: method " + method.getName()
-                    + ", class = " + thing.getClass().getName()
-                    + ", args = " + args);
-          return false;
-        }
+        realArgs = decoder.resolveArgs(args);
       }
       catch (MissingDomainObject mdo) {
         return false;
@@ -538,42 +854,52 @@ public class DomainObjectReader
     return false;
   }
 
-  // attempts to match a set of types with a set of String arguments
-  // from the logfile. They match if the strings can be resolved to
-  // the corresponding types. 
-  private Object[] resolveArgs (Type[] types, String[] args)
+  // attempts to match a set of types with a set of arguments from the
+  // logfile. They match if the args can be resolved to the corresponding
+  // types. Args are Strings, or for binary logs also Longs and Doubles.
+  private Object[] resolveArgs (ArgParser[] parsers, Object[] args)
           throws MissingDomainObject
   {
     // for each type, we attempt to resolve the corresponding arg
     // as an instance of that type.
-    Object[] result = new Object[types.length];
+    Object[] result = new Object[parsers.length];
     for (int i = 0; i < args.length; i++) {
-      result[i] = resolveArg(types[i], args[i]);
+      result[i] = parsers[i].parseValue(args[i]);
     }
     return result;
   }
-  
+
+  // Returns the parser for args of the given type, compiling it on first use
+  private ArgParser findParser (Type type)
+  {
+    ArgParser result = parsers.get(type);
+    if (null == result) {
+      result = compileParser(type);
+      parsers.put(type, result);
+    }
+    return result;
+  }
+
   @SuppressWarnings({ "unchecked", "rawtypes" })
-  private Object resolveArg (Type type, String arg)
-  throws MissingDomainObject
+  private ArgParser compileParser (Type type)
   {
     // type can be null in a few cases - nothing to be done about it?
     if (null == type) {
-      return null;
+      return arg -> null;
     }
 
     // check for non-parameterized types
     if (type instanceof Class) {
       Class<?> clazz = (Class<?>)type;
       if (clazz.isEnum()) {
-        return Enum.valueOf((Class<Enum>)type, arg);
+        return arg -> Enum.valueOf((Class<Enum>)type, arg);
       }
       else if (PowerType.class == clazz) {
         //System.out.println("Class: " + clazz.getCanonicalName());
-        return ptConverter.fromString(arg);
+        return arg -> ptConverter.fromString(arg);
       }
       else {
-        return resolveSimpleArg(clazz, arg);
+        return compileSimpleParser(clazz);
       }
     }
 
@@ -593,24 +919,28 @@ public class DomainObjectReader
           }
         }
       }
-      if (isCollection) {
-        // expect arg to start with "("
-        log.debug("processing collection " + clazz.getName());
-        if (arg.charAt(0) != '(') {
-          log.error("Collection arg " + arg + " does not start with paren");
-          return null;
-        }
-        // extract element type and resolve recursively
-        Type[] tas = ptype.getActualTypeArguments();
-        if (1 == tas.length) {
-          Class<?> argClazz = (Class<?>) tas[0];
+      // extract element type and resolve recursively
+      Type[] tas = ptype.getActualTypeArguments();
+      if (isCollection && 1 == tas.length) {
+        Type itemType = tas[0];
+        ArgParser itemParser = (itemType instanceof Class)
+            ? compileSimpleParser((Class<?>) itemType) : null;
+        // resolve interfaces into actual classes
+        Class<?> collClazz =
+            clazz.isInterface() ? ifImplementors.get(clazz) : clazz;
+        return arg -> {
+          // expect arg to start with "("
+          log.debug("processing collection " + clazz.getName());
+          if (arg.charAt(0) != '(') {
+            log.error("Collection arg " + arg + " does not start with paren");
+            return null;
+          }
+          if (null == itemParser)
+            throw new ClassCastException(itemType + " is not a class");
           // create an instance of the collection
           Collection<Object> coll;
-          // resolve interfaces into actual classes
-          if (clazz.isInterface())
-            clazz = ifImplementors.get(clazz);
           try {
-            coll = (Collection<Object>)clazz.newInstance();
+            coll = (Collection<Object>)collClazz.newInstance();
           }
           catch (Exception e) {
             log.error("Exception creating collection: " + e.toString());
@@ -620,147 +950,217 @@ public class DomainObjectReader
           String body = arg.substring(1, arg.indexOf(')'));
           String[] items = body.split(",");
           for (String item : items) {
-            coll.add(resolveSimpleArg(argClazz, item));
+            coll.add(itemParser.parse(item));
           }
           return coll;
-        }
+        };
       }
     }
 
     // if we get here, no resolution
-    log.error("unresolved arg: type = " + type
-              + ", arg = " + arg);
-    return null;
+    return arg -> {
+      log.error("unresolved arg: type = " + type
+                + ", arg = " + arg);
+      return null;
+    };
   }
 
-  private Object resolveSimpleArg (Class<?> clazz, String arg)
-  throws MissingDomainObject
+  // Compiles a parser for a non-generic class. Domain types, identified by
+  // a long getId() method, are looked up by id; otherwise the arg is parsed
+  // as a primitive, an Instant, or with a String constructor.
+  private ArgParser compileSimpleParser (Class<?> clazz)
   {
-    // handle the simplest case first
-    if (arg.equals("null"))
-      return null;
-    
+    ArgParser valueParser = compileValueParser(clazz);
+    boolean domainType = false;
     if (clazz.getName().startsWith("org.powertac")) {
-      Method getId;
       try {
-        getId = clazz.getMethod("getId");
-        if (getId.getReturnType() == long.class) {
-          // this is a domain type; it may or may not be in the map
-          Long key = Long.parseLong(arg);
-          Object value = idMap.get(key);
-          if (null != value && clazz.isAssignableFrom(value.getClass())) {
-            return value;
-          }
-          else {
-            // it's a domain object, but we cannot resolve it
-            // -- this can be an error, or a symptom of using the wrong
-            //    constructor or method.
-            throw new MissingDomainObject("missing object id=" + key);
-          }
-        }
+        domainType = (clazz.getMethod("getId").getReturnType() == long.class);
       }
       catch (SecurityException e) {
         log.error("Exception on getId(): " + e.toString());
-        return null;
+        return arg -> null;
       }
       catch (NoSuchMethodException e) {
         // normal result of no getId() method
       }
-      catch (NumberFormatException e) {
-        // normal result of non-integer id value
-      }
     }
-    
-    // arg is not an id value - check if it's supposed to be a primitive
-    if (clazz.getName().equals("boolean")) {
-      boolean value = Boolean.parseBoolean(arg);
-      if (value) {
-        return true; // resolved as boolean
-      }
-      else if (arg.equalsIgnoreCase("false")) {
-        return false; // resolved as boolean
-      }
-      else
-        return null; // does not resolve
+    if (!domainType) {
+      ArgParser textParser = arg -> {
+        // handle the simplest case first
+        if (arg.equals("null"))
+          return null;
+        return valueParser.parse(arg);
+      };
+      // numbers are never "null"
+      return typed(textParser, value -> valueParser.parseValue(value));
     }
-    
-    if (clazz.getName().equals("long")) {
+    ArgParser textParser = arg -> {
+      if (arg.equals("null"))
+        return null;
+      Long key;
       try {
-        long value = Long.parseLong(arg);
-        return value;
+        key = Long.parseLong(arg);
       }
-      catch (NumberFormatException nfe) {
-        // not a long
-        return null;
+      catch (NumberFormatException e) {
+        // normal result of non-integer id value
+        return valueParser.parse(arg);
       }
+      return findDomainObject(clazz, key);
+    };
+    return typed(textParser, value -> {
+      if (value instanceof Long)
+        return findDomainObject(clazz, (Long) value);
+      return textParser.parse(value.toString());
+    });
+  }
+
+  // Looks up an arg that is the id of a domain object
+  private Object findDomainObject (Class<?> clazz, Long key)
+  throws MissingDomainObject
+  {
+    // this is a domain type; it may or may not be in the map
+    Object value = idMap.get(key);
+    if (null != value && clazz.isAssignableFrom(value.getClass())) {
+      return value;
     }
-    
-    if (clazz.getName().equals("int")) {
-      try {
-        int value = Integer.parseInt(arg);
-        return value;
-      }
-      catch (NumberFormatException nfe) {
-        // not an int
-        return null;
-      }        
+    else {
+      // it's a domain object, but we cannot resolve it
+      // -- this can be an error, or a symptom of using the wrong
+      //    constructor or method.
+      throw new MissingDomainObject("missing object id=" + key);
     }
-    
-    if (clazz.getName().equals("double") || clazz == Double.class) {
-      try {
-        double value = Double.parseDouble(arg);
-        return value;
-      }
-      catch (NumberFormatException nfe) {
-        // not a double
-        return null;
-      }        
+  }
+
+  // Compiles a parser for args that are not id values
+  private ArgParser compileValueParser (Class<?> clazz)
+  {
+    // check if it's supposed to be a primitive
+    if (clazz == boolean.class) {
+      return arg -> {
+        boolean value = Boolean.parseBoolean(arg);
+        if (value) {
+          return true; // resolved as boolean
+        }
+        else if (arg.equalsIgnoreCase("false")) {
+          return false; // resolved as boolean
+        }
+        else
+          return null; // does not resolve
+      };
     }
-    
-    if (clazz.getName() == "java.lang.Double") {
-      
+
+    if (clazz == long.class) {
+      ArgParser textParser = arg -> {
+        try {
+          long value = Long.parseLong(arg);
+          return value;
+        }
+        catch (NumberFormatException nfe) {
+          // not a long
+          return null;
+        }
+      };
+      return typed(textParser, value -> {
+        if (value instanceof Long)
+          return value;
+        return textParser.parse(value.toString());
+      });
     }
-    
+
+    if (clazz == int.class) {
+      ArgParser textParser = arg -> {
+        try {
+          int value = Integer.parseInt(arg);
+          return value;
+        }
+        catch (NumberFormatException nfe) {
+          // not an int
+          return null;
+        }
+      };
+      return typed(textParser, value -> {
+        if (value instanceof Long) {
+          long number = (Long) value;
+          return (number == (int) number) ? (Object) (int) number : null;
+        }
+        return textParser.parse(value.toString());
+      });
+    }
+
+    if (clazz == double.class || clazz == Double.class) {
+      ArgParser textParser = arg -> {
+        try {
+          double value = Double.parseDouble(arg);
+          return value;
+        }
+        catch (NumberFormatException nfe) {
+          // not a double
+          return null;
+        }
+      };
+      // parsing the text of a long gives the same double as converting it
+      return typed(textParser, value -> {
+        if (value instanceof Double)
+          return value;
+        if (value instanceof Long)
+          return ((Long) value).doubleValue();
+        return textParser.parse(value.toString());
+      });
+    }
+
     // check for time value
-    if (clazz.getName() == "org.joda.time.Instant") {
-      try {
-        Instant value = Instant.parse(arg);
-        return value;
-       }
-      catch (IllegalArgumentException iae) {
-        // make Instant from Long
+    if (clazz == Instant.class) {
+      return arg -> {
         try {
-          Long msec = Long.parseLong(arg);
-          return new Instant(msec);
+          Instant value = Instant.parse(arg);
+          return value;
+        }
+        catch (IllegalArgumentException iae) {
+          // make Instant from Long
+          try {
+            Long msec = Long.parseLong(arg);
+            return new Instant(msec);
+          }
+          catch (Exception e) {
+            // Long parse failure
+            log.error("could not parse Long " + arg);
+            return null;
+          }
         }
         catch (Exception e) {
-          // Long parse failure
-          log.error("could not parse Long " + arg);
+          // Instant parse failure
+          log.error("could not parse Instant " + arg);
           return null;
         }
-      }
-      catch (Exception e) {
-        // Instant parse failure
-        log.error("could not parse Instant " + arg);
-        return null;
-      }
+      };
     }
-    
+
     // check for type with String constructor
+    Constructor<?> cons;
     try {
-      Constructor<?> cons = clazz.getConstructor(String.class);
-      return cons.newInstance(arg);
+      cons = clazz.getConstructor(String.class);
     }
     catch (NoSuchMethodException e) {
-      // normal result of failure - fall through and try something else
+      // normal result of failure - no type matched
+      return arg -> null;
     }
     catch (Exception e) {
-      log.error("Exception looking up constructor for "
-                + clazz.getName() + ": " + e.toString());
-      return null;
+      return arg -> {
+        log.error("Exception looking up constructor for "
+                  + clazz.getName() + ": " + e.toString());
+        return null;
+      };
     }
-    // no type matched
-    return null;
+    return arg -> {
+      try {
+        return cons.newInstance(arg);
+      }
+      catch (Exception e) {
+        log.error("Exception looking up constructor for "
+                  + clazz.getName() + ": " + e.toString());
+        return null;
+      }
+    };
   }
   
   // Sets the id field of a newly-constructed thing
@@ -768,23 +1168,249 @@ public class DomainObjectReader
   {
     Class<?> clazz = thing.getClass();
     Method setId;
-    try {
-      setId = clazz.getMethod("setId", long.class);
-      setId.setAccessible(true);
-      setId.invoke(thing, (long)id);
+    if (setIdMethods.containsKey(clazz)) {
+      setId = setIdMethods.get(clazz);
     }
-    catch (SecurityException e) {
-      log.error("Exception on setId(): " + e.toString());
+    else {
+      try {
+        setId = clazz.getMethod("setId", long.class);
+        setId.setAccessible(true);
+      }
+      catch (SecurityException e) {
+        log.error("Exception on setId(): " + e.toString());
+        return;
+      }
+      catch (NoSuchMethodException e) {
+        // normal result of no setId() method
+        setId = null;
+      }
+      setIdMethods.put(clazz, setId);
     }
-    catch (NoSuchMethodException e) {
-      // normal result of no setId() method
+    if (null == setId) {
       ReflectionTestUtils.setField(thing, "id", id);
+      return;
+    }
+    try {
+      setId.invoke(thing, (long)id);
     }
     catch (Exception e) {
       log.error("Error setting id value " + e.toString());
     }
   }
 
+  // Combines a parser for text args with one for the Long and Double args
+  // of binary logs
+  private static ArgParser typed (ArgParser textParser,
+                                  ValueParser valueParser)
+  {
+    return new ArgParser() {
+      @Override
+      public Object parse (String arg) throws MissingDomainObject
+      {
+        return textParser.parse(arg);
+      }
+
+      @Override
+      public Object parseValue (Object arg) throws MissingDomainObject
+      {
+        if (arg instanceof String)
+          return textParser.parse((String) arg);
+        return valueParser.parseValue(arg);
+      }
+    };
+  }
+
+  // Parses a string argument from the log as a value of some type
+  interface ArgParser
+  {
+    Object parse (String arg) throws MissingDomainObject;
+
+    // Parses an arg that may also be a Long or Double from a binary log.
+    // Its text is the same as the text log's, so by default it is parsed
+    // as text; parsers for numeric types use the number directly.
+    default Object parseValue (Object arg) throws MissingDomainObject
+    {
+      return parse(arg.toString());
+    }
+  }
+
+  // Parses a Long or Double arg from a binary log
+  interface ValueParser
+  {
+    Object parseValue (Object arg) throws MissingDomainObject;
+  }
+
+  // A constructor or method, with parsers for its parameters
+  class Decoder
+  {
+    Executable executable;
+    ArgParser[] parsers;
+
+    Decoder (Executable executable, Type[] types)
+    {
+      super();
+      this.executable = executable;
+      parsers = new ArgParser[types.length];
+      for (int i = 0; i < types.length; i++) {
+        parsers[i] = findParser(types[i]);
+      }
+    }
+
+    Object[] resolveArgs (Object[] args) throws MissingDomainObject
+    {
+      return DomainObjectReader.this.resolveArgs(parsers, args);
+    }
+  }
+
+  /**
+   * A line from the state log split into its fields, with the id parsed.
+   * Fields from a text log are Strings; those from a binary log may also
+   * be Longs or Doubles, whose toString() is the text they replace.
+   */
+  public static class LogLine
+  {
+    final String text;
+    final String prefix;
+    final String className;
+    Object[] fields;
+    String methodName;
+    Object[] args;
+    long id = -1;
+    boolean hasId = false;
+
+    LogLine (String text, String prefix, Object[] fields)
+    {
+      this(text, prefix, fields[0].toString());
+      setFields(fields);
+    }
+
+    // A text line of which only the class has been read; the rest is
+    // split when the line is read.
+    LogLine (String text, String className)
+    {
+      super();
+      this.text = text;
+      this.prefix = null;
+      this.className = className;
+    }
+
+    private LogLine (String text, String prefix, String className)
+    {
+      super();
+      this.text = text;
+      this.prefix = prefix;
+      this.className = className;
+    }
+
+    void setFields (Object[] fields)
+    {
+      this.fields = fields;
+      if (fields.length > 1) {
+        if (fields[1] instanceof Long) {
+          id = (Long) fields[1];
+          hasId = true;
+        }
+        else {
+          try {
+            id = Long.parseLong(fields[1].toString());
+            hasId = true;
+          }
+          catch (NumberFormatException nfe) {
+            // no id - readObject() decides what that means
+          }
+        }
+      }
+      // shorter lines fail in readObject() as they always have
+      methodName = (fields.length < 3) ? null : fields[2].toString();
+      args = (fields.length < 3) ? null
+          : Arrays.copyOfRange(fields, 3, fields.length);
+    }
+
+    /**
+     * Creates a line from the prefix and fields of a binary state-log
+     * record.
+     */
+    public static LogLine fromFields (String prefix, Object[] fields)
+    {
+      return new LogLine(null, prefix, fields);
+    }
+
+    /**
+     * Returns the line as it appears in the text log.
+     */
+    public String getText ()
+    {
+      if (null != text) {
+        return text;
+      }
+      StringBuilder result = new StringBuilder();
+      if (null != prefix) {
+        result.append(prefix).append(':');
+      }
+      for (int i = 0; i < fields.length; i++) {
+        if (i > 0) {
+          result.append("::");
+        }
+        result.append(fields[i]);
+      }
+      return result.toString();
+    }
+  }
+
+  // Candidate constructors or methods for a class, name and arity, in the
+  // order they are tried
+  static class Candidates
+  {
+    int named;
+    Decoder[] decoders;
+
+    Candidates (int named, List<Decoder> decoders)
+    {
+      super();
+      this.named = named;
+      this.decoders = decoders.toArray(new Decoder[decoders.size()]);
+    }
+  }
+
+  static class CandidateKey
+  {
+    Class<?> clazz;
+    String name;
+    int arity;
+
+    CandidateKey (Class<?> clazz, String name, int arity)
+    {
+      super();
+      this.clazz = clazz;
+      this.name = name;
+      this.arity = arity;
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      return (31 * clazz.hashCode() + name.hashCode()) * 31 + arity;
+    }
+
+    @Override
+    public boolean equals (Object obj)
+    {
+      if (!(obj instanceof CandidateKey))
+        return false;
+      CandidateKey other = (CandidateKey) obj;
+      return clazz == other.clazz && arity == other.arity
+          && name.equals(other.name);
+    }
+  }
+
+  // Default constructor and fields for restoring a readResolve record
+  static class Restorer
+  {
+    Constructor<?> constructor;
+    Field[] fields;
+    ArgParser[] parsers;
+  }
+
   class WrongArgType extends Exception {
 
     private static final long serialVersionUID = 7044658729956229376L;
@@ -1,5 +1,11 @@
 package org.powertac.logtool.common;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
 import org.powertac.common.spring.SpringApplicationContext;
 import org.powertac.logtool.LogtoolContext;
 import org.powertac.logtool.common.NewObjectListener;
@@ -13,16 +19,27 @@ public class NoopAnalyzer extends LogtoolContext implements Analyzer
 
   static private Logger log = LoggerFactory.getLogger(NoopAnalyzer.class);
 
+  // if set, report() writes the number of objects of each class here
+  private String outputFile = null;
+  private TreeMap<String, Integer> counts = new TreeMap<>();
+
   public NoopAnalyzer ()
   {
     super();
     setContext(SpringApplicationContext.getContext());
   }
 
+  @Override
+  public void setOutputFile (String filename)
+  {
+    outputFile = filename;
+  }
+
   @Override
   public void setup ()
   {
     log.info("Starting replay");
+    counts.clear();
     registerNewObjectListener(new ObjectHandler(), null);
   }
 
@@ -30,6 +47,18 @@ public class NoopAnalyzer extends LogtoolContext implements Analyzer
   public void report ()
   {
     log.info("Finished replay");
+    if (null == outputFile)
+      return;
+    try {
+      PrintWriter output = new PrintWriter(new File(outputFile));
+      for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+        output.println(entry.getKey() + "," + entry.getValue());
+      }
+      output.close();
+    }
+    catch (FileNotFoundException e) {
+      log.error("Cannot write " + outputFile);
+    }
   }
 
   protected class ObjectHandler implements NewObjectListener
@@ -38,6 +67,7 @@ public class NoopAnalyzer extends LogtoolContext implements Analyzer
     public void handleNewObject (Object thing)
     {
       log.info("Received " + thing.getClass() + ": " + thing.toString());
+      counts.merge(thing.getClass().getName(), 1, Integer::sum);
     }
   }
 }
@@ -34,4 +34,14 @@ public interface Analyzer
    * Called after reading the logfile
    */
   public void report();
+
+  /**
+   * Called before setup() by callers that replay several games in one
+   * run, with an output file name that is unique to the game and analyzer.
+   * Analyzers that write a single output file should use it in place of
+   * their own. The default ignores it.
+   */
+  public default void setOutputFile (String filename)
+  {
+  }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.logtool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.powertac.logtool.common.NoopAnalyzer;
+
+/**
+ * Tests for selecting and replaying the games in a batch
+ */
+public class LogtoolBatchTest
+{
+  @TempDir
+  File dir;
+
+  @BeforeEach
+  public void setUp () throws IOException
+  {
+    for (String name : new String[] {"game-2.state", "game-1.state",
+                                     "game-1-init.state", "game-3.tar.gz",
+                                     "game-4.state.bz2", "notes.txt"}) {
+      new File(dir, name).createNewFile();
+    }
+    new File(dir, "sub.state").mkdir();
+  }
+
+  @Test
+  public void findInDirectory ()
+  {
+    List<File> games = LogtoolBatch.findGames(dir.getPath());
+    assertEquals(4, games.size(), "four games");
+    assertEquals("game-1.state", games.get(0).getName(), "sorted");
+    assertEquals("game-2.state", games.get(1).getName(), "second");
+    assertEquals("game-3.tar.gz", games.get(2).getName(), "archive");
+    assertEquals("game-4.state.bz2", games.get(3).getName(), "compressed");
+  }
+
+  @Test
+  public void findByGlob ()
+  {
+    List<File> games =
+        LogtoolBatch.findGames(new File(dir, "game-?.state").getPath());
+    assertEquals(2, games.size(), "two games");
+    assertEquals("game-1.state", games.get(0).getName(), "first");
+    assertEquals("game-2.state", games.get(1).getName(), "second");
+  }
+
+  @Test
+  public void findNothing ()
+  {
+    assertTrue(LogtoolBatch.findGames(new File(dir, "*.xml").getPath()).isEmpty(),
+               "no match");
+    assertTrue(LogtoolBatch.findGames(new File(dir, "none/*").getPath()).isEmpty(),
+               "no directory");
+  }
+
+  @Test
+  public void gameName ()
+  {
+    assertEquals("game-1", LogtoolBatch.gameName(new File(dir, "game-1.state")));
+    assertEquals("game-3", LogtoolBatch.gameName(new File(dir, "game-3.tar.gz")));
+    assertEquals("game-4", LogtoolBatch.gameName(new File(dir, "game-4.state.bz2")));
+  }
+
+  @Test
+  public void badCommandLine ()
+  {
+    LogtoolBatch batch = new LogtoolBatch();
+    assertEquals(LogtoolBatch.usage, batch.processCmdLine(new String[] {dir.getPath()}));
+    assertEquals("Bad thread count x",
+                 batch.processCmdLine(new String[] {"-threads", "x", dir.getPath(), "Foo"}));
+    assertEquals("Cannot find analyzer class org.powertac.NoSuchAnalyzer",
+                 batch.processCmdLine(new String[] {dir.getPath(), "org.powertac.NoSuchAnalyzer"}));
+  }
+
+  // two games replayed in parallel, each in its own class loader, give the
+  // same results as when they are replayed one at a time
+  @Test
+  public void parallelMatchesSequential () throws IOException
+  {
+    File logs = new File(dir, "logs");
+    logs.mkdir();
+    Files.write(new File(logs, "game-1.state").toPath(), Arrays.asList(
+        "144669:org.powertac.common.Broker::603::new::AstonTAC",
+        "144670:org.powertac.common.Broker::604::new::CrocodileAgent",
+        "189426:org.powertac.common.DistributionTransaction::3459::new::603::42::-0.0::0.0",
+        "189427:org.powertac.common.DistributionTransaction::3460::new::604::43::-1.5::2.0",
+        "189428:org.powertac.common.DistributionTransaction::3461::new::603::43::-2.5::3.0"));
+    Files.write(new File(logs, "game-2.state").toPath(), Arrays.asList(
+        "144669:org.powertac.common.Broker::603::new::AstonTAC",
+        "189426:org.powertac.common.DistributionTransaction::3459::new::603::42::-0.0::0.0"));
+    String analyzer = NoopAnalyzer.class.getName();
+    File sequential = new File(dir, "sequential");
+    File parallel = new File(dir, "parallel");
+    assertNull(new LogtoolBatch().processCmdLine(new String[]
+        {"-output", sequential.getPath(), logs.getPath(), analyzer}),
+        "sequential run");
+    assertNull(new LogtoolBatch().processCmdLine(new String[]
+        {"-threads", "2", "-output", parallel.getPath(), logs.getPath(), analyzer}),
+        "parallel run");
+
+    List<String> game1 = readLines(sequential, "game-1.NoopAnalyzer.data");
+    assertTrue(game1.contains("org.powertac.common.Broker,2"), "game 1 brokers");
+    assertTrue(game1.contains("org.powertac.common.DistributionTransaction,3"),
+               "game 1 transactions");
+    for (String output : new String[] {"game-1.NoopAnalyzer.data",
+                                       "game-2.NoopAnalyzer.data"}) {
+      assertEquals(readLines(sequential, output), readLines(parallel, output),
+                   output);
+    }
+    assertEquals(lineCounts(sequential), lineCounts(parallel), "line counts");
+  }
+
+  private List<String> readLines (File outputDir, String name)
+      throws IOException
+  {
+    return Files.readAllLines(new File(outputDir, name).toPath());
+  }
+
+  // game, lines and status columns of the batch summary
+  private List<String> lineCounts (File outputDir) throws IOException
+  {
+    ArrayList<String> result = new ArrayList<>();
+    for (String line : readLines(outputDir, LogtoolBatch.summaryFile)) {
+      String[] fields = line.split(",", -1);
+      result.add(fields[0] + "," + fields[1] + "," + fields[4]);
+    }
+    return result;
+  }
+}
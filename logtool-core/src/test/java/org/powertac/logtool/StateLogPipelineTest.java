@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.logtool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.powertac.logtool.common.DomainObjectReader;
+import org.powertac.logtool.common.DomainObjectReader.LogLine;
+
+/**
+ * Tests for the read and tokenize stages of pipelined replay
+ */
+public class StateLogPipelineTest
+{
+  private DomainObjectReader dor;
+  private String log;
+  private int lines;
+
+  @BeforeEach
+  public void setUp ()
+  {
+    dor = new DomainObjectReader();
+    // several batches' worth, not a multiple of the batch size
+    lines = StateLogPipeline.batchSize * StateLogPipeline.queueDepth * 3 + 7;
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < lines; i++) {
+      sb.append(i).append(":org.powertac.common.Broker::")
+        .append(i).append("::new::broker").append(i).append('\n');
+    }
+    log = sb.toString();
+  }
+
+  @Test
+  public void readInOrder () throws IOException
+  {
+    StateLogPipeline pipeline =
+        new StateLogPipeline(new BufferedReader(new StringReader(log)), dor);
+    pipeline.start();
+    int count = 0;
+    List<LogLine> batch;
+    while (null != (batch = pipeline.next())) {
+      for (LogLine line : batch) {
+        assertTrue(line.getText().startsWith(count + ":"), "line " + count);
+        count += 1;
+      }
+    }
+    pipeline.stop();
+    assertEquals(lines, count, "all lines");
+    assertNull(pipeline.next(), "still at end");
+  }
+
+  @Test
+  public void stopEarly () throws IOException
+  {
+    StateLogPipeline pipeline =
+        new StateLogPipeline(new BufferedReader(new StringReader(log)), dor);
+    pipeline.start();
+    assertNotNull(pipeline.next(), "first batch");
+    pipeline.stop();
+  }
+
+  @Test
+  public void emptyLog () throws IOException
+  {
+    StateLogPipeline pipeline =
+        new StateLogPipeline(new BufferedReader(new StringReader("")), dor);
+    pipeline.start();
+    assertNull(pipeline.next(), "no lines");
+    pipeline.stop();
+  }
+
+  // an unchecked exception from the input ends the stream after the lines
+  // read before it, and is rethrown from next()
+  @Test
+  public void uncheckedReadFailure () throws IOException
+  {
+    UncheckedIOException broken =
+        new UncheckedIOException(new IOException("corrupt block"));
+    StateLogPipeline pipeline =
+        new StateLogPipeline(failingReader(broken), dor);
+    pipeline.start();
+    assertSame(broken, assertThrows(UncheckedIOException.class,
+                                    () -> drain(pipeline)),
+               "same exception");
+    assertNull(pipeline.next(), "at end");
+    pipeline.stop();
+  }
+
+  // so does an Error
+  @Test
+  public void errorReadFailure () throws IOException
+  {
+    OutOfMemoryError broken = new OutOfMemoryError("test");
+    StateLogPipeline pipeline =
+        new StateLogPipeline(failingReader(broken), dor);
+    pipeline.start();
+    assertSame(broken, assertThrows(OutOfMemoryError.class,
+                                    () -> drain(pipeline)),
+               "same error");
+    pipeline.stop();
+  }
+
+  // a reader that returns the log and then throws instead of ending
+  private BufferedReader failingReader (Throwable thr)
+  {
+    return new BufferedReader(new StringReader(log)) {
+      @Override
+      public String readLine () throws IOException
+      {
+        String line = super.readLine();
+        if (null != line) {
+          return line;
+        }
+        if (thr instanceof Error) {
+          throw (Error) thr;
+        }
+        throw (RuntimeException) thr;
+      }
+    };
+  }
+
+  // takes all batches, checking that every line arrives first
+  private void drain (StateLogPipeline pipeline) throws IOException
+  {
+    int count = 0;
+    try {
+      List<LogLine> batch;
+      while (null != (batch = pipeline.next())) {
+        count += batch.size();
+      }
+    }
+    finally {
+      assertEquals(lines, count, "lines before the failure");
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.logtool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.powertac.common.BinaryStateLogWriter;
+import org.powertac.common.Broker;
+import org.powertac.common.DistributionTransaction;
+import org.powertac.logtool.common.DomainObjectReader;
+import org.powertac.logtool.common.DomainObjectReader.LogLine;
+import org.powertac.logtool.common.MissingDomainObject;
+
+/**
+ * Tests replay from binary state logs
+ */
+public class StateLogReaderTest
+{
+  private DomainObjectReader dor;
+
+  private String[] lines = {
+    "144669:org.powertac.common.Broker::603::new::AstonTAC",
+    "144670:org.powertac.common.Broker::604::new::CrocodileAgent",
+    "189426:org.powertac.common.DistributionTransaction::3459::new::603::42::-0.0::0.0",
+    "189427:org.powertac.common.DistributionTransaction::3460::new::604::43::-1.5::2.0"
+  };
+
+  @BeforeEach
+  public void setUp ()
+  {
+    dor = new DomainObjectReader();
+    dor.setSchema(new HashMap<String, String[]>());
+  }
+
+  private StateLogReader open () throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BinaryStateLogWriter writer = new BinaryStateLogWriter(bytes);
+    for (String line : lines) {
+      writer.writeLine(line);
+    }
+    writer.close();
+    return new StateLogReader(new ByteArrayInputStream(bytes.toByteArray()));
+  }
+
+  @Test
+  public void readLines () throws IOException
+  {
+    StateLogReader reader = open();
+    for (String line : lines) {
+      LogLine logLine = reader.next();
+      assertNotNull(logLine, "line " + line);
+      assertEquals(line, logLine.getText());
+    }
+    assertNull(reader.next(), "end of log");
+  }
+
+  @Test
+  public void unread () throws IOException
+  {
+    StateLogReader reader = open();
+    assertEquals(lines[0], reader.readLine());
+    reader.unread();
+    assertEquals(lines[0], reader.next().getText(), "first line again");
+    assertEquals(lines[1], reader.readLine());
+  }
+
+  @Test
+  public void replay () throws IOException
+  {
+    StateLogReader reader = open();
+    try {
+      Broker b1 = (Broker) dor.readObject(reader.next());
+      Broker b2 = (Broker) dor.readObject(reader.next());
+      assertEquals("AstonTAC", b1.getUsername());
+      assertEquals(604, b2.getId());
+      DistributionTransaction dtx1 =
+          (DistributionTransaction) dor.readObject(reader.next());
+      DistributionTransaction dtx2 =
+          (DistributionTransaction) dor.readObject(reader.next());
+      assertEquals(3459, dtx1.getId(), "correct id");
+      assertEquals(b1, dtx1.getBroker(), "first broker");
+      assertEquals(b2, dtx2.getBroker(), "second broker");
+      assertEquals(43, dtx2.getPostedTimeslotIndex(), "second timeslot");
+      assertEquals(dtx2, dor.getById(3460), "tx stored in map");
+    }
+    catch (MissingDomainObject mdo) {
+      fail("bad exception " + mdo.toString());
+    }
+  }
+}
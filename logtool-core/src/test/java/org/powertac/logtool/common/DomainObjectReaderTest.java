@@ -3,9 +3,14 @@ package org.powertac.logtool.common;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.mock;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 import org.powertac.common.Broker;
 import org.powertac.common.Competition;
@@ -20,15 +25,24 @@ import org.powertac.common.TariffSubscription;
 import org.powertac.common.msg.BalancingOrder;
 import org.powertac.common.repo.BrokerRepo;
 import org.powertac.common.repo.TariffRepo;
+import org.powertac.logtool.common.DomainObjectReader.LogLine;
 import org.springframework.test.util.ReflectionTestUtils;
 
 
 public class DomainObjectReaderTest
 {
+  static private Logger log =
+      LogManager.getLogger(DomainObjectReaderTest.class.getName());
+
   private DomainObjectReader dor;
   
   @BeforeEach
   public void setUp () throws Exception
+  {
+    dor = newReader();
+  }
+
+  private DomainObjectReader newReader ()
   {
     HashMap<String, String[]> schema = new HashMap<>();
     schema.put("org.powertac.common.TariffSpecification",
@@ -44,9 +58,9 @@ public class DomainObjectReaderTest
                "rateId,value,atTime".split(","));
     schema.put("org.powertac.common.msg.BalancingOrder",
                "exerciseRatio,price,tariffId,broker".split(","));
-            
-    dor = new DomainObjectReader();
-    dor.setSchema(schema);
+    DomainObjectReader result = new DomainObjectReader();
+    result.setSchema(schema);
+    return result;
   }
 
   @Test
@@ -86,6 +100,30 @@ public class DomainObjectReaderTest
     }
   }
   
+  // later lines of the same class reuse the decoders built for the first
+  @Test
+  public void readRepeatedClass ()
+  {
+    String aston = "144669:org.powertac.common.Broker::603::new::AstonTAC";
+    String croc = "144670:org.powertac.common.Broker::604::new::CrocodileAgent";
+    String dt1 = "189426:org.powertac.common.DistributionTransaction::3459::new::603::42::-0.0::0.0";
+    String dt2 = "189427:org.powertac.common.DistributionTransaction::3460::new::604::43::-1.5::2.0";
+    try {
+      Broker b1 = (Broker)dor.readObject(aston);
+      Broker b2 = (Broker)dor.readObject(croc);
+      assertEquals("CrocodileAgent", b2.getUsername(), "second broker name");
+      assertEquals(604, b2.getId(), "second broker id");
+      DistributionTransaction dtx1 = (DistributionTransaction)dor.readObject(dt1);
+      DistributionTransaction dtx2 = (DistributionTransaction)dor.readObject(dt2);
+      assertEquals(b1, dtx1.getBroker(), "first broker");
+      assertEquals(b2, dtx2.getBroker(), "second broker");
+      assertEquals(43, dtx2.getPostedTimeslotIndex(), "second timeslot");
+    }
+    catch (MissingDomainObject mdo) {
+      fail("bad exception " + mdo.toString());
+    }
+  }
+
   @Test
   public void readRRObject ()
   {
@@ -319,4 +357,155 @@ public class DomainObjectReaderTest
       fail("missing DO " + mdo.toString());
     }
   }
+
+  // With the class filter on, lines are read for listener types and the
+  // types they refer to; other classes are skipped
+  @Test
+  public void classFilter ()
+  {
+    String aston = "144669:org.powertac.common.Broker::603::new::AstonTAC";
+    String order = "180915:org.powertac.common.Order::400000393::new::603::42::2.109375::-31.835472671068615";
+    String order2 = "180916:org.powertac.common.Order::400000394::new::603::43::1.5::-30.0";
+    String dt = "189426:org.powertac.common.DistributionTransaction::3459::new::603::42::-0.0::0.0";
+    ArrayList<Object> seen = new ArrayList<>();
+    dor.setClassFilter(true);
+    dor.registerNewObjectListener(thing -> seen.add(thing),
+                                  DistributionTransaction.class);
+    try {
+      Broker broker = (Broker) dor.readObject(aston);
+      assertNotNull(broker, "broker needed by transaction");
+      assertNull(dor.readObject(order), "order skipped");
+      assertNull(dor.getById(400000393), "order not in map");
+      assertEquals(1, dor.getSkippedLines(), "one line skipped");
+
+      // later orders are skipped after reading just the class
+      LogLine line = dor.tokenize(order2);
+      assertEquals("org.powertac.common.Order", line.className, "class read");
+      assertNull(line.fields, "rest of line not split");
+
+      DistributionTransaction dtx = (DistributionTransaction) dor.readObject(dt);
+      assertNotNull(dtx, "transaction read");
+      assertEquals(broker, dtx.getBroker(), "broker resolved");
+      assertEquals(1, seen.size(), "listener called");
+
+      // a listener for orders makes them needed again
+      dor.registerNewObjectListener(thing -> seen.add(thing), Order.class);
+      Order o = (Order) dor.readObject(line);
+      assertNotNull(o, "order read");
+      assertEquals(400000394, o.getId(), "correct id");
+      assertEquals(broker, o.getBroker(), "correct broker");
+      assertEquals(1.5, o.getMWh(), 1e-6, "correct mwh");
+    }
+    catch (MissingDomainObject mdo) {
+      fail("bad exception " + mdo.toString());
+    }
+  }
+
+  // a promiscuous listener needs every class
+  @Test
+  public void classFilterPromiscuous ()
+  {
+    String aston = "144669:org.powertac.common.Broker::603::new::AstonTAC";
+    String order = "180915:org.powertac.common.Order::400000393::new::603::42::2.109375::-31.835472671068615";
+    dor.setClassFilter(true);
+    dor.registerNewObjectListener(thing -> { }, DistributionTransaction.class);
+    dor.registerNewObjectListener(thing -> { }, null);
+    try {
+      dor.readObject(aston);
+      assertNotNull(dor.readObject(order), "order read");
+      assertEquals(0, dor.getSkippedLines(), "nothing skipped");
+    }
+    catch (MissingDomainObject mdo) {
+      fail("bad exception " + mdo.toString());
+    }
+  }
+
+  // Times reading a generated log of 200 timeslots, with the decoders
+  // cached as usual and with them dropped before every line, which repeats
+  // the reflective lookups each line used to make. Reports us per 1000
+  // lines. The first half of the rounds are warm-up. Run with -Pbenchmark.
+  @Test
+  @Tag("benchmark")
+  public void benchmarkReadLog () throws MissingDomainObject
+  {
+    List<String> lines = generateLog(5, 200);
+    int rounds = 20;
+    long cachedNanos = 0l;
+    long uncachedNanos = 0l;
+    int cachedCount = 0;
+    int uncachedCount = 0;
+    for (int round = 0; round < rounds; round++) {
+      DomainObjectReader reader = newReader();
+      long start = System.nanoTime();
+      for (String line : lines) {
+        if (null != reader.readObject(line))
+          cachedCount += 1;
+      }
+      long cached = System.nanoTime();
+      reader = newReader();
+      long uncachedStart = System.nanoTime();
+      for (String line : lines) {
+        reader.clearDecoders();
+        if (null != reader.readObject(line))
+          uncachedCount += 1;
+      }
+      long end = System.nanoTime();
+      if (round >= rounds / 2) {
+        cachedNanos += cached - start;
+        uncachedNanos += end - uncachedStart;
+      }
+    }
+    // using the results also keeps the work from being optimized away
+    assertEquals(uncachedCount, cachedCount, "same objects created");
+    assertTrue(cachedCount > 0, "objects created");
+    double thousands = rounds / 2 * lines.size() / 1000.0;
+    log.info(String.format("read %d lines: cached %.1f us, uncached %.1f us"
+                           + " per 1000 lines", lines.size(),
+                           cachedNanos / thousands / 1000.0,
+                           uncachedNanos / thousands / 1000.0));
+  }
+
+  // A state log in the format of a game: a competition, brokers with their
+  // tariffs, customers, then orders, distribution transactions and cash
+  // updates in each timeslot
+  private List<String> generateLog (int brokers, int timeslots)
+  {
+    ArrayList<String> result = new ArrayList<>();
+    int ms = 100;
+    result.add(ms++ + ":org.powertac.common.Competition::0::new::game-0");
+    result.add(ms++ + ":org.powertac.common.Competition::0::withSimulationBaseTime::1229644800000");
+    result.add(ms++ + ":org.powertac.common.Competition::0::withMinimumTimeslotCount::1380");
+    for (int b = 0; b < brokers; b++) {
+      int brokerId = 601 + b;
+      result.add(ms++ + ":org.powertac.common.Broker::" + brokerId
+                 + "::new::broker" + b);
+      result.add(ms++ + ":org.powertac.common.Rate::" + (700 + b)
+                 + "::new::" + (800 + b)
+                 + "::-1::-1::-1::-1::0.0::true::-0.1" + b
+                 + "::0.0::0::0.0::0.0");
+      result.add(ms++ + ":org.powertac.common.TariffSpecification::"
+                 + (800 + b) + "::new::" + brokerId
+                 + "::CONSUMPTION::0::0::0.0::0.0::0.0");
+    }
+    for (int c = 0; c < 20; c++) {
+      result.add(ms++ + ":org.powertac.common.CustomerInfo::" + (900 + c)
+                 + "::new::customer" + c + "::" + (10 + c));
+    }
+    long orderId = 400000000l;
+    long txId = 3000000l;
+    for (int t = 0; t < timeslots; t++) {
+      for (int b = 0; b < brokers; b++) {
+        int brokerId = 601 + b;
+        result.add(ms++ + ":org.powertac.common.Order::" + orderId++
+                   + "::new::" + brokerId + "::" + (t + 24) + "::"
+                   + (1.5 + b) + "::" + (-30.0 - t % 7));
+        result.add(ms++ + ":org.powertac.common.DistributionTransaction::"
+                   + txId++ + "::new::" + brokerId + "::" + t
+                   + "::" + (-12.5 * b) + "::" + (0.3 * b));
+        result.add(ms++ + ":org.powertac.common.Broker::" + brokerId
+                   + "::updateCash::" + (-1.25 * t));
+      }
+    }
+    return result;
+  }
 }
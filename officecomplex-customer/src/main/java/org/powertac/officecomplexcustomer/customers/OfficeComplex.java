@@ -1335,6 +1335,17 @@ public class OfficeComplex extends AbstractCustomer
 
   // =====STEP FUNCTIONS===== //
 
+  /**
+   * The offices, their appliances and their random seeds are all created
+   * at initialization and belong to this model alone, and power is
+   * reported only through usePower(), so stepping is parallel-safe.
+   */
+  @Override
+  public boolean isParallelSafe ()
+  {
+    return true;
+  }
+
   @Override
   public void step ()
   {
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Binary form of the state log. Each line of the text log becomes one
+ * record. The prefix before the first ':' (the msec offset) and each of
+ * the '::'-separated fields after it are stored as tagged values. Numbers
+ * are stored in binary when their text is exactly what Long.toString() or
+ * Double.toString() would produce. Short strings, such as class names,
+ * method names and enum values, go into a dictionary the first time they
+ * appear and are stored by index after that. Every value converts back to
+ * its original text, so a binary log holds exactly what the text log
+ * holds, except for trailing empty fields.
+ * <pre>
+ *   file   := magic record*
+ *   magic  := "PTSTATE" version
+ *   record := prefix count value{count}
+ *   prefix := value, NONE if the line has no ':'
+ *   count  := varint
+ *   value  := NONE | LONG zigzag-varint | DOUBLE 8-bytes | STRING utf8
+ *           | DEFINE utf8 | REF varint | DELTA zigzag-varint
+ *   utf8   := varint length, bytes
+ * </pre>
+ * DEFINE adds a string to the dictionary, and REF refers to one by its
+ * index. DELTA is a long given as the difference from the previous
+ * record's prefix. Varints are unsigned LEB128.
+ * @see BinaryStateLogWriter
+ * @see BinaryStateLogReader
+ */
+public final class BinaryStateLog
+{
+  /** Conventional suffix for binary state logs */
+  public static final String SUFFIX = ".bstate";
+
+  static final byte[] MAGIC = {'P', 'T', 'S', 'T', 'A', 'T', 'E', 1};
+
+  static final int NONE = 0;
+  static final int LONG = 1;
+  static final int DOUBLE = 2;
+  static final int STRING = 3;
+  static final int DEFINE = 4;
+  static final int REF = 5;
+  static final int DELTA = 6;
+
+  // strings up to this length go into the dictionary, until it is full
+  static final int MAX_DICTIONARY_STRING = 64;
+  static final int MAX_DICTIONARY_SIZE = 1 << 20;
+
+  private BinaryStateLog ()
+  {
+    super();
+  }
+
+  /**
+   * Returns true if the stream starts with the binary state-log magic
+   * number. The stream must support mark() and reset(); it is left at the
+   * position it had on entry.
+   */
+  public static boolean isBinary (InputStream in) throws IOException
+  {
+    in.mark(MAGIC.length);
+    try {
+      for (byte b : MAGIC) {
+        if (in.read() != (b & 0xff)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    finally {
+      in.reset();
+    }
+  }
+
+  static void writeVarint (OutputStream out, long value) throws IOException
+  {
+    while ((value & ~0x7fl) != 0l) {
+      out.write((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  static long readVarint (InputStream in) throws IOException
+  {
+    long result = 0l;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.read();
+      if (b < 0) {
+        throw new EOFException("truncated varint");
+      }
+      result |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return result;
+      }
+    }
+    throw new IOException("malformed varint");
+  }
+
+  static long zigzag (long value)
+  {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  static long unzigzag (long value)
+  {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import static org.powertac.common.BinaryStateLog.*;
+
+/**
+ * Reads the records of a binary state log, as described in BinaryStateLog.
+ * Call next() to advance to each record, then getPrefix() and getFields()
+ * to retrieve its contents. Numeric fields are returned as Long or Double
+ * values, and need not be parsed again; every field's toString() is its
+ * text in the original log.
+ */
+public class BinaryStateLogReader implements Closeable
+{
+  private DataInputStream in;
+  private ArrayList<String> dictionary = new ArrayList<>();
+  private long previousPrefix = 0l;
+
+  private String prefix;
+  private Object[] fields;
+
+  /**
+   * Creates a reader on the given stream, and checks the file header.
+   */
+  public BinaryStateLogReader (InputStream stream) throws IOException
+  {
+    super();
+    in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+    for (byte b : MAGIC) {
+      if (in.read() != (b & 0xff)) {
+        throw new IOException("not a binary state log");
+      }
+    }
+  }
+
+  /**
+   * Reads the next record. Returns false at the end of the log.
+   */
+  public boolean next () throws IOException
+  {
+    int tag = in.read();
+    if (tag < 0) {
+      prefix = null;
+      fields = null;
+      return false;
+    }
+    try {
+      if (NONE == tag) {
+        prefix = null;
+      }
+      else if (DELTA == tag) {
+        previousPrefix += unzigzag(readVarint(in));
+        prefix = Long.toString(previousPrefix);
+      }
+      else {
+        prefix = readValue(tag).toString();
+      }
+      int count = (int) readVarint(in);
+      fields = new Object[count];
+      for (int i = 0; i < count; i++) {
+        fields[i] = readValue(in.read());
+      }
+    }
+    catch (EOFException eof) {
+      throw new IOException("truncated record", eof);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the current record's prefix, usually its msec offset, or null
+   * if the line had none.
+   */
+  public String getPrefix ()
+  {
+    return prefix;
+  }
+
+  /**
+   * Returns the current record's fields. Each is a Long, Double or String.
+   * The array belongs to the caller; next() does not reuse it.
+   */
+  public Object[] getFields ()
+  {
+    return fields;
+  }
+
+  /**
+   * Returns the current record as a line of the text state log.
+   */
+  public String getLine ()
+  {
+    StringBuilder result = new StringBuilder();
+    if (null != prefix) {
+      result.append(prefix).append(':');
+    }
+    for (int i = 0; i < fields.length; i++) {
+      if (i > 0) {
+        result.append("::");
+      }
+      result.append(fields[i]);
+    }
+    return result.toString();
+  }
+
+  @Override
+  public void close () throws IOException
+  {
+    in.close();
+  }
+
+  private Object readValue (int tag) throws IOException
+  {
+    switch (tag) {
+      case LONG:
+        return unzigzag(readVarint(in));
+      case DOUBLE:
+        return Double.longBitsToDouble(in.readLong());
+      case STRING:
+        return readString();
+      case DEFINE:
+        String value = readString();
+        dictionary.add(value);
+        return value;
+      case REF:
+        long index = readVarint(in);
+        if (index >= dictionary.size()) {
+          throw new IOException("bad dictionary index " + index);
+        }
+        return dictionary.get((int) index);
+      case -1:
+        throw new EOFException();
+      default:
+        throw new IOException("bad tag " + tag);
+    }
+  }
+
+  private String readString () throws IOException
+  {
+    int length = (int) readVarint(in);
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
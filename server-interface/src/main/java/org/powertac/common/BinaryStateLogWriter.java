@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.regex.Pattern;
+
+import static org.powertac.common.BinaryStateLog.*;
+
+/**
+ * Writes state-log lines in the binary form described in BinaryStateLog.
+ * Lines are given as text, exactly as they would appear in a text state
+ * log. Calls to writeLine() are synchronized, so one writer can be shared
+ * by several logging threads.
+ */
+public class BinaryStateLogWriter implements Closeable, Flushable
+{
+  private static final Pattern separator = Pattern.compile("::");
+
+  private DataOutputStream out;
+  private HashMap<String, Integer> dictionary = new HashMap<>();
+  private long previousPrefix = 0l;
+
+  /**
+   * Creates a writer on the given stream and writes the file header.
+   */
+  public BinaryStateLogWriter (OutputStream stream) throws IOException
+  {
+    super();
+    out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+    out.write(MAGIC);
+  }
+
+  /**
+   * Writes one line of the state log, without its line terminator.
+   */
+  public synchronized void writeLine (String line) throws IOException
+  {
+    int colon = line.indexOf(':');
+    if (colon < 0) {
+      out.write(NONE);
+    }
+    else {
+      writePrefix(line.substring(0, colon));
+    }
+    String[] fields = separator.split(line.substring(colon + 1));
+    writeVarint(out, fields.length);
+    for (String field : fields) {
+      writeValue(field);
+    }
+  }
+
+  @Override
+  public synchronized void flush () throws IOException
+  {
+    out.flush();
+  }
+
+  @Override
+  public synchronized void close () throws IOException
+  {
+    out.close();
+  }
+
+  // prefixes are usually increasing msec values, so store differences
+  private void writePrefix (String prefix) throws IOException
+  {
+    Long value = asLong(prefix);
+    if (null == value) {
+      writeString(prefix);
+      return;
+    }
+    out.write(DELTA);
+    writeVarint(out, zigzag(value - previousPrefix));
+    previousPrefix = value;
+  }
+
+  private void writeValue (String field) throws IOException
+  {
+    Long longValue = asLong(field);
+    if (null != longValue) {
+      out.write(LONG);
+      writeVarint(out, zigzag(longValue));
+      return;
+    }
+    Double doubleValue = asDouble(field);
+    if (null != doubleValue) {
+      out.write(DOUBLE);
+      out.writeLong(Double.doubleToRawLongBits(doubleValue));
+      return;
+    }
+    writeString(field);
+  }
+
+  private void writeString (String value) throws IOException
+  {
+    Integer index = dictionary.get(value);
+    if (null != index) {
+      out.write(REF);
+      writeVarint(out, index);
+      return;
+    }
+    if (value.length() <= MAX_DICTIONARY_STRING
+        && dictionary.size() < MAX_DICTIONARY_SIZE) {
+      dictionary.put(value, dictionary.size());
+      out.write(DEFINE);
+    }
+    else {
+      out.write(STRING);
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeVarint(out, bytes.length);
+    out.write(bytes);
+  }
+
+  // Returns the value of text if it is exactly how Long.toString() would
+  // write it, otherwise null
+  private Long asLong (String text)
+  {
+    if (!looksNumeric(text) || text.length() > 20) {
+      return null;
+    }
+    try {
+      long value = Long.parseLong(text);
+      return Long.toString(value).equals(text) ? value : null;
+    }
+    catch (NumberFormatException nfe) {
+      return null;
+    }
+  }
+
+  // Returns the value of text if it is exactly how Double.toString() would
+  // write it, otherwise null
+  private Double asDouble (String text)
+  {
+    if (!looksNumeric(text)) {
+      return null;
+    }
+    try {
+      double value = Double.parseDouble(text);
+      return Double.toString(value).equals(text) ? value : null;
+    }
+    catch (NumberFormatException nfe) {
+      return null;
+    }
+  }
+
+  private boolean looksNumeric (String text)
+  {
+    if (text.isEmpty()) {
+      return false;
+    }
+    char first = text.charAt(0);
+    return (first >= '0' && first <= '9') || first == '-';
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import java.util.Arrays;
+
+/**
+ * Samples from a finite discrete distribution given by non-negative
+ * weights. Weights are added in order with add(); the sampler keeps their
+ * cumulative sums, so each draw by inversion is a binary search, O(log n)
+ * rather than a walk down the list. The binary search gives exactly the
+ * choice the walk would, since a sample close enough to a cumulative sum
+ * for rounding to matter is resolved by the walk itself. For callers that
+ * draw many samples
+ * from one distribution, an alias table (Vose's method) can be built on
+ * first use of sampleAlias(), after which each draw is O(1).
+ * <p>
+ * Instances are reusable: clear() discards the weights but keeps the
+ * arrays, so a sampler held by a long-lived object does not allocate once
+ * it has grown to its working size. Instances are not thread-safe.</p>
+ */
+public class DiscreteChoiceSampler
+{
+  private double[] weights;
+  private double[] cumulative;
+  private int size = 0;
+
+  // alias table, built lazily
+  private double[] aliasProbability;
+  private int[] alias;
+  private int[] aliasWork;
+  private boolean aliasValid = false;
+
+  /**
+   * Creates an empty sampler.
+   */
+  public DiscreteChoiceSampler ()
+  {
+    this(16);
+  }
+
+  /**
+   * Creates an empty sampler with room for the given number of choices.
+   */
+  public DiscreteChoiceSampler (int capacity)
+  {
+    super();
+    weights = new double[Math.max(1, capacity)];
+    cumulative = new double[weights.length];
+  }
+
+  /**
+   * Removes all choices.
+   */
+  public DiscreteChoiceSampler clear ()
+  {
+    size = 0;
+    aliasValid = false;
+    return this;
+  }
+
+  /**
+   * Adds a choice with the given weight, which must be non-negative. The
+   * choice's index is the number of choices added before it.
+   */
+  public DiscreteChoiceSampler add (double weight)
+  {
+    if (size == cumulative.length) {
+      weights = Arrays.copyOf(weights, size * 2);
+      cumulative = Arrays.copyOf(cumulative, size * 2);
+    }
+    double previous = (0 == size) ? 0.0 : cumulative[size - 1];
+    weights[size] = weight;
+    cumulative[size++] = previous + weight;
+    aliasValid = false;
+    return this;
+  }
+
+  /**
+   * Replaces the choices with the first n weights of the given array.
+   */
+  public DiscreteChoiceSampler set (double[] weights, int n)
+  {
+    clear();
+    for (int i = 0; i < n; i++)
+      add(weights[i]);
+    return this;
+  }
+
+  /**
+   * Returns the number of choices.
+   */
+  public int size ()
+  {
+    return size;
+  }
+
+  /**
+   * Returns the sum of the weights.
+   */
+  public double getTotal ()
+  {
+    return (0 == size) ? 0.0 : cumulative[size - 1];
+  }
+
+  /**
+   * Returns the index of the first choice whose cumulative weight is at
+   * least x, where x is in [0, total]. This is the choice found by walking
+   * down the list and subtracting each weight from x until the remainder
+   * no longer exceeds the next weight, including where the rounding of the
+   * remainders and of the cumulative sums disagree. Returns -1 if the walk
+   * runs off the end of the list.
+   */
+  public int sampleCumulative (double x)
+  {
+    if (0 == size)
+      return -1;
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (x <= cumulative[mid])
+        high = mid;
+      else
+        low = mid + 1;
+    }
+    // The remainder after subtracting i weights and the cumulative sum of
+    // i weights are each within i/2 ulps of the exact value, so the two
+    // can only disagree about boundaries closer than that to x.
+    double guard =
+        2.0 * (size + 1) * Math.ulp(Math.max(Math.abs(x), getTotal()));
+    if ((low < size && cumulative[low] - x <= guard)
+        || (low > 0 && x - cumulative[low - 1] <= guard))
+      return walk(x);
+    return (low < size) ? low : -1;
+  }
+
+  // The walk that sampleCumulative() stands in for, used near boundaries
+  private int walk (double x)
+  {
+    for (int i = 0; i < size; i++) {
+      if (x <= weights[i])
+        return i;
+      x -= weights[i];
+    }
+    return -1;
+  }
+
+  /**
+   * Draws a choice by inversion, given a uniform sample in [0,1].
+   * Returns -1 if there are no choices with positive weight.
+   */
+  public int sample (double u)
+  {
+    double total = getTotal();
+    if (total <= 0.0)
+      return -1;
+    return sampleCumulative(Math.min(u, 1.0) * total);
+  }
+
+  /**
+   * Draws a choice from the alias table, given a uniform sample in [0,1].
+   * The table is built on the first call after the choices change, in
+   * O(n) time. Draws have the same distribution as sample(), but map
+   * samples to choices differently. Returns -1 if there are no choices with
+   * positive weight.
+   */
+  public int sampleAlias (double u)
+  {
+    if (getTotal() <= 0.0)
+      return -1;
+    if (!aliasValid)
+      buildAliasTable();
+    double scaled = Math.min(u, 1.0) * size;
+    int column = Math.min((int) scaled, size - 1);
+    if (scaled - column < aliasProbability[column])
+      return column;
+    return alias[column];
+  }
+
+  // Vose's alias method
+  private void buildAliasTable ()
+  {
+    if (null == alias || alias.length < size) {
+      aliasProbability = new double[cumulative.length];
+      alias = new int[cumulative.length];
+      aliasWork = new int[cumulative.length];
+    }
+    double scale = size / getTotal();
+    // aliasWork holds small columns from the front and large ones from
+    // the back
+    int small = 0;
+    int large = size;
+    for (int i = 0; i < size; i++) {
+      aliasProbability[i] = weights[i] * scale;
+      alias[i] = i;
+      if (aliasProbability[i] < 1.0)
+        aliasWork[small++] = i;
+      else
+        aliasWork[--large] = i;
+    }
+    while (small > 0 && large < size) {
+      int less = aliasWork[--small];
+      int more = aliasWork[large];
+      alias[less] = more;
+      aliasProbability[more] =
+          (aliasProbability[more] + aliasProbability[less]) - 1.0;
+      if (aliasProbability[more] < 1.0) {
+        large += 1;
+        aliasWork[small++] = more;
+      }
+    }
+    // whatever remains is full, up to rounding
+    while (large < size)
+      aliasProbability[aliasWork[large++]] = 1.0;
+    while (small > 0)
+      aliasProbability[aliasWork[--small]] = 1.0;
+    aliasValid = true;
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.stereotype.Service;
+
+/**
+ * Shared cache of profile cost estimates, used by TariffEvaluator to avoid
+ * repeating TariffEvaluationHelper.estimateCost() when several customers
+ * present the same profile for the same tariff. Entries are keyed by
+ * tariff, profile contents, profile start time, and the cost factors of
+ * the helper that computed them, so a hit always returns exactly the value
+ * the helper would have produced. The profile hash is used only to find
+ * candidate entries; equality compares the full profile.
+ * <p>
+ * The cache is a Spring bean, looked up by each TariffEvaluator, and is
+ * disabled by default. When configured to use it, CustomerModelService
+ * enables it only for the duration of a tariff evaluation round, and
+ * disabling it clears it, so no estimate outlives the round that computed
+ * it. That matters since cost estimates for variable-rate tariffs can
+ * change as HourlyCharges arrive. Access is thread-safe.</p>
+ */
+@Service
+public class TariffCostCache
+{
+  private volatile boolean enabled = false;
+  private ConcurrentHashMap<Key, Double> costs =
+      new ConcurrentHashMap<Key, Double>();
+  private AtomicLong hits = new AtomicLong(0l);
+  private AtomicLong misses = new AtomicLong(0l);
+
+  /**
+   * Returns true if evaluators should consult the cache.
+   */
+  public boolean isEnabled ()
+  {
+    return enabled;
+  }
+
+  /**
+   * Enables or disables the cache. Disabling also clears it.
+   */
+  public void setEnabled (boolean value)
+  {
+    enabled = value;
+    if (!value)
+      clear();
+  }
+
+  /**
+   * Returns the cached cost for the given key, or null if there is none.
+   * Counts a hit or miss.
+   */
+  Double get (Key key)
+  {
+    Double result = costs.get(key);
+    if (null == result)
+      misses.incrementAndGet();
+    else
+      hits.incrementAndGet();
+    return result;
+  }
+
+  /**
+   * Records a computed cost.
+   */
+  void put (Key key, double cost)
+  {
+    costs.put(key, cost);
+  }
+
+  /**
+   * Returns the number of lookups that found a cached cost since the last
+   * call to clear().
+   */
+  public long getHits ()
+  {
+    return hits.get();
+  }
+
+  /**
+   * Returns the number of lookups that did not find a cached cost since the
+   * last call to clear().
+   */
+  public long getMisses ()
+  {
+    return misses.get();
+  }
+
+  /**
+   * Returns the fraction of lookups that were hits, or zero if there have
+   * been no lookups.
+   */
+  public double getHitRate ()
+  {
+    long total = getHits() + getMisses();
+    if (0l == total)
+      return 0.0;
+    return (double) getHits() / (double) total;
+  }
+
+  /**
+   * Returns the number of cached costs.
+   */
+  public int size ()
+  {
+    return costs.size();
+  }
+
+  /**
+   * Removes all entries and resets the hit and miss counts.
+   */
+  public void clear ()
+  {
+    costs.clear();
+    hits.set(0l);
+    misses.set(0l);
+  }
+
+  /**
+   * Cache key. The profile array is copied, so callers may reuse theirs.
+   */
+  static class Key
+  {
+    private final Tariff tariff;
+    private final double[] profile;
+    private final long start;
+    private final double[] factors;
+    private final int hash;
+
+    Key (Tariff tariff, double[] profile, long start, double[] factors)
+    {
+      super();
+      this.tariff = tariff;
+      this.profile = Arrays.copyOf(profile, profile.length);
+      this.start = start;
+      this.factors = Arrays.copyOf(factors, factors.length);
+      int h = tariff.hashCode();
+      h = 31 * h + Arrays.hashCode(this.profile);
+      h = 31 * h + Long.hashCode(start);
+      h = 31 * h + Arrays.hashCode(this.factors);
+      hash = h;
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals (Object obj)
+    {
+      if (this == obj)
+        return true;
+      if (!(obj instanceof Key))
+        return false;
+      Key other = (Key) obj;
+      return hash == other.hash
+          && tariff == other.tariff
+          && start == other.start
+          && Arrays.equals(profile, other.profile)
+          && Arrays.equals(factors, other.factors);
+    }
+  }
+}
@@ -15,13 +15,16 @@
  */
 package org.powertac.common;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.function.DoubleSupplier;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -43,10 +46,16 @@ public class TariffEvaluator
 {
   static private Logger log = LogManager.getLogger(TariffEvaluator.class.getName());
 
+  // When set on a thread, subscription updates are recorded here rather
+  // than applied, so evaluations can run in parallel
+  static private ThreadLocal<List<Runnable>> deferredUpdates =
+      new ThreadLocal<List<Runnable>>();
+
   // component dependencies
   TariffRepo tariffRepo;
   TariffMarket tariffMarket;
   TariffSubscriptionRepo tariffSubscriptionRepo;
+  TariffCostCache tariffCostCache;
 
   // access to customer model
   private CustomerModelAccessor accessor;
@@ -68,6 +77,10 @@ public class TariffEvaluator
   // profile cost analyzer
   private TariffEvaluationHelper helper;
 
+  // cost and regulation factors given to the helper, part of the
+  // cost-cache key; NaN means the helper default
+  private double[] helperFactors;
+
   // per-customer parameter settings
   private int chunkSize = 1; // max size of allocation chunks
   private int maxChunkCount = 200; // max number of chunks
@@ -79,12 +92,21 @@ public class TariffEvaluator
   private double tariffSwitchFactor = 0.04;
   private double preferredDuration = 6;
   private boolean evaluateAllTariffs = false;
+  private boolean multinomialAllocation = false;
 
   // state
   private int evaluationCounter = 0;
   private HashMap<Tariff, EvalData> evaluatedTariffs;
   private HashMap<Tariff, Integer> allocations;
 
+  // scratch space for the logit choice in evaluateAlternativeTariffs,
+  // reused across calls
+  private Tariff[] choiceTariffs = new Tariff[16];
+  private double[] choiceUtilities = new double[16];
+  private double[] choiceProbabilities = new double[16];
+  private int[] choiceOrder = new int[16];
+  private DiscreteChoiceSampler choiceSampler = new DiscreteChoiceSampler();
+
   // algorithm parameters - needed for numerical stablity
   private double lambdaMax = 50.0;
   private double maxLinearUtility = 7.0;
@@ -96,6 +118,8 @@ public class TariffEvaluator
     accessor = cma;
     customerInfo = cma.getCustomerInfo();
     helper = new TariffEvaluationHelper();
+    helperFactors = new double[7];
+    Arrays.fill(helperFactors, Double.NaN);
     evaluatedTariffs = new HashMap<>();
     allocations = new LinkedHashMap<>();
   }
@@ -113,6 +137,10 @@ public class TariffEvaluator
                                      double wtRealized, double soldThreshold)
   {
     helper.initializeCostFactors(wtExpected, wtMax, wtRealized, soldThreshold);
+    helperFactors[0] = wtExpected;
+    helperFactors[1] = wtMax;
+    helperFactors[2] = wtRealized;
+    helperFactors[3] = soldThreshold;
   }
 
   /**
@@ -165,6 +193,9 @@ public class TariffEvaluator
       expDown = 0.0;
     }
     helper.initializeRegulationFactors(expCurtail, expDis, expDown);
+    helperFactors[4] = expCurtail;
+    helperFactors[5] = expDis;
+    helperFactors[6] = expDown;
   }
 
   // parameter settings
@@ -209,6 +240,20 @@ public class TariffEvaluator
     return this;
   }
 
+  /**
+   * If true, the population of a multi-contracting customer is split among
+   * the alternative tariffs in a single multinomial draw, rather than chunk
+   * by chunk. The number of customers paying attention is drawn first, then
+   * the attentive customers are divided among the tariffs by successive
+   * binomial draws, so the cost no longer grows with population/chunk size.
+   * Default is false, which keeps the chunked allocation.
+   */
+  public TariffEvaluator withMultinomialAllocation (boolean value)
+  {
+    multinomialAllocation = value;
+    return this;
+  }
+
   /**
    * Sets the steady-state evaluation inertia for the customer. This is a
    * value in [0,1], where 0 is no inertia (always evaluates), and 1 is
@@ -413,8 +458,8 @@ public class TariffEvaluator
       return;
     }
     //log.info("evaluateAlternativeTariffs(" + current.getTariff().getId() + ")");
-    // Associate each alternate tariff with its utility value
-    TreeSet<TariffUtility> evals = new TreeSet<>();
+    // The candidate set is iterated in the same order as before, since the
+    // signup cost used in the inertia test is that of the last candidate.
     HashSet<Tariff> tariffs = new HashSet<>(initialTariffs);
     tariffs.add(defaultTariff);
 
@@ -438,8 +483,10 @@ public class TariffEvaluator
       tariffs.add(currentTariff);
     }
 
-    // Compute the final cost number for each tariff
-    HashMap<Tariff, EvalData> costs = new HashMap<Tariff, EvalData>();
+    // Compute the final cost and the utility for each tariff,
+    // including the current and default tariffs
+    ensureChoiceCapacity(tariffs.size());
+    int n = 0;
     double signupCost = 0.0;
     for (Tariff tariff: tariffs) {
       EvalData eval = evaluatedTariffs.get(tariff);
@@ -466,57 +513,64 @@ public class TariffEvaluator
                     + tariff.getId());
         }
       }
-      costs.put(tariff, new EvalData(cost, inconvenience));
-    }
-
-    // for each tariff, including the current and default tariffs,
-    // compute the utility
-    for (Tariff tariff: tariffs) {
-      EvalData finalCost = costs.get(tariff);
       // don't consider current tariff if it's revoked
       if (!revoked || tariff != currentTariff) {
         double utility =
-            computeNormalizedDifference(finalCost.costEstimate,
-                                        defaultEval.costEstimate);
-        utility -= inconvenienceWeight * finalCost.inconvenience;
-        //log.info("utility for tariff {} = {}, constrained to {}", tariff.getId(),
-        //         utility, constrainUtility(utility));
+            computeNormalizedDifference(cost, defaultEval.costEstimate);
+        utility -= inconvenienceWeight * inconvenience;
         if (Double.isNaN(utility)) {
           log.error(getName() + ": utility is NaN for tariff "
                     + tariff.getId());
         }
         log.debug("tariff {}: adjCost={}, default={}, utility={}",
-                  tariff.getId(), finalCost.costEstimate,
-                  defaultEval.costEstimate, utility);
-        TariffUtility tu =
-            new TariffUtility(tariff, constrainUtility(utility));
-        evals.add(tu);
+                  tariff.getId(), cost, defaultEval.costEstimate, utility);
+        choiceTariffs[n] = tariff;
+        choiceUtilities[n] = constrainUtility(utility);
+        n += 1;
       }
     }
-    
-    // We now have utility values for each possible tariff.
-    // Time to make some choices -
+    sortChoices(n);
+
+    // We now have utility values for each possible tariff, in order of
+    // decreasing utility. Time to make some choices -
     // -- first, compute lambda from rationality
     // -- second, we have to compute the sum of transformed utilities
     double logitDenominator = 0.0;
     double lambda = Math.pow(lambdaMax, rationality) - 1.0;
-    for (TariffUtility util : evals) {
-      logitDenominator +=
-              Math.exp(lambda * util.utility);
-    }
-    // then we can compute the probabilities
-    for (TariffUtility util : evals) {
-      util.probability =
-              Math.exp(lambda * util.utility)
-              / logitDenominator;
-      if (Double.isNaN(util.probability)) {
-        log.error(getName() + ": Probability NAN, util=" + util.utility
+    for (int i = 0; i < n; i++) {
+      int c = choiceOrder[i];
+      choiceProbabilities[c] = Math.exp(lambda * choiceUtilities[c]);
+      logitDenominator += choiceProbabilities[c];
+    }
+    // then we can compute the probabilities, and their cumulative
+    // distribution in order of decreasing utility
+    choiceSampler.clear();
+    for (int i = 0; i < n; i++) {
+      int c = choiceOrder[i];
+      choiceProbabilities[c] = choiceProbabilities[c] / logitDenominator;
+      if (Double.isNaN(choiceProbabilities[c])) {
+        log.error(getName() + ": Probability NAN, util="
+                  + choiceUtilities[c]
                   + ", denom=" + logitDenominator
-                  + ", tariff " + util.tariff);
-        util.probability = 0.0;
+                  + ", tariff " + choiceTariffs[c]);
+        choiceProbabilities[c] = 0.0;
       }
       log.debug("Tariff {} probability={}",
-                util.tariff.getId(), util.probability);
+                choiceTariffs[c].getId(), choiceProbabilities[c]);
+      choiceSampler.add(choiceProbabilities[c]);
+    }
+    if (customerInfo.isMultiContracting() && multinomialAllocation) {
+      // probability that a customer ignores the alternatives, following
+      // the same rules as the chunked allocation below
+      double skip = 0.0;
+      if (!revoked && withdraw0 <= 0.0 && signupCost <= 0.0)
+        skip = inertia;
+      else if (signupCost > 0.0)
+        skip = inertia * signupBonusFactor;
+      allocateMultinomial(currentTariff, population, n,
+                          Math.min(1.0, Math.max(0.0, skip)));
+      Arrays.fill(choiceTariffs, 0, n, null);
+      return;
     }
     int remainingPopulation = population;
     int chunk = remainingPopulation;
@@ -544,26 +598,123 @@ public class TariffEvaluator
         continue;
       }
       double tariffSample = accessor.getTariffChoiceSample();
-      // walk down the list until we run out of probability
-      boolean allocated = false;
-      for (TariffUtility tu : evals) {
-        log.debug("tariff {}: sample={}, probability={}",
-                  tu.tariff.getId(), tariffSample, tu.probability);
-        if (tariffSample <= tu.probability) {
-          addAllocation(currentTariff, tu.tariff, count);
-          allocated = true;
-          break;
-        }
-        else {
-          tariffSample -= tu.probability;
-        }
-      }
-      if (!allocated) {
+      // find the tariff where the cumulative probability reaches the sample
+      int choice = choiceSampler.sampleCumulative(tariffSample);
+      if (choice < 0) {
         log.error(getName() + ": Failed to allocate: P=" + tariffSample);
+        continue;
+      }
+      int c = choiceOrder[choice];
+      log.debug("tariff {}: sample={}, probability={}",
+                choiceTariffs[c].getId(), tariffSample,
+                choiceProbabilities[c]);
+      addAllocation(currentTariff, choiceTariffs[c], count);
+    }
+    // don't hold on to tariffs between calls
+    Arrays.fill(choiceTariffs, 0, n, null);
+  }
+
+  // Splits a population among the first n choices, in choiceOrder, with
+  // a single multinomial draw done as a sequence of binomial draws
+  private void allocateMultinomial (Tariff currentTariff, int population,
+                                    int n, double skip)
+  {
+    int remaining =
+        sampleBinomial(population, 1.0 - skip, accessor::getInertiaSample);
+    double remainingProbability = 1.0;
+    for (int i = 0; i < n && remaining > 0; i++) {
+      int c = choiceOrder[i];
+      int count = remaining;
+      if (i < n - 1 && choiceProbabilities[c] < remainingProbability) {
+        count = sampleBinomial(remaining,
+                               choiceProbabilities[c] / remainingProbability,
+                               accessor::getTariffChoiceSample);
+      }
+      remainingProbability -= choiceProbabilities[c];
+      remaining -= count;
+      if (count > 0) {
+        addAllocation(currentTariff, choiceTariffs[c], count);
+      }
+    }
+  }
+
+  /**
+   * Draws from a binomial(n, p) distribution using uniform samples from the
+   * given source. Small means use exact inversion of the CDF, which takes
+   * one sample; larger ones use the normal approximation with continuity
+   * correction, which takes two.
+   */
+  static int sampleBinomial (int n, double p, DoubleSupplier uniform)
+  {
+    if (n <= 0 || p <= 0.0)
+      return 0;
+    if (p >= 1.0)
+      return n;
+    if (p > 0.5)
+      return n - sampleBinomial(n, 1.0 - p, uniform);
+    double q = 1.0 - p;
+    double mean = n * p;
+    if (mean < 30.0) {
+      // inversion, walking up the CDF from zero
+      double u = uniform.getAsDouble();
+      double pmf = Math.pow(q, n);
+      double cdf = pmf;
+      int k = 0;
+      while (u > cdf && k < n) {
+        pmf *= (double)(n - k) / (double)(k + 1) * p / q;
+        k += 1;
+        cdf += pmf;
+      }
+      return k;
+    }
+    // normal approximation, Box-Muller transform
+    double u1 = Math.max(uniform.getAsDouble(), Double.MIN_VALUE);
+    double u2 = uniform.getAsDouble();
+    double z = Math.sqrt(-2.0 * Math.log(u1)) * Math.cos(2.0 * Math.PI * u2);
+    long k = Math.round(mean + z * Math.sqrt(mean * q));
+    return (int)Math.max(0l, Math.min(n, k));
+  }
+
+  // Grows the choice scratch arrays as needed
+  private void ensureChoiceCapacity (int size)
+  {
+    if (choiceTariffs.length >= size)
+      return;
+    int capacity = Math.max(size, choiceTariffs.length * 2);
+    choiceTariffs = new Tariff[capacity];
+    choiceUtilities = new double[capacity];
+    choiceProbabilities = new double[capacity];
+    choiceOrder = new int[capacity];
+  }
+
+  // Fills choiceOrder with the indices of the first n choices, ordered by
+  // decreasing utility, then by decreasing tariff id. Insertion sort, since
+  // n is small and the sort must not allocate.
+  private void sortChoices (int n)
+  {
+    for (int i = 0; i < n; i++) {
+      int c = i;
+      int j = i - 1;
+      while (j >= 0 && compareChoices(choiceOrder[j], c) > 0) {
+        choiceOrder[j + 1] = choiceOrder[j];
+        j -= 1;
       }
+      choiceOrder[j + 1] = c;
     }
   }
 
+  // Orders choices by decreasing utility, ties by decreasing tariff id
+  private int compareChoices (int a, int b)
+  {
+    double result = choiceUtilities[b] - choiceUtilities[a];
+    if (result == 0.0)
+      return (int) (choiceTariffs[b].getId() - choiceTariffs[a].getId());
+    else if (result > 0.0)
+      return 1;
+    else
+      return -1;
+  }
+
   // Customers really, really don't like paying to sign up. This computation
   // inflates the cost of signup fees by the ratio of the customer's
   // preferred duration to the duration of one tariff-publication cycle.
@@ -660,9 +811,7 @@ public class TariffEvaluator
     // since the previous writes inconv. factors.
     // Always 0 except for AdaptiveCapacityOriginator
     double inconv = accessor.getShiftingInconvenienceFactor(tariff);
-    double profileCost = helper.estimateCost(tariff,
-                                             profile.getProfile(),
-                                             profile.getStart());
+    double profileCost = estimateProfileCost(tariff, profile);
     if (Double.isNaN(profileCost)) {
       log.error(getName() + ": profile cost NaN for tariff "
                 + tariff.getId());
@@ -678,6 +827,28 @@ public class TariffEvaluator
     return (profileCost + inconv) * scale;
   }
 
+  // Runs the helper's cost estimate, going through the shared cost cache
+  // if it is enabled for the current evaluation round
+  private double estimateProfileCost (Tariff tariff, CapacityProfile profile)
+  {
+    TariffCostCache cache = getTariffCostCache();
+    if (!cache.isEnabled()) {
+      return helper.estimateCost(tariff, profile.getProfile(),
+                                 profile.getStart());
+    }
+    TariffCostCache.Key key =
+        new TariffCostCache.Key(tariff, profile.getProfile(),
+                                profile.getStart().getMillis(),
+                                helperFactors);
+    Double cost = cache.get(key);
+    if (null == cost) {
+      cost = helper.estimateCost(tariff, profile.getProfile(),
+                                 profile.getStart());
+      cache.put(key, cost);
+    }
+    return cost;
+  }
+
   // tracks additions and deletions for tariff subscriptions
   private void addAllocation (Tariff current, Tariff newTariff, int count)
   {
@@ -701,8 +872,20 @@ public class TariffEvaluator
     allocations.put(newTariff, ac);
   }
   
-  // updates subscriptions based on computed allocations
+  // updates subscriptions based on computed allocations, or defers the
+  // updates if the current thread is collecting them
   private void updateSubscriptions ()
+  {
+    List<Runnable> deferred = deferredUpdates.get();
+    if (null != deferred) {
+      final Map<Tariff, Integer> pending = new LinkedHashMap<>(allocations);
+      deferred.add(() -> updateSubscriptions(pending));
+      return;
+    }
+    updateSubscriptions(allocations);
+  }
+
+  private void updateSubscriptions (Map<Tariff, Integer> allocations)
   {
     int check = 0;
     for (Tariff tariff : allocations.keySet()) {
@@ -733,6 +916,30 @@ public class TariffEvaluator
     }
   }
 
+  // parallel evaluation support
+  /**
+   * Starts deferring subscription updates made by evaluators running on the
+   * calling thread. Evaluation results are recorded, not applied, until
+   * the list returned by stopDeferredUpdates() is run.
+   */
+  public static void startDeferredUpdates ()
+  {
+    deferredUpdates.set(new ArrayList<Runnable>());
+  }
+
+  /**
+   * Stops deferring subscription updates on the calling thread, and returns
+   * the deferred updates in the order the evaluations completed.
+   */
+  public static List<Runnable> stopDeferredUpdates ()
+  {
+    List<Runnable> result = deferredUpdates.get();
+    deferredUpdates.remove();
+    if (null == result)
+      result = new ArrayList<Runnable>();
+    return result;
+  }
+
   // inconvenience computation
   /**
    * Returns inconvenience of time-of-use rate.
@@ -830,35 +1037,13 @@ public class TariffEvaluator
     return tariffMarket;
   }
 
-  // Container for tariff-utility recording ------------------------------
-  class TariffUtility implements Comparable<TariffUtility>
+  private TariffCostCache getTariffCostCache ()
   {
-    Tariff tariff;
-    double adjustedCost = 0.0;
-    double utility;
-    double probability = 0.0;
-
-    TariffUtility (Tariff tariff, double utility)
-    {
-      super();
-      this.tariff = tariff;
-      this.utility = utility;
-    }
-
-    @Override
-    // natural ordering is by decreasing utility values
-      public
-      int compareTo (TariffUtility other)
-    {
-      double result = other.utility - utility;
-      if (result == 0.0)
-        // consistent with equals...
-        return (int) (other.tariff.getId() - tariff.getId());
-      else if (result > 0.0)
-        return 1;
-      else
-        return -1;
-    }
+    if (null != tariffCostCache)
+      return tariffCostCache;
+    tariffCostCache =
+            (TariffCostCache) SpringApplicationContext.getBean("tariffCostCache");
+    return tariffCostCache;
   }
 
   // Container for tariff-evaluation data
@@ -24,6 +24,7 @@ import org.apache.logging.log4j.Logger;
 import org.joda.time.Instant;
 import org.powertac.common.interfaces.Accounting;
 import org.powertac.common.interfaces.TariffMarket;
+import org.powertac.common.repo.TariffSubscriptionRepo;
 import org.powertac.common.spring.SpringApplicationContext;
 import org.powertac.common.state.Domain;
 import org.powertac.common.state.StateChange;
@@ -42,6 +43,11 @@ public class TariffSubscription
 {
   static private Logger log = LogManager.getLogger(TariffSubscription.class.getName());
 
+  // When set on a thread, the charges and transactions from usePower() are
+  // recorded here rather than posted, so models can step in parallel
+  static private ThreadLocal<List<Runnable>> deferredUsage =
+      new ThreadLocal<List<Runnable>>();
+
   long id = IdGenerator.createId();
 
   private TimeService timeService;
@@ -50,6 +56,9 @@ public class TariffSubscription
 
   private TariffMarket tariffMarketService;
 
+  // repo that indexes this subscription, notified when the count changes
+  private TariffSubscriptionRepo subscriptionRepo;
+
   /** The customer who has this Subscription */
   private CustomerInfo customer;
 
@@ -145,7 +154,19 @@ public class TariffSubscription
   @StateChange
   public void setCustomersCommitted (int value)
   {
+    int oldValue = customersCommitted;
     customersCommitted = value;
+    if (null != subscriptionRepo && oldValue != value)
+      subscriptionRepo.customersCommittedChanged(this, oldValue, value);
+  }
+
+  /**
+   * Sets the repo that indexes this subscription. Called by
+   * TariffSubscriptionRepo when the subscription is stored or removed.
+   */
+  public void setRepo (TariffSubscriptionRepo repo)
+  {
+    subscriptionRepo = repo;
   }
 
   public double getTotalUsage ()
@@ -349,25 +370,65 @@ public class TariffSubscription
           * customersCommitted;
     log.info("usePower " + kwh + ", actual " + actualKwh + 
              ", customer=" + customer.getName());
-    // generate the usage transaction
-    TariffTransaction.Type txType =
-        actualKwh < 0 ? TariffTransaction.Type.PRODUCE: TariffTransaction.Type.CONSUME;
-    getAccounting().addTariffTransaction(txType, tariff,
-        customer, customersCommitted, -actualKwh,
-        customersCommitted * -tariff.getUsageCharge(actualKwh / customersCommitted, totalUsage, true));
+    // generate the transactions, now or after the model step
+    final int count = customersCommitted;
+    final double cumulativeUsage = totalUsage;
+    List<Runnable> deferred = deferredUsage.get();
+    if (null != deferred) {
+      deferred.add(() -> postUsage(actualKwh, count, cumulativeUsage));
+    }
+    else {
+      postUsage(actualKwh, count, cumulativeUsage);
+    }
     if (getTimeService().getHourOfDay() == 0) {
       //reset the daily usage counter
       totalUsage = 0.0;
     }
     totalUsage += actualKwh / customersCommitted;
+  }
+
+  // Computes the usage charge, which records the usage on the (shared)
+  // tariff, and posts the usage and periodic-payment transactions
+  private void postUsage (double actualKwh, int count, double cumulativeUsage)
+  {
+    TariffTransaction.Type txType =
+        actualKwh < 0 ? TariffTransaction.Type.PRODUCE: TariffTransaction.Type.CONSUME;
+    getAccounting().addTariffTransaction(txType, tariff,
+        customer, count, -actualKwh,
+        count * -tariff.getUsageCharge(actualKwh / count, cumulativeUsage, true));
     // generate the periodic payment if necessary
     if (tariff.getPeriodicPayment() != 0.0) {
       getAccounting().addTariffTransaction(TariffTransaction.Type.PERIODIC,
-          tariff, customer, customersCommitted, 0.0,
-          customersCommitted * -tariff.getPeriodicPayment() / 24.0);
+          tariff, customer, count, 0.0,
+          count * -tariff.getPeriodicPayment() / 24.0);
     }
   }
 
+  // parallel stepping support
+  /**
+   * Starts deferring the charges and transactions generated by usePower()
+   * on the calling thread. Usage is still applied to the subscription
+   * immediately; the tariff charges are computed and the transactions posted
+   * only when the list returned by stopDeferredUsage() is run.
+   */
+  public static void startDeferredUsage ()
+  {
+    deferredUsage.set(new ArrayList<Runnable>());
+  }
+
+  /**
+   * Stops deferring usage on the calling thread, and returns the deferred
+   * postings in the order usePower() was called.
+   */
+  public static List<Runnable> stopDeferredUsage ()
+  {
+    List<Runnable> result = deferredUsage.get();
+    deferredUsage.remove();
+    if (null == result)
+      result = new ArrayList<Runnable>();
+    return result;
+  }
+
   /**
    * Returns the regulation in kwh, aggregated across the subscribed population,
    * for the previous timeslot. 
@@ -67,6 +67,25 @@ public interface Accounting
                             int customerCount,
                             double kWh, double charge);
 
+  /**
+   * Starts buffering tariff and regulation transactions posted from the
+   * calling thread. While buffering, addTariffTransaction() and
+   * addRegulationTransaction() record their arguments in a thread-private
+   * list and return null; no transaction is created and no lock is taken.
+   * This lets customer models run on worker threads without contending
+   * for the accounting service.
+   */
+  public void startTransactionBuffer ();
+
+  /**
+   * Stops buffering on the calling thread and returns the buffered
+   * postings in the order they were made. Running each element of the
+   * result creates and posts the corresponding transaction, so posting
+   * the buffers of several threads in a fixed order yields the same
+   * transactions, ids, and ordering as a sequential run.
+   */
+  public List<Runnable> stopTransactionBuffer ();
+
   /**
    * Adds a distribution transaction to represent charges for customer
    * connections and energy transport.
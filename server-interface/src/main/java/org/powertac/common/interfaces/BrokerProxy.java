@@ -55,6 +55,26 @@ public interface BrokerProxy {
    */
   public void routeMessage (Object message);
   
+  /**
+   * Enables or disables envelope delivery for the named broker. When enabled,
+   * a list of messages passed to sendMessages() is delivered as a single
+   * framed message. Brokers opt in during authentication.
+   */
+  public void setEnvelopeMode (String username, boolean value);
+
+  /**
+   * Records whether the latest authentication message for the named broker
+   * asked for envelope delivery. The request takes effect only when the
+   * login succeeds, through acceptEnvelopeRequest().
+   */
+  public void requestEnvelopeMode (String username, boolean value);
+
+  /**
+   * Sets envelope mode for a broker that has just logged in, as asked by
+   * its authentication message.
+   */
+  public void acceptEnvelopeRequest (String username);
+
   /**
    * Sets up a dispatch listener for market messages
    */
@@ -56,9 +56,10 @@ public class RandomSeedRepo implements DomainRepo
 
   /**
    * Returns the RandomSeed instance identified by classname, id, and purpose,
-   * creating it if necessary.
+   * creating it if necessary. Synchronized because customer models may
+   * request seeds while stepping in parallel.
    */
-  public RandomSeed getRandomSeed (String classname, long id, String purpose)
+  public synchronized RandomSeed getRandomSeed (String classname, long id, String purpose)
   {
     log.info("Seed requested: " + classname + ";" +
              id + ";" + purpose);
@@ -18,11 +18,14 @@ package org.powertac.common.repo;
 import static org.powertac.util.ListTools.*;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 
 import org.powertac.common.Broker;
 import org.powertac.common.CustomerInfo;
+import org.powertac.common.CustomerInfo.CustomerClass;
 import org.powertac.common.Tariff;
 import org.powertac.common.TariffSubscription;
 import org.powertac.util.Predicate;
@@ -32,6 +35,17 @@ import org.springframework.stereotype.Service;
 /**
  * Repository for TariffSubscriptions. This cannot be in common, because
  * TariffSubscription is not in common.
+ * <p>
+ * Subscriptions are indexed by tariff, by customer, by broker, and by
+ * (tariff, customer) pair. The repo also maintains lists of active
+ * subscriptions, those with non-zero committed-customer counts, for each
+ * customer and broker, and each broker's committed-customer totals by
+ * customer class. Stored subscriptions notify the repo when their counts
+ * change, so neither has to be recomputed.
+ * The find methods return read-only views of the indexes rather than
+ * copies; a view reflects later changes to the repo, so callers that
+ * subscribe or unsubscribe customers while iterating over one must copy
+ * it first.</p>
  * 
  * @author John Collins
  */
@@ -39,9 +53,22 @@ import org.springframework.stereotype.Service;
 public class TariffSubscriptionRepo implements DomainRepo
 {
   // subscriptions are indexed by Tariff, CustomerInfo, and Broker
-  private HashMap<Tariff, List<TariffSubscription>> tariffMap;
-  private HashMap<CustomerInfo, List<TariffSubscription>> customerMap;
-  private HashMap<Broker, List<TariffSubscription>> brokerMap;
+  private HashMap<Tariff, SubscriptionList> tariffMap;
+  private HashMap<CustomerInfo, SubscriptionList> customerMap;
+  private HashMap<Broker, SubscriptionList> brokerMap;
+
+  // (tariff, customer) index
+  private HashMap<Tariff, IdentityHashMap<CustomerInfo, TariffSubscription>> pairMap;
+
+  // active subscriptions by customer and broker, in the order in which
+  // they were added to the repo
+  private HashMap<CustomerInfo, SubscriptionList> activeCustomerMap;
+  private HashMap<Broker, SubscriptionList> activeBrokerMap;
+  private IdentityHashMap<TariffSubscription, Long> sequence;
+
+  // committed customers by broker, indexed by CustomerClass ordinal
+  private HashMap<Broker, int[]> customerCounts;
+  private long nextSequence = 0l;
 
   @Autowired
   private TariffRepo tariffRepo;
@@ -49,9 +76,15 @@ public class TariffSubscriptionRepo implements DomainRepo
   public TariffSubscriptionRepo ()
   {
     super();
-    tariffMap = new HashMap<Tariff, List<TariffSubscription>>();
-    customerMap = new HashMap<CustomerInfo, List<TariffSubscription>>();
-    brokerMap = new HashMap<Broker, List<TariffSubscription>>();
+    tariffMap = new HashMap<Tariff, SubscriptionList>();
+    customerMap = new HashMap<CustomerInfo, SubscriptionList>();
+    brokerMap = new HashMap<Broker, SubscriptionList>();
+    pairMap =
+        new HashMap<Tariff, IdentityHashMap<CustomerInfo, TariffSubscription>>();
+    activeCustomerMap = new HashMap<CustomerInfo, SubscriptionList>();
+    activeBrokerMap = new HashMap<Broker, SubscriptionList>();
+    sequence = new IdentityHashMap<TariffSubscription, Long>();
+    customerCounts = new HashMap<Broker, int[]>();
   }
 
   /** Adds an existing subscription to the repo. */
@@ -73,7 +106,7 @@ public class TariffSubscriptionRepo implements DomainRepo
                                              Tariff tariff)
   {
     TariffSubscription result =
-        findSubscriptionForCustomer(tariffMap.get(tariff), customer);
+        findSubscriptionForTariffAndCustomer(tariff, customer);
     if (null != result) {
       // subscription exists
       return result;
@@ -90,84 +123,72 @@ public class TariffSubscriptionRepo implements DomainRepo
   public TariffSubscription
   findSubscriptionForTariffAndCustomer (Tariff tariff, CustomerInfo customer)
   {
-    List<TariffSubscription> subs = findSubscriptionsForTariff(tariff);
-    if (subs == null)
+    IdentityHashMap<CustomerInfo, TariffSubscription> subs =
+        pairMap.get(tariff);
+    if (null == subs)
       return null;
-    for (TariffSubscription sub : subs) {
-      if (sub.getCustomer() == customer)
-        return sub;
-    }
-    return null;
+    return subs.get(customer);
   }
 
   /** Returns the list of subscriptions for a given tariff. Return value
-   * does not share structure with the repo. */
+   * is a read-only view of the repo. */
   public List<TariffSubscription> findSubscriptionsForTariff (Tariff tariff)
   {
-    // new list allows caller to smash the return value
-    List<TariffSubscription> result = tariffMap.get(tariff);
-    if (result == null)
-      return new ArrayList<TariffSubscription>();
-    else
-      return new ArrayList<TariffSubscription>(result);
+    return view(tariffMap.get(tariff));
   }
 
   /** Returns the list of subscriptions for a given customer. Return value
-   * does not share structure with the repo. */
+   * is a read-only view of the repo. */
   public List<TariffSubscription>
   findSubscriptionsForCustomer (CustomerInfo customer)
   {
-    List<TariffSubscription> result = customerMap.get(customer);
-    if (null == result)
-      return new ArrayList<TariffSubscription>();
-    else
-      return new ArrayList<TariffSubscription>(result);
+    return view(customerMap.get(customer));
   }
 
   /**
    * Returns the list of active subscriptions for a given customer.
    * These are subscriptions that have non-zero committed-customer counts.
+   * Return value is a read-only view of the repo.
    */
   public List<TariffSubscription>
   findActiveSubscriptionsForCustomer (CustomerInfo customer)
   {
-    List<TariffSubscription> result = new ArrayList<TariffSubscription>();
-    for (TariffSubscription sub : findSubscriptionsForCustomer(customer)) {
-      if (sub.getCustomersCommitted() > 0) {
-        result.add(sub);
-      }
-    }
-    return result;
+    return view(activeCustomerMap.get(customer));
   }
 
   /**
    * Returns the list of subscriptions for the specified broker. Return
-   * value does not share structure with the repo.
+   * value is a read-only view of the repo.
    */
   public List<TariffSubscription> findSubscriptionsForBroker(Broker b)
   {
-    
-    List<TariffSubscription> result = brokerMap.get(b);
-    if (null == result)
-      return new ArrayList<TariffSubscription>();
-    else
-      return new ArrayList<TariffSubscription>(result);
+    return view(brokerMap.get(b));
   }
 
   /**
    * Returns the list of active subscriptions for a given broker.
    * These are subscriptions that have non-zero committed-customer counts.
+   * Return value is a read-only view of the repo.
    */
   public List<TariffSubscription>
   findActiveSubscriptionsForBroker (Broker broker)
   {
-    List<TariffSubscription> result = new ArrayList<TariffSubscription>();
-    for (TariffSubscription sub : findSubscriptionsForBroker(broker)) {
-      if (sub.getCustomersCommitted() > 0) {
-        result.add(sub);
-      }
-    }
-    return result;
+    return view(activeBrokerMap.get(broker));
+  }
+
+  /**
+   * Returns the total committed-customer count over the given broker's
+   * subscriptions for customers of the given class. This is kept up to date
+   * as customers subscribe and unsubscribe, so it costs the same however
+   * many subscriptions the broker has.
+   */
+  public int getCommittedCustomerCount (Broker broker,
+                                        CustomerClass customerClass)
+  {
+    int[] counts = customerCounts.get(broker);
+    if (null == counts)
+      return 0;
+    return counts[customerClass.ordinal()];
   }
 
   /**
@@ -179,18 +200,17 @@ public class TariffSubscriptionRepo implements DomainRepo
   public List<TariffSubscription>
   getRevokedSubscriptionList (CustomerInfo customer)
   {
-    if (null == customerMap.get(customer))
+    if (null == activeCustomerMap.get(customer))
       // can happen first time...
       return new ArrayList<TariffSubscription>();
     List<TariffSubscription> result = 
-        filter(customerMap.get(customer),
+        filter(activeCustomerMap.get(customer).items,
                new Predicate<TariffSubscription> () {
           @Override
           public boolean apply (TariffSubscription sub)
           {
             return (null != tariffRepo.findTariffById(sub.getTariff().getId())
-                    && sub.getTariff().getState() == Tariff.State.KILLED
-                    && sub.getCustomersCommitted() > 0);
+                    && sub.getTariff().getState() == Tariff.State.KILLED);
           }
         });
     return result;
@@ -202,59 +222,165 @@ public class TariffSubscriptionRepo implements DomainRepo
    */
   public void removeSubscriptionsForTariff (Tariff tariff)
   {
-    List<TariffSubscription> subs = tariffMap.get(tariff);
+    SubscriptionList subs = tariffMap.get(tariff);
     if (null == subs)
       return;
     
     // first, remove the subscriptions from the customer map and broker map
-    for (TariffSubscription sub : subs) {
-      customerMap.get(sub.getCustomer()).remove(sub);
-    }
-    for (TariffSubscription sub : subs) {
-      brokerMap.get(sub.getTariff().getBroker()).remove(sub);
+    for (TariffSubscription sub : subs.items) {
+      customerMap.get(sub.getCustomer()).items.remove(sub);
+      brokerMap.get(sub.getTariff().getBroker()).items.remove(sub);
+      if (sub.getCustomersCommitted() > 0)
+        removeActive(sub);
+      addToCount(sub, -sub.getCustomersCommitted());
+      sequence.remove(sub);
+      sub.setRepo(null);
     }
 
-    // then clear out the tariff entry
+    // then clear out the tariff entries
     tariffMap.remove(tariff);
+    pairMap.remove(tariff);
+  }
+
+  /**
+   * Called by a stored TariffSubscription when its committed-customer count
+   * changes, to keep the active lists and customer counts up to date.
+   */
+  public void customersCommittedChanged (TariffSubscription subscription,
+                                         int oldCount, int newCount)
+  {
+    if (!sequence.containsKey(subscription))
+      return;
+    addToCount(subscription, newCount - oldCount);
+    if (oldCount <= 0 && newCount > 0)
+      addActive(subscription);
+    else if (oldCount > 0 && newCount <= 0)
+      removeActive(subscription);
   }
 
   /** Clears out the repo in preparation for another simulation. */
   @Override
   public void recycle ()
   {
+    for (TariffSubscription sub : sequence.keySet())
+      sub.setRepo(null);
     tariffMap.clear();
     customerMap.clear();
     brokerMap.clear();
+    pairMap.clear();
+    activeCustomerMap.clear();
+    activeBrokerMap.clear();
+    sequence.clear();
+    customerCounts.clear();
+    nextSequence = 0l;
   }
 
   // ----- helper methods -----
 
-  private TariffSubscription
-  findSubscriptionForCustomer (List<TariffSubscription> subs,
-                               CustomerInfo customer)
+  private List<TariffSubscription> view (SubscriptionList subs)
   {
-    if (subs == null)
-      return null;
-    for (TariffSubscription sub : subs) {
-      if (sub.getCustomer() == customer)
-        return sub;
-    }
-    return null;
+    if (null == subs)
+      return Collections.emptyList();
+    return subs.view;
   }
 
   private void storeSubscription (TariffSubscription subscription,
                                   CustomerInfo customer,
                                   Tariff tariff)
   {
-    if (tariffMap.get(tariff) == null)
-      tariffMap.put(tariff, new ArrayList<TariffSubscription>());
-    tariffMap.get(tariff).add(subscription);
-    if (customerMap.get(customer) == null)
-      customerMap.put(customer, new ArrayList<TariffSubscription>());
-    customerMap.get(customer).add(subscription);
+    sequence.put(subscription, nextSequence++);
+    getList(tariffMap, tariff).items.add(subscription);
+    getList(customerMap, customer).items.add(subscription);
     Broker broker = tariff.getBroker();
-    if (brokerMap.get(broker) == null)
-      brokerMap.put(broker, new ArrayList<TariffSubscription>());
-    brokerMap.get(broker).add(subscription);
+    getList(brokerMap, broker).items.add(subscription);
+    IdentityHashMap<CustomerInfo, TariffSubscription> pairs =
+        pairMap.get(tariff);
+    if (null == pairs) {
+      pairs = new IdentityHashMap<CustomerInfo, TariffSubscription>();
+      pairMap.put(tariff, pairs);
+    }
+    // the first subscription for a pair is the one found by lookups
+    pairs.putIfAbsent(customer, subscription);
+    if (subscription.getCustomersCommitted() > 0)
+      addActive(subscription);
+    addToCount(subscription, subscription.getCustomersCommitted());
+    subscription.setRepo(this);
+  }
+
+  private void addToCount (TariffSubscription subscription, int delta)
+  {
+    if (0 == delta)
+      return;
+    Broker broker = subscription.getTariff().getBroker();
+    int[] counts = customerCounts.get(broker);
+    if (null == counts) {
+      counts = new int[CustomerClass.values().length];
+      customerCounts.put(broker, counts);
+    }
+    CustomerClass customerClass =
+        subscription.getCustomer().getCustomerClass();
+    // a missing class counts as small, as in the meter fee computation
+    if (null == customerClass)
+      customerClass = CustomerClass.SMALL;
+    counts[customerClass.ordinal()] += delta;
+  }
+
+  private void addActive (TariffSubscription subscription)
+  {
+    insertInOrder(getList(activeCustomerMap,
+                          subscription.getCustomer()).items,
+                  subscription);
+    insertInOrder(getList(activeBrokerMap,
+                          subscription.getTariff().getBroker()).items,
+                  subscription);
+  }
+
+  private void removeActive (TariffSubscription subscription)
+  {
+    SubscriptionList subs =
+        activeCustomerMap.get(subscription.getCustomer());
+    if (null != subs)
+      subs.items.remove(subscription);
+    subs = activeBrokerMap.get(subscription.getTariff().getBroker());
+    if (null != subs)
+      subs.items.remove(subscription);
+  }
+
+  // keeps active lists in the same order as the full lists, so iteration
+  // order does not depend on when subscriptions became active
+  private void insertInOrder (ArrayList<TariffSubscription> items,
+                              TariffSubscription subscription)
+  {
+    long key = sequence.get(subscription);
+    int low = 0;
+    int high = items.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (sequence.get(items.get(mid)) < key)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    items.add(low, subscription);
+  }
+
+  private <K> SubscriptionList getList (HashMap<K, SubscriptionList> map,
+                                        K key)
+  {
+    SubscriptionList result = map.get(key);
+    if (null == result) {
+      result = new SubscriptionList();
+      map.put(key, result);
+    }
+    return result;
+  }
+
+  // An index entry, holding its list and a read-only view of it
+  private static class SubscriptionList
+  {
+    final ArrayList<TariffSubscription> items =
+        new ArrayList<TariffSubscription>();
+    final List<TariffSubscription> view =
+        Collections.unmodifiableList(items);
   }
 }
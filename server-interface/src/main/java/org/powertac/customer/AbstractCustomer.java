@@ -203,6 +203,19 @@ public abstract class AbstractCustomer
    */
   public abstract void step ();
 
+  /**
+   * True if step() may run on a worker thread concurrently with other
+   * models. That requires that the model draw only from its own RandomSeeds,
+   * touch no mutable state shared with other models, create no domain
+   * objects or ids, make no @StateChange calls, and report power only
+   * through TariffSubscription.usePower(). Default is false; such models
+   * are stepped on the calling thread.
+   */
+  public boolean isParallelSafe ()
+  {
+    return false;
+  }
+
   /**
    * Called to evaluate tariffs.
    */
@@ -20,6 +20,8 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ServiceLoader;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -27,7 +29,12 @@ import org.joda.time.Instant;
 import org.powertac.common.Competition;
 import org.powertac.common.CustomerInfo;
 import org.powertac.common.Tariff;
+import org.powertac.common.TariffCostCache;
+import org.powertac.common.TariffEvaluator;
+import org.powertac.common.TariffSubscription;
 import org.powertac.common.TimeService;
+import org.powertac.common.config.ConfigurableValue;
+import org.powertac.common.interfaces.Accounting;
 import org.powertac.common.interfaces.BootstrapState;
 import org.powertac.common.interfaces.CustomerServiceAccessor;
 import org.powertac.common.interfaces.InitializationService;
@@ -50,6 +57,21 @@ import org.springframework.stereotype.Service;
  * In each timeslot, each model has its step() method called. When tariffs
  * are published, each has its evaluateTariffs() method called. At the end
  * of a boot session, each has its bootstrap state saved to the boot record.
+ * <p>
+ * When parallelStepping is enabled, models that declare themselves
+ * parallel-safe (AbstractCustomer.isParallelSafe()) are stepped concurrently
+ * on a bounded fork-join pool, while the others are stepped on the calling
+ * thread. The usage charges and transactions from each parallel model are
+ * deferred on its worker thread, then computed and posted in model order,
+ * so the tariffs, transactions and state log are the same as with
+ * sequential stepping.</p>
+ * <p>
+ * Tariff evaluation at publication time can likewise run in parallel
+ * (parallelTariffEvaluation). Subscription changes computed by each model's
+ * TariffEvaluators are deferred and applied in model order. Profile cost
+ * estimates may be shared among customers through the TariffCostCache
+ * (tariffCostCache), which is enabled only while the models evaluate a
+ * publication, and is cleared when they finish.</p>
  * 
  * @author John Collins
  */
@@ -89,6 +111,30 @@ implements InitializationService, BootstrapState, NewTariffListener,
   @Autowired
   private TariffMarket tariffMarketService;
 
+  @Autowired
+  private Accounting accountingService;
+
+  @Autowired
+  private TariffCostCache costCache;
+
+  @ConfigurableValue(valueType = "Boolean",
+      description = "Step customer models in parallel")
+  private boolean parallelStepping = false;
+
+  @ConfigurableValue(valueType = "Integer",
+      description = "Maximum threads for parallel stepping, 0 for one per processor")
+  private int steppingThreads = 0;
+
+  @ConfigurableValue(valueType = "Boolean",
+      description = "Evaluate tariffs for all models in parallel; requires parallelStepping")
+  private boolean parallelTariffEvaluation = false;
+
+  @ConfigurableValue(valueType = "Boolean",
+      description = "Share profile cost estimates among customers during tariff evaluation")
+  private boolean tariffCostCache = false;
+
+  private ForkJoinPool stepPool = null;
+
   // Customer model collection
   //private ArrayList<Class<AbstractCustomerDeprecated>> modelTypes;
   private ArrayList<AbstractCustomer> models;
@@ -101,6 +147,19 @@ implements InitializationService, BootstrapState, NewTariffListener,
         || !completedInits.contains("TariffMarket"))
       return null;
     super.init();
+    serverConfig.configureMe(this);
+    if (null != stepPool) {
+      stepPool.shutdown();
+      stepPool = null;
+    }
+    if (parallelStepping) {
+      int threads = steppingThreads;
+      if (threads <= 0)
+        threads = Runtime.getRuntime().availableProcessors();
+      log.info("Parallel model stepping with {} threads", threads);
+      stepPool = new ForkJoinPool(threads);
+    }
+    costCache.setEnabled(false);
     models = new ArrayList<AbstractCustomer>();
     // extract the model types
     ServiceLoader<AbstractCustomer> loader =
@@ -136,19 +195,119 @@ implements InitializationService, BootstrapState, NewTariffListener,
   @Override
   public void activate (Instant time, int phaseNumber)
   {
+    if (null == stepPool || models.size() < 2) {
+      for (AbstractCustomer model : models) {
+        log.info("Step model " + model.getName());
+        model.step();
+      }
+      return;
+    }
+    // parallel-safe models start on the pool, the others wait their turn
+    List<ForkJoinTask<List<Runnable>>> tasks =
+        new ArrayList<ForkJoinTask<List<Runnable>>>();
     for (AbstractCustomer model : models) {
-      log.info("Step model " + model.getName());
+      if (model.isParallelSafe())
+        tasks.add(stepPool.submit(() -> stepModel(model)));
+      else
+        tasks.add(null);
+    }
+    // step the others and post usage in model order
+    for (int i = 0; i < models.size(); i++) {
+      ForkJoinTask<List<Runnable>> task = tasks.get(i);
+      if (null == task) {
+        log.info("Step model " + models.get(i).getName());
+        models.get(i).step();
+      }
+      else {
+        for (Runnable posting : task.join()) {
+          posting.run();
+        }
+      }
+    }
+  }
+
+  // Steps a single model on a worker thread, returning its deferred usage
+  // followed by any other transactions it generated
+  private List<Runnable> stepModel (AbstractCustomer model)
+  {
+    log.info("Step model " + model.getName());
+    List<Runnable> postings;
+    List<Runnable> buffered;
+    TariffSubscription.startDeferredUsage();
+    accountingService.startTransactionBuffer();
+    try {
       model.step();
     }
+    finally {
+      buffered = accountingService.stopTransactionBuffer();
+      postings = TariffSubscription.stopDeferredUsage();
+    }
+    if (!buffered.isEmpty()) {
+      log.error("Model " + model.getName() + " posted "
+                + buffered.size() + " transactions outside usePower()");
+      postings.addAll(buffered);
+    }
+    return postings;
   }
 
   @Override
   public void publishNewTariffs (List<Tariff> tariffs)
   {
+    // cost estimates are shared within this round only
+    costCache.setEnabled(tariffCostCache);
+    try {
+      evaluateModels(tariffs);
+    }
+    finally {
+      if (costCache.isEnabled()) {
+        log.info("Tariff cost cache: {} hits, {} misses, hit rate {}",
+                 costCache.getHits(), costCache.getMisses(),
+                 costCache.getHitRate());
+      }
+      costCache.setEnabled(false);
+    }
+  }
+
+  // Has each model evaluate the new tariffs
+  private void evaluateModels (List<Tariff> tariffs)
+  {
+    if (null == stepPool || !parallelTariffEvaluation || models.size() < 2) {
+      for (AbstractCustomer model : models) {
+        log.info("Evaluating tariffs for " + model.getName());
+        model.evaluateTariffs(tariffs);
+      }
+      return;
+    }
+    List<ForkJoinTask<List<Runnable>>> tasks =
+        new ArrayList<ForkJoinTask<List<Runnable>>>();
     for (AbstractCustomer model : models) {
-      log.info("Evaluating tariffs for " + model.getName());
+      tasks.add(stepPool.submit(() -> evaluateModel(model, tariffs)));
+    }
+    // apply transactions and subscription changes in model order
+    for (ForkJoinTask<List<Runnable>> task : tasks) {
+      for (Runnable update : task.join()) {
+        update.run();
+      }
+    }
+  }
+
+  // Evaluates tariffs for a single model on a worker thread, returning its
+  // buffered transactions followed by its deferred subscription updates
+  private List<Runnable> evaluateModel (AbstractCustomer model,
+                                        List<Tariff> tariffs)
+  {
+    log.info("Evaluating tariffs for " + model.getName());
+    List<Runnable> result;
+    accountingService.startTransactionBuffer();
+    TariffEvaluator.startDeferredUpdates();
+    try {
       model.evaluateTariffs(tariffs);
     }
+    finally {
+      result = accountingService.stopTransactionBuffer();
+      result.addAll(TariffEvaluator.stopDeferredUpdates());
+    }
+    return result;
   }
 
   // test support methods
@@ -157,6 +316,22 @@ implements InitializationService, BootstrapState, NewTariffListener,
     return models;
   }
 
+  /**
+   * Returns true if models are stepped in parallel.
+   */
+  public boolean isParallelStepping ()
+  {
+    return parallelStepping;
+  }
+
+  /**
+   * Returns the configured thread limit for parallel stepping.
+   */
+  public int getSteppingThreads ()
+  {
+    return steppingThreads;
+  }
+
   @Override
   public void saveBootstrapState ()
   {
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Dispatches calls to a named method by the runtime classes of its
+ * arguments, as org.powertac.util.MessageDispatcher.dispatch() does, but
+ * through MethodHandles that are looked up once for each combination of
+ * target class and argument classes, and then cached. As with
+ * MessageDispatcher, only public methods whose formal parameter types
+ * exactly match the argument classes are found, and exceptions thrown by
+ * the method are logged rather than propagated.
+ * <p>
+ * Callers that know the target and the argument class ahead of time, such
+ * as message routers when a listener registers, can resolve a handler once
+ * with bindHandler() and call it with invoke(), so that each message costs
+ * one handle invocation and no lookup. Instances are thread-safe.</p>
+ */
+public class HandlerTable
+{
+  static private Logger log = LogManager.getLogger(HandlerTable.class);
+
+  private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+  private final String methodName;
+  private ConcurrentHashMap<Signature, Optional<MethodHandle>> handlers =
+      new ConcurrentHashMap<Signature, Optional<MethodHandle>>();
+
+  /**
+   * Creates a table for methods with the given name.
+   */
+  public HandlerTable (String methodName)
+  {
+    super();
+    this.methodName = methodName;
+  }
+
+  public String getMethodName ()
+  {
+    return methodName;
+  }
+
+  /**
+   * Returns a handle for the method on targetClass whose parameter types
+   * are exactly argTypes. The handle takes the target followed by the
+   * arguments, all typed as Object, and returns Object (null for a void
+   * method). Returns null if there is no such method.
+   */
+  public MethodHandle findHandler (Class<?> targetClass, Class<?>... argTypes)
+  {
+    return handlers.computeIfAbsent(new Signature(targetClass, argTypes),
+                                    this::resolve).orElse(null);
+  }
+
+  /**
+   * Returns a handle for the single-argument method on target that takes
+   * argType, bound to target, for use with invoke(). Returns null if there
+   * is no such method.
+   */
+  public MethodHandle bindHandler (Object target, Class<?> argType)
+  {
+    MethodHandle handle = findHandler(target.getClass(), argType);
+    if (null == handle)
+      return null;
+    return handle.bindTo(target);
+  }
+
+  /**
+   * Calls a handler returned by bindHandler(). Exceptions are logged, and
+   * null returned.
+   */
+  public Object invoke (MethodHandle handler, Object arg)
+  {
+    try {
+      return (Object) handler.invokeExact(arg);
+    }
+    catch (Throwable thr) {
+      log.error("Cannot call " + methodName + ": " + thr, thr);
+      return null;
+    }
+  }
+
+  /**
+   * Calls the method on target that takes the class of arg, if there is
+   * one, and returns its result.
+   */
+  public Object dispatch (Object target, Object arg)
+  {
+    MethodHandle handle = findHandler(target.getClass(), arg.getClass());
+    if (null == handle)
+      return null;
+    try {
+      return (Object) handle.invokeExact(target, arg);
+    }
+    catch (Throwable thr) {
+      log.error("Cannot call " + methodName + ": " + thr, thr);
+      return null;
+    }
+  }
+
+  /**
+   * Calls the method on target that takes the classes of arg1 and arg2, if
+   * there is one, and returns its result.
+   */
+  public Object dispatch (Object target, Object arg1, Object arg2)
+  {
+    MethodHandle handle =
+        findHandler(target.getClass(), arg1.getClass(), arg2.getClass());
+    if (null == handle)
+      return null;
+    try {
+      return (Object) handle.invokeExact(target, arg1, arg2);
+    }
+    catch (Throwable thr) {
+      log.error("Cannot call " + methodName + ": " + thr, thr);
+      return null;
+    }
+  }
+
+  // looks up the method and adapts its handle to the generic type
+  private Optional<MethodHandle> resolve (Signature signature)
+  {
+    try {
+      Method method = signature.target.getMethod(methodName, signature.args);
+      MethodHandle handle;
+      try {
+        handle = lookup.unreflect(method);
+      }
+      catch (IllegalAccessException iae) {
+        // public method of a class we cannot see, as with a handler
+        // declared in a non-public class
+        method.setAccessible(true);
+        handle = lookup.unreflect(method);
+      }
+      log.debug("found method " + method);
+      return Optional.of(handle.asType(MethodType
+          .genericMethodType(signature.args.length + 1)));
+    }
+    catch (NoSuchMethodException nsm) {
+      log.debug("Could not find exact match: " + nsm.toString());
+    }
+    catch (Exception ex) {
+      log.error("Cannot resolve " + methodName + ": " + ex.toString(), ex);
+    }
+    return Optional.empty();
+  }
+
+  // target class and argument classes
+  private static class Signature
+  {
+    private final Class<?> target;
+    private final Class<?>[] args;
+    private final int hash;
+
+    Signature (Class<?> target, Class<?>[] args)
+    {
+      super();
+      this.target = target;
+      this.args = args;
+      hash = 31 * target.hashCode() + Arrays.hashCode(args);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals (Object obj)
+    {
+      if (this == obj)
+        return true;
+      if (!(obj instanceof Signature))
+        return false;
+      Signature other = (Signature) obj;
+      return target == other.target && Arrays.equals(args, other.args);
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+public class BinaryStateLogTest
+{
+  private String[] lines = {
+    "0:Domain-schema-version:1.0",
+    "144669:org.powertac.common.Broker::603::new::AstonTAC",
+    "189426:org.powertac.common.DistributionTransaction::3459::new::603::42::-0.0::0.0",
+    "189427:org.powertac.common.TimeService::null::setCurrentTime::2009-10-10T00:00:00.000Z",
+    "189430:x::1.5e10::007::+5::-0::NaN::9223372036854775807::99999999999999999999",
+    "no prefix",
+    "189431:org.powertac.common.Broker::604::new::AstonTAC"
+  };
+
+  private byte[] write () throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BinaryStateLogWriter writer = new BinaryStateLogWriter(bytes);
+    for (String line : lines) {
+      writer.writeLine(line);
+    }
+    writer.close();
+    return bytes.toByteArray();
+  }
+
+  @Test
+  public void roundTrip () throws IOException
+  {
+    BinaryStateLogReader reader =
+        new BinaryStateLogReader(new ByteArrayInputStream(write()));
+    for (String line : lines) {
+      assertTrue(reader.next(), "record for " + line);
+      assertEquals(line, reader.getLine());
+    }
+    assertFalse(reader.next(), "end of log");
+  }
+
+  @Test
+  public void fieldTypes () throws IOException
+  {
+    BinaryStateLogReader reader =
+        new BinaryStateLogReader(new ByteArrayInputStream(write()));
+    reader.next();
+    reader.next();
+    reader.next();
+    assertEquals("189426", reader.getPrefix());
+    Object[] fields = reader.getFields();
+    assertEquals("org.powertac.common.DistributionTransaction", fields[0]);
+    assertEquals(3459l, fields[1]);
+    assertEquals("new", fields[2]);
+    assertEquals(-0.0, fields[5]);
+    assertEquals(Double.doubleToRawLongBits(-0.0),
+                 Double.doubleToRawLongBits((Double) fields[5]), "sign kept");
+    reader.next();
+    reader.next();
+    // numbers that would not print as they were written stay strings
+    fields = reader.getFields();
+    for (int i = 1; i < 6; i++) {
+      assertTrue(fields[i] instanceof String, "string " + fields[i]);
+    }
+    assertEquals(Long.MAX_VALUE, fields[6]);
+    assertTrue(fields[7] instanceof String, "too long for a long");
+    reader.next();
+    assertNull(reader.getPrefix(), "no prefix");
+  }
+
+  @Test
+  public void isBinary () throws IOException
+  {
+    InputStream binary = new BufferedInputStream(new ByteArrayInputStream(write()));
+    assertTrue(BinaryStateLog.isBinary(binary));
+    assertEquals('P', binary.read(), "stream not consumed");
+    InputStream text = new BufferedInputStream(new ByteArrayInputStream(lines[1].getBytes()));
+    assertFalse(BinaryStateLog.isBinary(text));
+    assertEquals('1', text.read(), "stream not consumed");
+  }
+
+  @Test
+  public void badInput () throws IOException
+  {
+    assertThrows(IOException.class,
+                 () -> new BinaryStateLogReader(new ByteArrayInputStream(lines[1].getBytes())));
+    byte[] bytes = write();
+    BinaryStateLogReader reader =
+        new BinaryStateLogReader(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 3)));
+    assertThrows(IOException.class, () -> {
+      while (reader.next()) {
+        // read to the truncated record
+      }
+    });
+  }
+
+  @Test
+  public void smaller () throws IOException
+  {
+    int text = 0;
+    for (String line : lines) {
+      text += line.length() + 1;
+    }
+    assertTrue(write().length < text, "binary is smaller");
+  }
+}
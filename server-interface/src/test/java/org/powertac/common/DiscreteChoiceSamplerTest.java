@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class DiscreteChoiceSamplerTest
+{
+  private DiscreteChoiceSampler uut;
+  private double[] weights = {0.1, 0.0, 0.5, 0.4};
+
+  @BeforeEach
+  public void setUp () throws Exception
+  {
+    uut = new DiscreteChoiceSampler(2);
+    uut.set(weights, weights.length);
+  }
+
+  @Test
+  public void testEmpty ()
+  {
+    uut.clear();
+    assertEquals(0, uut.size(), "no choices");
+    assertEquals(-1, uut.sample(0.5), "no sample");
+    assertEquals(-1, uut.sampleAlias(0.5), "no alias sample");
+  }
+
+  @Test
+  public void testCumulative ()
+  {
+    assertEquals(4, uut.size(), "four choices");
+    assertEquals(1.0, uut.getTotal(), 1e-9, "total");
+    assertEquals(0, uut.sampleCumulative(0.0), "zero");
+    assertEquals(0, uut.sampleCumulative(0.1), "boundary stays low");
+    assertEquals(2, uut.sampleCumulative(0.11), "skips zero weight");
+    assertEquals(3, uut.sampleCumulative(0.7), "last");
+    assertEquals(-1, uut.sampleCumulative(1.1), "beyond total");
+  }
+
+  @Test
+  public void testSampleScaled ()
+  {
+    uut.clear().add(1.0).add(3.0);
+    assertEquals(0, uut.sample(0.2), "first quarter");
+    assertEquals(1, uut.sample(0.3), "rest");
+    assertEquals(1, uut.sample(1.0), "top");
+  }
+
+  // the binary search agrees with the walk it replaced, including for
+  // samples on and next to the cumulative sums, where rounding decides
+  @Test
+  public void testMatchesWalk ()
+  {
+    Random random = new Random(17);
+    double[] w = new double[50];
+    for (int trial = 0; trial < 200; trial++) {
+      int n = 1 + random.nextInt(w.length);
+      double total = 0.0;
+      for (int i = 0; i < n; i++) {
+        w[i] = (random.nextInt(5) == 0) ? 0.0 : Math.exp(random.nextGaussian());
+        total += w[i];
+      }
+      for (int i = 0; i < n; i++) {
+        w[i] /= total;
+      }
+      uut.set(w, n);
+      double sum = 0.0;
+      for (int i = 0; i < n; i++) {
+        sum += w[i];
+        for (double x : new double[] {sum, Math.nextUp(sum), Math.nextDown(sum),
+                                      random.nextDouble()}) {
+          assertEquals(walk(w, n, x), uut.sampleCumulative(x),
+                       "trial " + trial + ", x=" + x);
+        }
+      }
+      assertEquals(walk(w, n, 1.0), uut.sampleCumulative(1.0), "top");
+    }
+  }
+
+  // the allocation walk the evaluator used before the sampler
+  private int walk (double[] w, int n, double x)
+  {
+    for (int i = 0; i < n; i++) {
+      if (x <= w[i])
+        return i;
+      x -= w[i];
+    }
+    return -1;
+  }
+
+  @Test
+  public void testAliasDistribution ()
+  {
+    Random random = new Random(42);
+    int[] counts = new int[weights.length];
+    int draws = 100000;
+    for (int i = 0; i < draws; i++) {
+      counts[uut.sampleAlias(random.nextDouble())] += 1;
+    }
+    for (int i = 0; i < weights.length; i++) {
+      assertEquals(weights[i], (double)counts[i] / draws, 0.01,
+                   "frequency " + i);
+    }
+    assertEquals(0, counts[1], "zero weight never drawn");
+  }
+}
@@ -19,11 +19,18 @@ import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.joda.time.Instant;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -42,11 +49,15 @@ import org.springframework.test.util.ReflectionTestUtils;
  */
 public class TariffEvaluatorTest
 {
+  static private Logger log =
+      LogManager.getLogger(TariffEvaluatorTest.class.getName());
+
   // foundation components
   private Competition competition;
   private TimeService timeService;
   private TariffRepo tariffRepo;
   private TariffSubscriptionRepo tariffSubscriptionRepo;
+  private TariffCostCache tariffCostCache;
   private CustomerInfo customer;
   
   // mocks
@@ -77,6 +88,7 @@ public class TariffEvaluatorTest
     start = timeService.getCurrentTime().plus(TimeService.HOUR);
     //tariffRepo = new TariffRepo();
     tariffSubscriptionRepo = new TariffSubscriptionRepo();
+    tariffCostCache = new TariffCostCache();
 
     // set up mocks
     makeMocks();
@@ -125,6 +137,8 @@ public class TariffEvaluatorTest
                                  "tariffMarket", tariffMarket);
     ReflectionTestUtils.setField(evaluator,
                                  "tariffSubscriptionRepo", tariffSubscriptionRepo);
+    ReflectionTestUtils.setField(evaluator,
+                                 "tariffCostCache", tariffCostCache);
   }
 
   private TariffSubscription subscribeTo (Tariff tariff, int count)
@@ -357,6 +371,129 @@ public class TariffEvaluatorTest
     assertEquals(new Integer(5000), calls.get(newTariff), "+5000 for new");
   }
 
+  @Test
+  public void deferredUpdatesWithCostCache ()
+  {
+    subscribeTo(defaultConsumption, customer.getPopulation());
+    TariffSpecification newTS =
+            new TariffSpecification(bob,
+                                    PowerType.CONSUMPTION).
+                                    addRate(new Rate().withValue(-0.59));
+    Tariff newTariff = new Tariff(newTS);
+    initTariff(newTariff);
+    ArrayList<Tariff> tariffs = new ArrayList<Tariff>();
+    tariffs.add(defaultConsumption);
+    tariffs.add(newTariff);
+    when(tariffRepo.findRecentActiveTariffs(anyInt(), any(PowerType.class)))
+        .thenReturn(tariffs);
+
+    double[] profile = {1.0, 2.0};
+    cma.capacityProfile = new CapacityProfile(profile, start);
+    cma.setChoiceSamples(0.4, 0.6);
+
+    final HashMap<Tariff, Integer> calls = new HashMap<Tariff, Integer>();
+    doAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) {
+        Object[] args = invocation.getArguments();
+        calls.put((Tariff)args[0], (Integer)args[2]);
+        return null;
+      }
+    }).when(tariffMarket).subscribeToTariff(any(Tariff.class),
+                                            any(CustomerInfo.class),
+                                            anyInt());
+
+    // the round starts
+    tariffCostCache.setEnabled(true);
+    evaluator.withChunkSize(5000);
+    TariffEvaluator.startDeferredUpdates();
+    evaluator.evaluateTariffs();
+    List<Runnable> updates = TariffEvaluator.stopDeferredUpdates();
+    assertEquals(0, calls.size(), "no updates yet");
+    assertEquals(1, updates.size(), "one deferred update");
+    updates.get(0).run();
+    assertEquals(new Integer(-5000), calls.get(defaultConsumption), "-5000 for default");
+    assertEquals(new Integer(5000), calls.get(newTariff), "+5000 for new");
+    assertEquals(0, tariffCostCache.getHits(), "no hits");
+    assertEquals(2, tariffCostCache.getMisses(), "two misses");
+
+    // a second customer with the same profile shares the estimates
+    TariffEvaluator other = new TariffEvaluator(cma);
+    ReflectionTestUtils.setField(other, "tariffRepo", tariffRepo);
+    ReflectionTestUtils.setField(other, "tariffMarket", tariffMarket);
+    ReflectionTestUtils.setField(other, "tariffSubscriptionRepo",
+                                 tariffSubscriptionRepo);
+    ReflectionTestUtils.setField(other, "tariffCostCache",
+                                 tariffCostCache);
+    TariffEvaluator.startDeferredUpdates();
+    other.evaluateTariffs();
+    TariffEvaluator.stopDeferredUpdates();
+    assertEquals(2, tariffCostCache.getHits(), "two hits");
+    assertEquals(0.5, tariffCostCache.getHitRate(), 1e-6, "hit rate");
+
+    // the round ends, and its estimates go with it
+    tariffCostCache.setEnabled(false);
+    assertEquals(0, tariffCostCache.size(), "cleared");
+    assertEquals(0, tariffCostCache.getHits(), "no hits");
+    TariffEvaluator.startDeferredUpdates();
+    other.withEvaluateAllTariffs(true).evaluateTariffs();
+    TariffEvaluator.stopDeferredUpdates();
+    assertEquals(0, tariffCostCache.size(), "not used between rounds");
+  }
+
+  @Test
+  public void singleNewTariffMultinomial ()
+  {
+    subscribeTo(defaultConsumption, customer.getPopulation());
+    TariffSpecification newTS =
+            new TariffSpecification(bob,
+                                    PowerType.CONSUMPTION).
+                                    addRate(new Rate().withValue(-0.59));
+    Tariff newTariff = new Tariff(newTS);
+    initTariff(newTariff);
+    ArrayList<Tariff> tariffs = new ArrayList<Tariff>();
+    tariffs.add(defaultConsumption);
+    tariffs.add(newTariff);
+    when(tariffRepo.findRecentActiveTariffs(anyInt(), any(PowerType.class)))
+        .thenReturn(tariffs);
+
+    double[] profile = {1.0, 2.0};
+    cma.capacityProfile = new CapacityProfile(profile, start);
+    cma.setChoiceSamples(0.4, 0.6);
+
+    final HashMap<Tariff, Integer> calls = new HashMap<Tariff, Integer>();
+    doAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) {
+        Object[] args = invocation.getArguments();
+        calls.put((Tariff)args[0], (Integer)args[2]);
+        return null;
+      }
+    }).when(tariffMarket).subscribeToTariff(any(Tariff.class),
+                                            any(CustomerInfo.class),
+                                            anyInt());
+
+    evaluator.withChunkSize(1).withMultinomialAllocation(true);
+    evaluator.evaluateTariffs();
+    assertEquals(2, calls.size(), "two tariffs");
+    int moved = calls.get(newTariff);
+    assertEquals(-moved, calls.get(defaultConsumption).intValue(), "balanced");
+    assertTrue(moved > 0 && moved < customer.getPopulation(), "population split");
+  }
+
+  @Test
+  public void testSampleBinomial ()
+  {
+    assertEquals(0, TariffEvaluator.sampleBinomial(10, 0.0, () -> 0.5), "p=0");
+    assertEquals(10, TariffEvaluator.sampleBinomial(10, 1.0, () -> 0.5), "p=1");
+    assertEquals(5, TariffEvaluator.sampleBinomial(10, 0.5, () -> 0.5), "median");
+    assertEquals(0, TariffEvaluator.sampleBinomial(10, 0.5, () -> 0.0), "low tail");
+    assertEquals(10, TariffEvaluator.sampleBinomial(10, 0.5, () -> 1.0), "high tail");
+    int large = TariffEvaluator.sampleBinomial(10000, 0.3, () -> 0.5);
+    assertTrue(Math.abs(large - 3000) < 3 * Math.sqrt(10000 * 0.3 * 0.7),
+               "large draw near mean");
+  }
+
   @Test
   public void singleNewTariffSmallChunk ()
   {
@@ -1161,14 +1298,288 @@ public class TariffEvaluatorTest
     assertEquals(new Integer(5000), calls.get(bobTariff), "+5000 for defaultConsumption");
   }
 
+  // Seeded choice samples over three equally attractive tariffs. The
+  // allocations are the ones the evaluator made when it walked down the
+  // cumulative probabilities by subtraction, before the sampler.
+  @Test
+  public void seededAllocation ()
+  {
+    TariffSpecification jimTS =
+            new TariffSpecification(jim,
+                                    PowerType.CONSUMPTION).
+                                    addRate(new Rate().withValue(-0.6));
+    Tariff jimTariff = new Tariff(jimTS);
+    initTariff(jimTariff);
+    TariffSpecification bobTS =
+            new TariffSpecification(bob,
+                                    PowerType.CONSUMPTION).
+                                    addRate(new Rate().withValue(-0.6));
+    Tariff bobTariff = new Tariff(bobTS);
+    initTariff(bobTariff);
+    TariffSpecification jimTS2 =
+            new TariffSpecification(jim,
+                                    PowerType.CONSUMPTION).
+                                    addRate(new Rate().withValue(-0.6));
+    Tariff jimTariff2 = new Tariff(jimTS2);
+    initTariff(jimTariff2);
+
+    double[] profile = {1.0, 2.0};
+    cma.capacityProfile = new CapacityProfile(profile, start);
+    Random random = new Random(42);
+    double[] samples = new double[200];
+    for (int i = 0; i < samples.length; i++) {
+      samples[i] = random.nextDouble();
+    }
+    cma.setChoiceSamples(samples);
+
+    // everyone is on Jim's first tariff, which is revoked without a
+    // replacement, so each chunk chooses among the others and the default
+    subscribeTo(jimTariff, customer.getPopulation());
+    jimTariff.setState(Tariff.State.KILLED);
+    final HashMap<Tariff, Integer> calls = new HashMap<Tariff, Integer>();
+    doAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) {
+        Object[] args = invocation.getArguments();
+        assertEquals(customer, args[1], "correct customer");
+        calls.put((Tariff)args[0], (Integer)args[2]);
+        return null;
+      }
+    }).when(tariffMarket).subscribeToTariff(any(Tariff.class),
+                                            any(CustomerInfo.class),
+                                            anyInt());
+    ArrayList<Tariff> tariffs = new ArrayList<Tariff>();
+    tariffs.add(defaultConsumption);
+    tariffs.add(bobTariff);
+    tariffs.add(jimTariff2);
+    when(tariffRepo.findRecentActiveTariffs(anyInt(), any(PowerType.class)))
+        .thenReturn(tariffs);
+
+    // equal utilities, so ties go to the newest tariff first
+    evaluator.withChunkSize(50).withTariffSwitchFactor(0.0);
+    evaluator.evaluateTariffs();
+    assertEquals(4, calls.size(), "four calls");
+    assertEquals(new Integer(-10000), calls.get(jimTariff), "-10000 for jim");
+    assertEquals(new Integer(2400), calls.get(jimTariff2), "+2400 for jim2");
+    assertEquals(new Integer(4150), calls.get(bobTariff), "+4150 for bob");
+    assertEquals(new Integer(3450), calls.get(defaultConsumption),
+                 "+3450 for default");
+  }
+
+  // The choice over many tariffs, some tied, gives the allocations the
+  // evaluator made before it reused its choice arrays, when it ordered a
+  // TreeSet of tariffs by utility and evaluated exp() for each twice.
+  @Test
+  public void choiceMatchesTreeSet ()
+  {
+    subscribeTo(defaultConsumption, customer.getPopulation());
+    // all at the default price, so the utilities differ only by the
+    // tariff-switch and broker-switch inconvenience
+    ArrayList<Tariff> tariffs = new ArrayList<Tariff>();
+    tariffs.add(defaultConsumption);
+    Broker[] brokers = {defaultBroker, jim, bob};
+    for (int i = 0; i < 12; i++) {
+      TariffSpecification spec =
+              new TariffSpecification(brokers[i % 3],
+                                      PowerType.CONSUMPTION).
+                                      addRate(new Rate().withValue(-0.6));
+      Tariff tariff = new Tariff(spec);
+      initTariff(tariff);
+      tariffs.add(tariff);
+    }
+    when(tariffRepo.findRecentActiveTariffs(anyInt(), any(PowerType.class)))
+        .thenReturn(tariffs);
+
+    double[] profile = {1.0, 2.0};
+    cma.capacityProfile = new CapacityProfile(profile, start);
+    Random random = new Random(23);
+    double[] samples = new double[200];
+    for (int i = 0; i < samples.length; i++) {
+      samples[i] = random.nextDouble();
+    }
+    cma.setChoiceSamples(samples);
+
+    final HashMap<Tariff, Integer> calls = new HashMap<Tariff, Integer>();
+    doAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) {
+        Object[] args = invocation.getArguments();
+        calls.put((Tariff)args[0], (Integer)args[2]);
+        return null;
+      }
+    }).when(tariffMarket).subscribeToTariff(any(Tariff.class),
+                                            any(CustomerInfo.class),
+                                            anyInt());
+    evaluator.withChunkSize(50); // 200 chunks
+    evaluator.evaluateTariffs();
+
+    // the same choice made the old way
+    TreeSet<TariffUtility> evals = new TreeSet<TariffUtility>();
+    for (Tariff tariff : tariffs) {
+      double inconvenience = 0.0;
+      if (tariff != defaultConsumption) {
+        inconvenience += 0.04;
+        if (tariff.getBroker() != defaultBroker) {
+          inconvenience += cma.brokerSwitchFactor;
+        }
+      }
+      evals.add(new TariffUtility(tariff, 0.0 - 0.2 * inconvenience));
+    }
+    double lambda = Math.pow(50.0, 0.8) - 1.0;
+    double logitDenominator = 0.0;
+    for (TariffUtility util : evals) {
+      logitDenominator += Math.exp(lambda * util.utility);
+    }
+    for (TariffUtility util : evals) {
+      util.probability = Math.exp(lambda * util.utility) / logitDenominator;
+    }
+    HashMap<Tariff, Integer> expected = new HashMap<Tariff, Integer>();
+    int moved = 0;
+    for (double sample : samples) {
+      for (TariffUtility util : evals) {
+        if (sample <= util.probability) {
+          if (util.tariff != defaultConsumption) {
+            expected.merge(util.tariff, 50, Integer::sum);
+            moved += 50;
+          }
+          break;
+        }
+        sample -= util.probability;
+      }
+    }
+    if (moved > 0) {
+      expected.put(defaultConsumption, -moved);
+    }
+    assertTrue(expected.size() > 5, "choices spread out");
+    assertEquals(expected, calls, "same allocations");
+  }
+
+  // Evaluates 50 tariffs for each of 1000 customer models, and reports the
+  // time and heap allocation per evaluation. Tariff costs are computed in
+  // the first round, so the later ones time the choice itself. The first
+  // half of the rounds are warm-up. Run with -Pbenchmark.
+  @Test
+  @Tag("benchmark")
+  public void benchmarkChoice ()
+  {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    // a market that keeps no record of the calls
+    TariffMarket market = mock(TariffMarket.class, withSettings().stubOnly());
+    when(market.getDefaultTariff(PowerType.CONSUMPTION))
+        .thenReturn(defaultConsumption);
+    final int[] moved = {0};
+    doAnswer(invocation -> {
+      int count = invocation.getArgument(2);
+      moved[0] += Math.max(0, count);
+      return null;
+    }).when(market).subscribeToTariff(any(Tariff.class),
+                                      any(CustomerInfo.class), anyInt());
+
+    Random random = new Random(31);
+    ArrayList<Tariff> tariffs = new ArrayList<Tariff>();
+    tariffs.add(defaultConsumption);
+    for (int i = 1; i < 50; i++) {
+      TariffSpecification spec =
+              new TariffSpecification((0 == i % 2) ? bob : jim,
+                                      PowerType.CONSUMPTION).
+                                      addRate(new Rate().withValue(-0.5 -
+                                          random.nextInt(100) / 1000.0));
+      Tariff tariff = new Tariff(spec);
+      initTariff(tariff);
+      tariffs.add(tariff);
+    }
+    when(tariffRepo.findRecentActiveTariffs(anyInt(), any(PowerType.class)))
+        .thenReturn(tariffs);
+
+    double[] profile = {1.0, 2.0};
+    TariffEvaluator[] evaluators = new TariffEvaluator[1000];
+    for (int i = 0; i < evaluators.length; i++) {
+      TestAccessor accessor = new TestAccessor();
+      accessor.customerInfo =
+          new CustomerInfo("customer " + i, 10).withMultiContracting(true);
+      accessor.capacityProfile = new CapacityProfile(profile, start);
+      accessor.setChoiceSamples(random.nextDouble(), random.nextDouble(),
+                                random.nextDouble());
+      TariffSubscription sub =
+          new TariffSubscription(accessor.customerInfo, defaultConsumption);
+      initSubscription(sub);
+      ReflectionTestUtils.setField(sub, "tariffMarketService", market);
+      sub.subscribe(10);
+      tariffSubscriptionRepo.add(sub);
+      // no inertia, so every evaluation makes all of its choices
+      evaluators[i] =
+          new TariffEvaluator(accessor).withRationality(0.8).withInertia(0.0);
+      ReflectionTestUtils.setField(evaluators[i], "tariffRepo", tariffRepo);
+      ReflectionTestUtils.setField(evaluators[i], "tariffMarket", market);
+      ReflectionTestUtils.setField(evaluators[i], "tariffSubscriptionRepo",
+                                   tariffSubscriptionRepo);
+      ReflectionTestUtils.setField(evaluators[i], "tariffCostCache",
+                                   tariffCostCache);
+    }
+
+    int rounds = 20;
+    long nanos = 0l;
+    long bytes = 0l;
+    for (int round = 0; round < rounds; round++) {
+      long startBytes = threads.getCurrentThreadAllocatedBytes();
+      long startNanos = System.nanoTime();
+      for (TariffEvaluator te : evaluators) {
+        te.evaluateTariffs();
+      }
+      long endNanos = System.nanoTime();
+      long endBytes = threads.getCurrentThreadAllocatedBytes();
+      if (round >= rounds / 2) {
+        nanos += endNanos - startNanos;
+        bytes += endBytes - startBytes;
+      }
+    }
+    // using the results also keeps the work from being optimized away
+    assertTrue(moved[0] > 0, "customers moved");
+    double evaluations = rounds / 2 * (double) evaluators.length;
+    log.info(String.format("tariff choice, %d tariffs: %.1f ns, %.1f bytes"
+                           + " per customer evaluation",
+                           tariffs.size(), nanos / evaluations,
+                           bytes / evaluations));
+  }
+
   // Revoke to better tariff
 
   // Revoke to superseding tariff, with inertia
 
+  // tariff and utility, ordered by decreasing utility and then by
+  // decreasing tariff id, as the evaluator once kept them
+  class TariffUtility implements Comparable<TariffUtility>
+  {
+    Tariff tariff;
+    double utility;
+    double probability = 0.0;
+
+    TariffUtility (Tariff tariff, double utility)
+    {
+      super();
+      this.tariff = tariff;
+      this.utility = utility;
+    }
+
+    @Override
+    public int compareTo (TariffUtility other)
+    {
+      double result = other.utility - utility;
+      if (result == 0.0)
+        return (int) (other.tariff.getId() - tariff.getId());
+      else if (result > 0.0)
+        return 1;
+      else
+        return -1;
+    }
+  }
+
   // --------------- model accessor ------------------------------------
   class TestAccessor implements CustomerModelAccessor
   {
     // values to return
+    CustomerInfo customerInfo = customer;
     CapacityProfile capacityProfile;
     double brokerSwitchFactor = 0.05;
     
@@ -1185,7 +1596,7 @@ public class TariffEvaluatorTest
     @Override
     public CustomerInfo getCustomerInfo ()
     {
-      return customer;
+      return customerInfo;
     }
 
     @Override
@@ -3,16 +3,22 @@ package org.powertac.common.repo;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.List;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.Instant;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 import org.powertac.common.Broker;
 import org.powertac.common.Competition;
 import org.powertac.common.CustomerInfo;
+import org.powertac.common.CustomerInfo.CustomerClass;
 import org.powertac.common.Rate;
 import org.powertac.common.Tariff;
 import org.powertac.common.TariffSpecification;
@@ -35,6 +41,9 @@ import org.springframework.test.util.ReflectionTestUtils;
 })
 public class TariffSubscriptionRepoTests
 {
+  static private Logger log =
+      LogManager.getLogger(TariffSubscriptionRepoTests.class.getName());
+
   @Autowired
   private TimeService timeService;
   
@@ -155,6 +164,78 @@ public class TariffSubscriptionRepoTests
     assertEquals(sub1, subs.get(0), "correct sub 1");
   }
 
+  @Test
+  public void testActiveSubscriptionsTrackCounts ()
+  {
+    List<TariffSubscription> subs;
+    Tariff t1 = new Tariff(ts1);
+    Tariff t2 = new Tariff(ts2);
+    t1.init();
+    t2.init();
+    TariffSubscription sub1 = repo.getSubscription(c1, t1);
+    TariffSubscription sub2 = repo.getSubscription(c1, t2);
+    subs = repo.findActiveSubscriptionsForCustomer(c1);
+    assertEquals(0, subs.size(), "none active");
+    // activate out of order; list keeps insertion order
+    sub2.setCustomersCommitted(4);
+    sub1.setCustomersCommitted(7);
+    assertEquals(2, subs.size(), "view shows both");
+    assertEquals(sub1, subs.get(0), "sub1 first");
+    assertEquals(sub2, subs.get(1), "sub2 second");
+    assertEquals(1, repo.findActiveSubscriptionsForBroker(b1).size(), "one for Bob");
+    assertEquals(sub2, repo.findActiveSubscriptionsForBroker(b2).get(0), "sub2 for Barb");
+    sub1.setCustomersCommitted(0);
+    subs = repo.findActiveSubscriptionsForCustomer(c1);
+    assertEquals(1, subs.size(), "one active");
+    assertEquals(sub2, subs.get(0), "sub2 still active");
+    assertEquals(0, repo.findActiveSubscriptionsForBroker(b1).size(), "none for Bob");
+    assertThrows(UnsupportedOperationException.class, () -> repo
+                 .findSubscriptionsForCustomer(c1).clear(), "read-only");
+
+    // removal detaches the subscriptions from the repo
+    repo.removeSubscriptionsForTariff(t2);
+    assertEquals(0, repo.findActiveSubscriptionsForCustomer(c1).size(), "none active");
+    assertNull(repo.findSubscriptionForTariffAndCustomer(t2, c1), "sub2 gone");
+    sub2.setCustomersCommitted(0);
+    sub2.setCustomersCommitted(2);
+    assertEquals(0, repo.findActiveSubscriptionsForCustomer(c1).size(), "still none");
+    assertEquals(1, repo.findSubscriptionsForCustomer(c1).size(), "sub1 left");
+  }
+
+  @Test
+  public void testCommittedCustomerCount ()
+  {
+    CustomerInfo c3 = new CustomerInfo("Acme", 4)
+        .withPowerType(PowerType.CONSUMPTION)
+        .withCustomerClass(CustomerClass.LARGE);
+    Tariff t1 = new Tariff(ts1);
+    Tariff t2 = new Tariff(ts2);
+    t1.init();
+    t2.init();
+    TariffSubscription sub1 = repo.getSubscription(c1, t1);
+    TariffSubscription sub2 = repo.getSubscription(c3, t1);
+    TariffSubscription sub3 = repo.getSubscription(c2, t2);
+    sub1.setCustomersCommitted(12);
+    sub2.setCustomersCommitted(3);
+    sub3.setCustomersCommitted(40);
+    assertEquals(12, repo.getCommittedCustomerCount(b1, CustomerClass.SMALL), "Bob small");
+    assertEquals(3, repo.getCommittedCustomerCount(b1, CustomerClass.LARGE), "Bob large");
+    assertEquals(40, repo.getCommittedCustomerCount(b2, CustomerClass.SMALL), "Barb small");
+    sub1.setCustomersCommitted(5);
+    assertEquals(5, repo.getCommittedCustomerCount(b1, CustomerClass.SMALL), "Bob small reduced");
+
+    // a subscription added with customers counts immediately
+    TariffSubscription sub4 = new TariffSubscription(c3, t2);
+    sub4.setCustomersCommitted(2);
+    repo.add(sub4);
+    assertEquals(2, repo.getCommittedCustomerCount(b2, CustomerClass.LARGE), "Barb large");
+    repo.removeSubscriptionsForTariff(t2);
+    assertEquals(0, repo.getCommittedCustomerCount(b2, CustomerClass.SMALL), "Barb none small");
+    assertEquals(0, repo.getCommittedCustomerCount(b2, CustomerClass.LARGE), "Barb none large");
+    repo.recycle();
+    assertEquals(0, repo.getCommittedCustomerCount(b1, CustomerClass.SMALL), "recycled");
+  }
+
   @Test
   public void testFindSubscriptionForTariffAndCustomer ()
   {
@@ -205,4 +286,137 @@ public class TariffSubscriptionRepoTests
     assertEquals(0, subs.size(), "no subs found");
   }
 
+  // Times a timeslot's worth of repo queries, as made by the customer
+  // models and the distribution utility: the active subscriptions and a
+  // pair lookup for each subscription of 2000 customers, and the
+  // subscriptions of each of 20 brokers. The repo's indexes and views are
+  // compared with the copy-and-scan lookups they replaced, reporting ns and
+  // bytes allocated per timeslot. The first half of the rounds are
+  // warm-up. Run with -Pbenchmark.
+  @Test
+  @Tag("benchmark")
+  public void benchmarkTimeslotQueries ()
+  {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    int brokerCount = 20;
+    int tariffCount = 100;
+    int customerCount = 2000;
+    Broker[] brokers = new Broker[brokerCount];
+    for (int b = 0; b < brokerCount; b++) {
+      brokers[b] = new Broker("broker" + b);
+    }
+    Tariff[] tariffs = new Tariff[tariffCount];
+    for (int t = 0; t < tariffCount; t++) {
+      TariffSpecification spec =
+          new TariffSpecification(brokers[t % brokerCount],
+                                  PowerType.CONSUMPTION)
+              .addRate(new Rate().withValue(-0.1 - t * 0.001));
+      tariffs[t] = new Tariff(spec);
+      tariffs[t].init();
+    }
+    // each customer has four subscriptions, two of them active
+    CustomerInfo[] customers = new CustomerInfo[customerCount];
+    Tariff[][] customerTariffs = new Tariff[customerCount][4];
+    for (int c = 0; c < customerCount; c++) {
+      customers[c] = new CustomerInfo("customer" + c, 10)
+          .withPowerType(PowerType.CONSUMPTION);
+      for (int k = 0; k < 4; k++) {
+        customerTariffs[c][k] = tariffs[(c * 7 + k * 13) % tariffCount];
+        TariffSubscription sub =
+            repo.getSubscription(customers[c], customerTariffs[c][k]);
+        if (k < 2)
+          sub.setCustomersCommitted(5);
+      }
+    }
+
+    int rounds = 20;
+    int timeslots = 10;
+    long indexedNanos = 0l;
+    long indexedBytes = 0l;
+    long copiedNanos = 0l;
+    long copiedBytes = 0l;
+    long indexedSum = 0l;
+    long copiedSum = 0l;
+    for (int round = 0; round < rounds; round++) {
+      long startBytes = threads.getCurrentThreadAllocatedBytes();
+      long start = System.nanoTime();
+      for (int t = 0; t < timeslots; t++) {
+        for (int c = 0; c < customerCount; c++) {
+          for (TariffSubscription sub
+              : repo.findActiveSubscriptionsForCustomer(customers[c])) {
+            indexedSum += sub.getCustomersCommitted();
+          }
+          for (Tariff tariff : customerTariffs[c]) {
+            indexedSum += repo.findSubscriptionForTariffAndCustomer
+                (tariff, customers[c]).getCustomersCommitted();
+          }
+        }
+        for (Broker broker : brokers) {
+          for (TariffSubscription sub : repo.findSubscriptionsForBroker(broker)) {
+            indexedSum += sub.getCustomersCommitted();
+          }
+        }
+      }
+      long indexed = System.nanoTime();
+      long indexedEndBytes = threads.getCurrentThreadAllocatedBytes();
+      for (int t = 0; t < timeslots; t++) {
+        for (int c = 0; c < customerCount; c++) {
+          for (TariffSubscription sub : copyActive(customers[c])) {
+            copiedSum += sub.getCustomersCommitted();
+          }
+          for (Tariff tariff : customerTariffs[c]) {
+            copiedSum +=
+                scanPair(tariff, customers[c]).getCustomersCommitted();
+          }
+        }
+        for (Broker broker : brokers) {
+          for (TariffSubscription sub
+              : new ArrayList<TariffSubscription>(repo
+                  .findSubscriptionsForBroker(broker))) {
+            copiedSum += sub.getCustomersCommitted();
+          }
+        }
+      }
+      long end = System.nanoTime();
+      long endBytes = threads.getCurrentThreadAllocatedBytes();
+      if (round >= rounds / 2) {
+        indexedNanos += indexed - start;
+        indexedBytes += indexedEndBytes - startBytes;
+        copiedNanos += end - indexed;
+        copiedBytes += endBytes - indexedEndBytes;
+      }
+    }
+    // using the results also keeps the work from being optimized away
+    assertEquals(copiedSum, indexedSum, "same subscriptions found");
+    assertTrue(indexedBytes < copiedBytes, "less allocation");
+    double count = rounds / 2 * (double) timeslots;
+    log.info(String.format("subscription queries per timeslot: indexed"
+                           + " %.1f us, %.0f bytes; copied %.1f us, %.0f bytes",
+                           indexedNanos / count / 1000.0, indexedBytes / count,
+                           copiedNanos / count / 1000.0, copiedBytes / count));
+  }
+
+  // active subscriptions by copying and filtering, as before the index
+  private List<TariffSubscription> copyActive (CustomerInfo customer)
+  {
+    List<TariffSubscription> result = new ArrayList<TariffSubscription>();
+    for (TariffSubscription sub
+        : new ArrayList<TariffSubscription>(repo
+            .findSubscriptionsForCustomer(customer))) {
+      if (sub.getCustomersCommitted() > 0)
+        result.add(sub);
+    }
+    return result;
+  }
+
+  // pair lookup by scanning the tariff's subscriptions, as before the index
+  private TariffSubscription scanPair (Tariff tariff, CustomerInfo customer)
+  {
+    for (TariffSubscription sub : repo.findSubscriptionsForTariff(tariff)) {
+      if (sub.getCustomer() == customer)
+        return sub;
+    }
+    return null;
+  }
 }
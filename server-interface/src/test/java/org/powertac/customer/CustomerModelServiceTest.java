@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.annotation.Resource;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.LoggerConfig;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Instant;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.powertac.common.Broker;
+import org.powertac.common.Competition;
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.IdGenerator;
+import org.powertac.common.Rate;
+import org.powertac.common.Tariff;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.TariffSubscription;
+import org.powertac.common.TariffTransaction;
+import org.powertac.common.TimeService;
+import org.powertac.common.enumerations.PowerType;
+import org.powertac.common.interfaces.Accounting;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Tests for parallel model stepping in CustomerModelService.
+ */
+@SpringJUnitConfig(locations = {"classpath:test-config.xml"})
+@DirtiesContext
+public class CustomerModelServiceTest
+{
+  @Autowired
+  private TimeService timeService;
+
+  @Resource
+  private Accounting mockAccounting;
+
+  private Instant baseTime;
+  private List<String> transactions;
+  private StateCapture stateLog;
+  private ForkJoinPool pool;
+
+  @BeforeEach
+  public void setUp ()
+  {
+    reset(mockAccounting);
+    baseTime =
+        new DateTime(2026, 3, 2, 12, 0, 0, 0, DateTimeZone.UTC).toInstant();
+    Competition.newInstance("cms-test").withSimulationBaseTime(baseTime);
+    transactions = Collections.synchronizedList(new ArrayList<String>());
+    doAnswer(invocation -> {
+      CustomerInfo customer = invocation.getArgument(2);
+      transactions.add(invocation.getArgument(0) + " "
+                       + customer.getName() + " "
+                       + invocation.getArgument(3) + " "
+                       + invocation.getArgument(4) + " "
+                       + invocation.getArgument(5));
+      return null;
+    }).when(mockAccounting)
+      .addTariffTransaction(any(TariffTransaction.Type.class),
+                            any(Tariff.class), any(CustomerInfo.class),
+                            anyInt(), anyDouble(), anyDouble());
+    when(mockAccounting.stopTransactionBuffer())
+      .thenReturn(new ArrayList<Runnable>());
+    stateLog = new StateCapture();
+    stateLog.attach();
+    pool = new ForkJoinPool(4);
+  }
+
+  @AfterEach
+  public void tearDown ()
+  {
+    stateLog.detach();
+    pool.shutdown();
+  }
+
+  // Steps the same set of models, some parallel-safe and some not,
+  // sequentially and in parallel, and compares the transactions and the
+  // state log
+  @Test
+  public void parallelMatchesSequential ()
+  {
+    List<String> sequentialState = run(null);
+    List<String> sequentialTx = new ArrayList<String>(transactions);
+    assertFalse(sequentialTx.isEmpty(), "transactions posted");
+    assertFalse(sequentialState.isEmpty(), "state changes logged");
+
+    transactions.clear();
+    List<String> parallelState = run(pool);
+    assertEquals(sequentialTx, transactions, "same transactions, same order");
+    assertEquals(sequentialState, parallelState, "same state log");
+  }
+
+  // Builds a fresh set of models with the same ids, steps them through
+  // a day and a half, and returns the state log
+  private List<String> run (ForkJoinPool stepPool)
+  {
+    IdGenerator.recycle();
+    timeService.setCurrentTime(baseTime);
+    Broker broker = new Broker("Sally");
+    TariffSpecification spec =
+        new TariffSpecification(broker, PowerType.CONSUMPTION)
+            .withPeriodicPayment(-0.5)
+            .addRate(new Rate().withValue(-0.11))
+            .addRate(new Rate().withValue(-0.2).withTierThreshold(40.0));
+    Tariff tariff = new Tariff(spec);
+    tariff.init();
+    ArrayList<AbstractCustomer> models = new ArrayList<AbstractCustomer>();
+    for (int i = 0; i < 8; i++) {
+      // every third model is stepped on the calling thread
+      models.add(new TestModel("model" + i, tariff, 10 + i, 0 != i % 3));
+    }
+    CustomerModelService service = new CustomerModelService();
+    ReflectionTestUtils.setField(service, "accountingService", mockAccounting);
+    ReflectionTestUtils.setField(service, "models", models);
+    ReflectionTestUtils.setField(service, "stepPool", stepPool);
+
+    stateLog.clear();
+    for (int hour = 0; hour < 36; hour++) {
+      Instant now = baseTime.plus(hour * TimeService.HOUR);
+      timeService.setCurrentTime(now);
+      service.activate(now, 2);
+    }
+    return stateLog.getLines();
+  }
+
+  // Uses power on a single subscription. Models that are not parallel-safe
+  // also post an economic control, which is state-logged.
+  class TestModel extends AbstractCustomer
+  {
+    private CustomerInfo info;
+    private TariffSubscription sub;
+    private Random random;
+    private boolean safe;
+
+    TestModel (String name, Tariff tariff, int population, boolean safe)
+    {
+      super(name);
+      this.safe = safe;
+      info = new CustomerInfo(name, population)
+          .withPowerType(PowerType.CONSUMPTION);
+      addCustomerInfo(info);
+      sub = new TariffSubscription(info, tariff);
+      sub.setCustomersCommitted(population);
+      random = new Random(population);
+    }
+
+    @Override
+    public boolean isParallelSafe ()
+    {
+      return safe;
+    }
+
+    @Override
+    public void step ()
+    {
+      if (!safe)
+        sub.postRatioControl(0.1);
+      sub.usePower(info.getPopulation() * (1.0 + 4.0 * random.nextDouble()));
+    }
+
+    @Override
+    public void evaluateTariffs (List<Tariff> tariffs)
+    {
+    }
+  }
+
+  // Collects the messages logged to the State logger
+  class StateCapture extends AbstractAppender
+  {
+    private List<String> lines =
+        Collections.synchronizedList(new ArrayList<String>());
+
+    StateCapture ()
+    {
+      super("StateCapture", null, null, true);
+    }
+
+    @Override
+    public void append (LogEvent event)
+    {
+      lines.add(event.getMessage().getFormattedMessage());
+    }
+
+    void attach ()
+    {
+      LoggerContext context = (LoggerContext) LogManager.getContext(false);
+      Configuration config = context.getConfiguration();
+      start();
+      config.addAppender(this);
+      config.getLoggerConfig("State").addAppender(this, null, null);
+      context.updateLoggers();
+    }
+
+    void detach ()
+    {
+      LoggerContext context = (LoggerContext) LogManager.getContext(false);
+      LoggerConfig stateConfig =
+          context.getConfiguration().getLoggerConfig("State");
+      stateConfig.removeAppender(getName());
+      context.updateLoggers();
+      stop();
+    }
+
+    void clear ()
+    {
+      lines.clear();
+    }
+
+    List<String> getLines ()
+    {
+      return new ArrayList<String>(lines);
+    }
+  }
+}
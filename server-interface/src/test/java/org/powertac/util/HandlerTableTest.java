@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+public class HandlerTableTest
+{
+  static private Logger log =
+      LogManager.getLogger(HandlerTableTest.class.getName());
+
+  private HandlerTable uut;
+  private Handler handler;
+
+  @BeforeEach
+  public void setUp () throws Exception
+  {
+    uut = new HandlerTable("handleMessage");
+    handler = new Handler();
+  }
+
+  @Test
+  public void testDispatch ()
+  {
+    uut.dispatch(handler, "one");
+    uut.dispatch(handler, Integer.valueOf(2));
+    assertEquals("one", handler.lastString, "string handler");
+    assertEquals(2, handler.lastInteger, "integer handler");
+  }
+
+  @Test
+  public void testNoMatch ()
+  {
+    assertNull(uut.findHandler(Handler.class, Long.class), "no handler");
+    assertNull(uut.dispatch(handler, Long.valueOf(3l)), "nothing called");
+    assertNull(uut.findHandler(Handler.class, Number.class), "exact match only");
+  }
+
+  @Test
+  public void testCached ()
+  {
+    MethodHandle first = uut.findHandler(Handler.class, String.class);
+    assertNotNull(first, "found");
+    assertSame(first, uut.findHandler(Handler.class, String.class), "cached");
+  }
+
+  @Test
+  public void testBound ()
+  {
+    MethodHandle bound = uut.bindHandler(handler, String.class);
+    uut.invoke(bound, "bound");
+    assertEquals("bound", handler.lastString, "called through bound handle");
+    assertNull(uut.invoke(bound, "fail"), "exception logged, not thrown");
+  }
+
+  @Test
+  public void testTwoArgs ()
+  {
+    HandlerTable table = new HandlerTable("process");
+    ArrayList<Object> messages = new ArrayList<Object>();
+    assertEquals(8, table.dispatch(handler, Integer.valueOf(4), messages),
+                 "result returned");
+    assertEquals(1, messages.size(), "message added");
+  }
+
+  // Times one million handleMessage() calls through the reflective
+  // MessageDispatcher, through dispatch(), and through a bound handle, and
+  // reports ns per call. The first half of the rounds are warm-up. Run
+  // with -Pbenchmark.
+  @Test
+  @Tag("benchmark")
+  public void benchmarkDispatch ()
+  {
+    Object[] messages = new Object[1000];
+    for (int i = 0; i < messages.length; i++) {
+      messages[i] = (0 == i % 2) ? "m" + i : Integer.valueOf(i);
+    }
+    MethodHandle stringHandler = uut.bindHandler(handler, String.class);
+    MethodHandle integerHandler = uut.bindHandler(handler, Integer.class);
+    int rounds = 20;
+    long reflectNanos = 0l;
+    long tableNanos = 0l;
+    long boundNanos = 0l;
+    for (int round = 0; round < rounds; round++) {
+      long start = System.nanoTime();
+      for (int k = 0; k < 50; k++) {
+        for (Object msg : messages) {
+          MessageDispatcher.dispatch(handler, "handleMessage", msg);
+        }
+      }
+      long reflected = System.nanoTime();
+      for (int k = 0; k < 50; k++) {
+        for (Object msg : messages) {
+          uut.dispatch(handler, msg);
+        }
+      }
+      long tabled = System.nanoTime();
+      for (int k = 0; k < 50; k++) {
+        for (Object msg : messages) {
+          uut.invoke(msg instanceof String ? stringHandler : integerHandler,
+                     msg);
+        }
+      }
+      long end = System.nanoTime();
+      if (round >= rounds / 2) {
+        reflectNanos += reflected - start;
+        tableNanos += tabled - reflected;
+        boundNanos += end - tabled;
+      }
+    }
+    // using the results also keeps the calls from being optimized away
+    assertEquals("m998", handler.lastString, "last string");
+    assertEquals(999, handler.lastInteger, "last integer");
+    double calls = rounds / 2 * 50.0 * messages.length;
+    log.info(String.format("handleMessage dispatch: reflective %.1f ns,"
+                           + " table %.1f ns, bound %.1f ns",
+                           reflectNanos / calls, tableNanos / calls,
+                           boundNanos / calls));
+  }
+
+  public static class Handler
+  {
+    String lastString = null;
+    int lastInteger = 0;
+
+    public void handleMessage (String msg)
+    {
+      if ("fail".equals(msg))
+        throw new IllegalStateException("fail");
+      lastString = msg;
+    }
+
+    public void handleMessage (Integer msg)
+    {
+      lastInteger = msg;
+    }
+
+    public int process (Integer value, ArrayList<Object> messages)
+    {
+      messages.add(value);
+      return value * 2;
+    }
+  }
+}
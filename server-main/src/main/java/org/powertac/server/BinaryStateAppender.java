@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.powertac.common.BinaryStateLogWriter;
+
+/**
+ * Log4j appender that writes state-log events in binary form (see
+ * BinaryStateLog). Each event is written as the line the text state log's
+ * "%r:%m" pattern would produce. LogService attaches one of these to the
+ * State logger in place of the text appender when binary state logs are
+ * turned on.
+ */
+class BinaryStateAppender extends AbstractAppender
+{
+  // the base for %r, msec since the JVM started
+  private static final long startTime =
+      ManagementFactory.getRuntimeMXBean().getStartTime();
+
+  private BinaryStateLogWriter writer;
+
+  BinaryStateAppender (String name, OutputStream out) throws IOException
+  {
+    super(name, null, null, true);
+    writer = new BinaryStateLogWriter(out);
+  }
+
+  @Override
+  public void append (LogEvent event)
+  {
+    String line = (event.getTimeMillis() - startTime) + ":"
+        + event.getMessage().getFormattedMessage();
+    try {
+      writer.writeLine(line);
+    }
+    catch (IOException ioe) {
+      error("Cannot write binary state log", event, ioe);
+    }
+  }
+
+  @Override
+  public boolean stop (long timeout, TimeUnit timeUnit)
+  {
+    boolean result = super.stop(timeout, timeUnit);
+    try {
+      writer.close();
+    }
+    catch (IOException ioe) {
+      LOGGER.error("Cannot close binary state log: {}", ioe.toString());
+    }
+    return result;
+  }
+}
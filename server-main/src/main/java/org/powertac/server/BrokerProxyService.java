@@ -6,6 +6,9 @@ package org.powertac.server;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.jms.JMSException;
 import javax.jms.Message;
@@ -17,6 +20,7 @@ import org.apache.logging.log4j.LogManager;
 import org.powertac.common.Broker;
 import org.powertac.common.TariffSpecification;
 import org.powertac.common.XMLMessageConverter;
+import org.powertac.common.msg.TimeslotComplete;
 import org.powertac.common.interfaces.BrokerProxy;
 import org.powertac.common.interfaces.VisualizerProxy;
 import org.powertac.common.repo.BrokerRepo;
@@ -30,6 +34,19 @@ public class BrokerProxyService implements BrokerProxy
 {
   static private Logger log = LogManager.getLogger(BrokerProxyService.class);
 
+  /**
+   * Boolean JMS property a broker sets on its BrokerAuthentication message
+   * to request envelope delivery.
+   */
+  public static final String ENVELOPE_PROPERTY = "powertac-envelope";
+
+  /**
+   * Int JMS property carried by an envelope message, giving the number of
+   * framed messages in its body. Each frame is the decimal length of the
+   * message text, a colon, and the text itself.
+   */
+  public static final String FRAME_COUNT_PROPERTY = "powertac-frame-count";
+
   @Autowired
   private JmsTemplate template;
 
@@ -48,7 +65,19 @@ public class BrokerProxyService implements BrokerProxy
   // Deferred messages during initialization
   boolean deferredBroadcast = false;
   ArrayList<Object> deferredMessages;
-  
+
+  // Brokers that negotiated envelope delivery at login, and the requests
+  // of brokers not yet logged in. Requests arrive on the JMS receive thread,
+  // while messages go out on the simulation thread.
+  private Set<String> envelopeBrokers = ConcurrentHashMap.newKeySet();
+  private Map<String, Boolean> envelopeRequests = new ConcurrentHashMap<>();
+
+  // Broadcast statistics, reset at the end of each timeslot. Each broadcast
+  // is serialized once and the same text goes to every remote broker; these
+  // track what the per-broker serialization would have cost.
+  private long broadcastBytesSaved = 0l;
+  private long broadcastNanosSaved = 0l;
+
   public BrokerProxyService ()
   {
     super();
@@ -97,20 +126,26 @@ public class BrokerProxyService implements BrokerProxy
       final String text = converter.toXML(messageObject);
       log.debug("send " + messageObject.toString() + 
                " to " + broker.getUsername());
-      log.debug("sending text: \n" + text);
-      final String queueName = broker.toQueueName();
-
-      template.send(queueName, new MessageCreator() {
-        @Override
-        public Message createMessage (Session session) throws JMSException
-        {
-          TextMessage message = session.createTextMessage(text);
-          return message;
-        }
-      });
+      sendText(broker, text);
     }
   }
 
+  // sends already-serialized text to a remote broker's queue
+  private void sendText (Broker broker, final String text)
+  {
+    log.debug("sending text: \n" + text);
+    final String queueName = broker.toQueueName();
+
+    template.send(queueName, new MessageCreator() {
+      @Override
+      public Message createMessage (Session session) throws JMSException
+      {
+        TextMessage message = session.createTextMessage(text);
+        return message;
+      }
+    });
+  }
+
   /*
    * (non-Javadoc)
    * 
@@ -121,11 +156,51 @@ public class BrokerProxyService implements BrokerProxy
   @Override
   public void sendMessages (Broker broker, List<?> messageObjects)
   {
+    if (broker.isEnabled() && !broker.isLocal()
+        && messageObjects.size() > 1
+        && envelopeBrokers.contains(broker.getUsername())) {
+      sendEnvelope(broker, messageObjects);
+      return;
+    }
     for (Object message : messageObjects) {
       sendMessage(broker, message);
     }
   }
 
+  // Sends a list of messages as a single framed JMS message, preserving
+  // their order. Nothing is sent if all of them are null.
+  private void sendEnvelope (Broker broker, List<?> messageObjects)
+  {
+    StringBuilder body = new StringBuilder();
+    int count = 0;
+    for (Object messageObject : messageObjects) {
+      if (messageObject == null) {
+        log.error("null message ignored");
+        continue;
+      }
+      visualizerProxyService.forwardMessage(messageObject);
+      String text = converter.toXML(messageObject);
+      body.append(text.length()).append(':').append(text);
+      count += 1;
+    }
+    if (0 == count) {
+      return;
+    }
+    final String text = body.toString();
+    final int frameCount = count;
+    log.debug("send envelope of " + frameCount + " messages to "
+              + broker.getUsername());
+    template.send(broker.toQueueName(), new MessageCreator() {
+      @Override
+      public Message createMessage (Session session) throws JMSException
+      {
+        TextMessage message = session.createTextMessage(text);
+        message.setIntProperty(FRAME_COUNT_PROPERTY, frameCount);
+        return message;
+      }
+    });
+  }
+
   /*
    * (non-Javadoc)
    * 
@@ -141,19 +216,74 @@ public class BrokerProxyService implements BrokerProxy
       return;
     }
 
+    // don't send null messages
+    if (messageObject == null) {
+      log.error("null message ignored");
+      return;
+    }
+
     // dispatch to visualizers
     visualizerProxyService.forwardMessage(messageObject);
 
+    // Local brokers get the object itself. Remote brokers share a single
+    // serialized copy, produced on demand so that broadcasts with no enabled
+    // remote recipients are never serialized.
+    // We stay JMS provider neutral and send the same text to each queue
+    // rather than relying on ActiveMQ composite destinations.
+    String text = null;
+    long serializeNanos = 0l;
+    int remoteCount = 0;
     Collection<Broker> brokers = brokerRepo.list();
     for (Broker broker : brokers) {
-      // let's be JMS provider neutral and not take advance of special queues in
-      // ActiveMQ
-      // if we have JMS performance issue, we will look into optimization using
-      // ActiveMQ special queues.
-      localSendMessage(broker, messageObject);
+      if (!broker.isEnabled())
+        continue;
+      if (broker.isLocal()) {
+        broker.receiveMessage(messageObject);
+        continue;
+      }
+      if (remoteCount == 0) {
+        long start = System.nanoTime();
+        text = converter.toXML(messageObject);
+        serializeNanos = System.nanoTime() - start;
+        log.debug("broadcast " + messageObject.toString());
+      }
+      remoteCount += 1;
+      sendText(broker, text);
+    }
+    if (remoteCount > 1) {
+      int length = (null == text) ? 0 : text.length();
+      broadcastBytesSaved += (long) length * (remoteCount - 1);
+      broadcastNanosSaved += serializeNanos * (remoteCount - 1);
+    }
+
+    // timeslot is finished, report and reset broadcast savings
+    if (messageObject instanceof TimeslotComplete) {
+      log.info("broadcast serialization saved {} bytes, {} ms this timeslot",
+               broadcastBytesSaved, broadcastNanosSaved / 1000000l);
+      broadcastBytesSaved = 0l;
+      broadcastNanosSaved = 0l;
     }
   }
 
+  /**
+   * Returns the number of serialized message bytes (measured as characters
+   * of XML text) that were not regenerated for remote brokers during the
+   * current timeslot.
+   */
+  public long getBroadcastBytesSaved ()
+  {
+    return broadcastBytesSaved;
+  }
+
+  /**
+   * Returns the serialization time in nanoseconds that was not spent on
+   * remote brokers during the current timeslot.
+   */
+  public long getBroadcastNanosSaved ()
+  {
+    return broadcastNanosSaved;
+  }
+
   /*
    * (non-Javadoc)
    * 
@@ -187,6 +317,30 @@ public class BrokerProxyService implements BrokerProxy
     }
   }
 
+  @Override
+  public void setEnvelopeMode (String username, boolean value)
+  {
+    log.info("Envelope mode " + value + " for broker " + username);
+    if (value)
+      envelopeBrokers.add(username);
+    else
+      envelopeBrokers.remove(username);
+  }
+
+  @Override
+  public void requestEnvelopeMode (String username, boolean value)
+  {
+    log.debug("Envelope request " + value + " from " + username);
+    envelopeRequests.put(username, value);
+  }
+
+  @Override
+  public void acceptEnvelopeRequest (String username)
+  {
+    Boolean value = envelopeRequests.remove(username);
+    setEnvelopeMode(username, null != value && value);
+  }
+
   @Override
   public void registerBrokerMessageListener (Object listener, Class<?> msgType)
   {
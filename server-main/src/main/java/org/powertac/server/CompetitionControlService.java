@@ -538,6 +538,7 @@ public class CompetitionControlService
     broker.setIdPrefix(prefix);
     log.info("Broker " + broker.getUsername()
              + " key: " + broker.getKey() + ", prefix: " + prefix);
+    brokerProxyService.acceptEnvelopeRequest(username);
     brokerProxyService.sendMessage(broker, new BrokerAccept(prefix, broker.getKey()));
     
     // clear the broker from the list, and if the list is now empty, then
@@ -15,9 +15,16 @@
 */
 package org.powertac.server;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.LoggerConfig;
+import org.powertac.common.BinaryStateLog;
 import org.powertac.common.metadata.StateLogService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -47,6 +54,11 @@ import org.springframework.stereotype.Service;
  * object, op (used only for update) is the operation, and the args are the arguments for
  * that operation. The logger format will prepend the current offset from the beginning 
  * of the simulation in milliseconds.</p>
+ * <p>
+ * If binary state logs are turned on, with setBinaryStateLog() or the system
+ * property "binarystatelog", the state log is written in the binary form
+ * described in BinaryStateLog, to "hhhxxx.bstate" in place of "hhhxxx.state".
+ * The logtool reads either form.</p>
  * @author John Collins
  */
 @Service
@@ -56,6 +68,8 @@ public class LogService
   private StateLogService stateLogService;
 
   private String filenamePrefix = "powertac";
+  private boolean binaryStateLog = false;
+  private BinaryStateAppender binaryAppender = null;
   
   public LogService ()
   {
@@ -75,6 +89,20 @@ public class LogService
   {
     return filenamePrefix;
   }
+
+  /**
+   * Turns binary state logs on or off, starting with the next call to
+   * startLog().
+   */
+  public void setBinaryStateLog (boolean value)
+  {
+    binaryStateLog = value;
+  }
+
+  public boolean isBinaryStateLog ()
+  {
+    return binaryStateLog || Boolean.getBoolean("binarystatelog");
+  }
   
   public Logger getStateLogger ()
   {
@@ -94,10 +122,20 @@ public class LogService
       }
       
       String logDir = System.getProperty("logdir", "log");
+      boolean binary = isBinaryStateLog();
       System.setProperty("logfile", logDir + "/" + filename + ".trace");
-      System.setProperty("statefile", logDir + "/" + filename + ".state");
+      if (binary) {
+        // text state log reverts to its default, and is detached below
+        System.getProperties().remove("statefile");
+      }
+      else {
+        System.setProperty("statefile", logDir + "/" + filename + ".state");
+      }
       
       ((LoggerContext) LogManager.getContext(false)).reconfigure();
+      if (binary) {
+        startBinaryStateLog(new File(logDir, filename + BinaryStateLog.SUFFIX));
+      }
       stateLogService.init();
     }
     catch (Exception ioe) {
@@ -114,6 +152,28 @@ public class LogService
     System.getProperties().remove("logfile");
     System.getProperties().remove("statefile");
     ((LoggerContext) LogManager.getContext(false)).reconfigure();
+    if (null != binaryAppender) {
+      binaryAppender.stop();
+      binaryAppender = null;
+    }
+  }
+
+  // Replaces the State logger's text appender with a binary one
+  private void startBinaryStateLog (File file) throws IOException
+  {
+    if (null != binaryAppender) {
+      binaryAppender.stop();
+    }
+    LoggerContext context = (LoggerContext) LogManager.getContext(false);
+    Configuration config = context.getConfiguration();
+    binaryAppender =
+        new BinaryStateAppender("BinaryStateFile", new FileOutputStream(file));
+    binaryAppender.start();
+    config.addAppender(binaryAppender);
+    LoggerConfig stateConfig = config.getLoggerConfig("State");
+    stateConfig.removeAppender("StateFile");
+    stateConfig.addAppender(binaryAppender, null, null);
+    context.updateLoggers();
   }
 
 }
@@ -15,19 +15,22 @@
  */
 package org.powertac.server;
 
-import static org.powertac.util.MessageDispatcher.dispatch;
-
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import org.powertac.common.Broker;
 import org.powertac.common.Competition;
+import org.powertac.util.HandlerTable;
 import org.powertac.common.interfaces.InitializationService;
 import org.powertac.common.msg.BrokerAuthentication;
 import org.springframework.stereotype.Service;
@@ -41,6 +44,16 @@ public class MessageRouter implements InitializationService
   private HashMap<Class<?>, Set<Object>> registrations =
       new HashMap<Class<?>, Set<Object>>();
 
+  // handleMessage() handles bound to the registered targets, in the
+  // iteration order of their registration sets; resolved at registration
+  private HandlerTable handlerTable = new HandlerTable("handleMessage");
+  private HashMap<Class<?>, List<MethodHandle>> handlers =
+      new HashMap<Class<?>, List<MethodHandle>>();
+
+  // getBroker() handles by message class, empty if the class has none
+  private ConcurrentHashMap<Class<?>, Optional<MethodHandle>> brokerGetters =
+      new ConcurrentHashMap<Class<?>, Optional<MethodHandle>>();
+
   /**
    * returns the registrations for the given message
    */
@@ -59,6 +72,16 @@ public class MessageRouter implements InitializationService
       registrations.put(clazz, targetSet);
     }
     targetSet.add(listener);
+    List<MethodHandle> handlerList = new ArrayList<MethodHandle>();
+    for (Object target : targetSet) {
+      MethodHandle handler = handlerTable.bindHandler(target, clazz);
+      if (null == handler)
+        log.warn("no handleMessage(" + clazz.getSimpleName() + ") in "
+                 + target.getClass().getSimpleName());
+      else
+        handlerList.add(handler);
+    }
+    handlers.put(clazz, handlerList);
   }
 
   /**
@@ -70,6 +93,7 @@ public class MessageRouter implements InitializationService
   {
     // initialize the registrations
     registrations = new HashMap<Class<?>, Set<Object>>();
+    handlers = new HashMap<Class<?>, List<MethodHandle>>();
   }
 
   @Override
@@ -87,29 +111,31 @@ public class MessageRouter implements InitializationService
     String username = "unknown";
     Broker broker = null;
     if (!byPassed) {
-      try {
-        broker = (Broker)PropertyUtils.getSimpleProperty(message, "broker");
-        username = broker.getUsername();
-      }
-      catch (IllegalAccessException e) {
-        log.error("Failed to extract broker", e);
+      MethodHandle getter = findBrokerGetter(message.getClass());
+      if (null == getter) {
+        log.error("Failed to extract broker from "
+                  + message.getClass().getSimpleName());
       }
-      catch (InvocationTargetException e) {
-        log.error("Failed to extract broker", e);
-      }
-      catch (NoSuchMethodException e) {
-        log.error("Failed to extract broker", e);
+      else {
+        try {
+          broker = (Broker) (Object) getter.invokeExact(message);
+        }
+        catch (Throwable e) {
+          log.error("Failed to extract broker", e);
+        }
+        if (null != broker)
+          username = broker.getUsername();
       }
     }
     if (byPassed || (broker != null && broker.isEnabled())) {     
       log.debug("route(Object) - routing " + message.getClass().getSimpleName() + " from " + username);
-      Set<Object> targets = registrations.get(message.getClass());
+      List<MethodHandle> targets = handlers.get(message.getClass());
       if (targets == null) {
         log.warn("no targets for message of type " + message.getClass().getSimpleName());
       }
       else {
-        for (Object target: targets) {
-          dispatch(target, "handleMessage", message);
+        for (MethodHandle target: targets) {
+          handlerTable.invoke(target, message);
         }
         routed = true;
       }
@@ -117,4 +143,21 @@ public class MessageRouter implements InitializationService
     log.debug("route(Object) - routed:" + routed);
     return routed;
   }
+
+  // Returns a handle for the public getBroker() method of a message class,
+  // typed (Object)Object, or null if there is none. Looked up once per class.
+  private MethodHandle findBrokerGetter (Class<?> clazz)
+  {
+    return brokerGetters.computeIfAbsent(clazz, c -> {
+      try {
+        MethodHandle getter =
+            MethodHandles.publicLookup().unreflect(c.getMethod("getBroker"));
+        return Optional.of(getter.asType(MethodType.genericMethodType(1)));
+      }
+      catch (NoSuchMethodException | IllegalAccessException e) {
+        log.error("Failed to find broker property of " + c.getName(), e);
+        return Optional.empty();
+      }
+    }).orElse(null);
+  }
 }
@@ -14,6 +14,7 @@ import org.powertac.common.Broker;
 import org.powertac.common.IdGenerator;
 import org.powertac.common.XMLMessageConverter;
 import org.powertac.common.interfaces.BrokerProxy;
+import org.powertac.common.msg.BrokerAuthentication;
 import org.powertac.common.repo.BrokerRepo;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -52,13 +53,22 @@ public class ServerMessageReceiver implements MessageListener
   {
     try {
       log.debug("onMessage(Message) - receiving a message");
-      onMessage(message.getText());
+      boolean envelope = false;
+      if (message.propertyExists(BrokerProxyService.ENVELOPE_PROPERTY))
+        envelope = message.getBooleanProperty(BrokerProxyService.ENVELOPE_PROPERTY);
+      onMessage(message.getText(), envelope);
     } catch (JMSException e) {
       log.error("failed to extract text from TextMessage", e);
     }
   }
 
   void onMessage (String xml) {
+    onMessage(xml, false);
+  }
+
+  // The envelope flag is only meaningful on broker-authentication messages,
+  // where it records the broker's request for envelope delivery.
+  void onMessage (String xml, boolean envelope) {
     // validate broker's key, then strip it off
     String validXml = xml;
     if (xml.startsWith("<broker-authentication")) {
@@ -82,6 +92,12 @@ public class ServerMessageReceiver implements MessageListener
     log.debug("onMessage(String) - received message:\n" + validXml);
     Object message = converter.fromXML(validXml);
     log.debug("onMessage(String) - received message of type " + message.getClass().getSimpleName());
+    if (message instanceof BrokerAuthentication) {
+      // the request takes effect only if the login succeeds; each login
+      // renegotiates, so a broker that stops asking gets plain messages again
+      brokerProxy.requestEnvelopeMode(((BrokerAuthentication) message).getUsername(),
+                                      envelope);
+    }
     brokerProxy.routeMessage(message);
   }
   
@@ -15,6 +15,7 @@ import org.powertac.common.CustomerInfo;
 import org.powertac.common.XMLMessageConverter;
 import org.powertac.common.interfaces.BrokerProxy;
 import org.powertac.common.interfaces.VisualizerProxy;
+import org.powertac.common.repo.BrokerRepo;
 import org.springframework.jms.core.JmsTemplate;
 import org.springframework.jms.core.MessageCreator;
 import org.springframework.test.util.ReflectionTestUtils;
@@ -33,6 +34,7 @@ public class BrokerProxyServiceTest
   private VisualizerProxy visualizer;
   private JmsTemplate template;
   private XMLMessageConverter converter;
+  private BrokerRepo brokerRepo;
 
   @BeforeEach
   public void setUp() throws Exception 
@@ -52,6 +54,8 @@ public class BrokerProxyServiceTest
     ReflectionTestUtils.setField(brokerProxy, "visualizerProxyService", visualizer);    
     converter = mock(XMLMessageConverter.class);
     ReflectionTestUtils.setField(brokerProxy, "converter", converter);     
+    brokerRepo = mock(BrokerRepo.class);
+    ReflectionTestUtils.setField(brokerProxy, "brokerRepo", brokerRepo);
   }
 
   @AfterEach
@@ -105,6 +109,113 @@ public class BrokerProxyServiceTest
                                                      any(MessageCreator.class));
   }
   
+  @Test
+  public void broadcastSerializesOnce ()
+  {
+    TestBroker remote2 = new TestBroker("remote2", false, false);
+    stdBroker.setEnabled(true);
+    remote2.setEnabled(true);
+    localBroker.setEnabled(true);
+    List<Broker> brokers = new ArrayList<Broker>();
+    brokers.add(stdBroker);
+    brokers.add(remote2);
+    brokers.add(localBroker);
+    when(brokerRepo.list()).thenReturn(brokers);
+    when(converter.toXML(message)).thenReturn("<cust/>");
+
+    brokerProxy.broadcastMessage(message);
+    verify(converter, times(1)).toXML(message);
+    verify(template, times(2)).send(any(String.class),
+                                    any(MessageCreator.class));
+    verify(visualizer, times(1)).forwardMessage(message);
+    assertEquals(1, localBroker.messages.size(), "local broker got message");
+    assertEquals(7l, ((BrokerProxyService) brokerProxy).getBroadcastBytesSaved(),
+                 "one copy of text saved");
+  }
+
+  @Test
+  public void broadcastNoRemote ()
+  {
+    List<Broker> brokers = new ArrayList<Broker>();
+    brokers.add(stdBroker);
+    brokers.add(localBroker);
+    when(brokerRepo.list()).thenReturn(brokers);
+
+    brokerProxy.broadcastMessage(message);
+    verify(converter, times(0)).toXML(any());
+    verify(template, times(0)).send(any(String.class),
+                                    any(MessageCreator.class));
+    assertEquals(0l, ((BrokerProxyService) brokerProxy).getBroadcastBytesSaved(),
+                 "nothing saved");
+  }
+
+  @Test
+  public void testSendMessages_envelope ()
+  {
+    List<Object> messageList = new ArrayList<Object>();
+    messageList.add(message);
+    messageList.add(new CustomerInfo("t2", 22));
+    messageList.add(new CustomerInfo("t3", 23));
+    when(converter.toXML(any())).thenReturn("<cust/>");
+    stdBroker.setEnabled(true);
+    brokerProxy.setEnvelopeMode(stdBroker.getUsername(), true);
+    brokerProxy.sendMessages(stdBroker, messageList);
+    verify(converter, times(messageList.size())).toXML(any());
+    verify(template, times(1)).send(any(String.class),
+                                    any(MessageCreator.class));
+    verify(visualizer, times(messageList.size())).forwardMessage(any());
+
+    // back to one message per transaction
+    reset(template);
+    brokerProxy.setEnvelopeMode(stdBroker.getUsername(), false);
+    brokerProxy.sendMessages(stdBroker, messageList);
+    verify(template, times(messageList.size())).send(any(String.class),
+                                                     any(MessageCreator.class));
+  }
+
+  // a list of nulls sends no envelope at all
+  @Test
+  public void testSendMessages_emptyEnvelope ()
+  {
+    List<Object> messageList = new ArrayList<Object>();
+    messageList.add(null);
+    messageList.add(null);
+    stdBroker.setEnabled(true);
+    brokerProxy.setEnvelopeMode(stdBroker.getUsername(), true);
+    brokerProxy.sendMessages(stdBroker, messageList);
+    verify(converter, never()).toXML(any());
+    verify(template, never()).send(any(String.class),
+                                   any(MessageCreator.class));
+  }
+
+  // an envelope request takes effect only when the login is accepted
+  @Test
+  public void testEnvelopeRequest ()
+  {
+    List<Object> messageList = new ArrayList<Object>();
+    messageList.add(message);
+    messageList.add(new CustomerInfo("t2", 22));
+    when(converter.toXML(any())).thenReturn("<cust/>");
+    stdBroker.setEnabled(true);
+    brokerProxy.requestEnvelopeMode(stdBroker.getUsername(), true);
+    brokerProxy.sendMessages(stdBroker, messageList);
+    verify(template, times(messageList.size())).send(any(String.class),
+                                                     any(MessageCreator.class));
+
+    reset(template);
+    brokerProxy.acceptEnvelopeRequest(stdBroker.getUsername());
+    brokerProxy.sendMessages(stdBroker, messageList);
+    verify(template, times(1)).send(any(String.class),
+                                    any(MessageCreator.class));
+
+    // a later login without a request turns it off
+    reset(template);
+    brokerProxy.acceptEnvelopeRequest(stdBroker.getUsername());
+    brokerProxy.sendMessages(stdBroker, messageList);
+    verify(template, times(messageList.size())).send(any(String.class),
+                                                     any(MessageCreator.class));
+  }
+
   @Test
   public void routeMessageTest()
   {
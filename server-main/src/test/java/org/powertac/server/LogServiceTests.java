@@ -20,6 +20,7 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
 
@@ -28,6 +29,7 @@ import org.apache.logging.log4j.LogManager;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.powertac.common.BinaryStateLogReader;
 import org.powertac.common.metadata.StateLogService;
 import org.springframework.test.util.ReflectionTestUtils;
 
@@ -166,6 +168,44 @@ public class LogServiceTests
     logService.stopLog();
   }
 
+  // write the state log in binary form
+  @Test
+  public void binaryStateLogging ()
+  {
+    logService.setPrefix("test");
+    logService.setBinaryStateLog(true);
+    logService.startLog("44");
+    stateLog.info("org.powertac.common.Broker::44::new::sim-state-44");
+    logService.stopLog();
+    logService.setBinaryStateLog(false);
+
+    File stateFile = new File("log/test-44.bstate");
+    assertTrue(stateFile.exists(), "binary state file exists");
+    assertFalse(new File("log/test-44.state").exists(), "no text state file");
+    try {
+      BinaryStateLogReader stateReader =
+          new BinaryStateLogReader(new FileInputStream(stateFile));
+      assertTrue(stateReader.next(), "schema header");
+      assertTrue(stateReader.getLine().contains("Domain-schema-version"),
+                 "schema header first");
+      Object[] fields = null;
+      while (stateReader.next()) {
+        fields = stateReader.getFields();
+        if ("org.powertac.common.Broker".equals(fields[0]))
+          break;
+      }
+      assertNotNull(fields, "state line");
+      assertEquals(4, fields.length, "4 fields");
+      assertTrue(stateReader.getPrefix().matches("\\d+"), "prefix is a number");
+      assertEquals(44l, fields[1], "id");
+      assertEquals("sim-state-44", fields[3], "arg");
+      stateReader.close();
+    }
+    catch (Exception e) {
+      fail(e.toString());
+    }
+  }
+
   private void confirmSchemaHeader (BufferedReader stateReader)
     throws IOException
   {
@@ -44,6 +44,26 @@ public class ServerMessageReceiverTests
     when(converter.fromXML(any(String.class))).thenReturn(ba);
     
     receiver.onMessage(xml);
+    verify(brokerProxy).requestEnvelopeMode("abc", false);
+    verify(brokerProxy).routeMessage(ba);
+  }
+
+  @Test
+  public void testOnMessageAuthEnvelope() throws Exception
+  {
+    Broker broker = new Broker("abc");
+    BrokerAuthentication ba = new BrokerAuthentication(broker);
+    String xml = baToXml(ba);
+    TextMessage message = mock(TextMessage.class);
+    when(message.getText()).thenReturn(xml);
+    when(message.propertyExists(BrokerProxyService.ENVELOPE_PROPERTY))
+        .thenReturn(true);
+    when(message.getBooleanProperty(BrokerProxyService.ENVELOPE_PROPERTY))
+        .thenReturn(true);
+    when(converter.fromXML(any(String.class))).thenReturn(ba);
+
+    receiver.onMessage(message);
+    verify(brokerProxy).requestEnvelopeMode("abc", true);
     verify(brokerProxy).routeMessage(ba);
   }
   
@@ -1,5 +1,6 @@
 package org.powertac.visualizer.service_ptac;
 
+import org.powertac.util.HandlerTable;
 import org.powertac.common.interfaces.VisualizerMessageListener;
 import org.powertac.logtool.common.NewObjectListener;
 import org.slf4j.Logger;
@@ -10,12 +11,14 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Service;
 
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import javax.annotation.PostConstruct;
@@ -42,9 +45,15 @@ implements VisualizerMessageListener, NewObjectListener {
 
     private HashMap<Class<?>, Set<Object>> registrations;
 
+    // handleMessage() handles bound to the registered handlers, resolved
+    // when they register
+    private HandlerTable handlerTable = new HandlerTable("handleMessage");
+    private HashMap<Class<?>, List<MethodHandle>> handlers;
+
     @PostConstruct
     public void afterPropertiesSet() throws Exception {
         registrations = new HashMap<>();
+        handlers = new HashMap<>();
         registerAllHandlers();
     }
 
@@ -54,13 +63,13 @@ implements VisualizerMessageListener, NewObjectListener {
     public void receiveMessage(Object message) {
         Class<?> clazz = message.getClass();
 
-        Set<Object> targets = registrations.get(clazz);
+        List<MethodHandle> targets = handlers.get(clazz);
         if (targets == null) {
             log.trace("no targets for message of type " + clazz.getName());
             return;
         }
-        for (Object target : targets) {
-            dispatch(target, "handleMessage", message);
+        for (MethodHandle target : targets) {
+            handlerTable.invoke(target, message);
         }
     }
 
@@ -69,40 +78,6 @@ implements VisualizerMessageListener, NewObjectListener {
         receiveMessage(obj);
     }
 
-    /**
-     * Dispatches a call to methodName inside target based on the type of
-     * message. Allows polymorphic method dispatch without the use of visitor or
-     * double dispatch schemes, which produce nasty couplings with domain types.
-     * <p>
-     * Note that this scheme finds only exact matches between types of arguments
-     * and declared types of formal parameters for declared or inherited
-     * methods. So it will not call a method with formal parameter types of
-     * (Transaction, List) if the actual arguments are (Transaction, ArrayList).
-     * </p>
-     */
-    static public Object dispatch(Object target, String methodName, Object... args) {
-        Logger log = LoggerFactory.getLogger(target.getClass().getName());
-        Object result = null;
-        try {
-            Class<?>[] classes = new Class[args.length];
-            for (int index = 0; index < args.length; index++) {
-                classes[index] = (args[index].getClass());
-            }
-            // see if we can find the method directly
-            Method method = target.getClass().getMethod(methodName, classes);
-            log.trace("found method " + method);
-            result = method.invoke(target, args);
-        } catch (NoSuchMethodException nsm) {
-            log.debug("Could not find exact match: " + nsm.toString());
-        } catch (InvocationTargetException ite) {
-            Throwable thr = ite.getTargetException();
-            log.error("Cannot call " + methodName + ": " + thr + "\n", ite);
-        } catch (Exception ex) {
-            log.error("Exception calling message processor: " + ex.toString(), ex);
-        }
-        return result;
-    }
-
     // ------------- registering handlers ----------------
 
     public void registerAllHandlers() {
@@ -159,6 +134,14 @@ implements VisualizerMessageListener, NewObjectListener {
             registrations.put(messageType, reg);
         }
         reg.add(handler);
+        List<MethodHandle> handlerList = new ArrayList<>();
+        for (Object target : reg) {
+            MethodHandle bound = handlerTable.bindHandler(target, messageType);
+            if (bound != null) {
+                handlerList.add(bound);
+            }
+        }
+        handlers.put(messageType, handlerList);
     }
 
     @SuppressWarnings("unchecked")